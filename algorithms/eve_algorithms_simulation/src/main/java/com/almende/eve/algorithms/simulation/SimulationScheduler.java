@@ -98,9 +98,24 @@ public class SimulationScheduler extends SimpleScheduler {
 
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.SimpleScheduler#handleTriggerAndThen(java.
+	 * lang.Object, java.lang.String, java.lang.Runnable)
+	 */
+	@Override
+	protected void handleTriggerAndThen(final Object msg,
+			final String triggerId, final Runnable then) {
+		// Waiting would block the simulated time, the tracer covers the run.
+		handleTrigger(msg, triggerId);
+		then.run();
+	}
+
 	@Override
 	public void delete() {
 		clear();
+		metrics.unregister();
 		SimulationSchedulerConfig config = SimulationSchedulerConfig
 				.decorate(getParams());
 		SimulationSchedulerBuilder.delete(config.getId());
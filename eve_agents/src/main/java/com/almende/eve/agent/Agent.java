@@ -21,20 +21,22 @@ import com.almende.eve.protocol.jsonrpc.JSONRpcProtocol;
 import com.almende.eve.protocol.jsonrpc.annotation.Access;
 import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
 import com.almende.eve.protocol.jsonrpc.annotation.Name;
+import com.almende.eve.protocol.jsonrpc.annotation.Namespace;
 import com.almende.eve.protocol.jsonrpc.annotation.Optional;
 import com.almende.eve.protocol.jsonrpc.annotation.RequestId;
 import com.almende.eve.protocol.jsonrpc.annotation.Sender;
 import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
 import com.almende.eve.protocol.jsonrpc.formats.Params;
+import com.almende.eve.scheduling.Repetition;
 import com.almende.eve.scheduling.Scheduler;
+import com.almende.eve.scheduling.SchedulerMetrics;
 import com.almende.util.TypeUtil;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.callback.SyncCallback;
-import com.almende.util.jackson.JOM;
-import com.almende.util.uuid.UUID;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -447,7 +449,45 @@ public class Agent extends AgentCore implements AgentInterface {
 	}
 
 	/**
-	 * _schedule next.
+	 * Handle a batch of due triggers, delivered by a scheduler with batch
+	 * delivery enabled. The messages are handled one after the other, in
+	 * this single turn.
+	 *
+	 * @param messages
+	 *            the messages
+	 * @param senderUrl
+	 *            the sender url
+	 */
+	@Access(AccessType.SELF)
+	public void _triggerBatch(final @Name("messages") ArrayNode messages,
+			@Sender URI senderUrl) {
+		for (final JsonNode message : messages) {
+			try {
+				receive(message, senderUrl, null);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Failed to handle batched trigger", e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the metrics of the scheduler of this agent, available as the
+	 * "schedulerMetrics" namespace, e.g. "schedulerMetrics.getStats".
+	 *
+	 * @return the scheduler metrics, or null if the agent has no scheduler
+	 */
+	@JsonIgnore
+	@Namespace("schedulerMetrics")
+	public SchedulerMetrics getSchedulerMetrics() {
+		final Scheduler scheduler = getScheduler();
+		return scheduler != null ? scheduler.getMetrics() : null;
+	}
+
+	/**
+	 * _schedule next, the self-rescheduling request of the interval schedules
+	 * of earlier versions. Kept to run the ones that are still stored in a
+	 * persistent scheduler, new intervals are periodic tasks of the
+	 * scheduler itself.
 	 *
 	 * @param request
 	 *            the request
@@ -495,15 +535,9 @@ public class Agent extends AgentCore implements AgentInterface {
 	}
 
 	private String scheduleInt(final String method, final ObjectNode params,
-			final long interval, final String type) {
-		final Params parms = new Params();
-		parms.add("request", new JSONRequest(method, params));
-		parms.add("interval", interval);
-		parms.add("type", type);
-		return schedule(
-				new JSONRequest(JOM.createObjectNode().textNode(
-						new UUID().toString()), "_scheduleNext", parms, null),
-				getScheduler().nowDateTime().plus(interval));
+			final long start, final long interval, final Repetition repetition) {
+		return getScheduler().scheduleInterval(null,
+				new JSONRequest(method, params), start, interval, repetition);
 	}
 
 	/**
@@ -521,7 +555,8 @@ public class Agent extends AgentCore implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	protected String scheduleInterval(final String method,
 			final ObjectNode params, final long interval) {
-		return scheduleInt(method, params, interval, "parallel");
+		return scheduleInt(method, params, getScheduler().now() + interval,
+				interval, Repetition.FIXED_RATE);
 	}
 
 	/**
@@ -541,7 +576,8 @@ public class Agent extends AgentCore implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	protected String scheduleIntervalSequential(final String method,
 			final ObjectNode params, final long interval) {
-		return scheduleInt(method, params, interval, "sequential");
+		return scheduleInt(method, params, getScheduler().now() + interval,
+				interval, Repetition.FIXED_DELAY);
 	}
 
 	/**
@@ -565,15 +601,8 @@ public class Agent extends AgentCore implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	protected String scheduleIntervalPrecize(final String method,
 			final ObjectNode params, final long interval, final DateTime start) {
-		final Params parms = new Params();
-		parms.add("request", new JSONRequest(method, params));
-		parms.add("interval", interval);
-		parms.add("timestamp", start);
-		parms.add("type", "precize");
-		return schedule(
-				new JSONRequest(JOM.createObjectNode().textNode(
-						new UUID().toString()), "_scheduleNext", parms, null),
-				getScheduler().nowDateTime().plus(interval));
+		return scheduleInt(method, params, start.getMillis() + interval,
+				interval, Repetition.FIXED_RATE_CATCH_UP);
 	}
 
 }
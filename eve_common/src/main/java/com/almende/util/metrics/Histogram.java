@@ -0,0 +1,114 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A lock free histogram of non-negative values, with power of two buckets:
+ * bucket 0 holds the zeros, bucket i the values in [2^(i-1), 2^i). Cheap
+ * enough to update on every event; percentiles are given as the upper bound
+ * of their bucket, so they are at most a factor two off.
+ */
+public final class Histogram {
+	private static final int		BUCKETS	= 40;
+	private final AtomicLongArray	buckets	= new AtomicLongArray(BUCKETS);
+	private final AtomicLong		count	= new AtomicLong(0);
+	private final AtomicLong		sum		= new AtomicLong(0);
+	private final AtomicLong		max		= new AtomicLong(0);
+
+	/**
+	 * Add a value, negative values are counted as zero.
+	 *
+	 * @param value
+	 *            the value
+	 */
+	public void update(final long value) {
+		final long val = Math.max(0, value);
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long
+				.numberOfLeadingZeros(val));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(val);
+		long cur = max.get();
+		while (val > cur && !max.compareAndSet(cur, val)) {
+			cur = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of values.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the mean.
+	 *
+	 * @return the mean, 0 if there are no values
+	 */
+	public double getMean() {
+		final long cnt = count.get();
+		return cnt == 0 ? 0 : (double) sum.get() / cnt;
+	}
+
+	/**
+	 * Gets the max.
+	 *
+	 * @return the max
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the given percentile, as the upper bound of the bucket it falls
+	 * in.
+	 *
+	 * @param quantile
+	 *            the quantile, between 0 and 1
+	 * @return the percentile
+	 */
+	public long getPercentile(final double quantile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += buckets.get(i);
+		}
+		final long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Gets the summary of this histogram: count, mean, max and the main
+	 * percentiles.
+	 *
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("count", getCount());
+		result.put("mean", getMean());
+		result.put("max", getMax());
+		result.put("p50", getPercentile(0.5));
+		result.put("p90", getPercentile(0.9));
+		result.put("p99", getPercentile(0.99));
+		result.put("p999", getPercentile(0.999));
+		return result;
+	}
+}
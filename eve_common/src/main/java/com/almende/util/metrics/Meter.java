@@ -0,0 +1,74 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free event counter, that also keeps the rate of the last minute in
+ * per second buckets. Marks that race with the start of a new second might
+ * get lost for the rate, the total count is exact.
+ */
+public final class Meter {
+	private static final int		WINDOW	= 60;
+	private final AtomicLong		count	= new AtomicLong(0);
+	private final AtomicLongArray	counts	= new AtomicLongArray(WINDOW);
+	private final AtomicLongArray	seconds	= new AtomicLongArray(WINDOW);
+	private final long				start	= System.currentTimeMillis() / 1000;
+
+	/**
+	 * Mark a single event.
+	 */
+	public void mark() {
+		mark(1);
+	}
+
+	/**
+	 * Mark the given number of events.
+	 *
+	 * @param events
+	 *            the events
+	 */
+	public void mark(final long events) {
+		count.addAndGet(events);
+		final long second = System.currentTimeMillis() / 1000;
+		final int slot = (int) (second % WINDOW);
+		final long stamp = seconds.get(slot);
+		if (stamp != second && seconds.compareAndSet(slot, stamp, second)) {
+			counts.set(slot, 0);
+		}
+		counts.addAndGet(slot, events);
+	}
+
+	/**
+	 * Gets the total number of events.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the number of events per second, over the last minute (or since
+	 * creation, if that's shorter). The current second isn't complete yet, so
+	 * isn't counted.
+	 *
+	 * @return the rate
+	 */
+	public double getRate() {
+		final long second = System.currentTimeMillis() / 1000;
+		long sum = 0;
+		for (int i = 0; i < WINDOW; i++) {
+			final long stamp = seconds.get(i);
+			if (stamp < second && stamp >= second - WINDOW) {
+				sum += counts.get(i);
+			}
+		}
+		final long span = Math.max(1, Math.min(WINDOW, second - start));
+		return (double) sum / span;
+	}
+}
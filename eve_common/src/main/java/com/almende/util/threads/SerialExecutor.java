@@ -0,0 +1,82 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util.threads;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs its tasks one at a time, in submission order, on a shared executor
+ * (by default the {@link ThreadPool}). Gives per-source ordering, e.g. per
+ * connection, without a thread per source.
+ */
+public class SerialExecutor implements Executor {
+	private static final Logger		LOG		= Logger.getLogger(SerialExecutor.class
+													.getName());
+	private final Queue<Runnable>	tasks	= new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean		running	= new AtomicBoolean(false);
+	private final Executor			executor;
+	private final Runnable			drain	= new Runnable() {
+												@Override
+												public void run() {
+													drain();
+												}
+											};
+
+	/**
+	 * Instantiates a new serial executor on the ThreadPool.
+	 */
+	public SerialExecutor() {
+		this(ThreadPool.getPool());
+	}
+
+	/**
+	 * Instantiates a new serial executor.
+	 *
+	 * @param executor
+	 *            the executor to run the tasks on
+	 */
+	public SerialExecutor(final Executor executor) {
+		this.executor = executor;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+			executor.execute(drain);
+		}
+	}
+
+	private void drain() {
+		try {
+			Runnable task = tasks.poll();
+			while (task != null) {
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					LOG.log(Level.WARNING, "Task failed", e);
+				}
+				task = tasks.poll();
+			}
+		} finally {
+			running.set(false);
+			// A task might have been added after the last poll.
+			schedule();
+		}
+	}
+}
@@ -214,6 +214,18 @@ public class JSONMessage implements Serializable {
 					if (message.startsWith("{")
 							|| message.trim().startsWith("{")) {
 
+						json = (ObjectNode) JOM.getInstance().readTree(message);
+					}
+				} else if (msg instanceof byte[]) {
+					// Parse the (UTF-8) bytes directly, without decoding them
+					// to a String first.
+					final byte[] message = (byte[]) msg;
+					int i = 0;
+					while (i < message.length
+							&& Character.isWhitespace(message[i])) {
+						i++;
+					}
+					if (i < message.length && message[i] == '{') {
 						json = (ObjectNode) JOM.getInstance().readTree(message);
 					}
 				} else if (msg instanceof ObjectNode
@@ -4,6 +4,8 @@
  */
 package com.almende.eve.scheduling;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,7 +14,6 @@ import org.joda.time.DateTime;
 
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.protocol.jsonrpc.formats.Caller;
-import com.almende.eve.scheduling.clock.RunnableClock;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateBuilder;
 import com.almende.util.jackson.JOM;
@@ -28,6 +29,7 @@ public class PersistentScheduler extends SimpleScheduler {
 	private static final Logger	LOG		= Logger.getLogger(PersistentScheduler.class
 												.getName());
 	private State				state	= null;
+	private TimerJournal		journal	= null;
 
 	public void delete() {
 		super.delete();
@@ -35,6 +37,10 @@ public class PersistentScheduler extends SimpleScheduler {
 			state.delete();
 			state = null;
 		}
+		if (journal != null) {
+			journal.delete();
+			journal = null;
+		}
 		PersistentSchedulerConfig config = PersistentSchedulerConfig
 				.decorate(getParams());
 		SimpleSchedulerBuilder.delete(config.getId());
@@ -54,16 +60,26 @@ public class PersistentScheduler extends SimpleScheduler {
 		final PersistentSchedulerConfig config = PersistentSchedulerConfig
 				.decorate(params);
 		if (getClock() == null) {
-			setClock(new RunnableClock());
+			setClock(createClock());
 		}
 
 		final ObjectNode stateConfig = config.getState();
-		if (stateConfig == null) {
+		if (config.getJournalPath() != null && config.getId() != null) {
+			final File dir = new File(config.getJournalPath());
+			if (!dir.exists() && !dir.mkdirs()) {
+				LOG.warning("Couldn't create journal path: " + dir);
+			}
+			journal = new TimerJournal(new File(dir, config.getId()
+					+ ".journal"), config.isJournalSync());
+			for (final TaskEntry entry : journal.recover()) {
+				run(entry);
+			}
+		} else if (stateConfig == null) {
 			LOG.warning("Parameter 'state' is required, falling back to SimpleScheduler.");
 		} else {
 			state = new StateBuilder().withConfig(stateConfig).build();
-			for (final String key : state.keySet()) {
-				final TaskEntry entry = state.get(key, TaskEntry.class);
+			for (final TaskEntry entry : state.getAll(state.keySet(),
+					TaskEntry.class).values()) {
 				run(entry);
 			}
 		}
@@ -73,22 +89,56 @@ public class PersistentScheduler extends SimpleScheduler {
 	private void run(final TaskEntry entry) {
 		if (entry != null) {
 			if (getClock() == null) {
-				setClock(new RunnableClock());
+				setClock(createClock());
 			}
-			getClock().requestTrigger(entry.getTaskId(), entry.getDue(),
+			if (entry.getInterval() > 0) {
+				// Periodic tasks stay stored until they are cancelled.
+				super.scheduleInterval(entry.getTaskId(), entry.getMessage(),
+						entry.getDue().getMillis(), entry.getInterval(),
+						entry.getRepetition());
+				return;
+			}
+			requestTrigger(entry.getTaskId(), entry.getDue().getMillis(),
 					new Runnable() {
 
 						@Override
 						public void run() {
-							if (state != null) {
-								state.remove(entry.getTaskId());
-							}
+							unstore(entry.getTaskId());
 							handleTrigger(entry.getMessage(), entry.getTaskId());
 						}
 					});
 		}
 	}
 
+	private void store(final TaskEntry entry) {
+		final long start = System.nanoTime();
+		if (journal != null) {
+			try {
+				journal.schedule(entry);
+			} catch (final IOException e) {
+				throw new IllegalStateException("Couldn't journal task "
+						+ entry.getTaskId(), e);
+			}
+		} else if (state != null) {
+			state.put(entry.getTaskId(), entry);
+		} else {
+			return;
+		}
+		metrics.stored(System.nanoTime() - start);
+	}
+
+	private void unstore(final String id) {
+		final long start = System.nanoTime();
+		if (journal != null) {
+			journal.remove(id);
+		} else if (state != null) {
+			state.remove(id);
+		} else {
+			return;
+		}
+		metrics.stored(System.nanoTime() - start);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see
@@ -100,9 +150,27 @@ public class PersistentScheduler extends SimpleScheduler {
 		final TaskEntry entry = new TaskEntry((id != null ? id
 				: new UUID().toString()), due, JOM.getInstance().valueToTree(
 				msg));
-		if (state != null) {
-			state.put(entry.getTaskId(), entry);
-		}
+		store(entry);
+		run(entry);
+		return entry.getTaskId();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.SimpleScheduler#scheduleInterval(java.lang
+	 * .String, java.lang.Object, long, long,
+	 * com.almende.eve.scheduling.Repetition)
+	 */
+	@Override
+	public String scheduleInterval(final String id, final Object msg,
+			final long start, final long interval, final Repetition repetition) {
+		final TaskEntry entry = new TaskEntry((id != null ? id
+				: new UUID().toString()), new DateTime(start), JOM
+				.getInstance().valueToTree(msg));
+		entry.setInterval(interval);
+		entry.setRepetition(repetition);
+		store(entry);
 		run(entry);
 		return entry.getTaskId();
 	}
@@ -113,13 +181,8 @@ public class PersistentScheduler extends SimpleScheduler {
 	 */
 	@Override
 	public void cancel(final String id) {
-		if (getClock() == null) {
-			setClock(new RunnableClock());
-		}
-		if (state != null) {
-			state.remove(id);
-		}
-		getClock().cancel(id);
+		unstore(id);
+		super.cancel(id);
 	}
 
 	/*
@@ -129,12 +192,18 @@ public class PersistentScheduler extends SimpleScheduler {
 	@Override
 	public void clear() {
 		if (getClock() == null) {
-			setClock(new RunnableClock());
+			setClock(createClock());
 		}
-		if (state != null) {
+		if (journal != null) {
+			try {
+				journal.clear();
+			} catch (final IOException e) {
+				throw new IllegalStateException("Couldn't journal clear", e);
+			}
+		} else if (state != null) {
 			state.clear();
 		}
-		getClock().clear();
+		super.clear();
 	}
 }
 
@@ -148,6 +217,8 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 	private String				taskId				= null;
 	private JsonNode			message;
 	private DateTime			due;
+	private long				interval			= 0;
+	private Repetition			repetition			= null;
 	private boolean				active				= false;
 
 	/**
@@ -277,6 +348,44 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 		this.due = due;
 	}
 
+	/**
+	 * Gets the interval of a periodic task.
+	 *
+	 * @return the interval, 0 for a one-shot task
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Sets the interval of a periodic task.
+	 *
+	 * @param interval
+	 *            the new interval
+	 */
+	public void setInterval(final long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Gets the repetition of a periodic task.
+	 *
+	 * @return the repetition
+	 */
+	public Repetition getRepetition() {
+		return repetition;
+	}
+
+	/**
+	 * Sets the repetition of a periodic task.
+	 *
+	 * @param repetition
+	 *            the new repetition
+	 */
+	public void setRepetition(final Repetition repetition) {
+		this.repetition = repetition;
+	}
+
 	/**
 	 * Sets the active.
 	 * 
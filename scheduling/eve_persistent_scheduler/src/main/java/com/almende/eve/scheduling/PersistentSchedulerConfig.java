@@ -64,4 +64,53 @@ public class PersistentSchedulerConfig extends SimpleSchedulerConfig {
 		}
 		return null;
 	}
+
+	/**
+	 * Sets the journal path, a directory in which the scheduler keeps a
+	 * journal of its tasks. If set, this is used instead of the state, as
+	 * appending to the journal is much cheaper than storing every task in a
+	 * state.
+	 * 
+	 * @param path
+	 *            the new journal path
+	 */
+	public void setJournalPath(final String path) {
+		this.put("journalPath", path);
+	}
+
+	/**
+	 * Gets the journal path.
+	 * 
+	 * @return the journal path
+	 */
+	public String getJournalPath() {
+		if (this.has("journalPath")) {
+			return this.get("journalPath").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets whether scheduling a task waits until it is written to the
+	 * journal. Concurrently scheduled tasks are written together, so this
+	 * is mostly a matter of latency. (Optional, default is true)
+	 * 
+	 * @param sync
+	 *            the new journal sync
+	 */
+	public void setJournalSync(final boolean sync) {
+		this.put("journalSync", sync);
+	}
+
+	/**
+	 * Checks if scheduling waits for the journal.
+	 * 
+	 * @return true, if journal sync
+	 */
+	public boolean isJournalSync() {
+		if (this.has("journalSync")) {
+			return this.get("journalSync").asBoolean();
+		}
+		return true;
+	}
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Append only journal of the tasks of a {@link PersistentScheduler}. Every
+ * schedule, cancel and fired task is a single JSON line appended to the file,
+ * instead of a rewrite of the scheduler's state. Concurrent appends are
+ * written and synced together (group commit): one caller writes the pending
+ * lines of everybody while the others wait for it. Removals don't wait at
+ * all, losing one in a crash only means the task fires again. Periodic
+ * tasks are written once, their runs aren't journaled.
+ *
+ * The journal is compacted on opening and whenever the number of obsolete
+ * lines outgrows the number of pending tasks. A failed write leaves its lines
+ * pending and is reported to the callers waiting for it; as the file may end
+ * in a partial line then, the next commit rewrites it from the pending tasks.
+ */
+final class TimerJournal {
+	private static final Logger			LOG			= Logger.getLogger(TimerJournal.class
+															.getName());
+	private static final Charset		UTF8		= Charset.forName("UTF-8");
+	private static final long			FLUSH_DELAY	= 50;
+	private static final int			MIN_COMPACT	= 1000;
+	private final File					file;
+	private final boolean				sync;
+	// The pending tasks, as their journal line.
+	private final Map<String, String>	live		= new LinkedHashMap<String, String>();
+	private final Object				commitLock	= new Object();
+	private final AtomicBoolean			scheduled	= new AtomicBoolean(false);
+	private StringBuilder				pending		= new StringBuilder();
+	private long						appended	= 0;
+	private long						durable		= 0;
+	private long						lines		= 0;
+	private boolean						recompact	= false;
+	private FileOutputStream			out			= null;
+
+	/**
+	 * Instantiates a new timer journal.
+	 *
+	 * @param file
+	 *            the journal file
+	 * @param sync
+	 *            whether schedule() waits until the task is on disk
+	 */
+	TimerJournal(final File file, final boolean sync) {
+		this.file = file;
+		this.sync = sync;
+	}
+
+	/**
+	 * Read the journal, returning the tasks that haven't fired or been
+	 * cancelled yet, and compact it.
+	 *
+	 * @return the pending tasks
+	 */
+	List<TaskEntry> recover() {
+		final List<TaskEntry> result = new ArrayList<TaskEntry>();
+		synchronized (commitLock) {
+			synchronized (this) {
+				live.clear();
+				if (file.exists()) {
+					read();
+				}
+				for (final String line : live.values()) {
+					try {
+						final JsonNode record = JOM.getInstance()
+								.readTree(line);
+						final TaskEntry entry = new TaskEntry(record.get("id")
+								.asText(), new DateTime(record.get("due")
+								.asLong()), record.get("msg"));
+						if (record.has("interval")) {
+							entry.setInterval(record.get("interval").asLong());
+							entry.setRepetition(Repetition.valueOf(record.get(
+									"rep").asText()));
+						}
+						result.add(entry);
+					} catch (final IOException e) {
+						LOG.log(Level.WARNING, "Skipping unreadable task", e);
+					}
+				}
+			}
+			try {
+				compact();
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't compact journal: " + file, e);
+			}
+		}
+		return result;
+	}
+
+	private void read() {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final JsonNode record;
+				try {
+					record = JOM.getInstance().readTree(line);
+				} catch (final IOException e) {
+					// Torn write at the end of the journal, dropped by compact.
+					LOG.warning("Skipping incomplete journal record in " + file);
+					continue;
+				}
+				if (record == null || !record.has("op")) {
+					continue;
+				}
+				final String op = record.get("op").asText();
+				if ("s".equals(op)) {
+					live.put(record.get("id").asText(), line);
+				} else if ("r".equals(op)) {
+					live.remove(record.get("id").asText());
+				} else if ("c".equals(op)) {
+					live.clear();
+				}
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't read journal: " + file, e);
+		}
+	}
+
+	/**
+	 * Journal a new task.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @throws IOException
+	 *             Signals that the task couldn't be written, in sync mode.
+	 *             The task is dropped from the journal again.
+	 */
+	void schedule(final TaskEntry entry) throws IOException {
+		final ObjectNode record = JOM.createObjectNode();
+		record.put("op", "s");
+		record.put("id", entry.getTaskId());
+		record.put("due", entry.getDue().getMillis());
+		record.set("msg", entry.getMessage());
+		if (entry.getInterval() > 0) {
+			record.put("interval", entry.getInterval());
+			record.put("rep", entry.getRepetition().name());
+		}
+		final String line = record.toString();
+		final long seq;
+		synchronized (this) {
+			live.put(entry.getTaskId(), line);
+			seq = append(line);
+		}
+		if (sync) {
+			try {
+				commit(seq);
+			} catch (final IOException e) {
+				remove(entry.getTaskId());
+				throw e;
+			}
+		} else {
+			scheduleCommit();
+		}
+	}
+
+	/**
+	 * Journal the removal of a task, either fired or cancelled.
+	 *
+	 * @param taskId
+	 *            the task id
+	 */
+	void remove(final String taskId) {
+		synchronized (this) {
+			if (live.remove(taskId) == null) {
+				return;
+			}
+			final ObjectNode record = JOM.createObjectNode();
+			record.put("op", "r");
+			record.put("id", taskId);
+			append(record.toString());
+		}
+		scheduleCommit();
+	}
+
+	/**
+	 * Journal the removal of all tasks.
+	 *
+	 * @throws IOException
+	 *             Signals that the removal couldn't be written.
+	 */
+	void clear() throws IOException {
+		final long seq;
+		synchronized (this) {
+			live.clear();
+			seq = append("{\"op\":\"c\"}");
+		}
+		commit(seq);
+	}
+
+	/**
+	 * Close and remove the journal.
+	 */
+	void delete() {
+		synchronized (commitLock) {
+			synchronized (this) {
+				live.clear();
+				pending = new StringBuilder();
+				durable = appended;
+			}
+			close();
+			if (file.exists() && !file.delete()) {
+				LOG.warning("Couldn't delete journal: " + file);
+			}
+		}
+	}
+
+	private long append(final String line) {
+		pending.append(line).append('\n');
+		lines++;
+		return ++appended;
+	}
+
+	private void scheduleCommit() {
+		if (scheduled.compareAndSet(false, true)) {
+			ThreadPool.getScheduledPool().schedule(new Runnable() {
+				@Override
+				public void run() {
+					scheduled.set(false);
+					try {
+						commit(Long.MAX_VALUE);
+					} catch (final IOException e) {
+						LOG.log(Level.WARNING, "Couldn't write journal: "
+								+ file + ", will retry", e);
+						scheduleCommit();
+					}
+				}
+			}, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Make sure the record with the given sequence number is on disk. The
+	 * first caller writes all pending records, callers that were waiting
+	 * for it usually find their record written already.
+	 *
+	 * @param seq
+	 *            the sequence number
+	 * @throws IOException
+	 *             Signals that the records couldn't be written, they stay
+	 *             pending.
+	 */
+	private void commit(final long seq) throws IOException {
+		synchronized (commitLock) {
+			final String batch;
+			final long upto;
+			final boolean compact;
+			synchronized (this) {
+				if (durable >= Math.min(seq, appended)) {
+					return;
+				}
+				batch = pending.toString();
+				pending = new StringBuilder();
+				upto = appended;
+				compact = recompact
+						|| (lines > MIN_COMPACT && lines > 2 * live.size());
+			}
+			try {
+				if (compact) {
+					compact();
+				} else {
+					if (out == null) {
+						out = new FileOutputStream(file, true);
+					}
+					out.write(batch.getBytes(UTF8));
+					out.getChannel().force(false);
+				}
+			} catch (final IOException e) {
+				close();
+				synchronized (this) {
+					pending.insert(0, batch);
+					recompact = true;
+				}
+				throw e;
+			}
+			synchronized (this) {
+				recompact = false;
+				durable = upto;
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the journal with only the pending tasks, the caller holds the
+	 * commitLock.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void compact() throws IOException {
+		close();
+		final StringBuilder content = new StringBuilder();
+		synchronized (this) {
+			for (final String line : live.values()) {
+				content.append(line).append('\n');
+			}
+			// Everything pending is covered by live.
+			pending = new StringBuilder();
+			lines = live.size();
+		}
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream tmpOut = new FileOutputStream(tmp);
+		try {
+			tmpOut.write(content.toString().getBytes(UTF8));
+			tmpOut.getChannel().force(false);
+		} finally {
+			tmpOut.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't close journal: " + file, e);
+			}
+			out = null;
+		}
+	}
+}
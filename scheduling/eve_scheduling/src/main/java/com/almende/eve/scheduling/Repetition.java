@@ -0,0 +1,27 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduling;
+
+/**
+ * The way a periodic trigger is repeated, see
+ * {@link Scheduler#scheduleInterval(String, Object, long, long, Repetition)}.
+ */
+public enum Repetition {
+	/**
+	 * Run at start + n * interval, without drift. Runs that are missed (e.g.
+	 * because the start is in the past or the system was busy) are skipped.
+	 */
+	FIXED_RATE,
+	/**
+	 * Run at start + n * interval, without drift. Runs that are missed are all
+	 * done, quickly after each other, until the trigger has caught up.
+	 */
+	FIXED_RATE_CATCH_UP,
+	/**
+	 * Run an interval after the former run has finished, preventing overlap
+	 * between runs.
+	 */
+	FIXED_DELAY
+}
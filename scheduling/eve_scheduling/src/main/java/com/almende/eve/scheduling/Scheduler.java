@@ -73,6 +73,33 @@ public interface Scheduler extends Capability {
 	 */
 	String schedule(final String id, final Object msg, final long delay);
 
+	/**
+	 * Schedule a periodic task. The task is kept by the scheduler, and only
+	 * stored once, until it is cancelled.
+	 *
+	 * @param id
+	 *            The id for this task, optional, leave null to generate UUID in
+	 *            scheduler
+	 * @param msg
+	 *            the msg
+	 * @param start
+	 *            the (virtual) time of the first run, in milliseconds
+	 * @param interval
+	 *            the interval in milliseconds
+	 * @param repetition
+	 *            how to repeat the task
+	 * @return the scheduled id, can be used to cancel the task
+	 */
+	String scheduleInterval(final String id, final Object msg,
+			final long start, final long interval, final Repetition repetition);
+
+	/**
+	 * Gets the metrics of this scheduler.
+	 *
+	 * @return the metrics
+	 */
+	SchedulerMetrics getMetrics();
+
 	/**
 	 * Cancel task with given id.
 	 * 
@@ -0,0 +1,325 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduling;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.almende.eve.protocol.jsonrpc.annotation.Access;
+import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
+import com.almende.eve.scheduling.clock.Clock;
+import com.almende.util.jackson.JOM;
+import com.almende.util.metrics.Histogram;
+import com.almende.util.metrics.Meter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The metrics of a scheduler: trigger lateness, throughput, cancellations,
+ * queue size and the latency of the persistent store. Every update is also
+ * counted in the process wide metrics, which are always available through
+ * JMX as "com.almende.eve:type=Scheduler,name=global". The metrics of a single
+ * scheduler are registered on request, see
+ * {@link SimpleSchedulerConfig#setJmx(boolean)}.
+ */
+public class SchedulerMetrics implements SchedulerMetricsMBean {
+	private static final Logger				LOG			= Logger.getLogger(SchedulerMetrics.class
+																.getName());
+	private static final Set<SimpleScheduler>	SCHEDULERS	= Collections
+																.newSetFromMap(Collections
+																		.synchronizedMap(new WeakHashMap<SimpleScheduler, Boolean>()));
+	private static final SchedulerMetrics	GLOBAL		= new SchedulerMetrics(
+																null);
+	static {
+		GLOBAL.register("global");
+	}
+	private final SimpleScheduler			scheduler;
+	private final SchedulerMetrics			parent;
+	private final Meter						scheduled	= new Meter();
+	private final Meter						fired		= new Meter();
+	private final Meter						cancelled	= new Meter();
+	private final Histogram					lateness	= new Histogram();
+	private final Histogram					storeLatency	= new Histogram();
+	private ObjectName						name		= null;
+
+	/**
+	 * Instantiates new metrics for the given scheduler.
+	 *
+	 * @param scheduler
+	 *            the scheduler, null for the global metrics
+	 */
+	SchedulerMetrics(final SimpleScheduler scheduler) {
+		this.scheduler = scheduler;
+		if (scheduler != null) {
+			parent = GLOBAL;
+			SCHEDULERS.add(scheduler);
+		} else {
+			parent = null;
+		}
+	}
+
+	/**
+	 * Gets the process wide metrics.
+	 *
+	 * @return the global metrics
+	 */
+	public static SchedulerMetrics getGlobal() {
+		return GLOBAL;
+	}
+
+	/**
+	 * A trigger was requested.
+	 */
+	void scheduled() {
+		scheduled.mark();
+		if (parent != null) {
+			parent.scheduled();
+		}
+	}
+
+	/**
+	 * A trigger fired.
+	 *
+	 * @param late
+	 *            the lateness in milliseconds
+	 */
+	void fired(final long late) {
+		fired.mark();
+		lateness.update(late);
+		if (parent != null) {
+			parent.fired(late);
+		}
+	}
+
+	/**
+	 * Triggers were cancelled.
+	 *
+	 * @param count
+	 *            the count
+	 */
+	void cancelled(final long count) {
+		cancelled.mark(count);
+		if (parent != null) {
+			parent.cancelled(count);
+		}
+	}
+
+	/**
+	 * A task was written to the persistent store.
+	 *
+	 * @param nanos
+	 *            the time it took, in nanoseconds
+	 */
+	void stored(final long nanos) {
+		storeLatency.update(nanos / 1000);
+		if (parent != null) {
+			parent.stored(nanos);
+		}
+	}
+
+	/**
+	 * Register these metrics as MBean.
+	 *
+	 * @param id
+	 *            the id to register them by
+	 */
+	public synchronized void register(final String id) {
+		if (name != null) {
+			return;
+		}
+		try {
+			final MBeanServer server = ManagementFactory
+					.getPlatformMBeanServer();
+			final ObjectName objectName = new ObjectName(
+					"com.almende.eve:type=Scheduler,name="
+							+ ObjectName.quote(id));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+				name = objectName;
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't register scheduler metrics for:"
+					+ id, e);
+		}
+	}
+
+	/**
+	 * Unregister these metrics as MBean, if registered.
+	 */
+	public synchronized void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't unregister scheduler metrics:"
+					+ name, e);
+		}
+		name = null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getScheduled()
+	 */
+	@Override
+	public long getScheduled() {
+		return scheduled.getCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getFired()
+	 */
+	@Override
+	public long getFired() {
+		return fired.getCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getCancelled()
+	 */
+	@Override
+	public long getCancelled() {
+		return cancelled.getCount();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getQueueSize()
+	 */
+	@Override
+	public long getQueueSize() {
+		if (scheduler != null) {
+			final Clock clock = scheduler.getClock();
+			return clock == null ? 0 : clock.size();
+		}
+		// Schedulers might share their clock, count each clock once.
+		final List<SimpleScheduler> schedulers;
+		synchronized (SCHEDULERS) {
+			schedulers = new ArrayList<SimpleScheduler>(SCHEDULERS);
+		}
+		final Map<Clock, Boolean> clocks = new IdentityHashMap<Clock, Boolean>();
+		for (final SimpleScheduler item : schedulers) {
+			final Clock clock = item.getClock();
+			if (clock != null) {
+				clocks.put(clock, true);
+			}
+		}
+		long result = 0;
+		for (final Clock clock : clocks.keySet()) {
+			result += clock.size();
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.SchedulerMetricsMBean#getTriggersPerSecond()
+	 */
+	@Override
+	public double getTriggersPerSecond() {
+		return fired.getRate();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.SchedulerMetricsMBean#getCancelsPerSecond()
+	 */
+	@Override
+	public double getCancelsPerSecond() {
+		return cancelled.getRate();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getLatenessMean()
+	 */
+	@Override
+	public double getLatenessMean() {
+		return lateness.getMean();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getLatenessP99()
+	 */
+	@Override
+	public long getLatenessP99() {
+		return lateness.getPercentile(0.99);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SchedulerMetricsMBean#getLatenessMax()
+	 */
+	@Override
+	public long getLatenessMax() {
+		return lateness.getMax();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.SchedulerMetricsMBean#getStoreLatencyMean()
+	 */
+	@Override
+	public double getStoreLatencyMean() {
+		return storeLatency.getMean();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.SchedulerMetricsMBean#getStoreLatencyP99()
+	 */
+	@Override
+	public long getStoreLatencyP99() {
+		return storeLatency.getPercentile(0.99);
+	}
+
+	/**
+	 * Gets all metrics of this scheduler.
+	 *
+	 * @return the stats
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("scheduled", getScheduled());
+		result.put("fired", getFired());
+		result.put("cancelled", getCancelled());
+		result.put("queueSize", getQueueSize());
+		result.put("triggersPerSecond", getTriggersPerSecond());
+		result.put("cancelsPerSecond", getCancelsPerSecond());
+		result.set("latenessMillis", lateness.getStats());
+		result.set("storeLatencyMicros", storeLatency.getStats());
+		return result;
+	}
+
+	/**
+	 * Gets the process wide metrics, of all schedulers together.
+	 *
+	 * @return the global stats
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getGlobalStats() {
+		return GLOBAL.getStats();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduling;
+
+/**
+ * The JMX view of the {@link SchedulerMetrics}. Times are in milliseconds,
+ * except the store latency, which is in microseconds.
+ */
+public interface SchedulerMetricsMBean {
+
+	/**
+	 * Gets the number of requested triggers.
+	 *
+	 * @return the scheduled
+	 */
+	long getScheduled();
+
+	/**
+	 * Gets the number of fired triggers.
+	 *
+	 * @return the fired
+	 */
+	long getFired();
+
+	/**
+	 * Gets the number of cancelled triggers.
+	 *
+	 * @return the cancelled
+	 */
+	long getCancelled();
+
+	/**
+	 * Gets the number of pending triggers.
+	 *
+	 * @return the queue size
+	 */
+	long getQueueSize();
+
+	/**
+	 * Gets the fired triggers per second, over the last minute.
+	 *
+	 * @return the triggers per second
+	 */
+	double getTriggersPerSecond();
+
+	/**
+	 * Gets the cancelled triggers per second, over the last minute.
+	 *
+	 * @return the cancels per second
+	 */
+	double getCancelsPerSecond();
+
+	/**
+	 * Gets the mean lateness (fire time - due) of the triggers.
+	 *
+	 * @return the lateness mean
+	 */
+	double getLatenessMean();
+
+	/**
+	 * Gets the 99th percentile of the lateness of the triggers.
+	 *
+	 * @return the lateness p99
+	 */
+	long getLatenessP99();
+
+	/**
+	 * Gets the max lateness of the triggers.
+	 *
+	 * @return the lateness max
+	 */
+	long getLatenessMax();
+
+	/**
+	 * Gets the mean latency of writing tasks to the persistent store.
+	 *
+	 * @return the store latency mean
+	 */
+	double getStoreLatencyMean();
+
+	/**
+	 * Gets the 99th percentile of the latency of writing tasks to the
+	 * persistent store.
+	 *
+	 * @return the store latency p99
+	 */
+	long getStoreLatencyP99();
+}
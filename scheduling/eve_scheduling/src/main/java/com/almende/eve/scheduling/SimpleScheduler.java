@@ -6,6 +6,13 @@ package com.almende.eve.scheduling;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,9 +20,17 @@ import org.joda.time.DateTime;
 
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
 import com.almende.eve.scheduling.clock.Clock;
 import com.almende.eve.scheduling.clock.RunnableClock;
+import com.almende.eve.scheduling.clock.WheelClock;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
 import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -28,6 +43,11 @@ public class SimpleScheduler implements Scheduler {
 	protected Handler<Caller>	handle		= null;
 	protected Clock				clock		= null;
 	protected ObjectNode		myParams	= null;
+	protected final SchedulerMetrics	metrics		= new SchedulerMetrics(this);
+	private final Map<String, Periodic>	periodics	= new ConcurrentHashMap<String, Periodic>();
+	private boolean						batchDelivery	= false;
+	private final Queue<Object>			batch		= new ConcurrentLinkedQueue<Object>();
+	private final AtomicBoolean			flushing	= new AtomicBoolean(false);
 
 	/**
 	 * Instantiates a new abstract scheduler.
@@ -41,10 +61,37 @@ public class SimpleScheduler implements Scheduler {
 		this.handle = handle;
 		myUrl = handle.get().getSenderUrlByScheme("local");
 		myParams = params;
+		if (params != null) {
+			final SimpleSchedulerConfig config = SimpleSchedulerConfig
+					.decorate(params);
+			if (config.isJmx() && config.getId() != null) {
+				metrics.register(config.getId());
+			}
+			batchDelivery = config.isBatchDelivery();
+		}
 	}
 
 	protected void handleTrigger(final Object msg, final String triggerId) {
-//		LOG.warning("Handle trigger:" + triggerId + " : " + msg.toString());
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.finest("Handle trigger:" + triggerId + " : " + msg);
+		}
+		if (batchDelivery) {
+			batch.add(msg);
+			if (flushing.compareAndSet(false, true)) {
+				ThreadPool.getPool().execute(new Runnable() {
+					@Override
+					public void run() {
+						flushing.set(false);
+						flush();
+					}
+				});
+			}
+			return;
+		}
+		send(msg);
+	}
+
+	private void send(final Object msg) {
 		try {
 			handle.get().call(myUrl, msg);
 		} catch (IOException e) {
@@ -53,6 +100,60 @@ public class SimpleScheduler implements Scheduler {
 		}
 	}
 
+	/**
+	 * Deliver the triggers that became due since the last flush. JSON-RPC
+	 * requests without callback are combined in a single "_triggerBatch"
+	 * request, so the agent handles them in one turn instead of one
+	 * message dispatch each. Other messages split the batch, so everything
+	 * is still delivered in due order, also when the next flush is started
+	 * while this one is still sending.
+	 */
+	private synchronized void flush() {
+		final List<Object> msgs = new ArrayList<Object>();
+		Object msg;
+		while ((msg = batch.poll()) != null) {
+			msgs.add(msg);
+		}
+		if (msgs.size() == 1) {
+			send(msgs.get(0));
+			return;
+		}
+		ArrayNode messages = JOM.createArrayNode();
+		for (final Object item : msgs) {
+			final JSONMessage message = JSONMessage.jsonConvert(item);
+			if (message instanceof JSONRequest
+					&& ((JSONRequest) message).getCallback() == null) {
+				final ObjectNode json = JOM.getInstance().valueToTree(message);
+				if (json.has("id") && json.get("id").isNull()) {
+					json.remove("id");
+				}
+				if (json.has("extra") && json.get("extra").isNull()) {
+					json.remove("extra");
+				}
+				messages.add(json);
+			} else {
+				if (messages.size() > 0) {
+					sendBatch(messages);
+					messages = JOM.createArrayNode();
+				}
+				send(item);
+			}
+		}
+		if (messages.size() > 0) {
+			sendBatch(messages);
+		}
+	}
+
+	private void sendBatch(final ArrayNode messages) {
+		if (messages.size() == 1) {
+			send(messages.get(0));
+		} else {
+			final ObjectNode params = JOM.createObjectNode();
+			params.set("messages", messages);
+			send(new JSONRequest("_triggerBatch", params));
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.scheduling.Scheduler#schedule(java.lang.Object,
@@ -62,14 +163,12 @@ public class SimpleScheduler implements Scheduler {
 	public String schedule(final String triggerId, final Object msg,
 			final DateTime due) {
 		if (clock == null) {
-			clock = new RunnableClock();
+			clock = createClock();
 		}
 		final String uuid = triggerId != null ? triggerId : new UUID()
 				.toString();
 
-		// LOG.warning("Requesting trigger:" + uuid + " : " + msg.toString()
-		// + " at: " + due);
-		clock.requestTrigger(uuid, due, new Runnable() {
+		requestTrigger(uuid, due.getMillis(), new Runnable() {
 
 			@Override
 			public void run() {
@@ -80,17 +179,143 @@ public class SimpleScheduler implements Scheduler {
 		return uuid;
 	}
 
+	/**
+	 * Request a trigger from the clock, measuring its lateness.
+	 *
+	 * @param triggerId
+	 *            the trigger id
+	 * @param due
+	 *            the due, in clock time
+	 * @param callback
+	 *            the callback
+	 */
+	protected void requestTrigger(final String triggerId, final long due,
+			final Runnable callback) {
+		if (clock == null) {
+			clock = createClock();
+		}
+		metrics.scheduled();
+		clock.requestTrigger(triggerId, due, new Runnable() {
+			@Override
+			public void run() {
+				metrics.fired(clock.now() - due);
+				callback.run();
+			}
+		});
+	}
+
+	/**
+	 * Gets the metrics of this scheduler.
+	 *
+	 * @return the metrics
+	 */
+	@Override
+	public SchedulerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Deliver the message of a trigger and run the given continuation once
+	 * it has been handled, used for periodic tasks that shouldn't overlap.
+	 * JSON-RPC requests are sent with a callback, so no clock thread waits
+	 * for the agent; other messages are just delivered.
+	 *
+	 * @param msg
+	 *            the msg
+	 * @param triggerId
+	 *            the trigger id
+	 * @param then
+	 *            the continuation
+	 */
+	protected void handleTriggerAndThen(final Object msg,
+			final String triggerId, final Runnable then) {
+		final JSONMessage message = JSONMessage.jsonConvert(msg);
+		if (!(message instanceof JSONRequest)) {
+			handleTrigger(msg, triggerId);
+			then.run();
+			return;
+		}
+		final JSONRequest request = (JSONRequest) message;
+		try {
+			handle.get().call(myUrl, request.getMethod(),
+					request.getParams(), new AsyncCallback<JsonNode>() {
+						@Override
+						public void onSuccess(final JsonNode result) {
+							then.run();
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							LOG.log(Level.WARNING, "Periodic task " + triggerId
+									+ " failed", exception);
+							then.run();
+						}
+					});
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Periodic task " + triggerId + " failed", e);
+			then.run();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.Scheduler#scheduleInterval(java.lang.String,
+	 * java.lang.Object, long, long, com.almende.eve.scheduling.Repetition)
+	 */
+	@Override
+	public String scheduleInterval(final String id, final Object msg,
+			final long start, final long interval, final Repetition repetition) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Interval should be positive: "
+					+ interval);
+		}
+		if (clock == null) {
+			clock = createClock();
+		}
+		final String uuid = id != null ? id : new UUID().toString();
+		final Periodic periodic = new Periodic(uuid, msg, start, interval,
+				repetition);
+		final Periodic old = periodics.put(uuid, periodic);
+		if (old != null) {
+			old.cancel();
+		}
+		// The clock keeps the earliest trigger per id, so drop whatever is
+		// pending for this id first, or a later new start would be ignored.
+		clock.cancel(uuid);
+		periodic.start();
+		return uuid;
+	}
+
+	/**
+	 * Convert a (virtual) scheduler time to the time of the clock, for
+	 * schedulers that don't run on the clock's time.
+	 *
+	 * @param due
+	 *            the due in scheduler time
+	 * @return the due in clock time
+	 */
+	protected long toClockTime(final long due) {
+		return due;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.scheduling.Scheduler#cancel(java.lang.String)
 	 */
 	@Override
 	public void cancel(final String id) {
+		final Periodic periodic = periodics.remove(id);
+		if (periodic != null) {
+			periodic.cancel();
+		}
 		if (clock == null) {
-			clock = new RunnableClock();
+			clock = createClock();
 			return;
 		}
-		clock.cancel(id);
+		if (clock.cancel(id)) {
+			metrics.cancelled(1);
+		}
 	}
 
 	/*
@@ -99,13 +324,32 @@ public class SimpleScheduler implements Scheduler {
 	 */
 	@Override
 	public void clear() {
+		for (final Periodic periodic : periodics.values()) {
+			periodic.cancel();
+		}
+		periodics.clear();
 		if (clock == null) {
-			clock = new RunnableClock();
+			clock = createClock();
 			return;
 		}
+		metrics.cancelled(clock.size());
 		clock.clear();
 	}
 
+	/**
+	 * Create the clock configured for this scheduler.
+	 * 
+	 * @return the clock
+	 */
+	protected Clock createClock() {
+		if (myParams != null
+				&& "wheel".equalsIgnoreCase(SimpleSchedulerConfig.decorate(
+						myParams).getClock())) {
+			return new WheelClock();
+		}
+		return new RunnableClock();
+	}
+
 	/**
 	 * Gets the handle.
 	 * 
@@ -154,7 +398,7 @@ public class SimpleScheduler implements Scheduler {
 	@Override
 	public long now() {
 		if (clock == null) {
-			clock = new RunnableClock();
+			clock = createClock();
 		}
 		return clock.now();
 	}
@@ -162,7 +406,7 @@ public class SimpleScheduler implements Scheduler {
 	@Override
 	public DateTime nowDateTime() {
 		if (clock == null) {
-			clock = new RunnableClock();
+			clock = createClock();
 		}
 		return clock.nowDateTime();
 	}
@@ -170,9 +414,104 @@ public class SimpleScheduler implements Scheduler {
 	@Override
 	public void delete() {
 		clear();
+		metrics.unregister();
 		SimpleSchedulerConfig config = SimpleSchedulerConfig
 				.decorate(getParams());
 		SimpleSchedulerBuilder.delete(config.getId());
 	}
 
+	/**
+	 * A periodic task. Each run requests the next trigger from the clock
+	 * directly, instead of scheduling a new task. The next due time is
+	 * derived from the planned due time, not from the time the trigger
+	 * actually fired, so fixed rate tasks don't drift.
+	 */
+	private class Periodic implements Runnable {
+		private final String		id;
+		private final Object		msg;
+		private final long			interval;
+		private final Repetition	repetition;
+		private long				due;
+		private volatile boolean	cancelled	= false;
+		// Requests the next run of a FIXED_DELAY task, after this one.
+		private final Runnable		next		= new Runnable() {
+													@Override
+													public void run() {
+														due = now() + interval;
+														request();
+													}
+												};
+
+		Periodic(final String id, final Object msg, final long start,
+				final long interval, final Repetition repetition) {
+			this.id = id;
+			this.msg = msg;
+			this.due = start;
+			this.interval = interval;
+			this.repetition = repetition;
+		}
+
+		private void start() {
+			final long now = now();
+			if (due < now) {
+				switch (repetition) {
+					case FIXED_RATE:
+						due = skip(now);
+						break;
+					case FIXED_DELAY:
+						due = now;
+						break;
+					default:
+						// Catch up from the start.
+				}
+			}
+			request();
+		}
+
+		/**
+		 * The first due time on the schedule that isn't in the past.
+		 */
+		private long skip(final long now) {
+			if (due >= now) {
+				return due;
+			}
+			return due + ((now - due + interval - 1) / interval) * interval;
+		}
+
+		/**
+		 * Requests the next trigger, unless cancelled. Synchronized with
+		 * {@link #cancel()}, so a run that is underway can't re-add a trigger
+		 * after this task has been cancelled or replaced.
+		 */
+		private synchronized void request() {
+			if (!cancelled) {
+				requestTrigger(id, toClockTime(due), this);
+			}
+		}
+
+		private synchronized void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			switch (repetition) {
+				case FIXED_DELAY:
+					handleTriggerAndThen(msg, id, next);
+					break;
+				case FIXED_RATE:
+					due = skip(Math.max(due + interval, now()));
+					request();
+					handleTrigger(msg, id);
+					break;
+				default:
+					due += interval;
+					request();
+					handleTrigger(msg, id);
+			}
+		}
+	}
 }
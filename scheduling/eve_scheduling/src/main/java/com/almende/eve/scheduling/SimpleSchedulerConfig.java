@@ -65,4 +65,76 @@ public class SimpleSchedulerConfig extends Config {
 		}
 		return null;
 	}
+
+	/**
+	 * Sets the clock: "runnable" for a clock per scheduler, or "wheel" for a
+	 * clock backed by a single timing wheel shared by all schedulers, which
+	 * scales better to large numbers of (short) triggers.
+	 * 
+	 * @param clock
+	 *            the new clock
+	 */
+	public void setClock(final String clock) {
+		this.put("clock", clock);
+	}
+
+	/**
+	 * Gets the clock, (default: "runnable")
+	 * 
+	 * @return the clock
+	 */
+	public String getClock() {
+		if (this.has("clock")) {
+			return this.get("clock").asText();
+		}
+		return "runnable";
+	}
+
+	/**
+	 * Sets batch delivery: triggers that are due at the same time are
+	 * delivered to the agent as a single "_triggerBatch" request, which the
+	 * agent handles in one go. Only for agents extending Agent.
+	 *
+	 * @param batchDelivery
+	 *            the new batch delivery
+	 */
+	public void setBatchDelivery(final boolean batchDelivery) {
+		this.put("batchDelivery", batchDelivery);
+	}
+
+	/**
+	 * Checks if due triggers are delivered in batches, (default: false)
+	 *
+	 * @return true, if batched
+	 */
+	public boolean isBatchDelivery() {
+		if (this.has("batchDelivery")) {
+			return this.get("batchDelivery").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets whether the metrics of this scheduler are registered as MBean.
+	 * The metrics of all schedulers together are always registered.
+	 *
+	 * @param jmx
+	 *            the new jmx
+	 */
+	public void setJmx(final boolean jmx) {
+		this.put("jmx", jmx);
+	}
+
+	/**
+	 * Checks if the metrics of this scheduler are registered as MBean,
+	 * (default: false)
+	 *
+	 * @return true, if registered
+	 */
+	public boolean isJmx() {
+		if (this.has("jmx")) {
+			return this.get("jmx").asBoolean();
+		}
+		return false;
+	}
 }
@@ -24,6 +24,19 @@ public interface Clock {
 	void requestTrigger(final String triggerId, final DateTime due,
 			final Runnable callback);
 
+	/**
+	 * Request trigger, at the given time in milliseconds since the epoch.
+	 * 
+	 * @param triggerId
+	 *            the agent id
+	 * @param due
+	 *            the due
+	 * @param callback
+	 *            the callback
+	 */
+	void requestTrigger(final String triggerId, final long due,
+			final Runnable callback);
+
 	/**
 	 * Get time, for clocks that wait for next timestamp, reports current
 	 * time;.
@@ -63,12 +76,20 @@ public interface Clock {
 	 * 
 	 * @param triggerId
 	 *            the trigger id
+	 * @return true, if a pending trigger was removed
 	 */
-	void cancel(final String triggerId);
+	boolean cancel(final String triggerId);
 
 	/**
 	 * Clear all triggerRequests!.
 	 */
 	void clear();
 
+	/**
+	 * Number of pending triggerRequests.
+	 *
+	 * @return the number of pending triggers
+	 */
+	int size();
+
 }
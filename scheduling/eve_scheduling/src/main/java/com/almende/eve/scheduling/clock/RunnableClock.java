@@ -95,14 +95,26 @@ public class RunnableClock implements Runnable, Clock {
 		RUNNER.execute(this);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.clock.Clock#requestTrigger(java.lang.String,
+	 * long, java.lang.Runnable)
+	 */
+	@Override
+	public void requestTrigger(final String triggerId, final long due,
+			final Runnable callback) {
+		requestTrigger(triggerId, new DateTime(due), callback);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.scheduling.clock.Clock#cancel(java.lang.String)
 	 */
 	@Override
-	public void cancel(final String triggerId) {
+	public boolean cancel(final String triggerId) {
 		final ClockEntry ce = new ClockEntry(triggerId, null, null);
-		TIMELINE.remove(ce);
+		return TIMELINE.remove(ce) != null;
 	}
 
 	/*
@@ -120,6 +132,15 @@ public class RunnableClock implements Runnable, Clock {
 		futureLock.unlock();
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.clock.Clock#size()
+	 */
+	@Override
+	public int size() {
+		return TIMELINE.size();
+	}
+
 	@Override
 	public DateTime nowDateTime() {
 		// Nothing todo, time progresses by itself:)
@@ -0,0 +1,330 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduling.clock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A process wide hierarchical timing wheel, with millisecond ticks. The wheel
+ * has LEVELS levels of SLOTS slots; a timeout is put in the lowest level that
+ * spans its deadline and moves down a level each time the level above passes
+ * its slot, so adding and cancelling is O(1) and each tick only touches the
+ * timeouts that are (nearly) due.
+ *
+ * The wheel itself is only touched by its own thread: new and cancelled
+ * timeouts are handed over through queues. Due timeouts are run on the
+ * shared thread pool, in batches instead of one task per timeout.
+ */
+final class TimingWheel implements Runnable {
+	private static final Logger		LOG			= Logger.getLogger(TimingWheel.class
+														.getName());
+	private static final int		BITS		= 6;
+	private static final int		SLOTS		= 1 << BITS;
+	private static final int		MASK		= SLOTS - 1;
+	private static final int		LEVELS		= 6;
+	private static final long		SPAN		= 1L << (BITS * LEVELS);
+	private static final int		BATCH		= 64;
+	private static volatile TimingWheel	instance	= null;
+
+	private final Timeout[][]		wheel		= new Timeout[LEVELS][SLOTS];
+	private final Queue<Timeout>	added		= new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout>	cancelled	= new ConcurrentLinkedQueue<Timeout>();
+	private final Thread			thread;
+	// Time the wheel thread will wake up, new earlier timeouts wake it.
+	private volatile long			wakeAt		= Long.MAX_VALUE;
+	private long					current;
+	private long					count		= 0;
+
+	/**
+	 * A timeout in the wheel.
+	 */
+	static class Timeout implements Runnable {
+		private static final int								PENDING		= 0;
+		private static final int								CANCELLED	= 1;
+		private static final int								EXPIRED		= 2;
+		private static final AtomicIntegerFieldUpdater<Timeout>	STATE		= AtomicIntegerFieldUpdater
+																				.newUpdater(
+																						Timeout.class,
+																						"state");
+		private final long										deadline;
+		private final Runnable									task;
+		private volatile int									state		= PENDING;
+		private Timeout											next;
+		private Timeout											prev;
+		private int												level		= -1;
+		private int												slot;
+
+		/**
+		 * Instantiates a new timeout.
+		 *
+		 * @param deadline
+		 *            the deadline in milliseconds since the epoch
+		 * @param task
+		 *            the task
+		 */
+		Timeout(final long deadline, final Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Gets the deadline.
+		 *
+		 * @return the deadline
+		 */
+		long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * Checks if this timeout is still waiting.
+		 *
+		 * @return true, if pending
+		 */
+		boolean isPending() {
+			return state == PENDING;
+		}
+
+		/**
+		 * Cancel this timeout.
+		 *
+		 * @return true, if it was still pending
+		 */
+		boolean cancel() {
+			if (STATE.compareAndSet(this, PENDING, CANCELLED)) {
+				getInstance().cancelled.add(this);
+				return true;
+			}
+			return false;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		private boolean expire() {
+			return STATE.compareAndSet(this, PENDING, EXPIRED);
+		}
+	}
+
+	private TimingWheel() {
+		current = System.currentTimeMillis();
+		thread = ThreadPool.getFactory().newThread(this);
+		thread.setName("TimingWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the process wide timing wheel.
+	 *
+	 * @return the instance
+	 */
+	static TimingWheel getInstance() {
+		if (instance == null) {
+			synchronized (TimingWheel.class) {
+				if (instance == null) {
+					instance = new TimingWheel();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Add a timeout.
+	 *
+	 * @param timeout
+	 *            the timeout
+	 */
+	void add(final Timeout timeout) {
+		added.add(timeout);
+		if (timeout.deadline < wakeAt) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final List<Timeout> due = new ArrayList<Timeout>();
+		while (true) {
+			try {
+				drain();
+				final long now = System.currentTimeMillis();
+				if (count == 0 && now > current) {
+					// Nothing to pass by, skip ahead.
+					current = now;
+				}
+				while (current <= now) {
+					tick(due);
+					current++;
+				}
+				dispatch(due);
+				sleep();
+			} catch (final Throwable t) {
+				LOG.log(Level.SEVERE, "Timing wheel failure", t);
+			}
+		}
+	}
+
+	private void drain() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.level >= 0) {
+				unlink(timeout);
+			}
+		}
+		while ((timeout = added.poll()) != null) {
+			if (timeout.isPending()) {
+				insert(timeout);
+			}
+		}
+	}
+
+	private void tick(final List<Timeout> due) {
+		// Move the timeouts of the next slot of each level that wrapped
+		// around down the wheel.
+		for (int level = 1; level < LEVELS
+				&& (current & ((1L << (BITS * level)) - 1)) == 0; level++) {
+			final int slot = (int) (current >>> (BITS * level)) & MASK;
+			Timeout timeout = wheel[level][slot];
+			wheel[level][slot] = null;
+			while (timeout != null) {
+				final Timeout next = timeout.next;
+				count--;
+				insert(timeout);
+				timeout = next;
+			}
+		}
+		final int slot = (int) current & MASK;
+		Timeout timeout = wheel[0][slot];
+		wheel[0][slot] = null;
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			timeout.next = null;
+			timeout.prev = null;
+			timeout.level = -1;
+			count--;
+			if (timeout.deadline > current) {
+				// Wasn't due yet, clamped into the top level before.
+				insert(timeout);
+			} else if (timeout.expire()) {
+				due.add(timeout);
+			}
+			timeout = next;
+		}
+	}
+
+	private void insert(final Timeout timeout) {
+		long delta = timeout.deadline - current;
+		long deadline = timeout.deadline;
+		if (delta < 0) {
+			delta = 0;
+			deadline = current;
+		} else if (delta >= SPAN) {
+			delta = SPAN - 1;
+			deadline = current + delta;
+		}
+		int level = 0;
+		while (delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		final int slot = (int) (deadline >>> (BITS * level)) & MASK;
+		timeout.level = level;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = wheel[level][slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		wheel[level][slot] = timeout;
+		count++;
+	}
+
+	private void unlink(final Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			wheel[timeout.level][timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.next = null;
+		timeout.prev = null;
+		timeout.level = -1;
+		count--;
+	}
+
+	private void dispatch(final List<Timeout> due) {
+		for (int i = 0; i < due.size(); i += BATCH) {
+			final Timeout[] batch = due.subList(i,
+					Math.min(due.size(), i + BATCH)).toArray(new Timeout[0]);
+			ThreadPool.getPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					for (final Timeout timeout : batch) {
+						try {
+							timeout.run();
+						} catch (final Exception e) {
+							LOG.log(Level.WARNING, "Trigger failed", e);
+						}
+					}
+				}
+			});
+		}
+		due.clear();
+	}
+
+	/**
+	 * Park until the next tick that has timeouts, or the next time a level
+	 * wraps around, or until an earlier timeout is added.
+	 */
+	private void sleep() {
+		long next = Long.MAX_VALUE;
+		if (count > 0) {
+			// A tick at the start of a slot moves timeouts down the wheel.
+			next = (current & MASK) == 0 ? current : (current | MASK) + 1;
+			for (long tick = current; tick < next; tick++) {
+				if (wheel[0][(int) tick & MASK] != null) {
+					next = tick;
+					break;
+				}
+			}
+		}
+		wakeAt = next;
+		if (!added.isEmpty() || !cancelled.isEmpty()) {
+			wakeAt = Long.MAX_VALUE;
+			return;
+		}
+		if (next == Long.MAX_VALUE) {
+			LockSupport.park(this);
+		} else {
+			final long delay = next - System.currentTimeMillis();
+			if (delay > 0) {
+				LockSupport.parkNanos(this, delay * 1000000L);
+			}
+		}
+		wakeAt = Long.MAX_VALUE;
+	}
+}
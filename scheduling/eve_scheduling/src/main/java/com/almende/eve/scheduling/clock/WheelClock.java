@@ -0,0 +1,129 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduling.clock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.almende.eve.scheduling.clock.TimingWheel.Timeout;
+
+/**
+ * The Class WheelClock, a real time clock backed by the process wide
+ * {@link TimingWheel}. Instances only keep track of their own triggers, so
+ * they are cheap to have one per scheduler, while all of them share the
+ * single wheel thread.
+ */
+public class WheelClock implements Clock {
+	private static final Logger			LOG			= Logger.getLogger(WheelClock.class
+															.getName());
+	private final ConcurrentMap<String, Timeout>	triggers	= new ConcurrentHashMap<String, Timeout>();
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.clock.Clock#requestTrigger(java.lang.String,
+	 * org.joda.time.DateTime, java.lang.Runnable)
+	 */
+	@Override
+	public void requestTrigger(final String triggerId, final DateTime due,
+			final Runnable callback) {
+		requestTrigger(triggerId, due.getMillis(), callback);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.scheduling.clock.Clock#requestTrigger(java.lang.String,
+	 * long, java.lang.Runnable)
+	 */
+	@Override
+	public void requestTrigger(final String triggerId, final long due,
+			final Runnable callback) {
+		final Timeout timeout = new Timeout(due, callback) {
+			@Override
+			public void run() {
+				triggers.remove(triggerId, this);
+				super.run();
+			}
+		};
+		while (true) {
+			final Timeout old = triggers.get(triggerId);
+			if (old == null) {
+				if (triggers.putIfAbsent(triggerId, timeout) == null) {
+					break;
+				}
+				continue;
+			}
+			if (old.isPending() && old.getDeadline() <= due) {
+				LOG.warning(triggerId
+						+ ": Skip adding trigger, because has old value earlier than current.");
+				return;
+			}
+			if (triggers.replace(triggerId, old, timeout)) {
+				old.cancel();
+				break;
+			}
+		}
+		TimingWheel.getInstance().add(timeout);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.clock.Clock#cancel(java.lang.String)
+	 */
+	@Override
+	public boolean cancel(final String triggerId) {
+		final Timeout timeout = triggers.remove(triggerId);
+		return timeout != null && timeout.cancel();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.clock.Clock#clear()
+	 */
+	@Override
+	public void clear() {
+		for (final String triggerId : triggers.keySet()) {
+			cancel(triggerId);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.clock.Clock#size()
+	 */
+	@Override
+	public int size() {
+		return triggers.size();
+	}
+
+	@Override
+	public DateTime nowDateTime() {
+		return new DateTime(now());
+	}
+
+	@Override
+	public long now() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public void start() {
+		// Nothing todo, time progresses by itself:)
+	}
+
+	@Override
+	public void stop() {
+		// Nothing todo, time progresses by itself:)
+	}
+
+	@Override
+	public void done(final String triggerId) {
+		// Nothing todo, time progresses by itself:)
+	}
+}
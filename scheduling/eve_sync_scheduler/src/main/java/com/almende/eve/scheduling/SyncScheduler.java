@@ -7,8 +7,13 @@ package com.almende.eve.scheduling;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,24 +25,41 @@ import com.almende.eve.protocol.jsonrpc.annotation.Access;
 import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
 import com.almende.eve.protocol.jsonrpc.annotation.Namespace;
 import com.almende.eve.protocol.jsonrpc.formats.Caller;
-import com.almende.eve.scheduling.clock.RunnableClock;
+import com.almende.util.callback.AsyncCallback;
 import com.almende.util.jackson.JOM;
 import com.almende.util.uuid.UUID;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * The Class SyncScheduler.
+ * The Class SyncScheduler, a scheduler that runs on a time shared with its
+ * peers. The offset to the peers is estimated NTP-style: each sync round
+ * pings all peers concurrently and asynchronously, takes the sample with the
+ * smallest roundtrip per peer and the median over the peers. Small
+ * corrections are slewed, a millisecond at a time, so the scheduler time
+ * doesn't jump; only large corrections are stepped.
  */
 
 @Namespace("syncScheduler")
 public class SyncScheduler extends SimpleScheduler {
 	private static final Logger	LOG				= Logger.getLogger(SyncScheduler.class
 														.getName());
-	private long				offset			= 0;
+	private static final int	SAMPLES			= 8;
+	private static final long	SAMPLE_SPACING	= 500;
+	private static final long	ROUND_TIMEOUT	= 30000;
+	private static final long	STEP_THRESHOLD	= 128;
+	// One millisecond per SLEW_PERIOD, 500ppm like ntpd's maximum slew.
+	private static final long	SLEW_PERIOD		= 2000;
+	private volatile long		offset			= 0;
+	private volatile long		target			= 0;
+	private volatile long		lastSync		= 0;
+	private volatile ObjectNode	lastRound		= JOM.createObjectNode();
 	private long				syncInterval	= 50000;
 	private Caller				caller			= null;
-	private Set<URI>			peers			= new HashSet<URI>();
-	private Boolean				active			= false;
+	private final Set<URI>		peers			= Collections
+														.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
+	private final AtomicBoolean	active			= new AtomicBoolean(false);
+	private final AtomicBoolean	slewing			= new AtomicBoolean(false);
+	private final String		slewId			= new UUID().toString();
 
 	@Override
 	public long now() {
@@ -66,16 +88,14 @@ public class SyncScheduler extends SimpleScheduler {
 	 *            the peer
 	 */
 	public void addPeer(final URI peer) {
-		if (!peers.contains(peer)) {
-			peers.add(peer);
-		}
+		peers.add(peer);
 		sync();
 	}
 
 	@Override
 	public String schedule(final String id, final Object msg, final DateTime due) {
 		final String uuid = id != null ? id : new UUID().toString();
-		getClock().requestTrigger(uuid, due.minus(offset), new Runnable() {
+		requestTrigger(uuid, toClockTime(due.getMillis()), new Runnable() {
 
 			@Override
 			public void run() {
@@ -86,6 +106,15 @@ public class SyncScheduler extends SimpleScheduler {
 		return uuid;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.scheduling.SimpleScheduler#toClockTime(long)
+	 */
+	@Override
+	protected long toClockTime(final long due) {
+		return due - offset;
+	}
+
 	@Override
 	public String schedule(final String id, final Object msg, final int delay) {
 		return schedule(id, msg, new DateTime(now()).plus(delay));
@@ -102,7 +131,7 @@ public class SyncScheduler extends SimpleScheduler {
 	public SyncScheduler(final ObjectNode params, final Handler<Caller> handle) {
 		super(params, handle);
 		if (getClock() == null) {
-			setClock(new RunnableClock());
+			setClock(createClock());
 		}
 	}
 
@@ -139,7 +168,8 @@ public class SyncScheduler extends SimpleScheduler {
 	}
 
 	/**
-	 * Sync with peer.
+	 * Sync with peer, a single blocking sample of the offset to the given
+	 * peer. Sync rounds don't use this, they sample asynchronously.
 	 *
 	 * @param peer
 	 *            the peer
@@ -169,100 +199,228 @@ public class SyncScheduler extends SimpleScheduler {
 	}
 
 	/**
-	 * Sync.
+	 * Gets the sync statistics: the current and target offset, the time of
+	 * the last sync round and the estimate per peer of that round.
+	 *
+	 * @return the sync stats
+	 */
+	@Access(AccessType.PUBLIC)
+	public ObjectNode getSyncStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("offset", offset);
+		result.put("target", target);
+		result.put("lastSync", lastSync);
+		result.put("syncing", active.get());
+		result.set("peers", lastRound);
+		return result;
+	}
+
+	/**
+	 * Sync, start a new sync round with all peers, unless one is still
+	 * running. This returns immediately, the round runs asynchronously.
 	 */
 	@Access(AccessType.PUBLIC)
 	public void sync() {
-		synchronized (active) {
-			if (active) {
-				return;
-			}
-			active = true;
+		if (!active.compareAndSet(false, true)) {
+			return;
 		}
-		try {
-			for (final URI peer : peers) {
-				LOG.info("Doing sync with " + peer + "!");
-
-				final ArrayList<SyncTupple> results = new ArrayList<SyncTupple>(
-						5);
-				final int[] fail = new int[1];
-				fail[0] = 0;
+		if (caller == null) {
+			LOG.warning("Sync requested, but caller is still null, invalid!");
+			active.set(false);
+			scheduleSync();
+			return;
+		}
+		final Round round = new Round(new ArrayList<URI>(peers));
+		final long start = getClock().now();
+		for (final URI peer : round.samples.keySet()) {
+			for (int i = 0; i < SAMPLES; i++) {
+				// Spread the pings, to not measure a single burst of load.
 				getClock().requestTrigger(new UUID().toString(),
-						DateTime.now(), new Runnable() {
+						start + i * SAMPLE_SPACING
+								+ (long) (SAMPLE_SPACING * Math.random()),
+						new Runnable() {
 							@Override
 							public void run() {
-								final SyncTupple res = syncWithPeer(peer);
-								if (res != null) {
-									results.add(res);
-								} else {
-									fail[0]++;
-								}
-								if (fail[0] < 5 && results.size() < 5) {
-									getClock().requestTrigger(
-											new UUID().toString(),
-											DateTime.now().plus(
-													(long) (4000 * Math
-															.random())), this);
-								}
+								sample(round, peer);
 							}
 						});
-				while (fail[0] < 5 && results.size() < 5) {
-					try {
-						Thread.sleep(4000);
-					} catch (InterruptedException e) {}
-				}
-				long sum = 0;
-				for (int i = 0; i < results.size(); i++) {
-					sum += results.get(i).roundtrip;
-				}
-				long mean = sum / results.size();
+			}
+		}
+		getClock().requestTrigger(new UUID().toString(),
+				start + ROUND_TIMEOUT, new Runnable() {
+					@Override
+					public void run() {
+						round.finish();
+					}
+				});
+		round.check();
+	}
 
-				sum = 0;
-				for (int i = 0; i < results.size(); i++) {
-					sum += Math.pow(results.get(i).roundtrip - mean, 2);
-				}
+	/**
+	 * Take a single offset sample of the given peer. Times are taken from the
+	 * clock, the offset is the absolute offset of the peer's time to it.
+	 *
+	 * @param round
+	 *            the round
+	 * @param peer
+	 *            the peer
+	 */
+	private void sample(final Round round, final URI peer) {
+		final long sent = getClock().now();
+		try {
+			caller.call(peer, "syncScheduler.ping", JOM.createObjectNode(),
+					new AsyncCallback<Long>() {
+						@Override
+						public void onSuccess(final Long result) {
+							final long received = getClock().now();
+							round.add(peer, new SyncTupple(result
+									- (sent + received) / 2, received - sent));
+						}
+
+						@Override
+						public void onFailure(final Exception exception) {
+							LOG.log(Level.FINE, "Ping to " + peer + " failed",
+									exception);
+							round.add(peer, null);
+						}
+					});
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "failed to send ping", e);
+			round.add(peer, null);
+		}
+	}
 
-				double stdDev = Math.sqrt(sum / results.size());
-				double limit = stdDev + mean;
-				LOG.warning("Mean:" + mean + " stdDev:" + stdDev + " limit:"
-						+ limit);
-
-				sum = 0;
-				int count = 0;
-				for (SyncTupple tupple : results) {
-					if (tupple.roundtrip > limit) {
-						LOG.warning("Skipping tupple:" + tupple);
-						continue;
+	/**
+	 * Apply the outcome of a sync round: step to the new offset if it is far
+	 * off, slew towards it otherwise.
+	 *
+	 * @param estimate
+	 *            the estimated offset
+	 */
+	private void adjust(final long estimate) {
+		target = estimate;
+		if (Math.abs(estimate - offset) > STEP_THRESHOLD) {
+			LOG.info("Stepping offset from " + offset + " to " + estimate);
+			offset = estimate;
+			return;
+		}
+		if (slewing.compareAndSet(false, true)) {
+			slew();
+		}
+	}
+
+	private void slew() {
+		final long error = target - offset;
+		if (error == 0) {
+			slewing.set(false);
+			// Target might have changed after the check.
+			if (target != offset && slewing.compareAndSet(false, true)) {
+				slew();
+			}
+			return;
+		}
+		offset += error > 0 ? 1 : -1;
+		getClock().requestTrigger(slewId, getClock().now() + SLEW_PERIOD,
+				new Runnable() {
+					@Override
+					public void run() {
+						slew();
 					}
-					LOG.warning("Adding tupple:" + tupple);
-					count++;
-					sum += tupple.offset;
-				}
+				});
+	}
+
+	private void scheduleSync() {
+		getClock().requestTrigger(new UUID().toString(),
+				getClock().now() + (long) (syncInterval * Math.random()),
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sync();
+						} catch (Exception e) {
+							LOG.log(Level.WARNING, "sync failed", e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * The samples of a single sync round.
+	 */
+	private class Round {
+		private final Map<URI, List<SyncTupple>>	samples	= new HashMap<URI, List<SyncTupple>>();
+		private final Map<URI, Integer>				answers	= new HashMap<URI, Integer>();
+		private int									open;
+		private boolean								done	= false;
+
+		Round(final List<URI> peers) {
+			for (final URI peer : peers) {
+				samples.put(peer, new ArrayList<SyncTupple>(SAMPLES));
+				answers.put(peer, 0);
+			}
+			open = peers.size();
+		}
 
-				offset += sum / count;
-				LOG.info("Done sync with " + peer + "! new offset:" + offset
-						+ "(" + sum / count + ")");
+		/**
+		 * Add a sample, null for a failed sample.
+		 */
+		synchronized void add(final URI peer, final SyncTupple tupple) {
+			if (done) {
+				return;
+			}
+			if (tupple != null) {
+				samples.get(peer).add(tupple);
 			}
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "TimeSync failed", e);
+			final int count = answers.get(peer) + 1;
+			answers.put(peer, count);
+			if (count == SAMPLES) {
+				open--;
+			}
+			check();
 		}
-		synchronized (active) {
-			active = false;
+
+		synchronized void check() {
+			if (open == 0) {
+				finish();
+			}
 		}
-		getClock()
-				.requestTrigger(
-						new UUID().toString(),
-						new DateTime(now()).plus((long) (syncInterval * Math
-								.random())), new Runnable() {
-							@Override
-							public void run() {
-								try {
-									sync();
-								} catch (Exception e) {
-									LOG.log(Level.WARNING, "sync failed", e);
-								}
-							}
-						});
 
+		synchronized void finish() {
+			if (done) {
+				return;
+			}
+			done = true;
+			final ObjectNode stats = JOM.createObjectNode();
+			final List<Long> estimates = new ArrayList<Long>(samples.size());
+			for (final Map.Entry<URI, List<SyncTupple>> entry : samples
+					.entrySet()) {
+				final ObjectNode peerStats = JOM.createObjectNode();
+				peerStats.put("samples", entry.getValue().size());
+				if (!entry.getValue().isEmpty()) {
+					// The sample with the smallest roundtrip has the smallest
+					// error, queueing delays only make the others worse.
+					final SyncTupple best = Collections.min(entry.getValue());
+					peerStats.put("offset", best.offset);
+					peerStats.put("roundtrip", best.roundtrip);
+					estimates.add(best.offset);
+				}
+				stats.set(entry.getKey().toString(), peerStats);
+			}
+			lastRound = stats;
+			if (!estimates.isEmpty()) {
+				// The median ignores a minority of peers that are far off.
+				Collections.sort(estimates);
+				final int mid = estimates.size() / 2;
+				final long estimate = estimates.size() % 2 == 1 ? estimates
+						.get(mid) : (estimates.get(mid - 1) + estimates
+						.get(mid)) / 2;
+				LOG.info("Done sync with " + estimates.size()
+						+ " peers, estimated offset:" + estimate);
+				adjust(estimate);
+				lastSync = getClock().now();
+			}
+			active.set(false);
+			scheduleSync();
+		}
 	}
 }
@@ -6,6 +6,14 @@ package com.almende.eve.state;
 
 import java.io.Serializable;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.util.TypeUtil;
@@ -15,6 +23,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -30,6 +39,8 @@ public abstract class AbstractState<V> implements State {
 	private String				id			= null;
 	private StateService		service		= null;
 	private ObjectNode			myParams	= null;
+	private DecodedValueCache	decoded		= null;
+	private final List<StateListener>	listeners	= new CopyOnWriteArrayList<StateListener>();
 	
 	/**
 	 * The implemented classes must have a public constructor.
@@ -52,7 +63,7 @@ public abstract class AbstractState<V> implements State {
 			final ObjectNode params) {
 		this.id = id;
 		this.service = service;
-		this.myParams = params;
+		setParams(params);
 	}
 	
 	/**
@@ -102,6 +113,7 @@ public abstract class AbstractState<V> implements State {
 	 */
 	@Override
 	public Object put(final String key, final Object value) {
+		invalidateDecoded(key);
 		if (value == null || JsonNode.class.isAssignableFrom(value.getClass())) {
 			return locPut(key, (JsonNode) value);
 		} else if (Serializable.class.isAssignableFrom(value.getClass())) {
@@ -121,6 +133,7 @@ public abstract class AbstractState<V> implements State {
 	@Override
 	public boolean putIfUnchanged(final String key,
 			final Object newVal, final Object oldVal) {
+		invalidateDecoded(key);
 		if (newVal == null
 				|| Serializable.class.isAssignableFrom(newVal.getClass())) {
 			return locPutIfUnchanged(key, (Serializable) newVal,
@@ -151,6 +164,10 @@ public abstract class AbstractState<V> implements State {
 	@Override
 	@JsonIgnore
 	public <T> T get(final String key, final Class<T> type) {
+		if (decoded != null) {
+			return decoded.get(key, JOM.getTypeFactory().constructType(type),
+					get(key));
+		}
 		return TypeUtil.inject(get(key), type);
 	}
 	
@@ -163,6 +180,10 @@ public abstract class AbstractState<V> implements State {
 	@Override
 	@JsonIgnore
 	public <T> T get(final String key, final Type type) {
+		if (decoded != null) {
+			return decoded.get(key, JOM.getTypeFactory().constructType(type),
+					get(key));
+		}
 		return TypeUtil.inject(get(key), type);
 	}
 	
@@ -175,6 +196,9 @@ public abstract class AbstractState<V> implements State {
 	@Override
 	@JsonIgnore
 	public <T> T get(final String key, final JavaType type) {
+		if (decoded != null) {
+			return decoded.get(key, type, get(key));
+		}
 		return TypeUtil.inject(get(key), type);
 	}
 	
@@ -187,6 +211,9 @@ public abstract class AbstractState<V> implements State {
 	@Override
 	@JsonIgnore
 	public <T> T get(final String key, final TypeUtil<T> type) {
+		if (decoded != null) {
+			return decoded.get(key, type.getJavaType(), get(key));
+		}
 		return type.inject(get(key));
 	}
 	
@@ -201,6 +228,246 @@ public abstract class AbstractState<V> implements State {
 		return get(typedKey.getKey(), typedKey.getType());
 	}
 	
+	/**
+	 * Gets the raw values of multiple keys. States can override this to fetch
+	 * all keys in one go.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @return the values, missing keys are left out
+	 */
+	@JsonIgnore
+	public Map<String, V> locGetAll(final Collection<String> keys) {
+		final Map<String, V> result = new HashMap<String, V>(keys.size());
+		for (final String key : keys) {
+			final V value = get(key);
+			if (value != null) {
+				result.put(key, value);
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#getAll(java.util.Collection)
+	 */
+	@Override
+	@JsonIgnore
+	public Map<String, JsonNode> getAll(final Collection<String> keys) {
+		return getAll(keys, JsonNode.class);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#getAll(java.util.Collection,
+	 * java.lang.Class)
+	 */
+	@Override
+	@JsonIgnore
+	public <T> Map<String, T> getAll(final Collection<String> keys,
+			final Class<T> type) {
+		final Map<String, V> values = locGetAll(keys);
+		final Map<String, T> result = new HashMap<String, T>(values.size());
+		for (final Entry<String, V> entry : values.entrySet()) {
+			result.put(entry.getKey(), TypeUtil.inject(entry.getValue(), type));
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(final Map<String, ?> values) {
+		invalidateDecoded();
+		for (final Entry<String, ?> entry : values.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#removeAll(java.util.Collection)
+	 */
+	@Override
+	public void removeAll(final Collection<String> keys) {
+		invalidateDecoded();
+		for (final String key : keys) {
+			remove(key);
+		}
+	}
+	
+	/**
+	 * Default implementation, only atomic with regard to other updates on
+	 * this instance. States that can do better should override this.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @param update
+	 *            the update
+	 * @return true, if successful
+	 */
+	@Override
+	public synchronized boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		final Map<String, Object> changes = update.apply(getAll(keys));
+		if (changes == null) {
+			return false;
+		}
+		invalidateDecoded();
+		final Map<String, Object> puts = new HashMap<String, Object>(
+				changes.size());
+		final List<String> removals = new ArrayList<String>();
+		for (final Entry<String, Object> entry : changes.entrySet()) {
+			if (entry.getValue() == null) {
+				removals.add(entry.getKey());
+			} else {
+				puts.put(entry.getKey(), entry.getValue());
+			}
+		}
+		putAll(puts);
+		removeAll(removals);
+		return true;
+	}
+	
+	/**
+	 * Drop the decoded value of the given key, if a decoded value cache is
+	 * configured. States that change values outside of
+	 * {@link #put(String, Object)} may call this, although the cache also
+	 * checks whether the raw value is still the same on every read.
+	 * 
+	 * @param key
+	 *            the key
+	 */
+	protected void invalidateDecoded(final String key) {
+		if (decoded != null) {
+			decoded.invalidate(key);
+		}
+	}
+	
+	/**
+	 * Drop all decoded values, if a decoded value cache is configured.
+	 */
+	protected void invalidateDecoded() {
+		if (decoded != null) {
+			decoded.invalidate();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.state.State#addListener(com.almende.eve.state.StateListener
+	 * )
+	 */
+	@Override
+	public void addListener(final StateListener listener) {
+		final boolean first;
+		synchronized (listeners) {
+			first = listeners.isEmpty();
+			listeners.add(listener);
+		}
+		if (first) {
+			watch(true);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.state.State#removeListener(com.almende.eve.state.
+	 * StateListener)
+	 */
+	@Override
+	public void removeListener(final StateListener listener) {
+		final boolean last;
+		synchronized (listeners) {
+			last = listeners.remove(listener) && listeners.isEmpty();
+		}
+		if (last) {
+			watch(false);
+		}
+	}
+	
+	/**
+	 * Called when the first listener is added, or the last one is removed.
+	 * States that get change notifications from their backend can start or
+	 * stop watching here.
+	 * 
+	 * @param active
+	 *            whether there are listeners
+	 */
+	protected void watch(final boolean active) {}
+	
+	/**
+	 * Checks for listeners, states can use this to skip the work needed to
+	 * report changes.
+	 * 
+	 * @return true, if there are listeners
+	 */
+	protected boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+	
+	/**
+	 * Report a change to the listeners. Nothing is reported if the old value
+	 * is known and equal to the new value.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param oldValue
+	 *            the old value, null if absent or unknown
+	 * @param newValue
+	 *            the new value, null if removed
+	 */
+	protected void fireChange(final String key, final Object oldValue,
+			final Object newValue) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		if (oldValue != null && oldValue.equals(newValue)) {
+			return;
+		}
+		invalidateDecoded(key);
+		final JsonNode oldNode = oldValue == null ? null : toJsonNode(oldValue);
+		final JsonNode newNode = newValue == null ? null : toJsonNode(newValue);
+		for (final StateListener listener : listeners) {
+			try {
+				listener.onChange(this, key, oldNode, newNode);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "State listener failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Convert a value to a JsonNode, for states that store JsonNodes.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the json node
+	 */
+	protected static JsonNode toJsonNode(final Object value) {
+		if (value == null) {
+			return NullNode.getInstance();
+		} else if (value instanceof JsonNode) {
+			return (JsonNode) value;
+		} else if (value instanceof Serializable) {
+			return JOM.getInstance().valueToTree(value);
+		} else {
+			LOG.severe("Can't handle input that is not Serializable nor JsonNode.");
+			throw new IllegalArgumentException("Can't handle input that is not Serializable nor JsonNode.");
+		}
+	}
+	
 	/**
 	 * Loc put.
 	 * 
@@ -304,6 +571,29 @@ public abstract class AbstractState<V> implements State {
 		return myParams;
 	}
 	
+	/**
+	 * Sets the params, for states that are loaded from storage instead of
+	 * constructed with their params. This also (re)configures the decoded
+	 * value cache.
+	 * 
+	 * @param params
+	 *            the new params
+	 */
+	@JsonIgnore
+	public void setParams(final ObjectNode params) {
+		this.myParams = params;
+		this.decoded = null;
+		if (params != null) {
+			final StateConfig config = StateConfig.decorate(params);
+			final DecodedValueCache.Mode mode = DecodedValueCache.Mode
+					.parse(config.getDecodeCache());
+			if (mode != null) {
+				this.decoded = new DecodedValueCache(mode,
+						config.getDecodeCacheSize());
+			}
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,246 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Cache of decoded values, keyed by state key and requested type. An entry
+ * remembers the raw value it was decoded from and is only used as long as the
+ * state still returns that same (or an equal) raw value, so changes that
+ * bypass {@link AbstractState} (other instances, other processes) are picked
+ * up as well.
+ */
+final class DecodedValueCache {
+	/**
+	 * The Enum Mode.
+	 */
+	enum Mode {
+		/**
+		 * Only cache immutable values, or collections of immutable values;
+		 * collections are copied on every read.
+		 */
+		COPY,
+		/**
+		 * Cache every value and share it between readers; callers promise
+		 * not to modify the returned objects.
+		 */
+		IMMUTABLE;
+
+		/**
+		 * Parse the configured mode.
+		 *
+		 * @param mode
+		 *            the mode
+		 * @return the mode, or null if caching is off
+		 */
+		static Mode parse(final String mode) {
+			if ("copy".equalsIgnoreCase(mode)) {
+				return COPY;
+			}
+			if ("immutable".equalsIgnoreCase(mode)) {
+				return IMMUTABLE;
+			}
+			return null;
+		}
+	}
+
+	private static final class Decoded {
+		private final Object	raw;
+		private final Object	value;
+
+		private Decoded(final Object raw, final Object value) {
+			this.raw = raw;
+			this.value = value;
+		}
+	}
+
+	private final Mode										mode;
+	private final LinkedHashMap<String, Map<JavaType, Decoded>>	entries;
+
+	/**
+	 * Instantiates a new decoded value cache.
+	 *
+	 * @param mode
+	 *            the mode
+	 * @param maxKeys
+	 *            the max number of keys to keep decoded values for
+	 */
+	DecodedValueCache(final Mode mode, final int maxKeys) {
+		this.mode = mode;
+		this.entries = new LinkedHashMap<String, Map<JavaType, Decoded>>(16,
+				0.75f, true) {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Map<JavaType, Decoded>> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+	/**
+	 * Gets the decoded value of the given raw value, decoding it only if no
+	 * matching entry exists.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @param type
+	 *            the type
+	 * @param raw
+	 *            the raw value as currently held by the state
+	 * @return the decoded value
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(final String key, final JavaType type, final Object raw) {
+		if (!(raw instanceof JsonNode) || type.hasRawClass(JsonNode.class)
+				|| type.hasRawClass(Object.class)) {
+			// Nothing to gain, inject() is a cast in these cases.
+			if (raw == null) {
+				invalidate(key);
+			}
+			return TypeUtil.inject(raw, type);
+		}
+		synchronized (entries) {
+			final Map<JavaType, Decoded> types = entries.get(key);
+			if (types != null) {
+				final Decoded decoded = types.get(type);
+				if (decoded != null) {
+					if (decoded.raw == raw || decoded.raw.equals(raw)) {
+						return (T) copy(decoded.value);
+					}
+					// Raw value changed underneath us, all types are stale.
+					entries.remove(key);
+				}
+			}
+		}
+		final T value = TypeUtil.inject(raw, type);
+		if (value != null && cacheable(value)) {
+			synchronized (entries) {
+				Map<JavaType, Decoded> types = entries.get(key);
+				if (types == null) {
+					types = new HashMap<JavaType, Decoded>(2);
+					entries.put(key, types);
+				}
+				types.put(type, new Decoded(raw, value));
+			}
+			return (T) copy(value);
+		}
+		return value;
+	}
+
+	/**
+	 * Drop the decoded values of the given key.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	void invalidate(final String key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Drop all decoded values.
+	 */
+	void invalidate() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private boolean cacheable(final Object value) {
+		if (mode == Mode.IMMUTABLE) {
+			return true;
+		}
+		if (isImmutable(value)) {
+			return true;
+		}
+		if (value instanceof Collection) {
+			return isCopyable(value) && allImmutable((Collection<?>) value);
+		}
+		if (value instanceof Map) {
+			final Map<?, ?> map = (Map<?, ?>) value;
+			return isCopyable(value) && allImmutable(map.keySet())
+					&& allImmutable(map.values());
+		}
+		return false;
+	}
+
+	private Object copy(final Object value) {
+		if (mode == Mode.IMMUTABLE || isImmutable(value)) {
+			return value;
+		}
+		final Class<?> clazz = value.getClass();
+		if (clazz == ArrayList.class) {
+			return new ArrayList<Object>((Collection<?>) value);
+		} else if (clazz == LinkedList.class) {
+			return new LinkedList<Object>((Collection<?>) value);
+		} else if (clazz == HashSet.class) {
+			return new HashSet<Object>((Collection<?>) value);
+		} else if (clazz == LinkedHashSet.class) {
+			return new LinkedHashSet<Object>((Collection<?>) value);
+		} else if (clazz == TreeSet.class) {
+			return new TreeSet<Object>((SortedSet<?>) value);
+		} else if (clazz == HashMap.class) {
+			return new HashMap<Object, Object>((Map<?, ?>) value);
+		} else if (clazz == LinkedHashMap.class) {
+			return new LinkedHashMap<Object, Object>((Map<?, ?>) value);
+		} else if (clazz == TreeMap.class) {
+			return new TreeMap<Object, Object>((SortedMap<?, ?>) value);
+		}
+		// Not reached, cacheable() only lets the above through.
+		return value;
+	}
+
+	private static boolean isCopyable(final Object value) {
+		final Class<?> clazz = value.getClass();
+		return clazz == ArrayList.class || clazz == LinkedList.class
+				|| clazz == HashSet.class || clazz == LinkedHashSet.class
+				|| clazz == TreeSet.class || clazz == HashMap.class
+				|| clazz == LinkedHashMap.class || clazz == TreeMap.class;
+	}
+
+	private static boolean allImmutable(final Collection<?> values) {
+		for (final Object value : values) {
+			if (value != null && !isImmutable(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isImmutable(final Object value) {
+		return value instanceof String || value instanceof Boolean
+				|| value instanceof Character || value instanceof Enum
+				|| value instanceof UUID || value instanceof BigDecimal
+				|| value instanceof BigInteger || value instanceof Integer
+				|| value instanceof Long || value instanceof Double
+				|| value instanceof Float || value instanceof Short
+				|| value instanceof Byte;
+	}
+}
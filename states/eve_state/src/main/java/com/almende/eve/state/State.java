@@ -5,11 +5,14 @@
 package com.almende.eve.state;
 
 import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 import com.almende.eve.capabilities.Capability;
 import com.almende.util.TypeUtil;
 import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * The Interface State.
@@ -155,6 +158,76 @@ public interface State extends Capability {
 	 */
 	<T> T get(TypedKey<T> key);
 
+	/**
+	 * Gets the values of multiple keys at once. Missing keys are left out of
+	 * the result.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @return the values
+	 */
+	Map<String, JsonNode> getAll(Collection<String> keys);
+
+	/**
+	 * Gets the values of multiple keys at once. Missing keys are left out of
+	 * the result.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param keys
+	 *            the keys
+	 * @param type
+	 *            the type
+	 * @return the values
+	 */
+	<T> Map<String, T> getAll(Collection<String> keys, Class<T> type);
+
+	/**
+	 * Put multiple values at once.
+	 * 
+	 * @param values
+	 *            the values
+	 */
+	void putAll(Map<String, ?> values);
+
+	/**
+	 * Removes multiple keys at once.
+	 * 
+	 * @param keys
+	 *            the keys
+	 */
+	void removeAll(Collection<String> keys);
+
+	/**
+	 * Atomically update multiple keys, based on their current values.
+	 * 
+	 * @param keys
+	 *            the keys to read
+	 * @param update
+	 *            the update
+	 * @return true, if the update was applied
+	 */
+	boolean update(Collection<String> keys, StateUpdate update);
+
+	/**
+	 * Add a listener for changes of this state. Memory and file states report
+	 * the changes made in this process, the other backends also report
+	 * changes made elsewhere, through their own change notification
+	 * mechanism.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	void addListener(StateListener listener);
+
+	/**
+	 * Removes the listener.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	void removeListener(StateListener listener);
+
 	/**
 	 * Gets the service.
 	 *
@@ -5,10 +5,30 @@
 package com.almende.eve.state;
 
 import com.almende.eve.capabilities.AbstractCapabilityBuilder;
+import com.almende.eve.state.cache.CachedState;
+import com.almende.eve.state.cache.StateCacheConfig;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class StateBuilder.
  */
 public class StateBuilder extends AbstractCapabilityBuilder<State> {
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.capabilities.AbstractCapabilityBuilder#build()
+	 */
+	@Override
+	public State build() {
+		final State state = super.build();
+		if (state == null || getParams() == null) {
+			return state;
+		}
+		final ObjectNode cache = StateConfig.decorate(getParams()).getCache();
+		if (cache != null) {
+			return new CachedState(state, StateCacheConfig.decorate(cache));
+		}
+		return state;
+	}
 }
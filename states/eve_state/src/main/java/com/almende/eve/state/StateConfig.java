@@ -53,4 +53,77 @@ public class StateConfig extends Config {
 		return null;
 	}
 	
+	/**
+	 * Sets the cache config. If set, states built through the
+	 * {@link StateBuilder} are wrapped in a
+	 * {@link com.almende.eve.state.cache.CachedState}.
+	 * 
+	 * @param cache
+	 *            the new cache config
+	 */
+	public void setCache(final ObjectNode cache) {
+		this.set("cache", cache);
+	}
+	
+	/**
+	 * Gets the cache config.
+	 * 
+	 * @return the cache config
+	 */
+	public ObjectNode getCache() {
+		if (this.has("cache") && this.get("cache").isObject()) {
+			return (ObjectNode) this.get("cache");
+		}
+		return null;
+	}
+	
+	/**
+	 * Sets the decoded value cache mode: "off" (default), "copy" or
+	 * "immutable". With "copy", typed gets of unchanged keys reuse the
+	 * previously decoded value if it is immutable or a plain collection of
+	 * immutable values, handing out a fresh copy of such collections on every
+	 * read. With "immutable", every decoded value is reused and shared between
+	 * readers; only use this if callers never modify the returned objects.
+	 * 
+	 * @param mode
+	 *            the new decode cache mode
+	 */
+	public void setDecodeCache(final String mode) {
+		this.put("decodeCache", mode);
+	}
+	
+	/**
+	 * Gets the decoded value cache mode.
+	 * 
+	 * @return the decode cache mode
+	 */
+	public String getDecodeCache() {
+		if (this.has("decodeCache")) {
+			return this.get("decodeCache").asText();
+		}
+		return "off";
+	}
+	
+	/**
+	 * Sets the max number of keys to keep decoded values for.
+	 * 
+	 * @param size
+	 *            the new decode cache size
+	 */
+	public void setDecodeCacheSize(final int size) {
+		this.put("decodeCacheSize", size);
+	}
+	
+	/**
+	 * Gets the max number of keys to keep decoded values for.
+	 * 
+	 * @return the decode cache size
+	 */
+	public int getDecodeCacheSize() {
+		if (this.has("decodeCacheSize")) {
+			return this.get("decodeCacheSize").asInt();
+		}
+		return 256;
+	}
+	
 }
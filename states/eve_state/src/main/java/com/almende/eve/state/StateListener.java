@@ -0,0 +1,30 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Listener for changes of a {@link State}, see
+ * {@link State#addListener(StateListener)}. Listeners are called on the thread
+ * that made or detected the change, so they should return quickly.
+ */
+public interface StateListener {
+
+	/**
+	 * Called after a key of the state has changed.
+	 * 
+	 * @param state
+	 *            the state
+	 * @param key
+	 *            the key
+	 * @param oldValue
+	 *            the previous value, null if the key didn't exist or if the
+	 *            backend can't tell
+	 * @param newValue
+	 *            the new value, null if the key was removed
+	 */
+	void onChange(State state, String key, JsonNode oldValue, JsonNode newValue);
+}
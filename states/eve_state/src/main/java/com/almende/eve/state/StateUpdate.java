@@ -0,0 +1,29 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A multi-key update, applied atomically through
+ * {@link State#update(java.util.Collection, StateUpdate)}. Depending on the
+ * backend the update may be applied more than once, if a concurrent change was
+ * detected, so it should not have side effects.
+ */
+public interface StateUpdate {
+
+	/**
+	 * Compute the changes from the current values.
+	 * 
+	 * @param current
+	 *            the current values of the requested keys, missing keys are
+	 *            left out
+	 * @return the new values, a null value removes the key, returning null
+	 *         aborts the update
+	 */
+	Map<String, Object> apply(Map<String, JsonNode> current);
+}
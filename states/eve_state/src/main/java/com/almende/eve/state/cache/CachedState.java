@@ -0,0 +1,538 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateListener;
+import com.almende.eve.state.StateService;
+import com.almende.eve.state.StateUpdate;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A State decorator, caching the values of any (remote) State backend in a
+ * bounded {@link StateCache}. Reads go through the cache, writes are either
+ * written through to the backend, or buffered and written behind.
+ * 
+ * The backend's change notifications invalidate the cached keys, and are
+ * passed on to the listeners of this state. On backends without change
+ * notifications, other writers are not seen until the entry is evicted,
+ * expires, or is invalidated, so there this is meant for states that are
+ * (mostly) written through this JVM.
+ * 
+ * Values are cached as private copies of their JSON form: callers never
+ * share a mutable object with the cache. Buffered writes are retried until
+ * the backend accepts them, and written out on JVM shutdown.
+ */
+public class CachedState extends AbstractState<Object> implements State {
+	private static final Logger			LOG			= Logger.getLogger(CachedState.class
+															.getName());
+	// Write behind states with buffered changes, flushed on shutdown
+	private static final Set<CachedState>	DIRTY		= Collections
+															.newSetFromMap(new ConcurrentHashMap<CachedState, Boolean>());
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				for (final CachedState state : DIRTY) {
+					state.flush();
+				}
+			}
+		});
+	}
+	private final State					inner;
+	private final StateCache			cache;
+	private final boolean				writeBehind;
+	private final long					writeDelay;
+	private final boolean				cacheMisses;
+
+	// Write behind buffer: key to value, ABSENT for removals
+	private final Map<String, Object>	pending		= new HashMap<String, Object>();
+	private final AtomicBoolean			scheduled	= new AtomicBoolean(false);
+	private final AtomicBoolean			released	= new AtomicBoolean(false);
+	// Serializes flushes, so older writes can't overtake newer ones
+	private final Object				flushLock	= new Object();
+	private final StateListener			invalidator	= new StateListener() {
+														@Override
+														public void onChange(
+																final State state,
+																final String key,
+																final JsonNode oldValue,
+																final JsonNode newValue) {
+															invalidate(key);
+															fireChange(key,
+																	oldValue,
+																	newValue);
+														}
+													};
+
+	/**
+	 * Instantiates a new cached state.
+	 * 
+	 * @param inner
+	 *            the backend state
+	 * @param config
+	 *            the cache config
+	 */
+	public CachedState(final State inner, final StateCacheConfig config) {
+		super(inner.getId(), inner.getService(), inner.getParams());
+		this.inner = inner;
+		this.cache = StateCache.getInstance(inner.getId(), config);
+		this.writeBehind = "behind".equalsIgnoreCase(config.getWriteMode());
+		this.writeDelay = config.getWriteDelay();
+		this.cacheMisses = config.isCacheMisses();
+		inner.addListener(invalidator);
+	}
+
+	/**
+	 * Gets the backend state.
+	 * 
+	 * @return the inner state
+	 */
+	public State getInner() {
+		return inner;
+	}
+
+	/**
+	 * Gets the cache.
+	 * 
+	 * @return the cache
+	 */
+	public StateCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Gets the cache statistics.
+	 * 
+	 * @return the cache stats
+	 */
+	public ObjectNode getCacheStats() {
+		return cache.getStats();
+	}
+
+	/**
+	 * Invalidate a cached key, e.g. after a change notification of the
+	 * backend.
+	 * 
+	 * @param key
+	 *            the key
+	 */
+	public void invalidate(final String key) {
+		cache.invalidate(getId(), key);
+	}
+
+	/**
+	 * Invalidate all cached keys of this state.
+	 */
+	public void invalidate() {
+		cache.invalidate(getId());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#get(java.lang.String)
+	 */
+	@Override
+	public Object get(final String key) {
+		synchronized (pending) {
+			final Object value = pending.get(key);
+			if (value != null) {
+				return value == StateCache.ABSENT ? null : copy(value);
+			}
+		}
+		final Object cached = cache.get(getId(), key);
+		if (cached != null) {
+			return cached == StateCache.ABSENT ? null : copy(cached);
+		}
+		final Object value = load(key);
+		if (value != null) {
+			final Object stored = copy(value);
+			cache.put(getId(), key, stored);
+			return copy(stored);
+		} else if (cacheMisses) {
+			cache.put(getId(), key, StateCache.ABSENT);
+		}
+		return null;
+	}
+
+	/**
+	 * Copy a value for storage in, or retrieval from, the cache or the write
+	 * behind buffer.
+	 * 
+	 * @param value
+	 *            the value, or {@link StateCache#ABSENT}
+	 * @return a private JSON copy of the value
+	 */
+	private static Object copy(final Object value) {
+		if (value == null) {
+			return StateCache.ABSENT;
+		}
+		if (value == StateCache.ABSENT) {
+			return value;
+		}
+		if (value instanceof JsonNode) {
+			return ((JsonNode) value).deepCopy();
+		}
+		return JOM.getInstance().valueToTree(value);
+	}
+
+	/**
+	 * Load the raw value from the backend.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the value
+	 */
+	private Object load(final String key) {
+		if (inner instanceof AbstractState) {
+			return ((AbstractState<?>) inner).get(key);
+		}
+		return inner.get(key, JsonNode.class);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#put(java.lang.String,
+	 * java.lang.Object)
+	 */
+	@Override
+	public Object put(final String key, final Object value) {
+		if (writeBehind) {
+			final Object result = get(key);
+			final Object stored = copy(value);
+			synchronized (pending) {
+				pending.put(key, stored);
+			}
+			cache.put(getId(), key, stored);
+			schedule();
+			return result;
+		}
+		final Object result = inner.put(key, value);
+		cache.put(getId(), key, copy(value));
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putIfUnchanged(java.lang.String,
+	 * java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public boolean putIfUnchanged(final String key, final Object newVal,
+			final Object oldVal) {
+		// Needs the backend's view, so store buffered writes first
+		flush();
+		final boolean result = inner.putIfUnchanged(key, newVal, oldVal);
+		cache.invalidate(getId(), key);
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#locGetAll(java.util.Collection)
+	 */
+	@Override
+	public Map<String, Object> locGetAll(final Collection<String> keys) {
+		final Map<String, Object> result = new HashMap<String, Object>(
+				keys.size());
+		final List<String> missing = new ArrayList<String>();
+		for (final String key : keys) {
+			Object value = null;
+			synchronized (pending) {
+				value = pending.get(key);
+			}
+			if (value == null) {
+				value = cache.get(getId(), key);
+			}
+			if (value == null) {
+				missing.add(key);
+			} else if (value != StateCache.ABSENT) {
+				result.put(key, copy(value));
+			}
+		}
+		if (!missing.isEmpty()) {
+			Map<String, ?> loaded = null;
+			if (inner instanceof AbstractState) {
+				loaded = ((AbstractState<?>) inner).locGetAll(missing);
+			} else {
+				loaded = inner.getAll(missing);
+			}
+			for (final String key : missing) {
+				final Object value = loaded.get(key);
+				if (value != null) {
+					final Object stored = copy(value);
+					result.put(key, copy(stored));
+					cache.put(getId(), key, stored);
+				} else if (cacheMisses) {
+					cache.put(getId(), key, StateCache.ABSENT);
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(final Map<String, ?> values) {
+		if (writeBehind) {
+			super.putAll(values);
+			return;
+		}
+		inner.putAll(values);
+		for (final Map.Entry<String, ?> entry : values.entrySet()) {
+			cache.put(getId(), entry.getKey(), copy(entry.getValue()));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#removeAll(java.util.Collection)
+	 */
+	@Override
+	public void removeAll(final Collection<String> keys) {
+		if (writeBehind) {
+			super.removeAll(keys);
+			return;
+		}
+		inner.removeAll(keys);
+		for (final String key : keys) {
+			if (cacheMisses) {
+				cache.put(getId(), key, StateCache.ABSENT);
+			} else {
+				cache.invalidate(getId(), key);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#update(java.util.Collection,
+	 * com.almende.eve.state.StateUpdate)
+	 */
+	@Override
+	public boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		flush();
+		final Set<String> touched = new HashSet<String>(keys);
+		final boolean result = inner.update(keys, new StateUpdate() {
+			@Override
+			public Map<String, Object> apply(final Map<String, JsonNode> current) {
+				final Map<String, Object> changes = update.apply(current);
+				if (changes != null) {
+					synchronized (touched) {
+						touched.addAll(changes.keySet());
+					}
+				}
+				return changes;
+			}
+		});
+		synchronized (touched) {
+			for (final String key : touched) {
+				cache.invalidate(getId(), key);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#remove(java.lang.String)
+	 */
+	@Override
+	public Object remove(final String key) {
+		if (writeBehind) {
+			final Object result = get(key);
+			synchronized (pending) {
+				pending.put(key, StateCache.ABSENT);
+			}
+			cache.put(getId(), key, StateCache.ABSENT);
+			schedule();
+			return result;
+		}
+		final Object result = inner.remove(key);
+		if (cacheMisses) {
+			cache.put(getId(), key, StateCache.ABSENT);
+		} else {
+			cache.invalidate(getId(), key);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#containsKey(java.lang.String)
+	 */
+	@Override
+	public boolean containsKey(final String key) {
+		synchronized (pending) {
+			final Object value = pending.get(key);
+			if (value != null) {
+				return value != StateCache.ABSENT;
+			}
+		}
+		final Object cached = cache.get(getId(), key);
+		if (cached != null) {
+			return cached != StateCache.ABSENT;
+		}
+		return inner.containsKey(key);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#keySet()
+	 */
+	@Override
+	public Set<String> keySet() {
+		flush();
+		return inner.keySet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#clear()
+	 */
+	@Override
+	public void clear() {
+		synchronized (pending) {
+			pending.clear();
+		}
+		inner.clear();
+		cache.invalidate(getId());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#size()
+	 */
+	@Override
+	public int size() {
+		flush();
+		return inner.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#delete(java.lang.Boolean)
+	 */
+	@Override
+	public void delete(final Boolean instanceOnly) {
+		if (instanceOnly) {
+			flush();
+		} else {
+			synchronized (pending) {
+				pending.clear();
+			}
+			DIRTY.remove(this);
+		}
+		inner.removeListener(invalidator);
+		// Other live instances of this agent may still use the cache
+		final boolean dropped = released.compareAndSet(false, true)
+				&& StateCache.release(cache.getName());
+		if (dropped || !instanceOnly) {
+			cache.invalidate(getId());
+		}
+		inner.delete(instanceOnly);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getService()
+	 */
+	@Override
+	public StateService getService() {
+		return inner.getService();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getParams()
+	 */
+	@Override
+	public ObjectNode getParams() {
+		return inner.getParams();
+	}
+
+	private void schedule() {
+		DIRTY.add(this);
+		if (scheduled.compareAndSet(false, true)) {
+			ThreadPool.getScheduledPool().schedule(new Runnable() {
+				@Override
+				public void run() {
+					scheduled.set(false);
+					flush();
+				}
+			}, writeDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Write the buffered changes to the backend. Changes the backend didn't
+	 * accept go back into the buffer, unless they have been overwritten in
+	 * the meantime, and are retried after the write delay.
+	 */
+	public void flush() {
+		if (!writeBehind) {
+			return;
+		}
+		synchronized (flushLock) {
+			final Map<String, Object> changes;
+			synchronized (pending) {
+				if (pending.isEmpty()) {
+					DIRTY.remove(this);
+					return;
+				}
+				changes = new HashMap<String, Object>(pending);
+				pending.clear();
+			}
+			boolean failed = false;
+			for (final Map.Entry<String, Object> entry : changes.entrySet()) {
+				try {
+					if (entry.getValue() == StateCache.ABSENT) {
+						inner.remove(entry.getKey());
+					} else {
+						inner.put(entry.getKey(), entry.getValue());
+					}
+				} catch (final Exception e) {
+					LOG.log(Level.WARNING, "Failed to write behind: "
+							+ entry.getKey() + ", will retry", e);
+					synchronized (pending) {
+						if (!pending.containsKey(entry.getKey())) {
+							pending.put(entry.getKey(), entry.getValue());
+						}
+					}
+					failed = true;
+				}
+			}
+			synchronized (pending) {
+				if (pending.isEmpty()) {
+					DIRTY.remove(this);
+				} else if (failed) {
+					schedule();
+				}
+			}
+		}
+	}
+}
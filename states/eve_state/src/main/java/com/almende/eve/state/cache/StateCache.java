@@ -0,0 +1,277 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A bounded cache of state values, keyed by state id and key. Used by
+ * {@link CachedState}, either one cache per state, or one cache shared by many
+ * states.
+ */
+public class StateCache {
+	private static final Map<String, StateCache>	CACHES	= new ConcurrentHashMap<String, StateCache>();
+	/** Marker for keys known to be absent in the backend. */
+	static final Object								ABSENT	= new Object();
+	// Number of least recently used entries sampled for LFU eviction
+	private static final int						SAMPLE	= 8;
+
+	private final String							name;
+	// Number of live states using this cache, guarded by CACHES
+	private int										references	= 0;
+	private final int								maxEntries;
+	private final boolean							lfu;
+	private final long								expireAfter;
+	private final LinkedHashMap<CacheKey, Entry>	entries;
+	private final AtomicLong						hits		= new AtomicLong();
+	private final AtomicLong						misses		= new AtomicLong();
+	private final AtomicLong						evictions	= new AtomicLong();
+	private final AtomicLong						invalidations	= new AtomicLong();
+
+	/**
+	 * Instantiates a new state cache.
+	 * 
+	 * @param name
+	 *            the name
+	 * @param config
+	 *            the config
+	 */
+	protected StateCache(final String name, final StateCacheConfig config) {
+		this.name = name;
+		this.maxEntries = config.getMaxEntries();
+		this.lfu = "lfu".equalsIgnoreCase(config.getPolicy());
+		this.expireAfter = config.getExpireAfter();
+		this.entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets (or creates) the cache to use for the given state.
+	 * 
+	 * @param stateId
+	 *            the state id
+	 * @param config
+	 *            the config
+	 * @return the state cache
+	 */
+	public static StateCache getInstance(final String stateId,
+			final StateCacheConfig config) {
+		final String name = "shared".equalsIgnoreCase(config.getScope()) ? "shared:"
+				+ config.getName()
+				: "agent:" + stateId;
+		synchronized (CACHES) {
+			StateCache cache = CACHES.get(name);
+			if (cache == null) {
+				cache = new StateCache(name, config);
+				CACHES.put(name, cache);
+			}
+			cache.references++;
+			return cache;
+		}
+	}
+
+	/**
+	 * Release a reference to the cache with the given name, per-agent or
+	 * shared, the cache is dropped when the last state using it is released.
+	 * 
+	 * @param name
+	 *            the name of the cache, see {@link #getName()}
+	 * @return true, if the cache was dropped
+	 */
+	static boolean release(final String name) {
+		synchronized (CACHES) {
+			final StateCache cache = CACHES.get(name);
+			if (cache != null && --cache.references <= 0) {
+				CACHES.remove(name);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the cached value. Returns null on a miss, {@link #ABSENT} for keys
+	 * known to be missing.
+	 * 
+	 * @param stateId
+	 *            the state id
+	 * @param key
+	 *            the key
+	 * @return the object
+	 */
+	synchronized Object get(final String stateId, final String key) {
+		final CacheKey ckey = new CacheKey(stateId, key);
+		final Entry entry = entries.get(ckey);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (expireAfter > 0
+				&& System.currentTimeMillis() - entry.stored > expireAfter) {
+			entries.remove(ckey);
+			misses.incrementAndGet();
+			return null;
+		}
+		entry.hits++;
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Store a value in the cache.
+	 * 
+	 * @param stateId
+	 *            the state id
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value, or {@link #ABSENT}
+	 */
+	synchronized void put(final String stateId, final String key,
+			final Object value) {
+		entries.put(new CacheKey(stateId, key), new Entry(value));
+		while (entries.size() > maxEntries) {
+			evict();
+		}
+	}
+
+	/**
+	 * Invalidate a single key.
+	 * 
+	 * @param stateId
+	 *            the state id
+	 * @param key
+	 *            the key
+	 */
+	public synchronized void invalidate(final String stateId, final String key) {
+		if (entries.remove(new CacheKey(stateId, key)) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Invalidate all keys of the given state.
+	 * 
+	 * @param stateId
+	 *            the state id
+	 */
+	public synchronized void invalidate(final String stateId) {
+		final Iterator<CacheKey> iter = entries.keySet().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().stateId.equals(stateId)) {
+				iter.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Evict one entry: the least recently used one, or for LFU the least
+	 * frequently used one of a sample of least recently used entries.
+	 */
+	private void evict() {
+		final Iterator<Map.Entry<CacheKey, Entry>> iter = entries.entrySet()
+				.iterator();
+		if (!iter.hasNext()) {
+			return;
+		}
+		CacheKey victim = null;
+		if (lfu) {
+			long min = Long.MAX_VALUE;
+			for (int i = 0; i < SAMPLE && iter.hasNext(); i++) {
+				final Map.Entry<CacheKey, Entry> entry = iter.next();
+				if (entry.getValue().hits < min) {
+					min = entry.getValue().hits;
+					victim = entry.getKey();
+				}
+			}
+		} else {
+			victim = iter.next().getKey();
+		}
+		entries.remove(victim);
+		evictions.incrementAndGet();
+	}
+
+	/**
+	 * Gets the name.
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the number of cached entries.
+	 * 
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the hit/miss statistics of this cache.
+	 * 
+	 * @return the stats
+	 */
+	public ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		final long h = hits.get();
+		final long m = misses.get();
+		result.put("name", name);
+		result.put("size", size());
+		result.put("maxEntries", maxEntries);
+		result.put("hits", h);
+		result.put("misses", m);
+		result.put("hitRatio", h + m > 0 ? (double) h / (h + m) : 0);
+		result.put("evictions", evictions.get());
+		result.put("invalidations", invalidations.get());
+		return result;
+	}
+
+	private static final class CacheKey {
+		private final String	stateId;
+		private final String	key;
+
+		private CacheKey(final String stateId, final String key) {
+			this.stateId = stateId;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof CacheKey)) {
+				return false;
+			}
+			final CacheKey other = (CacheKey) o;
+			return stateId.equals(other.stateId) && key.equals(other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * stateId.hashCode() + key.hashCode();
+		}
+	}
+
+	private static final class Entry {
+		private final Object	value;
+		private final long		stored	= System.currentTimeMillis();
+		private long			hits	= 0;
+
+		private Entry(final Object value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.cache;
+
+import com.almende.eve.config.Config;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class StateCacheConfig.
+ */
+public class StateCacheConfig extends Config {
+
+	/**
+	 * Instantiates a new state cache config.
+	 */
+	protected StateCacheConfig() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new state cache config.
+	 *
+	 * @return the state cache config
+	 */
+	public static StateCacheConfig create() {
+		return new StateCacheConfig();
+	}
+
+	/**
+	 * Instantiates a new state cache config.
+	 * 
+	 * @param node
+	 *            the node
+	 * @return the state cache config
+	 */
+	public static StateCacheConfig decorate(final ObjectNode node) {
+		final StateCacheConfig res = new StateCacheConfig();
+		res.extend(node);
+		return res;
+	}
+
+	/**
+	 * Sets the scope of the cache: "agent" for a cache per state, "shared" for
+	 * a single cache shared by all states with this configuration.
+	 * 
+	 * @param scope
+	 *            the new scope
+	 */
+	public void setScope(final String scope) {
+		this.put("scope", scope);
+	}
+
+	/**
+	 * Gets the scope, (default: "agent")
+	 * 
+	 * @return the scope
+	 */
+	public String getScope() {
+		if (this.has("scope")) {
+			return this.get("scope").asText();
+		}
+		return "agent";
+	}
+
+	/**
+	 * Sets the name of the shared cache.
+	 * 
+	 * @param name
+	 *            the new name
+	 */
+	public void setName(final String name) {
+		this.put("name", name);
+	}
+
+	/**
+	 * Gets the name of the shared cache, (default: "shared")
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		if (this.has("name")) {
+			return this.get("name").asText();
+		}
+		return "shared";
+	}
+
+	/**
+	 * Sets the eviction policy: "lru" or "lfu".
+	 * 
+	 * @param policy
+	 *            the new policy
+	 */
+	public void setPolicy(final String policy) {
+		this.put("policy", policy);
+	}
+
+	/**
+	 * Gets the eviction policy, (default: "lru")
+	 * 
+	 * @return the policy
+	 */
+	public String getPolicy() {
+		if (this.has("policy")) {
+			return this.get("policy").asText();
+		}
+		return "lru";
+	}
+
+	/**
+	 * Sets the max number of entries in the cache.
+	 * 
+	 * @param maxEntries
+	 *            the new max entries
+	 */
+	public void setMaxEntries(final int maxEntries) {
+		this.put("maxEntries", maxEntries);
+	}
+
+	/**
+	 * Gets the max number of entries in the cache, (default: 1000)
+	 * 
+	 * @return the max entries
+	 */
+	public int getMaxEntries() {
+		if (this.has("maxEntries")) {
+			return this.get("maxEntries").asInt();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the write mode: "through" writes to the backend directly, "behind"
+	 * buffers writes and stores them after the write delay.
+	 * 
+	 * @param writeMode
+	 *            the new write mode
+	 */
+	public void setWriteMode(final String writeMode) {
+		this.put("writeMode", writeMode);
+	}
+
+	/**
+	 * Gets the write mode, (default: "through")
+	 * 
+	 * @return the write mode
+	 */
+	public String getWriteMode() {
+		if (this.has("writeMode")) {
+			return this.get("writeMode").asText();
+		}
+		return "through";
+	}
+
+	/**
+	 * Sets the write delay in milliseconds, used in write behind mode.
+	 * 
+	 * @param writeDelay
+	 *            the new write delay
+	 */
+	public void setWriteDelay(final long writeDelay) {
+		this.put("writeDelay", writeDelay);
+	}
+
+	/**
+	 * Gets the write delay in milliseconds, (default: 100)
+	 * 
+	 * @return the write delay
+	 */
+	public long getWriteDelay() {
+		if (this.has("writeDelay")) {
+			return this.get("writeDelay").asLong();
+		}
+		return 100;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which entries expire, 0 means
+	 * never.
+	 * 
+	 * @param expireAfter
+	 *            the new expire after
+	 */
+	public void setExpireAfter(final long expireAfter) {
+		this.put("expireAfter", expireAfter);
+	}
+
+	/**
+	 * Gets the time in milliseconds after which entries expire, (default: 0)
+	 * 
+	 * @return the expire after
+	 */
+	public long getExpireAfter() {
+		if (this.has("expireAfter")) {
+			return this.get("expireAfter").asLong();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets whether keys that are missing in the backend are cached as well.
+	 * 
+	 * @param cacheMisses
+	 *            the new cache misses
+	 */
+	public void setCacheMisses(final boolean cacheMisses) {
+		this.put("cacheMisses", cacheMisses);
+	}
+
+	/**
+	 * Checks whether missing keys are cached, (default: true)
+	 * 
+	 * @return true, if missing keys are cached
+	 */
+	public boolean isCacheMisses() {
+		if (this.has("cacheMisses")) {
+			return this.get("cacheMisses").asBoolean();
+		}
+		return true;
+	}
+}
@@ -15,16 +15,19 @@ import java.io.RandomAccessFile;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.StateUpdate;
 import com.almende.eve.state.file.FileStateBuilder.FileStateProvider;
 import com.almende.util.TypeUtil;
 import com.almende.util.jackson.JOM;
@@ -264,9 +267,16 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	 */
 	@Override
 	public void clear() {
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
 		try {
 			openFile();
+			if (hasListeners()) {
+				read();
+			}
+			before = before(properties.keySet());
 			properties.clear();
+			after = after(before);
 			write();
 		} catch (final IllegalStateException e) {
 			LOG.log(Level.WARNING,
@@ -275,6 +285,7 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		fireChanges(before, after);
 	}
 	
 	/*
@@ -352,13 +363,17 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	 */
 	@Override
 	public JsonNode locPut(final String key, JsonNode value) {
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
 		try {
 			openFile();
 			read();
+			before = before(Collections.singleton(key));
 			if (value == null) {
 				value = NullNode.getInstance();
 			}
 			properties.put(key, value);
+			after = after(before);
 			write();
 		} catch (final IllegalStateException e) {
 			LOG.log(Level.WARNING,
@@ -367,6 +382,7 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		fireChanges(before, after);
 		return value;
 	}
 	
@@ -382,9 +398,12 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	public boolean locPutIfUnchanged(final String key, final JsonNode newVal,
 			JsonNode oldVal) {
 		boolean result = false;
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
 		try {
 			openFile();
 			read();
+			before = before(Collections.singleton(key));
 			
 			JsonNode cur = NullNode.getInstance();
 			if (properties.containsKey(key)) {
@@ -398,6 +417,7 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 			// IntNode versus LongNode
 			if (oldVal.equals(cur) || oldVal.toString().equals(cur.toString())) {
 				properties.put(key, newVal);
+				after = after(before);
 				write();
 				result = true;
 			}
@@ -411,6 +431,7 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 			result = true;
 		}
 		closeFile();
+		fireChanges(before, after);
 		return result;
 	}
 	
@@ -422,11 +443,101 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	@Override
 	public Object remove(final String key) {
 		Object result = null;
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
 		try {
 			openFile();
 			read();
+			before = before(Collections.singleton(key));
 			result = properties.remove(key);
 			
+			after = after(before);
+			write();
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING,
+					"Couldn't handle Statefile: " + e.getMessage(), e);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		fireChanges(before, after);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#locGetAll(java.util.Collection)
+	 */
+	@Override
+	@JsonIgnore
+	public Map<String, JsonNode> locGetAll(final Collection<String> keys) {
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				keys.size());
+		try {
+			openFile();
+			read();
+			for (final String key : keys) {
+				final JsonNode value = properties.get(key);
+				if (value != null) {
+					result.put(key, value);
+				}
+			}
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING,
+					"Couldn't handle Statefile: " + e.getMessage(), e);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(final Map<String, ?> values) {
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
+		try {
+			openFile();
+			read();
+			before = before(values.keySet());
+			for (final Entry<String, ?> entry : values.entrySet()) {
+				properties.put(entry.getKey(), toJsonNode(entry.getValue()));
+			}
+			after = after(before);
+			write();
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING,
+					"Couldn't handle Statefile: " + e.getMessage(), e);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		fireChanges(before, after);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#removeAll(java.util.Collection)
+	 */
+	@Override
+	public void removeAll(final Collection<String> keys) {
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
+		try {
+			openFile();
+			read();
+			before = before(keys);
+			for (final String key : keys) {
+				properties.remove(key);
+			}
+			after = after(before);
 			write();
 		} catch (final IllegalStateException e) {
 			LOG.log(Level.WARNING,
@@ -435,6 +546,53 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		fireChanges(before, after);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#update(java.util.Collection,
+	 * com.almende.eve.state.StateUpdate)
+	 */
+	@Override
+	public synchronized boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		boolean result = false;
+		Map<String, JsonNode> before = null;
+		Map<String, JsonNode> after = null;
+		try {
+			openFile();
+			read();
+			final Map<String, JsonNode> current = new HashMap<String, JsonNode>(
+					keys.size());
+			for (final String key : keys) {
+				if (properties.containsKey(key)) {
+					current.put(key, properties.get(key));
+				}
+			}
+			final Map<String, Object> changes = update.apply(current);
+			if (changes != null) {
+				before = before(changes.keySet());
+				for (final Entry<String, Object> entry : changes.entrySet()) {
+					if (entry.getValue() == null) {
+						properties.remove(entry.getKey());
+					} else {
+						properties.put(entry.getKey(), toJsonNode(entry.getValue()));
+					}
+				}
+				after = after(before);
+				write();
+				result = true;
+			}
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING,
+					"Couldn't handle Statefile: " + e.getMessage(), e);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		fireChanges(before, after);
 		return result;
 	}
 	
@@ -461,4 +619,64 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 		return result;
 	}
 	
+	/**
+	 * Copy the old values of the keys about to change, if there are listeners
+	 * to report changes to.
+	 * 
+	 * @param keys
+	 *            the keys about to change
+	 * @return the old values, null for absent keys, or null
+	 */
+	private Map<String, JsonNode> before(final Collection<String> keys) {
+		if (!hasListeners()) {
+			return null;
+		}
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				keys.size());
+		for (final String key : keys) {
+			result.put(key, properties.get(key));
+		}
+		return result;
+	}
+	
+	/**
+	 * Copy the new values of the changed keys, if before() made a copy.
+	 * 
+	 * @param before
+	 *            the old values of the changed keys
+	 * @return the new values, null for absent keys, or null
+	 */
+	private Map<String, JsonNode> after(final Map<String, JsonNode> before) {
+		if (before == null) {
+			return null;
+		}
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				before.size());
+		for (final String key : before.keySet()) {
+			result.put(key, properties.get(key));
+		}
+		return result;
+	}
+	
+	/**
+	 * Report the changes of the touched keys to the listeners.
+	 * 
+	 * @param before
+	 *            the old values of the changed keys
+	 * @param after
+	 *            the new values of the changed keys
+	 */
+	private void fireChanges(final Map<String, JsonNode> before,
+			final Map<String, JsonNode> after) {
+		if (before == null || after == null) {
+			return;
+		}
+		for (final Entry<String, JsonNode> entry : before.entrySet()) {
+			final JsonNode newValue = after.get(entry.getKey());
+			if (entry.getValue() != null || newValue != null) {
+				fireChange(entry.getKey(), entry.getValue(), newValue);
+			}
+		}
+	}
+	
 }
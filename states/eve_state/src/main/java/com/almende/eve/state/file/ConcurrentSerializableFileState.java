@@ -10,27 +10,29 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.StateUpdate;
 import com.almende.eve.state.file.FileStateBuilder.FileStateProvider;
+import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -67,6 +69,10 @@ public class ConcurrentSerializableFileState extends
 	private InputStream						fis			= null;
 	private OutputStream					fos			= null;
 	private static Map<String, Boolean>		locked		= new ConcurrentHashMap<String, Boolean>();
+	private static final FileStateCodec		JAVA		= new JavaSerializationCodec();
+	private static final FileStateCodec		SMILE		= new SmileCodec();
+	private static final int				HEADER		= 4;
+	private final FileStateCodec			codec;
 	private final Map<String, Serializable>	properties	= Collections
 																.synchronizedMap(new HashMap<String, Serializable>());
 	
@@ -87,6 +93,31 @@ public class ConcurrentSerializableFileState extends
 			final ObjectNode params) {
 		super(agentId, service, params);
 		this.filename = filename;
+		this.codec = params != null ? getCodec(FileStateConfig.decorate(
+				params).getCodec()) : JAVA;
+	}
+	
+	/**
+	 * Gets the codec by name or class name.
+	 * 
+	 * @param name
+	 *            the name
+	 * @return the codec
+	 */
+	private static FileStateCodec getCodec(final String name) {
+		if ("java".equalsIgnoreCase(name)) {
+			return JAVA;
+		}
+		if ("smile".equalsIgnoreCase(name)) {
+			return SMILE;
+		}
+		try {
+			return (FileStateCodec) Class.forName(name).newInstance();
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't load codec '" + name
+					+ "', falling back to Java serialization.", e);
+			return JAVA;
+		}
 	}
 	
 	/*
@@ -195,15 +226,32 @@ public class ConcurrentSerializableFileState extends
 		if (channel != null) {
 			channel.position(0);
 		}
-		final ObjectOutput out = new ObjectOutputStream(fos);
-		out.writeObject(properties);
-		out.flush();
+		codec.write(properties, fos);
+		fos.flush();
 		
 		if (channel != null) {
 			channel.truncate(channel.position());
 		}
 	}
 	
+	/**
+	 * Convert a value to a Serializable, JsonNodes are stored as string.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the serializable
+	 */
+	private Serializable toSerializable(final Object value) {
+		if (value instanceof JsonNode) {
+			LOG.warning("Warning, this type of State can't store JsonNodes, only Serializable objects. This JsonNode is stored as string.");
+			return value.toString();
+		} else if (value == null || value instanceof Serializable) {
+			return (Serializable) value;
+		}
+		throw new IllegalArgumentException(
+				"Can't handle input that is not Serializable nor JsonNode.");
+	}
+	
 	/**
 	 * read properties from disk.
 	 * 
@@ -212,7 +260,6 @@ public class ConcurrentSerializableFileState extends
 	 * @throws ClassNotFoundException
 	 *             the class not found exception
 	 */
-	@SuppressWarnings("unchecked")
 	private void read() throws IOException, ClassNotFoundException {
 		try {
 			if (channel != null) {
@@ -220,10 +267,35 @@ public class ConcurrentSerializableFileState extends
 			}
 			
 			properties.clear();
-			final ObjectInput in = new ObjectInputStream(fis);
-			
-			properties.putAll((Map<String, Serializable>) in.readObject());
-			
+			final byte[] header = new byte[HEADER];
+			fis.mark(HEADER);
+			int length = 0;
+			while (length < HEADER) {
+				final int count = fis.read(header, length, HEADER - length);
+				if (count < 0) {
+					break;
+				}
+				length += count;
+			}
+			fis.reset();
+			if (length == 0) {
+				// empty file, new agent?
+				return;
+			}
+			FileStateCodec format = codec;
+			if (!codec.accepts(header, length)) {
+				if (JAVA.accepts(header, length)) {
+					format = JAVA;
+				} else if (SMILE.accepts(header, length)) {
+					format = SMILE;
+				}
+			}
+			properties.putAll(format.read(fis));
+			if (format != codec) {
+				LOG.info("Migrating state file '" + filename
+						+ "' to the configured codec.");
+				write();
+			}
 		} catch (final EOFException eof) {
 			// empty file, new agent?
 		}
@@ -236,9 +308,16 @@ public class ConcurrentSerializableFileState extends
 	 */
 	@Override
 	public synchronized void clear() {
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
 		try {
 			openFile();
+			if (hasListeners()) {
+				read();
+			}
+			before = before();
 			properties.clear();
+			after = after(before);
 			write();
 		} catch (final IllegalStateException e) {
 			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
@@ -246,6 +325,7 @@ public class ConcurrentSerializableFileState extends
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		fireChanges(before, after);
 	}
 	
 	/*
@@ -323,10 +403,14 @@ public class ConcurrentSerializableFileState extends
 	public synchronized Serializable locPut(final String key,
 			final Serializable value) {
 		Serializable result = null;
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
 		try {
 			openFile();
 			read();
+			before = before();
 			result = properties.put(key, value);
+			after = after(before);
 			write();
 		} catch (final IllegalStateException e) {
 			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
@@ -334,6 +418,7 @@ public class ConcurrentSerializableFileState extends
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		fireChanges(before, after);
 		return result;
 	}
 	
@@ -348,14 +433,18 @@ public class ConcurrentSerializableFileState extends
 	public synchronized boolean locPutIfUnchanged(final String key,
 			final Serializable newVal, final Serializable oldVal) {
 		boolean result = false;
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
 		try {
 			openFile();
 			read();
+			before = before();
 			if (!(oldVal == null && properties.containsKey(key) && properties
 					.get(key) != null)
 					|| (properties.get(key) != null && properties.get(key)
 							.equals(oldVal))) {
 				properties.put(key, newVal);
+				after = after(before);
 				write();
 				result = true;
 			}
@@ -368,6 +457,7 @@ public class ConcurrentSerializableFileState extends
 			result = true;
 		}
 		closeFile();
+		fireChanges(before, after);
 		return result;
 	}
 	
@@ -379,10 +469,97 @@ public class ConcurrentSerializableFileState extends
 	@Override
 	public synchronized Object remove(final String key) {
 		Object result = null;
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
 		try {
 			openFile();
 			read();
+			before = before();
 			result = properties.remove(key);
+			after = after(before);
+			write();
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		fireChanges(before, after);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#locGetAll(java.util.Collection)
+	 */
+	@Override
+	@JsonIgnore
+	public synchronized Map<String, Serializable> locGetAll(final Collection<String> keys) {
+		final Map<String, Serializable> result = new HashMap<String, Serializable>(
+				keys.size());
+		try {
+			openFile();
+			read();
+			for (final String key : keys) {
+				final Serializable value = properties.get(key);
+				if (value != null) {
+					result.put(key, value);
+				}
+			}
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public synchronized void putAll(final Map<String, ?> values) {
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
+		try {
+			openFile();
+			read();
+			before = before();
+			for (final Entry<String, ?> entry : values.entrySet()) {
+				properties.put(entry.getKey(), toSerializable(entry.getValue()));
+			}
+			after = after(before);
+			write();
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		fireChanges(before, after);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#removeAll(java.util.Collection)
+	 */
+	@Override
+	public synchronized void removeAll(final Collection<String> keys) {
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
+		try {
+			openFile();
+			read();
+			before = before();
+			for (final String key : keys) {
+				properties.remove(key);
+			}
+			after = after(before);
 			write();
 		} catch (final IllegalStateException e) {
 			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
@@ -390,6 +567,52 @@ public class ConcurrentSerializableFileState extends
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		fireChanges(before, after);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#update(java.util.Collection,
+	 * com.almende.eve.state.StateUpdate)
+	 */
+	@Override
+	public synchronized boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		boolean result = false;
+		Map<String, Serializable> before = null;
+		Map<String, Serializable> after = null;
+		try {
+			openFile();
+			read();
+			before = before();
+			final Map<String, JsonNode> current = new HashMap<String, JsonNode>(
+					keys.size());
+			for (final String key : keys) {
+				if (properties.containsKey(key)) {
+					current.put(key, TypeUtil.inject(properties.get(key), JsonNode.class));
+				}
+			}
+			final Map<String, Object> changes = update.apply(current);
+			if (changes != null) {
+				for (final Entry<String, Object> entry : changes.entrySet()) {
+					if (entry.getValue() == null) {
+						properties.remove(entry.getKey());
+					} else {
+						properties.put(entry.getKey(), toSerializable(entry.getValue()));
+					}
+				}
+				after = after(before);
+				write();
+				result = true;
+			}
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING, "Statefile is missing: " + e.getMessage());
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		fireChanges(before, after);
 		return result;
 	}
 	
@@ -414,4 +637,54 @@ public class ConcurrentSerializableFileState extends
 		return result;
 	}
 	
+	/**
+	 * Copy the properties, if there are listeners to report changes to.
+	 * 
+	 * @return the copy, or null
+	 */
+	private Map<String, Serializable> before() {
+		if (!hasListeners()) {
+			return null;
+		}
+		return new HashMap<String, Serializable>(properties);
+	}
+	
+	/**
+	 * Copy the changed properties, if before() made a copy.
+	 * 
+	 * @param before
+	 *            the properties before the change
+	 * @return the copy, or null
+	 */
+	private Map<String, Serializable> after(final Map<String, Serializable> before) {
+		if (before == null) {
+			return null;
+		}
+		return new HashMap<String, Serializable>(properties);
+	}
+	
+	/**
+	 * Report the differences between both copies to the listeners.
+	 * 
+	 * @param before
+	 *            the properties before the change
+	 * @param after
+	 *            the properties after the change
+	 */
+	private void fireChanges(final Map<String, Serializable> before,
+			final Map<String, Serializable> after) {
+		if (before == null || after == null) {
+			return;
+		}
+		for (final Entry<String, Serializable> entry : before.entrySet()) {
+			fireChange(entry.getKey(), entry.getValue(),
+					after.get(entry.getKey()));
+		}
+		for (final Entry<String, Serializable> entry : after.entrySet()) {
+			if (!before.containsKey(entry.getKey())) {
+				fireChange(entry.getKey(), null, entry.getValue());
+			}
+		}
+	}
+	
 }
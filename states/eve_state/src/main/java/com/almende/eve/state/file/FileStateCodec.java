@@ -0,0 +1,58 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The Interface FileStateCodec, the on-disk format of a
+ * {@link ConcurrentSerializableFileState}. Implementations must have a public
+ * no-argument constructor and must be thread-safe.
+ */
+public interface FileStateCodec {
+
+	/**
+	 * Check if the given file header was written by this codec. Used to
+	 * detect files in another format, which are then migrated.
+	 *
+	 * @param header
+	 *            the first bytes of the file
+	 * @param length
+	 *            the number of valid bytes in header
+	 * @return true, if the file is in this codec's format
+	 */
+	boolean accepts(byte[] header, int length);
+
+	/**
+	 * Write the properties.
+	 *
+	 * @param properties
+	 *            the properties
+	 * @param out
+	 *            the stream to write to, should not be closed
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void write(Map<String, Serializable> properties, OutputStream out)
+			throws IOException;
+
+	/**
+	 * Read the properties.
+	 *
+	 * @param in
+	 *            the stream to read from, should not be closed
+	 * @return the properties
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws ClassNotFoundException
+	 *             the class not found exception
+	 */
+	Map<String, Serializable> read(InputStream in) throws IOException,
+			ClassNotFoundException;
+}
@@ -66,6 +66,32 @@ public class FileStateConfig extends StateConfig {
 		return true;
 	}
 
+	/**
+	 * Sets the codec used by non-json file states: "java" (plain Java
+	 * serialization), "smile" (binary Smile with type tags) or the class name
+	 * of a {@link FileStateCodec} implementation. (Optional, default is
+	 * "java") Existing files in another known format are migrated to this
+	 * codec the first time they are read.
+	 * 
+	 * @param codec
+	 *            the new codec
+	 */
+	public void setCodec(final String codec) {
+		this.put("codec", codec);
+	}
+
+	/**
+	 * Gets the codec.
+	 * 
+	 * @return the codec
+	 */
+	public String getCodec() {
+		if (this.has("codec")) {
+			return this.get("codec").asText();
+		}
+		return "java";
+	}
+
 	/**
 	 * Sets the path. (Required)
 	 * 
@@ -0,0 +1,62 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The Class JavaSerializationCodec, stores the properties map through plain
+ * Java serialization. This is the original format of the
+ * {@link ConcurrentSerializableFileState}.
+ */
+public class JavaSerializationCodec implements FileStateCodec {
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.file.FileStateCodec#accepts(byte[], int)
+	 */
+	@Override
+	public boolean accepts(final byte[] header, final int length) {
+		// ObjectStreamConstants.STREAM_MAGIC
+		return length >= 2 && header[0] == (byte) 0xAC
+				&& header[1] == (byte) 0xED;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.file.FileStateCodec#write(java.util.Map,
+	 * java.io.OutputStream)
+	 */
+	@Override
+	public void write(final Map<String, Serializable> properties,
+			final OutputStream out) throws IOException {
+		final ObjectOutput oo = new ObjectOutputStream(out);
+		oo.writeObject(properties);
+		oo.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.file.FileStateCodec#read(java.io.InputStream)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<String, Serializable> read(final InputStream in)
+			throws IOException, ClassNotFoundException {
+		final ObjectInput oi = new ObjectInputStream(in);
+		return (Map<String, Serializable>) oi.readObject();
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * The Class SmileCodec, stores the properties in the binary Smile format.
+ * Strings, booleans, integers and doubles are stored as plain Smile values.
+ * Other numbers, characters, byte arrays and the common JDK collections and
+ * maps are stored with a short type tag, so they are read back as exactly the
+ * same types. Any other value is stored as an embedded Java serialization
+ * blob, so nothing is lost compared to the {@link JavaSerializationCodec}.
+ */
+public class SmileCodec implements FileStateCodec {
+	private static final SmileFactory	FACTORY	= new SmileFactory();
+	static {
+		FACTORY.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+		FACTORY.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+	}
+	private static final String			TAG		= "t";
+	private static final String			VALUE	= "v";
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.file.FileStateCodec#accepts(byte[], int)
+	 */
+	@Override
+	public boolean accepts(final byte[] header, final int length) {
+		// Smile header: ":)\n"
+		return length >= 3 && header[0] == ':' && header[1] == ')'
+				&& header[2] == '\n';
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.file.FileStateCodec#write(java.util.Map,
+	 * java.io.OutputStream)
+	 */
+	@Override
+	public void write(final Map<String, Serializable> properties,
+			final OutputStream out) throws IOException {
+		final JsonGenerator gen = FACTORY.createGenerator(out);
+		gen.writeStartObject();
+		for (final Entry<String, Serializable> entry : properties.entrySet()) {
+			gen.writeFieldName(entry.getKey());
+			writeValue(gen, entry.getValue());
+		}
+		gen.writeEndObject();
+		gen.close();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.file.FileStateCodec#read(java.io.InputStream)
+	 */
+	@Override
+	public Map<String, Serializable> read(final InputStream in)
+			throws IOException, ClassNotFoundException {
+		final Map<String, Serializable> result = new HashMap<String, Serializable>();
+		final JsonParser parser = FACTORY.createParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Smile state file should contain an object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String key = parser.getCurrentName();
+				parser.nextToken();
+				result.put(key, (Serializable) readValue(parser));
+			}
+		} finally {
+			parser.close();
+		}
+		return result;
+	}
+
+	private static void writeValue(final JsonGenerator gen, final Object value)
+			throws IOException {
+		if (value == null) {
+			gen.writeNull();
+		} else if (value instanceof String) {
+			gen.writeString((String) value);
+		} else if (value instanceof Boolean) {
+			gen.writeBoolean((Boolean) value);
+		} else if (value instanceof Integer) {
+			gen.writeNumber((Integer) value);
+		} else if (value instanceof Double) {
+			gen.writeNumber((Double) value);
+		} else {
+			gen.writeStartObject();
+			writeTagged(gen, value);
+			gen.writeEndObject();
+		}
+	}
+
+	private static void writeTagged(final JsonGenerator gen, final Object value)
+			throws IOException {
+		final Class<?> clazz = value.getClass();
+		if (clazz == Long.class) {
+			gen.writeStringField(TAG, "long");
+			gen.writeNumberField(VALUE, (Long) value);
+		} else if (clazz == Float.class) {
+			gen.writeStringField(TAG, "float");
+			gen.writeNumberField(VALUE, (Float) value);
+		} else if (clazz == Short.class) {
+			gen.writeStringField(TAG, "short");
+			gen.writeNumberField(VALUE, (Short) value);
+		} else if (clazz == Byte.class) {
+			gen.writeStringField(TAG, "byte");
+			gen.writeNumberField(VALUE, (Byte) value);
+		} else if (clazz == Character.class) {
+			gen.writeStringField(TAG, "char");
+			gen.writeStringField(VALUE, value.toString());
+		} else if (clazz == BigInteger.class) {
+			gen.writeStringField(TAG, "bigint");
+			gen.writeFieldName(VALUE);
+			gen.writeNumber((BigInteger) value);
+		} else if (clazz == BigDecimal.class) {
+			gen.writeStringField(TAG, "decimal");
+			gen.writeNumberField(VALUE, (BigDecimal) value);
+		} else if (clazz == byte[].class) {
+			gen.writeStringField(TAG, "bytes");
+			gen.writeBinaryField(VALUE, (byte[]) value);
+		} else if (isPlainCollection(value)) {
+			gen.writeStringField(TAG, clazz.getSimpleName());
+			gen.writeArrayFieldStart(VALUE);
+			for (final Object elem : (Collection<?>) value) {
+				writeValue(gen, elem);
+			}
+			gen.writeEndArray();
+		} else if (isPlainMap(value)) {
+			gen.writeStringField(TAG, clazz.getSimpleName());
+			gen.writeArrayFieldStart(VALUE);
+			for (final Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				writeValue(gen, entry.getKey());
+				writeValue(gen, entry.getValue());
+			}
+			gen.writeEndArray();
+		} else {
+			gen.writeStringField(TAG, "java");
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			final ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(value);
+			oos.close();
+			gen.writeBinaryField(VALUE, bos.toByteArray());
+		}
+	}
+
+	private static boolean isPlainCollection(final Object value) {
+		final Class<?> clazz = value.getClass();
+		if (clazz == TreeSet.class) {
+			return ((SortedSet<?>) value).comparator() == null;
+		}
+		return clazz == ArrayList.class || clazz == LinkedList.class
+				|| clazz == HashSet.class || clazz == LinkedHashSet.class;
+	}
+
+	private static boolean isPlainMap(final Object value) {
+		final Class<?> clazz = value.getClass();
+		if (clazz == TreeMap.class) {
+			return ((SortedMap<?, ?>) value).comparator() == null;
+		}
+		return clazz == HashMap.class || clazz == LinkedHashMap.class;
+	}
+
+	private static Object readValue(final JsonParser parser)
+			throws IOException, ClassNotFoundException {
+		switch (parser.getCurrentToken()) {
+			case VALUE_NULL:
+				return null;
+			case VALUE_STRING:
+				return parser.getText();
+			case VALUE_TRUE:
+				return Boolean.TRUE;
+			case VALUE_FALSE:
+				return Boolean.FALSE;
+			case VALUE_NUMBER_INT:
+				return parser.getIntValue();
+			case VALUE_NUMBER_FLOAT:
+				return parser.getDoubleValue();
+			case START_OBJECT:
+				return readTagged(parser);
+			default:
+				throw new IOException("Unexpected token in Smile state file: "
+						+ parser.getCurrentToken());
+		}
+	}
+
+	private static Object readTagged(final JsonParser parser)
+			throws IOException, ClassNotFoundException {
+		if (parser.nextToken() != JsonToken.FIELD_NAME
+				|| !TAG.equals(parser.getCurrentName())) {
+			throw new IOException("Missing type tag in Smile state file");
+		}
+		final String tag = parser.nextTextValue();
+		if (parser.nextToken() != JsonToken.FIELD_NAME
+				|| !VALUE.equals(parser.getCurrentName())) {
+			throw new IOException("Missing value in Smile state file");
+		}
+		parser.nextToken();
+		final Object result;
+		if ("long".equals(tag)) {
+			result = parser.getLongValue();
+		} else if ("float".equals(tag)) {
+			result = parser.getFloatValue();
+		} else if ("short".equals(tag)) {
+			result = parser.getShortValue();
+		} else if ("byte".equals(tag)) {
+			result = parser.getByteValue();
+		} else if ("char".equals(tag)) {
+			result = parser.getText().charAt(0);
+		} else if ("bigint".equals(tag)) {
+			result = parser.getBigIntegerValue();
+		} else if ("decimal".equals(tag)) {
+			result = parser.getDecimalValue();
+		} else if ("bytes".equals(tag)) {
+			result = parser.getBinaryValue();
+		} else if ("java".equals(tag)) {
+			final ObjectInputStream ois = new ObjectInputStream(
+					new ByteArrayInputStream(parser.getBinaryValue()));
+			try {
+				result = ois.readObject();
+			} finally {
+				ois.close();
+			}
+		} else {
+			result = readContainer(parser, tag);
+		}
+		if (parser.nextToken() != JsonToken.END_OBJECT) {
+			throw new IOException("Malformed tagged value in Smile state file");
+		}
+		return result;
+	}
+
+	private static Object readContainer(final JsonParser parser,
+			final String tag) throws IOException, ClassNotFoundException {
+		Collection<Object> collection = null;
+		Map<Object, Object> map = null;
+		if ("ArrayList".equals(tag)) {
+			collection = new ArrayList<Object>();
+		} else if ("LinkedList".equals(tag)) {
+			collection = new LinkedList<Object>();
+		} else if ("HashSet".equals(tag)) {
+			collection = new HashSet<Object>();
+		} else if ("LinkedHashSet".equals(tag)) {
+			collection = new LinkedHashSet<Object>();
+		} else if ("TreeSet".equals(tag)) {
+			collection = new TreeSet<Object>();
+		} else if ("HashMap".equals(tag)) {
+			map = new HashMap<Object, Object>();
+		} else if ("LinkedHashMap".equals(tag)) {
+			map = new LinkedHashMap<Object, Object>();
+		} else if ("TreeMap".equals(tag)) {
+			map = new TreeMap<Object, Object>();
+		} else {
+			throw new IOException("Unknown type tag in Smile state file: "
+					+ tag);
+		}
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw new IOException("Expected array for: " + tag);
+		}
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			final Object elem = readValue(parser);
+			if (collection != null) {
+				collection.add(elem);
+			} else {
+				parser.nextToken();
+				map.put(elem, readValue(parser));
+			}
+		}
+		return collection != null ? collection : map;
+	}
+}
@@ -5,9 +5,15 @@
 package com.almende.eve.state.memory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +45,11 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 																				.getName());
 	private final ConcurrentHashMap<String, Serializable>	properties	= new ConcurrentHashMap<String, Serializable>(
 																				10);
+	private volatile MemoryStateSnapshot					snapshot	= null;
+	private final Set<String>								dirty		= Collections
+																				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicBoolean								full		= new AtomicBoolean(
+																				false);
 
 	/**
 	 * Instantiates a new memory state.
@@ -66,7 +77,18 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	 */
 	@Override
 	public void clear() {
+		final Map<String, Serializable> old = hasListeners() ? new HashMap<String, Serializable>(
+				properties) : null;
 		properties.clear();
+		if (old != null) {
+			for (final Map.Entry<String, Serializable> entry : old.entrySet()) {
+				fireChange(entry.getKey(), entry.getValue(), null);
+			}
+		}
+		if (snapshot != null) {
+			full.set(true);
+			dirty.clear();
+		}
 	}
 
 	/*
@@ -118,7 +140,10 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	 */
 	@Override
 	public Serializable locPut(final String key, final Serializable value) {
-		return properties.put(key, value);
+		final Serializable result = properties.put(key, value);
+		changed(key);
+		fireChange(key, result, value);
+		return result;
 	}
 
 	/*
@@ -130,15 +155,21 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	@Override
 	public boolean locPutIfUnchanged(final String key,
 			final Serializable newVal, final Serializable oldVal) {
+		final boolean result;
 		if (newVal == null && oldVal == null) {
 			return !properties.containsKey(key);
 		} else if (newVal == null) {
-			return properties.remove(key, oldVal);
+			result = properties.remove(key, oldVal);
 		} else if (oldVal == null) {
-			return properties.putIfAbsent(key, newVal) == null;
+			result = properties.putIfAbsent(key, newVal) == null;
 		} else {
-			return properties.replace(key, oldVal, newVal);
+			result = properties.replace(key, oldVal, newVal);
+		}
+		if (result) {
+			changed(key);
+			fireChange(key, oldVal, newVal);
 		}
+		return result;
 	}
 
 	/*
@@ -147,7 +178,12 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	 */
 	@Override
 	public Serializable remove(final String key) {
-		return properties.remove(key);
+		final Serializable result = properties.remove(key);
+		changed(key);
+		if (result != null) {
+			fireChange(key, result, null);
+		}
+		return result;
 	}
 
 	/*
@@ -159,4 +195,69 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 		return properties.size();
 	}
 
+	/**
+	 * Attach this state to the given snapshot.
+	 * 
+	 * @param snapshot
+	 *            the snapshot
+	 * @param all
+	 *            whether the next snapshot record should contain all
+	 *            properties, instead of only the changed ones
+	 */
+	void setSnapshot(final MemoryStateSnapshot snapshot, final boolean all) {
+		full.set(all);
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Load properties from a snapshot, without marking them as changed.
+	 * 
+	 * @param values
+	 *            the values
+	 */
+	void load(final Map<String, Serializable> values) {
+		properties.putAll(values);
+	}
+
+	private void changed(final String key) {
+		if (snapshot != null) {
+			dirty.add(key);
+		}
+	}
+
+	/**
+	 * Take the changes since the previous call as a snapshot record.
+	 * 
+	 * @param everything
+	 *            return all properties, even if unchanged
+	 * @return the snapshot record, or null if nothing changed
+	 */
+	Map<String, Serializable> drainSnapshot(final boolean everything) {
+		final ArrayList<String> removed = new ArrayList<String>();
+		final HashMap<String, Serializable> values;
+		final boolean all = full.getAndSet(false) || everything;
+		if (all) {
+			dirty.clear();
+			values = new HashMap<String, Serializable>(properties);
+		} else {
+			if (dirty.isEmpty()) {
+				return null;
+			}
+			values = new HashMap<String, Serializable>(dirty.size());
+			final Iterator<String> iter = dirty.iterator();
+			while (iter.hasNext()) {
+				final String key = iter.next();
+				// Remove before reading, so a concurrent change marks it again
+				iter.remove();
+				final Serializable value = properties.get(key);
+				if (value == null) {
+					removed.add(key);
+				} else {
+					values.put(key, value);
+				}
+			}
+		}
+		return MemoryStateSnapshot.record(getId(), all, values, removed);
+	}
+
 }
@@ -4,7 +4,9 @@
  */
 package com.almende.eve.state.memory;
 
+import java.io.Serializable;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
@@ -22,6 +24,7 @@ public class MemoryStateBuilder extends AbstractCapabilityBuilder<MemoryState>
 																	.getName());
 	// MemoryStates are currently a Singleton implementation:
 	private static final Map<String, MemoryState>	STATES	= new ConcurrentHashMap<String, MemoryState>(10);
+	private static volatile MemoryStateSnapshot		snapshot	= null;
 	
 	/*
 	 * (non-Javadoc)
@@ -39,6 +42,9 @@ public class MemoryStateBuilder extends AbstractCapabilityBuilder<MemoryState>
 			LOG.warning("Parameter 'id' is required for MemoryState.");
 			return null;
 		}
+		if (snapshot == null && config.getSnapshotPath() != null) {
+			initSnapshot(config);
+		}
 		
 		// Quick return for existing states
 		final MemoryState state = STATES.get(id);
@@ -52,6 +58,11 @@ public class MemoryStateBuilder extends AbstractCapabilityBuilder<MemoryState>
 					final MemoryState result = new MemoryState(id, this,
 							getParams());
 					if (result != null) {
+						if (snapshot != null) {
+							// Written in full, so properties of a deleted
+							// predecessor don't come back on load.
+							result.setSnapshot(snapshot, true);
+						}
 						STATES.put(id, result);
 					}
 				}
@@ -72,6 +83,9 @@ public class MemoryStateBuilder extends AbstractCapabilityBuilder<MemoryState>
 	@Override
 	public void delete(final State instance) {
 		STATES.remove(instance.getId());
+		if (snapshot != null) {
+			snapshot.deleted(instance.getId());
+		}
 	}
 	
 	/*
@@ -83,8 +97,49 @@ public class MemoryStateBuilder extends AbstractCapabilityBuilder<MemoryState>
         @Override
         public void delete(final State instance, final Boolean instanceOnly) {
                 STATES.remove(instance.getId());
+                if (snapshot != null && !instanceOnly) {
+                        snapshot.deleted(instance.getId());
+                }
         }
 
+	/**
+	 * Restore all states from the configured snapshot file and start
+	 * snapshotting. Only one snapshot file is used per JVM, as MemoryStates
+	 * are shared.
+	 * 
+	 * @param config
+	 *            the config
+	 */
+	private void initSnapshot(final MemoryStateConfig config) {
+		synchronized (STATES) {
+			if (snapshot != null) {
+				return;
+			}
+			final MemoryStateSnapshot result = new MemoryStateSnapshot(config,
+					STATES);
+			// States created before snapshotting started are written in full
+			for (final MemoryState state : STATES.values()) {
+				state.setSnapshot(result, true);
+			}
+			for (final Entry<String, Map<String, Serializable>> entry : result
+					.load().entrySet()) {
+				final String id = entry.getKey();
+				MemoryState state = STATES.get(id);
+				if (state == null) {
+					final MemoryStateConfig params = MemoryStateConfig
+							.decorate(config);
+					params.setId(id);
+					state = new MemoryState(id, this, params);
+					state.setSnapshot(result, false);
+					STATES.put(id, state);
+				}
+				state.load(entry.getValue());
+			}
+			snapshot = result;
+			result.start(config.getSnapshotInterval());
+		}
+	}
+
 	@Override
 	public Set<String> getStateIds() {
 		return STATES.keySet();
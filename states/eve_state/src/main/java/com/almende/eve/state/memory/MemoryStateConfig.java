@@ -43,4 +43,74 @@ public class MemoryStateConfig extends StateConfig {
 		return res;
 	}
 
+	/**
+	 * Sets the snapshot file. If set, all MemoryStates are periodically
+	 * written to this file and restored from it on startup. (Optional, by
+	 * default MemoryStates are not persisted)
+	 * 
+	 * @param path
+	 *            the new snapshot path
+	 */
+	public void setSnapshotPath(final String path) {
+		this.put("snapshotPath", path);
+	}
+
+	/**
+	 * Gets the snapshot path.
+	 * 
+	 * @return the snapshot path
+	 */
+	public String getSnapshotPath() {
+		if (this.has("snapshotPath")) {
+			return this.get("snapshotPath").asText();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the snapshot interval in milliseconds, which bounds the amount of
+	 * changes lost on a crash. (Optional, default is 1000)
+	 * 
+	 * @param interval
+	 *            the new snapshot interval
+	 */
+	public void setSnapshotInterval(final long interval) {
+		this.put("snapshotInterval", interval);
+	}
+
+	/**
+	 * Gets the snapshot interval.
+	 * 
+	 * @return the snapshot interval
+	 */
+	public long getSnapshotInterval() {
+		if (this.has("snapshotInterval")) {
+			return this.get("snapshotInterval").asLong();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the snapshot codec: "smile" or "java". (Optional, default is
+	 * "smile")
+	 * 
+	 * @param codec
+	 *            the new snapshot codec
+	 */
+	public void setSnapshotCodec(final String codec) {
+		this.put("snapshotCodec", codec);
+	}
+
+	/**
+	 * Gets the snapshot codec.
+	 * 
+	 * @return the snapshot codec
+	 */
+	public String getSnapshotCodec() {
+		if (this.has("snapshotCodec")) {
+			return this.get("snapshotCodec").asText();
+		}
+		return "smile";
+	}
+
 }
@@ -0,0 +1,361 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.state.file.FileStateCodec;
+import com.almende.eve.state.file.JavaSerializationCodec;
+import com.almende.eve.state.file.SmileCodec;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * Snapshot file of all MemoryStates. Changed keys are appended to the file
+ * as one record per agent at a fixed interval; once the appended records
+ * outgrow the last full snapshot, a new full snapshot is written next to it
+ * and atomically moved in place. Each record is length-prefixed and decoded
+ * on its own, so a torn record at the end of the file (crash while writing)
+ * is simply dropped and loading can decode records in parallel.
+ */
+final class MemoryStateSnapshot {
+	private static final Logger			LOG			= Logger.getLogger(MemoryStateSnapshot.class
+															.getName());
+	private static final String			ID			= "id";
+	private static final String			FULL		= "full";
+	private static final String			DELETED		= "deleted";
+	private static final String			VALUES		= "values";
+	private static final String			REMOVED		= "removed";
+	private static final long			MIN_COMPACT	= 1024 * 1024;
+	private final File					file;
+	private final FileStateCodec		codec;
+	private final Map<String, MemoryState>	states;
+	private final Set<String>			deleted		= Collections
+															.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private DataOutputStream			out			= null;
+	private FileOutputStream			fos			= null;
+	private long						baseSize	= 0;
+	private long						appended	= 0;
+
+	/**
+	 * Instantiates a new memory state snapshot.
+	 *
+	 * @param config
+	 *            the config
+	 * @param states
+	 *            the live states to snapshot
+	 */
+	MemoryStateSnapshot(final MemoryStateConfig config,
+			final Map<String, MemoryState> states) {
+		this.file = new File(config.getSnapshotPath());
+		this.codec = "java".equalsIgnoreCase(config.getSnapshotCodec()) ? new JavaSerializationCodec()
+				: new SmileCodec();
+		this.states = states;
+	}
+
+	/**
+	 * Load the snapshot file, decoding records in parallel.
+	 *
+	 * @return the properties per agent id
+	 */
+	Map<String, Map<String, Serializable>> load() {
+		final Map<String, Map<String, Serializable>> result = new LinkedHashMap<String, Map<String, Serializable>>();
+		if (!file.exists()) {
+			return result;
+		}
+		final long start = System.currentTimeMillis();
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			while (true) {
+				final int length = in.readInt();
+				if (length < 0) {
+					throw new EOFException();
+				}
+				final byte[] frame = new byte[length];
+				in.readFully(frame);
+				frames.add(frame);
+				valid += 4 + length;
+			}
+		} catch (final EOFException e) {
+			// End of file, or a torn record which is dropped.
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't read snapshot: " + file, e);
+		}
+		if (valid < file.length()) {
+			LOG.warning("Dropping incomplete record at the end of snapshot "
+					+ file);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(valid);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't truncate snapshot: " + file, e);
+			}
+		}
+
+		for (final Map<String, Serializable> record : decode(frames)) {
+			apply(result, record);
+		}
+		baseSize = valid;
+		LOG.info("Loaded " + result.size() + " states (" + frames.size()
+				+ " records) from snapshot " + file + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return result;
+	}
+
+	/**
+	 * Start writing changes every interval milliseconds.
+	 *
+	 * @param interval
+	 *            the interval
+	 */
+	void start(final long interval) {
+		ThreadPool.getScheduledPool().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Record the removal of an agent's state.
+	 *
+	 * @param id
+	 *            the id
+	 */
+	void deleted(final String id) {
+		deleted.add(id);
+	}
+
+	/**
+	 * Write all changes since the last flush, compacting the file when it
+	 * has grown too large.
+	 */
+	synchronized void flush() {
+		try {
+			if (appended > MIN_COMPACT && appended > baseSize) {
+				compact();
+				return;
+			}
+			if (out == null) {
+				fos = new FileOutputStream(file, true);
+				out = new DataOutputStream(new BufferedOutputStream(fos));
+			}
+			boolean written = false;
+			for (final String id : deleted) {
+				deleted.remove(id);
+				final Map<String, Serializable> record = new HashMap<String, Serializable>(
+						2);
+				record.put(ID, id);
+				record.put(DELETED, Boolean.TRUE);
+				append(record);
+				written = true;
+				final MemoryState recreated = states.get(id);
+				if (recreated != null) {
+					// Recreated in the meantime, its earlier records are gone
+					// with the tombstone: write it in full after it.
+					recreated.setSnapshot(this, true);
+				}
+			}
+			for (final MemoryState state : states.values()) {
+				final Map<String, Serializable> record = state
+						.drainSnapshot(false);
+				if (record != null) {
+					append(record);
+					written = true;
+				}
+			}
+			if (written) {
+				out.flush();
+				fos.getChannel().force(false);
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't write snapshot: " + file, e);
+		}
+	}
+
+	private void compact() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+			fos = null;
+		}
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream tmpFos = new FileOutputStream(tmp);
+		final DataOutputStream tmpOut = new DataOutputStream(
+				new BufferedOutputStream(tmpFos));
+		long size = 0;
+		try {
+			deleted.clear();
+			for (final MemoryState state : states.values()) {
+				size += write(tmpOut, state.drainSnapshot(true));
+			}
+			tmpOut.flush();
+			tmpFos.getChannel().force(false);
+		} finally {
+			tmpOut.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		baseSize = size;
+		appended = 0;
+	}
+
+	private void append(final Map<String, Serializable> record)
+			throws IOException {
+		appended += write(out, record);
+	}
+
+	private long write(final DataOutputStream target,
+			final Map<String, Serializable> record) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		codec.write(record, bos);
+		target.writeInt(bos.size());
+		bos.writeTo(target);
+		return 4 + bos.size();
+	}
+
+	private List<Map<String, Serializable>> decode(final List<byte[]> frames) {
+		if (frames.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final int parts = Math.max(1,
+				Math.min(ThreadPool.getNofCores(), frames.size() / 64));
+		final int chunk = (frames.size() + parts - 1) / parts;
+		final List<FutureTask<List<Map<String, Serializable>>>> tasks = new ArrayList<FutureTask<List<Map<String, Serializable>>>>(
+				parts);
+		for (int i = 0; i < frames.size(); i += chunk) {
+			final List<byte[]> sublist = frames.subList(i,
+					Math.min(frames.size(), i + chunk));
+			final FutureTask<List<Map<String, Serializable>>> task = new FutureTask<List<Map<String, Serializable>>>(
+					new Callable<List<Map<String, Serializable>>>() {
+						@Override
+						public List<Map<String, Serializable>> call()
+								throws Exception {
+							final List<Map<String, Serializable>> result = new ArrayList<Map<String, Serializable>>(
+									sublist.size());
+							for (final byte[] frame : sublist) {
+								result.add(codec.read(new ByteArrayInputStream(
+										frame)));
+							}
+							return result;
+						}
+					});
+			tasks.add(task);
+			if (i + chunk < frames.size()) {
+				ThreadPool.getPool().execute(task);
+			} else {
+				// Decode the last chunk on this thread.
+				task.run();
+			}
+		}
+		final List<Map<String, Serializable>> result = new ArrayList<Map<String, Serializable>>(
+				frames.size());
+		for (final FutureTask<List<Map<String, Serializable>>> task : tasks) {
+			try {
+				result.addAll(task.get());
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (final ExecutionException e) {
+				LOG.log(Level.WARNING, "Couldn't decode snapshot records, "
+						+ "ignoring the remainder of " + file, e.getCause());
+				break;
+			}
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void apply(
+			final Map<String, Map<String, Serializable>> result,
+			final Map<String, Serializable> record) {
+		final String id = (String) record.get(ID);
+		if (Boolean.TRUE.equals(record.get(DELETED))) {
+			result.remove(id);
+			return;
+		}
+		Map<String, Serializable> properties = result.get(id);
+		if (properties == null || Boolean.TRUE.equals(record.get(FULL))) {
+			properties = new HashMap<String, Serializable>();
+			result.put(id, properties);
+		}
+		final Map<String, Serializable> values = (Map<String, Serializable>) record
+				.get(VALUES);
+		if (values != null) {
+			properties.putAll(values);
+		}
+		final Collection<String> removed = (Collection<String>) record
+				.get(REMOVED);
+		if (removed != null) {
+			for (final String key : removed) {
+				properties.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Build a snapshot record.
+	 *
+	 * @param id
+	 *            the agent id
+	 * @param full
+	 *            whether values contains all properties
+	 * @param values
+	 *            the (changed) values
+	 * @param removed
+	 *            the removed keys
+	 * @return the record
+	 */
+	static Map<String, Serializable> record(final String id,
+			final boolean full, final HashMap<String, Serializable> values,
+			final ArrayList<String> removed) {
+		final Map<String, Serializable> record = new HashMap<String, Serializable>(
+				4);
+		record.put(ID, id);
+		record.put(FULL, full);
+		record.put(VALUES, values);
+		if (!removed.isEmpty()) {
+			record.put(REMOVED, removed);
+		}
+		return record;
+	}
+}
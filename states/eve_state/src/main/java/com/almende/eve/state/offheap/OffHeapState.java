@@ -0,0 +1,381 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+
+/**
+ * A state for an Eve Agent, which stores the data in memory, but outside of
+ * the Java heap. Values are stored Smile encoded in a shared
+ * {@link OffHeapStore} and only decoded on get. The state itself only keeps
+ * an open addressing table with the addresses of its records, so the heap
+ * use and GC load per agent are small, which makes it suitable for (very)
+ * large numbers of agents. Like the MemoryState, the data is gone after a
+ * restart of the application.
+ */
+public class OffHeapState extends AbstractState<JsonNode> implements State {
+	private static final Logger			LOG		= Logger.getLogger(OffHeapState.class
+														.getName());
+	private static final Charset		UTF8	= Charset.forName("UTF-8");
+	private static final long[]			EMPTY	= new long[0];
+	private static final ObjectMapper	SMILE;
+	static {
+		final SmileFactory factory = new SmileFactory();
+		// Every value is encoded separately, don't waste 4 bytes on each.
+		factory.configure(SmileGenerator.Feature.WRITE_HEADER, false);
+		factory.configure(SmileParser.Feature.REQUIRE_HEADER, false);
+		SMILE = new ObjectMapper(factory);
+	}
+	private final OffHeapStore			store;
+	// Linear probing table of record addresses, 0 is empty.
+	private long[]						table	= EMPTY;
+	private int							size	= 0;
+
+	/**
+	 * Instantiates a new off heap state.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param store
+	 *            the store
+	 * @param service
+	 *            the service
+	 * @param params
+	 *            the params
+	 */
+	OffHeapState(final String agentId, final OffHeapStore store,
+			final StateService service, final ObjectNode params) {
+		super(agentId, service, params);
+		this.store = store;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#get(java.lang.String)
+	 */
+	@Override
+	public JsonNode get(final String key) {
+		final byte[] value;
+		synchronized (this) {
+			final int slot = find(bytes(key), hash(key));
+			if (slot < 0) {
+				return null;
+			}
+			value = store.value(table[slot]);
+		}
+		return decode(value);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#locPut(java.lang.String,
+	 * com.fasterxml.jackson.databind.JsonNode)
+	 */
+	@Override
+	public JsonNode locPut(final String key, JsonNode value) {
+		if (value == null) {
+			value = NullNode.getInstance();
+		}
+		final byte[] encoded = encode(value);
+		if (encoded == null) {
+			return value;
+		}
+		final byte[] old;
+		synchronized (this) {
+			old = store(key, encoded);
+		}
+		if (hasListeners()) {
+			fireChange(key, decode(old), value);
+		}
+		return value;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.state.AbstractState#locPutIfUnchanged(java.lang.String,
+	 * com.fasterxml.jackson.databind.JsonNode,
+	 * com.fasterxml.jackson.databind.JsonNode)
+	 */
+	@Override
+	public boolean locPutIfUnchanged(final String key, final JsonNode newVal,
+			JsonNode oldVal) {
+		final JsonNode value = newVal == null ? NullNode.getInstance() : newVal;
+		final byte[] encoded = encode(value);
+		if (encoded == null) {
+			return false;
+		}
+		if (oldVal == null) {
+			oldVal = NullNode.getInstance();
+		}
+		final JsonNode cur;
+		synchronized (this) {
+			final int slot = find(bytes(key), hash(key));
+			final JsonNode found = slot < 0 ? null : decode(store
+					.value(table[slot]));
+			cur = found == null ? NullNode.getInstance() : found;
+			// Poor mans equality as some Numbers are compared incorrectly:
+			// e.g. IntNode versus LongNode
+			if (!oldVal.equals(cur) && !oldVal.toString().equals(cur.toString())) {
+				return false;
+			}
+			store(key, encoded);
+		}
+		fireChange(key, cur, value);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#remove(java.lang.String)
+	 */
+	@Override
+	public Object remove(final String key) {
+		final byte[] old;
+		synchronized (this) {
+			final int slot = find(bytes(key), hash(key));
+			if (slot < 0) {
+				return null;
+			}
+			final long address = table[slot];
+			old = store.value(address);
+			removeSlot(slot);
+			store.free(address);
+		}
+		final JsonNode result = decode(old);
+		fireChange(key, result, null);
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#containsKey(java.lang.String)
+	 */
+	@Override
+	public synchronized boolean containsKey(final String key) {
+		return find(bytes(key), hash(key)) >= 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#keySet()
+	 */
+	@Override
+	public synchronized Set<String> keySet() {
+		final Set<String> result = new HashSet<String>(size);
+		for (final long address : table) {
+			if (address != 0) {
+				result.add(new String(store.key(address), UTF8));
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#clear()
+	 */
+	@Override
+	public void clear() {
+		final List<String> keys = new ArrayList<String>();
+		final List<byte[]> values = new ArrayList<byte[]>();
+		synchronized (this) {
+			if (hasListeners()) {
+				for (final long address : table) {
+					if (address != 0) {
+						keys.add(new String(store.key(address), UTF8));
+						values.add(store.value(address));
+					}
+				}
+			}
+			free();
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			fireChange(keys.get(i), decode(values.get(i)), null);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.State#size()
+	 */
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the memory statistics of the store shared by all OffHeapStates,
+	 * and the number of records of this state.
+	 *
+	 * @return the memory stats
+	 */
+	public ObjectNode getMemoryStats() {
+		final ObjectNode result = store.getStats();
+		result.put("stateRecords", size());
+		return result;
+	}
+
+	/**
+	 * Free all records of this state at once, without notifying listeners.
+	 */
+	synchronized void free() {
+		for (final long address : table) {
+			if (address != 0) {
+				store.free(address);
+			}
+		}
+		table = EMPTY;
+		size = 0;
+	}
+
+	/**
+	 * Store the encoded value, replacing the current record if any.
+	 *
+	 * @param key
+	 *            the key
+	 * @param encoded
+	 *            the encoded value
+	 * @return the encoded previous value, or null
+	 */
+	private byte[] store(final String key, final byte[] encoded) {
+		final byte[] keyBytes = bytes(key);
+		final int hash = hash(key);
+		final long address = store.write(hash, keyBytes, encoded);
+		final int slot = find(keyBytes, hash);
+		if (slot >= 0) {
+			final long old = table[slot];
+			table[slot] = address;
+			final byte[] result = hasListeners() ? store.value(old) : null;
+			store.free(old);
+			return result;
+		}
+		if ((size + 1) * 4 > table.length * 3) {
+			resize(Math.max(4, table.length * 2));
+		}
+		table[-find(keyBytes, hash) - 1] = address;
+		size++;
+		return null;
+	}
+
+	/**
+	 * Find the slot of the given key.
+	 *
+	 * @param key
+	 *            the key bytes
+	 * @param hash
+	 *            the key hash
+	 * @return the slot, or (-(empty slot) - 1) if not found
+	 */
+	private int find(final byte[] key, final int hash) {
+		if (table.length == 0) {
+			return -1;
+		}
+		final int mask = table.length - 1;
+		int slot = hash & mask;
+		while (true) {
+			final long address = table[slot];
+			if (address == 0) {
+				return -slot - 1;
+			}
+			if (store.hash(address) == hash && store.keyEquals(address, key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Remove the given slot, shifting back the entries after it, so no
+	 * tombstones are needed.
+	 *
+	 * @param slot
+	 *            the slot
+	 */
+	private void removeSlot(final int slot) {
+		final int mask = table.length - 1;
+		int hole = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			final long address = table[next];
+			if (address == 0) {
+				break;
+			}
+			final int home = store.hash(address) & mask;
+			// Move the entry if the hole lies between its home and its slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = address;
+				hole = next;
+			}
+		}
+		table[hole] = 0;
+		size--;
+	}
+
+	private void resize(final int capacity) {
+		final long[] old = table;
+		table = new long[capacity];
+		final int mask = capacity - 1;
+		for (final long address : old) {
+			if (address != 0) {
+				int slot = store.hash(address) & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = address;
+			}
+		}
+	}
+
+	private static int hash(final String key) {
+		final int hash = key.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	private static byte[] bytes(final String key) {
+		return key.getBytes(UTF8);
+	}
+
+	private static byte[] encode(final JsonNode value) {
+		try {
+			return SMILE.writeValueAsBytes(value);
+		} catch (final JsonProcessingException e) {
+			LOG.log(Level.WARNING, "Couldn't encode value", e);
+			return null;
+		}
+	}
+
+	private static JsonNode decode(final byte[] value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return SMILE.readTree(value);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't decode value", e);
+			return null;
+		}
+	}
+}
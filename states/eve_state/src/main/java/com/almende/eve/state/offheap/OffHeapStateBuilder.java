@@ -0,0 +1,94 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import com.almende.eve.capabilities.AbstractCapabilityBuilder;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateService;
+
+/**
+ * A service for managing OffHeapState objects. Like MemoryStates,
+ * OffHeapStates are shared within the JVM, and all of them store their
+ * records in a single {@link OffHeapStore}.
+ */
+public class OffHeapStateBuilder extends
+		AbstractCapabilityBuilder<OffHeapState> implements StateService {
+	private static final Logger						LOG		= Logger.getLogger(OffHeapStateBuilder.class
+																	.getName());
+	private static final Map<String, OffHeapState>	STATES	= new ConcurrentHashMap<String, OffHeapState>(
+																	10);
+	private static volatile OffHeapStore			store	= null;
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.capabilities.AbstractCapabilityBuilder#build()
+	 */
+	@Override
+	public OffHeapState build() {
+		final OffHeapStateConfig config = OffHeapStateConfig
+				.decorate(getParams());
+		final String id = config.getId();
+		if (id == null) {
+			LOG.warning("Parameter 'id' is required for OffHeapState.");
+			return null;
+		}
+
+		// Quick return for existing states
+		final OffHeapState state = STATES.get(id);
+		if (state != null) {
+			return state;
+		}
+		synchronized (STATES) {
+			if (store == null) {
+				store = new OffHeapStore(config);
+			}
+			OffHeapState result = STATES.get(id);
+			if (result == null) {
+				result = new OffHeapState(id, store, this, getParams());
+				STATES.put(id, result);
+			}
+			return result;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.state.StateService#delete(com.almende.eve.state.State)
+	 */
+	@Override
+	public void delete(final State instance) {
+		delete(instance, false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.state.StateService#delete(com.almende.eve.state.State,
+	 * java.lang.Boolean)
+	 */
+	@Override
+	public void delete(final State instance, final Boolean instanceOnly) {
+		final OffHeapState state = STATES.remove(instance.getId());
+		if (state != null) {
+			// Nothing refers to the records anymore, free them in bulk.
+			state.free();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.StateService#getStateIds()
+	 */
+	@Override
+	public Set<String> getStateIds() {
+		return STATES.keySet();
+	}
+}
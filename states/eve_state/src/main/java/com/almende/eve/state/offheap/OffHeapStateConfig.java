@@ -0,0 +1,96 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import com.almende.eve.state.StateConfig;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class OffHeapStateConfig.
+ */
+public class OffHeapStateConfig extends StateConfig {
+	private static final String	BUILDER	= OffHeapStateBuilder.class.getName();
+
+	/**
+	 * Instantiates a new off heap state config.
+	 */
+	protected OffHeapStateConfig() {
+		super();
+	}
+
+	/**
+	 * Instantiates a new off heap state config.
+	 *
+	 * @return the off heap state config
+	 */
+	public static OffHeapStateConfig create() {
+		final OffHeapStateConfig res = new OffHeapStateConfig();
+		res.setBuilder(BUILDER);
+		return res;
+	}
+
+	/**
+	 * Clone the given ObjectNode to this Config.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the off heap state config
+	 */
+	public static OffHeapStateConfig decorate(final ObjectNode node) {
+		final OffHeapStateConfig res = new OffHeapStateConfig();
+		res.extend(node);
+		return res;
+	}
+
+	/**
+	 * Sets the size in bytes of the arenas the values are allocated from.
+	 * Values that don't fit in an arena get an arena of their own. Only the
+	 * first state that is built determines the arena size, as all
+	 * OffHeapStates share one store. (Optional, default is 16MiB)
+	 *
+	 * @param arenaSize
+	 *            the new arena size
+	 */
+	public void setArenaSize(final int arenaSize) {
+		this.put("arenaSize", arenaSize);
+	}
+
+	/**
+	 * Gets the arena size.
+	 *
+	 * @return the arena size
+	 */
+	public int getArenaSize() {
+		if (this.has("arenaSize")) {
+			return this.get("arenaSize").asInt();
+		}
+		return 16 * 1024 * 1024;
+	}
+
+	/**
+	 * Sets whether the arenas are allocated outside of the Java heap (direct
+	 * buffers), or as large byte arrays on the heap. The latter still
+	 * removes most objects from the heap, for JVMs with limited direct
+	 * memory. (Optional, default is true)
+	 *
+	 * @param direct
+	 *            the new direct
+	 */
+	public void setDirect(final boolean direct) {
+		this.put("direct", direct);
+	}
+
+	/**
+	 * Checks if the arenas are direct buffers.
+	 *
+	 * @return true, if direct
+	 */
+	public boolean isDirect() {
+		if (this.has("direct")) {
+			return this.get("direct").asBoolean();
+		}
+		return true;
+	}
+}
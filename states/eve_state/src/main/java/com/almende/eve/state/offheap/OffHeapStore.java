@@ -0,0 +1,299 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Storage of the records of all OffHeapStates. Records are allocated from
+ * large arenas (direct buffers by default) in power-of-two size classes, and
+ * freed blocks are kept on a free list per size class for reuse. A record
+ * that doesn't fit in an arena gets an arena of its own, which is released
+ * again when the record is freed.
+ *
+ * Records are addressed by a long: the arena number in the high int and the
+ * offset within the arena in the low int, address 0 is never used. A record
+ * is laid out as: size class (byte), key hash (int), key length (int), value
+ * length (int), key bytes, value bytes.
+ *
+ * Allocating and freeing is synchronized, reading and writing the contents
+ * of a record is not: the caller owns the record from {@link #write} until
+ * {@link #free}.
+ */
+final class OffHeapStore {
+	private static final int	HEADER		= 13;
+	private static final int	MIN_SHIFT	= 5;
+	private static final byte	LARGE		= -1;
+	private final int			arenaSize;
+	private final boolean		direct;
+	private final LongStack[]	free;
+	private final LongStack		released	= new LongStack();
+	private volatile ByteBuffer[]	arenas		= new ByteBuffer[4];
+	private int					nofArenas	= 0;
+	private int					current		= -1;
+	private int					position	= 0;
+	private long				reserved	= 0;
+	private long				used		= 0;
+	private long				records		= 0;
+
+	/**
+	 * Instantiates a new off heap store.
+	 *
+	 * @param config
+	 *            the config
+	 */
+	OffHeapStore(final OffHeapStateConfig config) {
+		// Size classes are powers of two, so should the arenas be.
+		this.arenaSize = Integer.highestOneBit(Math.max(1 << MIN_SHIFT,
+				config.getArenaSize()));
+		this.direct = config.isDirect();
+		this.free = new LongStack[Integer.numberOfTrailingZeros(arenaSize)
+				- MIN_SHIFT + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new LongStack();
+		}
+	}
+
+	/**
+	 * Store a new record.
+	 *
+	 * @param hash
+	 *            the key hash
+	 * @param key
+	 *            the key bytes
+	 * @param value
+	 *            the value bytes
+	 * @return the address of the record
+	 */
+	long write(final int hash, final byte[] key, final byte[] value) {
+		final long address = allocate(HEADER + key.length + value.length);
+		final ByteBuffer arena = arena(address);
+		final int offset = offset(address);
+		arena.putInt(offset + 1, hash);
+		arena.putInt(offset + 5, key.length);
+		arena.putInt(offset + 9, value.length);
+		final ByteBuffer target = arena.duplicate();
+		target.position(offset + HEADER);
+		target.put(key);
+		target.put(value);
+		return address;
+	}
+
+	/**
+	 * Gets the key hash of a record.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the hash
+	 */
+	int hash(final long address) {
+		return arena(address).getInt(offset(address) + 1);
+	}
+
+	/**
+	 * Check whether the record has the given key.
+	 *
+	 * @param address
+	 *            the address
+	 * @param key
+	 *            the key bytes
+	 * @return true, if equal
+	 */
+	boolean keyEquals(final long address, final byte[] key) {
+		final ByteBuffer arena = arena(address);
+		final int offset = offset(address);
+		if (arena.getInt(offset + 5) != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (arena.get(offset + HEADER + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the key bytes of a record.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the key bytes
+	 */
+	byte[] key(final long address) {
+		final ByteBuffer arena = arena(address);
+		final int offset = offset(address);
+		return read(arena, offset + HEADER, arena.getInt(offset + 5));
+	}
+
+	/**
+	 * Gets the value bytes of a record.
+	 *
+	 * @param address
+	 *            the address
+	 * @return the value bytes
+	 */
+	byte[] value(final long address) {
+		final ByteBuffer arena = arena(address);
+		final int offset = offset(address);
+		return read(arena, offset + HEADER + arena.getInt(offset + 5),
+				arena.getInt(offset + 9));
+	}
+
+	/**
+	 * Free a record.
+	 *
+	 * @param address
+	 *            the address
+	 */
+	synchronized void free(final long address) {
+		final int index = (int) (address >>> 32) - 1;
+		final ByteBuffer arena = arenas[index];
+		final byte sizeClass = arena.get(offset(address));
+		records--;
+		if (sizeClass == LARGE) {
+			used -= arena.capacity();
+			reserved -= arena.capacity();
+			arenas[index] = null;
+			released.push(index);
+		} else {
+			used -= 1 << (sizeClass + MIN_SHIFT);
+			free[sizeClass].push(address);
+		}
+	}
+
+	/**
+	 * Gets the memory statistics of the store.
+	 *
+	 * @return the stats
+	 */
+	synchronized ObjectNode getStats() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("direct", direct);
+		result.put("arenas", nofArenas - released.size());
+		result.put("reserved", reserved);
+		result.put("used", used);
+		result.put("records", records);
+		return result;
+	}
+
+	private synchronized long allocate(final int length) {
+		records++;
+		if (length > arenaSize) {
+			final ByteBuffer arena = allocateArena(length);
+			final long address = address(addArena(arena), 0);
+			arena.put(0, LARGE);
+			used += length;
+			return address;
+		}
+		final int shift = Math.max(MIN_SHIFT,
+				32 - Integer.numberOfLeadingZeros(length - 1));
+		final byte sizeClass = (byte) (shift - MIN_SHIFT);
+		final int size = 1 << shift;
+		used += size;
+		long address;
+		if (!free[sizeClass].isEmpty()) {
+			address = free[sizeClass].pop();
+		} else {
+			if (current < 0 || position + size > arenaSize) {
+				recycleRemainder();
+				current = addArena(allocateArena(arenaSize));
+				position = 0;
+			}
+			address = address(current, position);
+			position += size;
+		}
+		arenas[(int) (address >>> 32) - 1].put(offset(address), sizeClass);
+		return address;
+	}
+
+	/**
+	 * Put the unused end of the current arena on the free lists.
+	 */
+	private void recycleRemainder() {
+		if (current < 0) {
+			return;
+		}
+		int remaining = arenaSize - position;
+		while (remaining >= 1 << MIN_SHIFT) {
+			final int size = Integer.highestOneBit(remaining);
+			free[Integer.numberOfTrailingZeros(size) - MIN_SHIFT]
+					.push(address(current, position));
+			position += size;
+			remaining -= size;
+		}
+	}
+
+	private ByteBuffer allocateArena(final int size) {
+		reserved += size;
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+				.allocate(size);
+	}
+
+	private int addArena(final ByteBuffer arena) {
+		if (!released.isEmpty()) {
+			final int index = (int) released.pop();
+			arenas[index] = arena;
+			return index;
+		}
+		final ByteBuffer[] list = nofArenas == arenas.length ? Arrays.copyOf(
+				arenas, nofArenas * 2) : arenas;
+		list[nofArenas] = arena;
+		arenas = list;
+		return nofArenas++;
+	}
+
+	private ByteBuffer arena(final long address) {
+		return arenas[(int) (address >>> 32) - 1];
+	}
+
+	private static int offset(final long address) {
+		return (int) address;
+	}
+
+	private static long address(final int arena, final int offset) {
+		return ((long) (arena + 1) << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private static byte[] read(final ByteBuffer arena, final int offset,
+			final int length) {
+		final byte[] result = new byte[length];
+		final ByteBuffer source = arena.duplicate();
+		source.position(offset);
+		source.get(result);
+		return result;
+	}
+
+	/**
+	 * A growable stack of primitive longs.
+	 */
+	private static final class LongStack {
+		private long[]	values	= new long[16];
+		private int		size	= 0;
+
+		private void push(final long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		private long pop() {
+			return values[--size];
+		}
+
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		private int size() {
+			return size;
+		}
+	}
+}
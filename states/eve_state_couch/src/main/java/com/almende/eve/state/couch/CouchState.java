@@ -4,10 +4,14 @@
  */
 package com.almende.eve.state.couch;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,11 +20,14 @@ import org.ektorp.UpdateConflictException;
 
 import com.almende.eve.state.AbstractState;
 import com.almende.eve.state.State;
+import com.almende.eve.state.StateUpdate;
 import com.almende.eve.state.couch.CouchStateBuilder.CouchStateProvider;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -30,10 +37,19 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 public class CouchState extends AbstractState<JsonNode> implements State {
 	private static final Logger		LOG			= Logger.getLogger(CouchState.class
 														.getName());
+	// Marks a pending removal
+	private static final JsonNode	REMOVED		= MissingNode.getInstance();
 	private String					revision	= null;
 	private Map<String, JsonNode>	properties	= new ConcurrentHashMap<String, JsonNode>();
 	private CouchDbConnector		db			= null;
 
+	// Changes not yet acknowledged by the database, reapplied on conflicts
+	private final Map<String, JsonNode>	pending		= new ConcurrentHashMap<String, JsonNode>();
+	private volatile boolean			cleared		= false;
+	private final ReentrantLock			writeLock	= new ReentrantLock();
+	// Consecutive failed writes of the pending changes
+	private int							failures	= 0;
+
 	/**
 	 * Instantiates a new couch state.
 	 */
@@ -58,19 +74,250 @@ public class CouchState extends AbstractState<JsonNode> implements State {
 	}
 
 	/**
-	 * Read.
+	 * Read the latest version of the document, reapplying the changes that
+	 * haven't been stored yet on top of it.
 	 */
 	private void read() {
-		try {
-			synchronized (properties) {
+		final Map<String, JsonNode> before = hasListeners() ? new HashMap<String, JsonNode>(
+				properties) : null;
+		Map<String, JsonNode> after = null;
+		synchronized (properties) {
+			Map<String, JsonNode> latest = null;
+			try {
 				final CouchState state = db.get(CouchState.class, getId());
 				if (state != null) {
 					revision = state.revision;
-					properties.clear();
-					properties.putAll(state.properties);
+					latest = state.properties;
 				}
+			} catch (final org.ektorp.DocumentNotFoundException e) {
+				revision = null;
+			}
+			if (latest != null || cleared) {
+				properties.clear();
+			}
+			if (latest != null && !cleared) {
+				properties.putAll(latest);
+			}
+			for (final Entry<String, JsonNode> entry : pending.entrySet()) {
+				if (entry.getValue() == REMOVED) {
+					properties.remove(entry.getKey());
+				} else {
+					properties.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if (before != null) {
+				after = new HashMap<String, JsonNode>(properties);
+			}
+		}
+		// Report the changes made elsewhere
+		if (after != null) {
+			for (final Entry<String, JsonNode> entry : before.entrySet()) {
+				fireChange(decouchify(entry.getKey()), entry.getValue(),
+						after.get(entry.getKey()));
+			}
+			for (final Entry<String, JsonNode> entry : after.entrySet()) {
+				if (!before.containsKey(entry.getKey())) {
+					fireChange(decouchify(entry.getKey()), null,
+							entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called by the provider's changes feed: reload the document if it was
+	 * written by someone else.
+	 * 
+	 * @param rev
+	 *            the revision of the changed document
+	 */
+	void changed(final String rev) {
+		if (rev == null || !rev.equals(revision)) {
+			read();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#watch(boolean)
+	 */
+	@Override
+	protected void watch(final boolean active) {
+		final CouchStateProvider provider = getProvider();
+		if (provider == null) {
+			return;
+		}
+		if (active) {
+			provider.watch(this);
+		} else {
+			provider.unwatch(this);
+		}
+	}
+
+	/**
+	 * Record a local change, to be stored by the next write.
+	 * 
+	 * @param ckey
+	 *            the couchified key
+	 * @param value
+	 *            the value, or null for removal
+	 * @return the previous value
+	 */
+	private JsonNode change(final String ckey, final JsonNode value) {
+		final JsonNode prev;
+		synchronized (properties) {
+			if (value == null) {
+				pending.put(ckey, REMOVED);
+				prev = properties.remove(ckey);
+			} else {
+				pending.put(ckey, value);
+				prev = properties.put(ckey, value);
 			}
-		} catch (final org.ektorp.DocumentNotFoundException e) {}
+		}
+		if (prev != null || value != null) {
+			fireChange(decouchify(ckey), prev, value);
+		}
+		return prev;
+	}
+
+	/**
+	 * Hand the local changes to the provider, which either stores them
+	 * directly or batches them with other writes.
+	 */
+	private void store() {
+		final CouchStateProvider provider = getProvider();
+		if (provider != null) {
+			provider.store(this);
+		} else {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the pending changes to the database, in a single attempt. After
+	 * a failure the changes stay pending, and after an update conflict the
+	 * document is refreshed with them on top; the provider schedules the
+	 * retry.
+	 * 
+	 * @return true, if successful
+	 */
+	boolean flush() {
+		writeLock.lock();
+		try {
+			if (!isDirty()) {
+				return true;
+			}
+			final Map<String, JsonNode> written = snapshot();
+			final boolean wasCleared = cleared;
+			try {
+				db.update(this);
+				done(written, wasCleared);
+				return true;
+			} catch (final UpdateConflictException uce) {
+				failed(true);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Failed to store state " + getId(), e);
+				failed(false);
+			}
+			return false;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Snapshot of the pending changes.
+	 * 
+	 * @return the map
+	 */
+	Map<String, JsonNode> snapshot() {
+		return new HashMap<String, JsonNode>(pending);
+	}
+
+	/**
+	 * Mark the given changes as stored.
+	 * 
+	 * @param written
+	 *            the changes written
+	 * @param wasCleared
+	 *            whether the write included a clear
+	 */
+	void done(final Map<String, JsonNode> written, final boolean wasCleared) {
+		for (final Entry<String, JsonNode> entry : written.entrySet()) {
+			pending.remove(entry.getKey(), entry.getValue());
+		}
+		if (wasCleared) {
+			cleared = false;
+		}
+		failures = 0;
+	}
+
+	/**
+	 * Handle a failed write of the pending changes, which are kept. After an
+	 * update conflict the document is refreshed, keeping the pending changes
+	 * on top.
+	 * 
+	 * @param conflict
+	 *            whether the write failed on an update conflict
+	 * @return the number of consecutive failed writes
+	 */
+	int failed(final boolean conflict) {
+		if (conflict) {
+			read();
+		}
+		return ++failures;
+	}
+
+	/**
+	 * Gets the number of consecutive failed writes.
+	 * 
+	 * @return the failures
+	 */
+	@JsonIgnore
+	int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Checks for pending changes.
+	 * 
+	 * @return true, if there are changes to store
+	 */
+	@JsonIgnore
+	boolean isDirty() {
+		return cleared || !pending.isEmpty();
+	}
+
+	/**
+	 * Checks if the state was cleared since the last write.
+	 * 
+	 * @return true, if cleared
+	 */
+	@JsonIgnore
+	boolean isCleared() {
+		return cleared;
+	}
+
+	/**
+	 * Gets the write lock.
+	 * 
+	 * @return the write lock
+	 */
+	@JsonIgnore
+	ReentrantLock getWriteLock() {
+		return writeLock;
+	}
+
+	private CouchStateProvider getProvider() {
+		if (getService() instanceof CouchStateProvider) {
+			return (CouchStateProvider) getService();
+		}
+		return null;
+	}
+
+	private int getMaxRetries() {
+		final CouchStateProvider provider = getProvider();
+		return provider != null ? provider.getMaxRetries() : 5;
 	}
 
 	/*
@@ -83,13 +330,9 @@ public class CouchState extends AbstractState<JsonNode> implements State {
 		final String ckey = couchify(key);
 		JsonNode result = null;
 		try {
-			synchronized (properties) {
-				result = properties.put(ckey, value);
-			}
-			db.update(this);
-		} catch (final UpdateConflictException uce) {
-			read();
-			return locPut(ckey, value);
+			result = change(ckey, value == null ? NullNode.getInstance()
+					: value);
+			store();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Failed to store property", e);
 		}
@@ -108,35 +351,204 @@ public class CouchState extends AbstractState<JsonNode> implements State {
 	public boolean locPutIfUnchanged(final String key, final JsonNode newVal,
 			JsonNode oldVal) {
 		final String ckey = couchify(key);
-		boolean result = false;
+		if (oldVal == null) {
+			oldVal = NullNode.getInstance();
+		}
+		writeLock.lock();
 		try {
-			JsonNode cur = NullNode.getInstance();
-			if (properties.containsKey(ckey)) {
-				cur = properties.get(ckey);
-			}
-			if (oldVal == null) {
-				oldVal = NullNode.getInstance();
-			}
+			int attempt = 0;
+			while (true) {
+				JsonNode cur = NullNode.getInstance();
+				if (properties.containsKey(ckey)) {
+					cur = properties.get(ckey);
+				}
 
-			// Poor mans equality as some Numbers are compared incorrectly: e.g.
-			// IntNode versus LongNode
-			if (oldVal.equals(cur) || oldVal.toString().equals(cur.toString())) {
-				synchronized (properties) {
-					properties.put(ckey, newVal);
+				// Poor mans equality as some Numbers are compared incorrectly:
+				// e.g.
+				// IntNode versus LongNode
+				if (!(oldVal.equals(cur) || oldVal.toString().equals(
+						cur.toString()))) {
+					return false;
+				}
+				// Written directly, together with any pending changes, as
+				// the condition needs to be checked against the stored
+				// revision.
+				final Map<String, JsonNode> written = snapshot();
+				final boolean wasCleared = cleared;
+				final JsonNode value = newVal == null ? NullNode.getInstance()
+						: newVal;
+				final JsonNode prev = properties.put(ckey, value);
+				try {
+					db.update(this);
+					done(written, wasCleared);
+					fireChange(key, prev, value);
+					return true;
+				} catch (final UpdateConflictException uce) {
+					if (prev == null) {
+						properties.remove(ckey);
+					} else {
+						properties.put(ckey, prev);
+					}
+					if (++attempt > getMaxRetries()) {
+						LOG.warning("Giving up putIfUnchanged on state "
+								+ getId() + " after " + attempt
+								+ " update conflicts.");
+						return false;
+					}
+					// Retried right away on the refreshed document.
+					read();
 				}
-				db.update(this);
-				result = true;
 			}
-		} catch (final UpdateConflictException uce) {
-			read();
-			return locPutIfUnchanged(ckey, newVal, oldVal);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
+		} finally {
+			writeLock.unlock();
 		}
 
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#locGetAll(java.util.Collection)
+	 */
+	@Override
+	public Map<String, JsonNode> locGetAll(final Collection<String> keys) {
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				keys.size());
+		try {
+			boolean missing = false;
+			for (final String key : keys) {
+				if (!properties.containsKey(couchify(key))) {
+					missing = true;
+					break;
+				}
+			}
+			if (missing) {
+				read();
+			}
+			for (final String key : keys) {
+				final JsonNode value = properties.get(couchify(key));
+				if (value != null) {
+					result.put(key, value);
+				}
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
 		return result;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(final Map<String, ?> values) {
+		try {
+			for (final Entry<String, ?> entry : values.entrySet()) {
+				change(couchify(entry.getKey()), toJsonNode(entry.getValue()));
+			}
+			store();
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Failed to store properties", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#removeAll(java.util.Collection)
+	 */
+	@Override
+	public void removeAll(final Collection<String> keys) {
+		try {
+			for (final String key : keys) {
+				change(couchify(key), null);
+			}
+			store();
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+	}
+
+	/**
+	 * Atomically update multiple keys, through a single document write,
+	 * guarded by the document revision. Retried after a conflict.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @param update
+	 *            the update
+	 * @return true, if successful
+	 */
+	@Override
+	public boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		writeLock.lock();
+		try {
+			int attempt = 0;
+			while (true) {
+				final Map<String, JsonNode> current = new HashMap<String, JsonNode>(
+						keys.size());
+				for (final String key : keys) {
+					final JsonNode value = properties.get(couchify(key));
+					if (value != null) {
+						current.put(key, value);
+					}
+				}
+				final Map<String, Object> changes = update.apply(current);
+				if (changes == null) {
+					return false;
+				}
+				final Map<String, JsonNode> written = snapshot();
+				final boolean wasCleared = cleared;
+				final Map<String, JsonNode> prevs = new HashMap<String, JsonNode>(
+						changes.size());
+				for (final Entry<String, Object> entry : changes.entrySet()) {
+					final String ckey = couchify(entry.getKey());
+					prevs.put(ckey, properties.get(ckey));
+					if (entry.getValue() == null) {
+						properties.remove(ckey);
+					} else {
+						properties.put(ckey, toJsonNode(entry.getValue()));
+					}
+				}
+				try {
+					db.update(this);
+					done(written, wasCleared);
+					for (final Entry<String, JsonNode> prev : prevs.entrySet()) {
+						final JsonNode value = properties.get(prev.getKey());
+						if (prev.getValue() != null || value != null) {
+							fireChange(decouchify(prev.getKey()),
+									prev.getValue(), value);
+						}
+					}
+					return true;
+				} catch (final UpdateConflictException uce) {
+					for (final Entry<String, JsonNode> prev : prevs.entrySet()) {
+						if (prev.getValue() == null) {
+							properties.remove(prev.getKey());
+						} else {
+							properties.put(prev.getKey(), prev.getValue());
+						}
+					}
+					if (++attempt > getMaxRetries()) {
+						LOG.warning("Giving up update on state " + getId()
+								+ " after " + attempt + " update conflicts.");
+						return false;
+					}
+					// Retried right away on the refreshed document.
+					read();
+				}
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		} finally {
+			writeLock.unlock();
+		}
+		return false;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.state.State#remove(java.lang.String)
@@ -147,10 +559,8 @@ public class CouchState extends AbstractState<JsonNode> implements State {
 
 		Object result = null;
 		try {
-			synchronized (properties) {
-				result = properties.remove(ckey);
-			}
-			db.update(this);
+			result = change(ckey, null);
+			store();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
@@ -203,10 +613,21 @@ public class CouchState extends AbstractState<JsonNode> implements State {
 	@Override
 	public void clear() {
 		try {
+			final Map<String, JsonNode> old;
 			synchronized (properties) {
+				old = hasListeners() ? new HashMap<String, JsonNode>(
+						properties) : null;
 				properties.clear();
+				pending.clear();
+				cleared = true;
+			}
+			store();
+			if (old != null) {
+				for (final Entry<String, JsonNode> entry : old.entrySet()) {
+					fireChange(decouchify(entry.getKey()), entry.getValue(),
+							null);
+				}
 			}
-			db.update(this);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Failed clearing state", e);
 		}
@@ -4,15 +4,26 @@
  */
 package com.almende.eve.state.couch;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.ektorp.CouchDbConnector;
 import org.ektorp.CouchDbInstance;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.ChangesFeed;
+import org.ektorp.changes.DocumentChange;
 import org.ektorp.http.HttpClient;
 import org.ektorp.http.StdHttpClient;
 import org.ektorp.http.StdHttpClient.Builder;
@@ -21,6 +32,8 @@ import org.ektorp.impl.StdCouchDbInstance;
 import com.almende.eve.capabilities.AbstractCapabilityBuilder;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateService;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -75,7 +88,17 @@ public class CouchStateBuilder extends AbstractCapabilityBuilder<CouchState> {
 	 */
 	class CouchStateProvider implements StateService {
 		
-		private CouchDbConnector	db	= null;
+		private CouchDbConnector		db			= null;
+		private long					batchWindow	= 0;
+		private int						maxRetries	= 5;
+		private long					retryBackoff	= 10;
+		private final Set<CouchState>	dirty		= Collections
+															.newSetFromMap(new ConcurrentHashMap<CouchState, Boolean>());
+		private final AtomicBoolean		scheduled	= new AtomicBoolean(false);
+		private final Set<CouchState>	retrying	= Collections
+															.newSetFromMap(new ConcurrentHashMap<CouchState, Boolean>());
+		private final Map<String, Set<CouchState>>	watched		= new HashMap<String, Set<CouchState>>();
+		private ChangesFeed				feed		= null;
 		
 		/**
 		 * Instantiates a new couch state service.
@@ -90,6 +113,9 @@ public class CouchStateBuilder extends AbstractCapabilityBuilder<CouchState> {
 				final String username = config.getUsername();
 				final String password = config.getPassword();
 				final String database = config.getDatabase();
+				batchWindow = config.getBatchWindow();
+				maxRetries = config.getMaxRetries();
+				retryBackoff = config.getRetryBackoff();
 				
 				final Builder builder = new StdHttpClient.Builder().url(url);
 				if (username != null && !username.isEmpty()) {
@@ -131,6 +157,7 @@ public class CouchStateBuilder extends AbstractCapabilityBuilder<CouchState> {
 						state = db.get(CouchState.class, id);
 						state.setDb(db);
 						state.setService(this);
+						state.setParams(config);
 					} else {
 						state = new CouchState(id, db, this, config);
 						db.create(state);
@@ -142,6 +169,226 @@ public class CouchStateBuilder extends AbstractCapabilityBuilder<CouchState> {
 			return state;
 		}
 		
+		/**
+		 * Store the pending changes of the given state, either directly or,
+		 * if a batch window is configured, by the next bulk write.
+		 * 
+		 * @param state
+		 *            the state
+		 */
+		void store(final CouchState state) {
+			if (batchWindow <= 0) {
+				if (!state.flush()) {
+					retry(state, state.getFailures());
+				}
+				return;
+			}
+			dirty.add(state);
+			schedule(batchWindow);
+		}
+		
+		private void schedule(final long delay) {
+			if (scheduled.compareAndSet(false, true)) {
+				ThreadPool.getScheduledPool().schedule(new Runnable() {
+					@Override
+					public void run() {
+						scheduled.set(false);
+						flush();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		/**
+		 * Retry storing the pending changes of a state after a failed write,
+		 * with exponential backoff. The changes are kept until they are
+		 * stored, the failure is reported every maxRetries attempts.
+		 * 
+		 * @param state
+		 *            the state
+		 * @param failures
+		 *            the number of consecutive failed writes
+		 */
+		private void retry(final CouchState state, final int failures) {
+			if (failures % Math.max(1, maxRetries) == 0) {
+				LOG.warning("State " + state.getId() + " not stored after "
+						+ failures + " attempts, keeping its changes.");
+			}
+			if (!retrying.add(state)) {
+				return;
+			}
+			final long delay = retryBackoff << Math.min(failures - 1, 10);
+			ThreadPool.getScheduledPool().schedule(new Runnable() {
+				@Override
+				public void run() {
+					// Unless deleted in the meantime.
+					if (retrying.remove(state)) {
+						store(state);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * Write all buffered changes through a single bulk request. Only the
+		 * documents that were stored are marked as such, the others keep
+		 * their pending changes (refreshed, in case of a conflict) and are
+		 * retried with backoff.
+		 */
+		public void flush() {
+			final List<CouchState> batch = new ArrayList<CouchState>();
+			final Iterator<CouchState> iter = dirty.iterator();
+			while (iter.hasNext()) {
+				final CouchState state = iter.next();
+				iter.remove();
+				state.getWriteLock().lock();
+				if (state.isDirty()) {
+					batch.add(state);
+				} else {
+					state.getWriteLock().unlock();
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+			final Map<CouchState, Integer> failed = new HashMap<CouchState, Integer>();
+			try {
+				final Map<CouchState, Map<String, JsonNode>> written = new HashMap<CouchState, Map<String, JsonNode>>(
+						batch.size());
+				final Map<CouchState, Boolean> cleared = new HashMap<CouchState, Boolean>(
+						batch.size());
+				for (final CouchState state : batch) {
+					written.put(state, state.snapshot());
+					cleared.put(state, state.isCleared());
+				}
+				// Per failed id: was it an update conflict?
+				final Map<String, Boolean> errors = new HashMap<String, Boolean>();
+				for (final DocumentOperationResult result : db
+						.executeBulk(batch)) {
+					if (result.getError() == null) {
+						continue;
+					}
+					final boolean conflict = "conflict".equals(result
+							.getError());
+					if (!conflict) {
+						LOG.warning("Failed to store state " + result.getId()
+								+ ": " + result.getError() + " "
+								+ result.getReason());
+					}
+					errors.put(result.getId(), conflict);
+				}
+				for (final CouchState state : batch) {
+					final Boolean conflict = errors.get(state.getId());
+					if (conflict == null) {
+						state.done(written.get(state), cleared.get(state));
+					} else {
+						failed.put(state, state.failed(conflict));
+					}
+				}
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Failed to store states", e);
+				for (final CouchState state : batch) {
+					if (!failed.containsKey(state)) {
+						failed.put(state, state.failed(false));
+					}
+				}
+			} finally {
+				for (final CouchState state : batch) {
+					state.getWriteLock().unlock();
+				}
+			}
+			for (final Map.Entry<CouchState, Integer> entry : failed.entrySet()) {
+				retry(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		/**
+		 * Gets the max number of retries after update conflicts.
+		 * 
+		 * @return the max retries
+		 */
+		int getMaxRetries() {
+			return maxRetries;
+		}
+		
+		/**
+		 * Follow the changes feed of the database for the given state, so
+		 * changes made by other instances are reported to its listeners.
+		 * 
+		 * @param state
+		 *            the state
+		 */
+		synchronized void watch(final CouchState state) {
+			Set<CouchState> states = watched.get(state.getId());
+			if (states == null) {
+				states = Collections
+						.newSetFromMap(new ConcurrentHashMap<CouchState, Boolean>());
+				watched.put(state.getId(), states);
+			}
+			states.add(state);
+			if (feed == null) {
+				try {
+					feed = db.changesFeed(new ChangesCommand.Builder().since(
+							db.getDbInfo().getUpdateSeq()).build());
+				} catch (final Exception e) {
+					LOG.log(Level.WARNING, "Couldn't follow changes feed", e);
+					return;
+				}
+				final ChangesFeed current = feed;
+				ThreadPool.getFactory().newThread(new Runnable() {
+					@Override
+					public void run() {
+						follow(current);
+					}
+				}).start();
+			}
+		}
+		
+		/**
+		 * Stop reporting changes for the given state.
+		 * 
+		 * @param state
+		 *            the state
+		 */
+		synchronized void unwatch(final CouchState state) {
+			final Set<CouchState> states = watched.get(state.getId());
+			if (states != null) {
+				states.remove(state);
+				if (states.isEmpty()) {
+					watched.remove(state.getId());
+				}
+			}
+			if (watched.isEmpty() && feed != null) {
+				feed.cancel();
+				feed = null;
+			}
+		}
+		
+		private void follow(final ChangesFeed current) {
+			try {
+				while (current.isAlive()) {
+					final DocumentChange change = current.next(1,
+							TimeUnit.SECONDS);
+					if (change == null) {
+						continue;
+					}
+					final Set<CouchState> states;
+					synchronized (this) {
+						states = watched.get(change.getId());
+					}
+					if (states != null) {
+						for (final CouchState state : states) {
+							state.changed(change.getRevision());
+						}
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Changes feed stopped", e);
+			}
+		}
+		
 		/*
                  * (non-Javadoc)
                  * 
@@ -161,6 +408,8 @@ public class CouchStateBuilder extends AbstractCapabilityBuilder<CouchState> {
                  */
                 @Override
                 public void delete(final State instance, final Boolean instanceOnly) {
+                        dirty.remove(instance);
+                        retrying.remove(instance);
                         if(!instanceOnly) {
                             db.delete(instance);
                         }
@@ -142,4 +142,76 @@ public class CouchStateConfig extends StateConfig {
 		}
 		return "eve";
 	}
+
+	/**
+	 * Sets the batch window in milliseconds. If larger than zero, writes are
+	 * buffered for this long and then stored together, for all states of the
+	 * same database, through a single bulk request. Other instances of the
+	 * same state will only see the changes after that write.
+	 * 
+	 * @param batchWindow
+	 *            the new batch window
+	 */
+	public void setBatchWindow(final long batchWindow) {
+		this.put("batchWindow", batchWindow);
+	}
+
+	/**
+	 * Gets the batch window in milliseconds, (default: 0, write through)
+	 * 
+	 * @return the batch window
+	 */
+	public long getBatchWindow() {
+		if (this.has("batchWindow")) {
+			return this.get("batchWindow").asLong();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the max number of retries after update conflicts, for
+	 * putIfUnchanged and update. Buffered writes keep being retried until
+	 * stored, a warning is logged every maxRetries attempts.
+	 * 
+	 * @param maxRetries
+	 *            the new max retries
+	 */
+	public void setMaxRetries(final int maxRetries) {
+		this.put("maxRetries", maxRetries);
+	}
+
+	/**
+	 * Gets the max number of retries after update conflicts, (default: 5)
+	 * 
+	 * @return the max retries
+	 */
+	public int getMaxRetries() {
+		if (this.has("maxRetries")) {
+			return this.get("maxRetries").asInt();
+		}
+		return 5;
+	}
+
+	/**
+	 * Sets the initial backoff in milliseconds before retrying a failed write
+	 * of buffered changes. The backoff doubles for each following retry.
+	 * 
+	 * @param retryBackoff
+	 *            the new retry backoff
+	 */
+	public void setRetryBackoff(final long retryBackoff) {
+		this.put("retryBackoff", retryBackoff);
+	}
+
+	/**
+	 * Gets the initial retry backoff in milliseconds, (default: 10)
+	 * 
+	 * @return the retry backoff
+	 */
+	public long getRetryBackoff() {
+		if (this.has("retryBackoff")) {
+			return this.get("retryBackoff").asLong();
+		}
+		return 10;
+	}
 }
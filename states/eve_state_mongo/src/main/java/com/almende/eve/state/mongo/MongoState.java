@@ -5,10 +5,17 @@
 package com.almende.eve.state.mongo;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,75 +25,55 @@ import org.jongo.marshall.jackson.oid.Id;
 import com.almende.eve.state.AbstractState;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateService;
+import com.almende.eve.state.StateUpdate;
 import com.almende.eve.state.mongo.MongoStateBuilder.MongoStateProvider;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.mongodb.MongoException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
+import com.mongodb.util.JSON;
 
 /**
  * The Class MongoState.
+ * 
+ * The properties of the state are stored as a sub-document, each property
+ * having its own version counter in a parallel "versions" sub-document. Puts
+ * and removes only touch the affected field, so concurrent writers of
+ * unrelated keys don't conflict.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class MongoState extends AbstractState<JsonNode> implements State {
-
-	/**
-	 * internal exception signifying update conflict.
-	 * 
-	 * @author ronny
-	 */
-	class UpdateConflictException extends Exception {
-
-		/**
-		 * 
-		 */
-		private static final long	serialVersionUID	= -8714877645567521282L;
-
-		/**
-		 * timestamp of last update
-		 */
-		private final Long			timestamp;
-
-		/**
-		 * default constructor for class specific exception.
-		 * 
-		 * @param timestamp
-		 *            the timestamp
-		 */
-		public UpdateConflictException(final Long timestamp) {
-			this.timestamp = timestamp;
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * @see java.lang.Throwable#getMessage()
-		 */
-		@Override
-		public String getMessage() {
-			return "Document updated on [" + timestamp
-					+ "] is no longer the latest version.";
-		}
-
-	}
-
-	private static final Logger		LOG				= Logger.getLogger("MongoState");
+	private static final Logger		LOG			= Logger.getLogger("MongoState");
+	private static final String		PROPERTIES	= "properties";
+	private static final String		VERSIONS	= "versions";
+	private static final String		TIMESTAMP	= "timestamp";
+	// Wraps values that BSON can't hold losslessly, as their JSON text. Can't
+	// clash with a property, escaped keys never contain a bare '%'.
+	private static final String		RAW			= "%json";
+	private static final int		RETRIES		= 10;
 
 	/* mapping object that contains variables used by the agent */
 	@JsonIgnore
-	private Map<String, JsonNode>	properties		= Collections
-															.synchronizedMap(new HashMap<String, JsonNode>());
-	@JsonProperty("properties")
-	private String					propertiesJson	= null;
+	private Map<String, JsonNode>	properties	= Collections
+														.synchronizedMap(new HashMap<String, JsonNode>());
+	/* last known version of each property */
+	@JsonIgnore
+	private Map<String, Long>		versions	= new ConcurrentHashMap<String, Long>();
 	private Long					timestamp;
 	@JsonIgnore
-	private MongoStateProvider		provider		= null;
+	private boolean					legacy		= false;
+	@JsonIgnore
+	private MongoStateProvider		provider	= null;
 
 	/*
 	 * (non-Javadoc)
@@ -123,7 +110,7 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 	}
 
 	/**
-	 * Gets the timestamp.
+	 * Gets the timestamp of the last write through this instance.
 	 * 
 	 * @return the timestamp
 	 */
@@ -154,7 +141,17 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 		Object result = null;
 		try {
 			result = properties.remove(key);
-			updateProperties(false);
+			final String field = escape(key);
+			final BasicDBObject update = new BasicDBObject("$unset",
+					new BasicDBObject(PROPERTIES + "." + field, ""))
+					.append("$inc",
+							new BasicDBObject(VERSIONS + "." + field, 1L))
+					.append("$set", new BasicDBObject(TIMESTAMP, now()));
+			getCollection().update(new BasicDBObject("_id", getId()), update);
+			bumpVersion(key);
+			if (result != null) {
+				fireChange(key, result, null);
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "remove error", e);
 		}
@@ -198,8 +195,16 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 	@Override
 	public void clear() {
 		try {
+			final Map<String, JsonNode> old = hasListeners() ? new HashMap<String, JsonNode>(
+					properties) : null;
 			properties.clear();
-			updateProperties(true);
+			versions.clear();
+			updateProperties();
+			if (old != null) {
+				for (final Entry<String, JsonNode> entry : old.entrySet()) {
+					fireChange(entry.getKey(), entry.getValue(), null);
+				}
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "clear error", e);
 		}
@@ -232,7 +237,7 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 		try {
 			result = properties.get(key);
 			if (result == null) {
-				reloadProperties();
+				reloadProperty(key);
 				result = properties.get(key);
 			}
 		} catch (final Exception e) {
@@ -252,13 +257,14 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 		JsonNode result = null;
 		try {
 			result = properties.put(key, value);
-			updateProperties(false);
-		} catch (final UpdateConflictException e) {
-			LOG.log(Level.WARNING, e.getMessage() + " Adding [" + key + "="
-					+ value + "]");
-			reloadProperties();
-			// go recursive if update conflict occurs
-			result = locPut(key, value);
+			final String field = escape(key);
+			final BasicDBObject update = new BasicDBObject("$set",
+					new BasicDBObject(PROPERTIES + "." + field, toDBValue(value))
+							.append(TIMESTAMP, now())).append("$inc",
+					new BasicDBObject(VERSIONS + "." + field, 1L));
+			getCollection().update(new BasicDBObject("_id", getId()), update);
+			bumpVersion(key);
+			fireChange(key, result, value);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "locPut error: Adding [" + key + "=" + value
 					+ "] " + properties, e);
@@ -278,26 +284,31 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 			final JsonNode newVal, JsonNode oldVal) {
 		boolean result = false;
 		try {
-			JsonNode cur = NullNode.getInstance();
-			if (properties.containsKey(key)) {
-				cur = properties.get(key);
-			}
 			if (oldVal == null) {
 				oldVal = NullNode.getInstance();
 			}
-
-			// Poor man's equality as some Numbers are compared incorrectly:
-			// e.g.
-			// IntNode versus LongNode
-			if (oldVal.equals(cur) || oldVal.toString().equals(cur.toString())) {
-				properties.put(key, newVal);
-				result = updateProperties(false);
+			// The local copy might be stale, in which case the conditional
+			// update fails and we retry once on the freshly loaded field.
+			for (int attempt = 0; attempt < 2 && !result; attempt++) {
+				if (attempt > 0) {
+					reloadProperty(key);
+				}
+				JsonNode cur = properties.get(key);
+				if (cur == null) {
+					cur = NullNode.getInstance();
+				}
+				// Poor man's equality as some Numbers are compared incorrectly:
+				// e.g.
+				// IntNode versus LongNode
+				if (!(oldVal.equals(cur) || oldVal.toString().equals(
+						cur.toString()))) {
+					if (attempt > 0) {
+						break;
+					}
+					continue;
+				}
+				result = conditionalUpdate(key, newVal);
 			}
-		} catch (final UpdateConflictException e) {
-			LOG.log(Level.WARNING, e.getMessage());
-			reloadProperties();
-			// retry if update conflict occurs
-			locPutIfUnchanged(key, newVal, oldVal);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "locPutIfUnchanged error", e);
 		}
@@ -305,6 +316,235 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 		return result;
 	}
 
+	/**
+	 * Write the given value to a single field, on the condition that the
+	 * field's version is still the one last seen by this instance.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param newVal
+	 *            the new value, null or NullNode removes the field
+	 * @return true, if the field was updated
+	 */
+	private boolean conditionalUpdate(final String key, final JsonNode newVal) {
+		final String field = escape(key);
+		final Long version = versions.get(key);
+
+		final BasicDBObject query = new BasicDBObject("_id", getId());
+		if (version == null) {
+			query.append(VERSIONS + "." + field,
+					new BasicDBObject("$exists", false));
+		} else {
+			query.append(VERSIONS + "." + field, version);
+		}
+		final BasicDBObject set = new BasicDBObject(TIMESTAMP, now());
+		final BasicDBObject update = new BasicDBObject("$inc",
+				new BasicDBObject(VERSIONS + "." + field, 1L));
+		final boolean removal = newVal == null || newVal.isNull();
+		if (removal) {
+			update.append("$unset", new BasicDBObject(PROPERTIES + "." + field,
+					""));
+		} else {
+			set.append(PROPERTIES + "." + field, toDBValue(newVal));
+		}
+		update.append("$set", set);
+
+		final WriteResult result = getCollection().update(query, update);
+		if (result.getN() == 0) {
+			return false;
+		}
+		final JsonNode old;
+		if (removal) {
+			old = properties.remove(key);
+		} else {
+			old = properties.put(key, newVal);
+		}
+		bumpVersion(key);
+		fireChange(key, old, removal ? null : newVal);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#locGetAll(java.util.Collection)
+	 */
+	@Override
+	@JsonIgnore
+	public Map<String, JsonNode> locGetAll(final Collection<String> keys) {
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				keys.size());
+		final List<String> missing = new ArrayList<String>();
+		try {
+			for (final String key : keys) {
+				final JsonNode value = properties.get(key);
+				if (value != null) {
+					result.put(key, value);
+				} else {
+					missing.add(key);
+				}
+			}
+			if (!missing.isEmpty()) {
+				reloadProperties(missing);
+				for (final String key : missing) {
+					final JsonNode value = properties.get(key);
+					if (value != null) {
+						result.put(key, value);
+					}
+				}
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "getAll error", e);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public synchronized void putAll(final Map<String, ?> values) {
+		final Map<String, Object> changes = new HashMap<String, Object>(values);
+		try {
+			getCollection().update(new BasicDBObject("_id", getId()),
+					toUpdate(changes));
+			applyLocal(changes);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "putAll error", e);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#removeAll(java.util.Collection)
+	 */
+	@Override
+	public synchronized void removeAll(final Collection<String> keys) {
+		final Map<String, Object> changes = new HashMap<String, Object>(
+				keys.size());
+		for (final String key : keys) {
+			changes.put(key, null);
+		}
+		try {
+			getCollection().update(new BasicDBObject("_id", getId()),
+					toUpdate(changes));
+			applyLocal(changes);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "removeAll error", e);
+		}
+	}
+
+	/**
+	 * Atomically update multiple keys: a single update, conditional on the
+	 * versions of all given keys, retried after reloading those keys if any of
+	 * them was changed concurrently.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @param update
+	 *            the update
+	 * @return true, if successful
+	 */
+	@Override
+	public synchronized boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		try {
+			for (int attempt = 0; attempt < RETRIES; attempt++) {
+				if (attempt > 0) {
+					reloadProperties(keys);
+				}
+				final Map<String, JsonNode> current = new HashMap<String, JsonNode>(
+						keys.size());
+				for (final String key : keys) {
+					final JsonNode value = properties.get(key);
+					if (value != null) {
+						current.put(key, value);
+					}
+				}
+				final Map<String, Object> changes = update.apply(current);
+				if (changes == null) {
+					return false;
+				}
+				if (changes.isEmpty()) {
+					return true;
+				}
+				final BasicDBObject query = new BasicDBObject("_id", getId());
+				for (final String key : keys) {
+					final Long version = versions.get(key);
+					query.append(VERSIONS + "." + escape(key),
+							version == null ? new BasicDBObject("$exists",
+									false) : version);
+				}
+				final WriteResult result = getCollection().update(query,
+						toUpdate(changes));
+				if (result.getN() > 0) {
+					applyLocal(changes);
+					return true;
+				}
+			}
+			LOG.warning("Giving up update of " + keys + " after " + RETRIES
+					+ " concurrent modifications.");
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "update error", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Build a single update document for the given changes, null values
+	 * being removals.
+	 * 
+	 * @param changes
+	 *            the changes
+	 * @return the update document
+	 */
+	private BasicDBObject toUpdate(final Map<String, Object> changes) {
+		final BasicDBObject set = new BasicDBObject(TIMESTAMP, now());
+		final BasicDBObject unset = new BasicDBObject();
+		final BasicDBObject inc = new BasicDBObject();
+		for (final Entry<String, Object> entry : changes.entrySet()) {
+			final String field = escape(entry.getKey());
+			if (entry.getValue() == null) {
+				unset.append(PROPERTIES + "." + field, "");
+			} else {
+				set.append(PROPERTIES + "." + field,
+						toDBValue(toJsonNode(entry.getValue())));
+			}
+			inc.append(VERSIONS + "." + field, 1L);
+		}
+		final BasicDBObject update = new BasicDBObject("$set", set);
+		if (!unset.isEmpty()) {
+			update.append("$unset", unset);
+		}
+		if (!inc.isEmpty()) {
+			update.append("$inc", inc);
+		}
+		return update;
+	}
+
+	/**
+	 * Apply stored changes to the local copy.
+	 * 
+	 * @param changes
+	 *            the changes
+	 */
+	private void applyLocal(final Map<String, Object> changes) {
+		for (final Entry<String, Object> entry : changes.entrySet()) {
+			final JsonNode old;
+			final JsonNode value = entry.getValue() == null ? null
+					: toJsonNode(entry.getValue());
+			if (value == null) {
+				old = properties.remove(entry.getKey());
+			} else {
+				old = properties.put(entry.getKey(), value);
+			}
+			bumpVersion(entry.getKey());
+			if (old != null || value != null) {
+				fireChange(entry.getKey(), old, value);
+			}
+		}
+	}
+
 	/**
 	 * returns agent properties as a mapped collection of JSON nodes.
 	 * 
@@ -316,123 +556,378 @@ public class MongoState extends AbstractState<JsonNode> implements State {
 	}
 
 	/**
-	 * Gets the serialized version of {@link MongoState#properties}.
+	 * Gets the properties as stored in MongoDB: a sub-document with escaped
+	 * keys.
 	 *
-	 * @return the properties json
+	 * @return the properties document
 	 */
-	@SuppressWarnings("javadoc")
-	@JsonProperty("properties")
-	public String getPropertiesJSON() {
+	@JsonProperty(PROPERTIES)
+	public ObjectNode getPropertiesDocument() {
+		final ObjectNode result = JOM.createObjectNode();
+		synchronized (properties) {
+			for (final Entry<String, JsonNode> entry : properties.entrySet()) {
+				result.set(escape(entry.getKey()), encode(entry.getValue()));
+			}
+		}
+		return result;
+	}
 
-		if (properties != null) {
+	/**
+	 * Sets the properties from the stored document. Older documents contain
+	 * the properties as a single serialized JSON string, those are parsed and
+	 * marked for migration to the sub-document layout.
+	 *
+	 * @param document
+	 *            the properties document
+	 */
+	@JsonProperty(PROPERTIES)
+	public void setPropertiesDocument(final JsonNode document) {
+		if (document == null || document.isNull()) {
+			return;
+		}
+		final Map<String, JsonNode> result = Collections
+				.synchronizedMap(new HashMap<String, JsonNode>());
+		if (document.isTextual()) {
 			try {
-				propertiesJson = JOM.getInstance().writeValueAsString(
-						properties);
-				return propertiesJson;
-			} catch (JsonProcessingException e) {
-				e.printStackTrace();
+				final Map<String, JsonNode> old = JOM.getInstance().readValue(
+						document.asText(),
+						new TypeReference<Map<String, JsonNode>>() {});
+				if (old != null) {
+					result.putAll(old);
+				}
+				legacy = true;
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't parse legacy properties", e);
+			}
+		} else {
+			final Iterator<Entry<String, JsonNode>> iter = document.fields();
+			while (iter.hasNext()) {
+				final Entry<String, JsonNode> entry = iter.next();
+				result.put(unescape(entry.getKey()), decode(entry.getValue()));
 			}
 		}
-		return "{}";
+		properties = result;
 	}
 
 	/**
-	 * Sets the properties.
+	 * Gets the per-property versions, as stored in MongoDB.
 	 *
-	 * @param propertiesJson
-	 *            the new properties
+	 * @return the versions document
 	 */
-	@JsonProperty("properties")
-	public void setProperties(String propertiesJson) {
+	@JsonProperty(VERSIONS)
+	public ObjectNode getVersionsDocument() {
+		final ObjectNode result = JOM.createObjectNode();
+		for (final Entry<String, Long> entry : versions.entrySet()) {
+			result.put(escape(entry.getKey()), entry.getValue());
+		}
+		return result;
+	}
 
-		try {
-			if (propertiesJson != null) {
-				this.propertiesJson = propertiesJson;
-				properties = JOM.getInstance().readValue(propertiesJson,
-						new TypeReference<Map<String, JsonNode>>() {});
+	/**
+	 * Sets the per-property versions from the stored document.
+	 *
+	 * @param document
+	 *            the versions document
+	 */
+	@JsonProperty(VERSIONS)
+	public void setVersionsDocument(final JsonNode document) {
+		final Map<String, Long> result = new ConcurrentHashMap<String, Long>();
+		if (document != null && document.isObject()) {
+			final Iterator<Entry<String, JsonNode>> iter = document.fields();
+			while (iter.hasNext()) {
+				final Entry<String, JsonNode> entry = iter.next();
+				result.put(unescape(entry.getKey()), entry.getValue().asLong());
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
+		versions = result;
 	}
 
 	/**
-	 * set all property values from a collection. (Warning, keys in the
-	 * properties map should be MongoDB safe: no '$', nor '.' in the keys!)
+	 * set all property values from a collection, overwriting the stored
+	 * document.
 	 *
 	 * @param properties
 	 *            the properties
-	 * @throws JsonProcessingException
-	 *             the json processing exception
 	 */
 	@JsonIgnore
-	public void setProperties(final Map<String, JsonNode> properties)
-			throws JsonProcessingException {
+	public void setProperties(final Map<String, JsonNode> properties) {
 		this.properties.clear();
 		this.properties.putAll(properties);
-		try {
-			updateProperties(true);
-		} catch (final UpdateConflictException e) {
-			// should never happen
-			LOG.log(Level.WARNING, "setProperties error", e);
+		versions.clear();
+		updateProperties();
+	}
+
+	/**
+	 * Checks if this state was loaded from a document with the old
+	 * single-string properties layout.
+	 *
+	 * @return true, if legacy
+	 */
+	@JsonIgnore
+	public boolean isLegacy() {
+		return legacy;
+	}
+
+	/**
+	 * Rewrite a document stored in the old single-string layout into the
+	 * sub-document layout, so field level updates can be applied to it.
+	 */
+	public synchronized void migrate() {
+		if (legacy) {
+			versions.clear();
+			updateProperties();
+			legacy = false;
 		}
 	}
 
 	/**
-	 * Refreshes the state according to the latest version as a preceding step
-	 * before recursive call.
-	 * With this mechanism, changes on different State property will be safely
-	 * merged. However, with
-	 * interwoven execution order among multiple threads, multiple updates on
-	 * the same State property
-	 * is not guaranteed to be executed properly.
+	 * Refreshes a single property from the database.
+	 * 
+	 * @param key
+	 *            the key
 	 */
-	private synchronized void reloadProperties() {
+	private void reloadProperty(final String key) {
+		reloadProperties(Collections.singleton(key));
+	}
 
-		final MongoCollection collection = provider.getInstance();
-		final MongoState updatedState = collection.findOne("{_id: #}", getId())
-				.as(MongoState.class);
-		if (updatedState != null) {
-			timestamp = updatedState.timestamp;
-			properties = updatedState.properties;
+	/**
+	 * Refreshes the given properties from the database, in one query.
+	 * 
+	 * @param keys
+	 *            the keys
+	 */
+	private void reloadProperties(final Collection<String> keys) {
+		final BasicDBObject projection = new BasicDBObject();
+		for (final String key : keys) {
+			final String field = escape(key);
+			projection.append(PROPERTIES + "." + field, 1).append(
+					VERSIONS + "." + field, 1);
+		}
+		final DBObject document = getCollection().findOne(
+				new BasicDBObject("_id", getId()), projection);
+		if (document == null) {
+			return;
+		}
+		final Object props = document.get(PROPERTIES);
+		final Object vers = document.get(VERSIONS);
+		for (final String key : keys) {
+			final String field = escape(key);
+			final JsonNode old;
+			final JsonNode value;
+			if (props instanceof DBObject
+					&& ((DBObject) props).containsField(field)) {
+				value = fromDBValue(((DBObject) props).get(field));
+				old = properties.put(key, value);
+			} else {
+				value = null;
+				old = properties.remove(key);
+			}
+			// Changed elsewhere
+			if (old != null || value != null) {
+				fireChange(key, old, value);
+			}
+			if (vers instanceof DBObject
+					&& ((DBObject) vers).containsField(field)) {
+				versions.put(key,
+						((Number) ((DBObject) vers).get(field)).longValue());
+			} else {
+				versions.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Check the stored versions for changes made elsewhere, reloading (and
+	 * thereby reporting) the changed keys. Called periodically by the provider
+	 * while this state has listeners.
+	 */
+	void poll() {
+		final DBObject document = getCollection().findOne(
+				new BasicDBObject("_id", getId()),
+				new BasicDBObject(VERSIONS, 1));
+		if (document == null) {
+			return;
+		}
+		final Object vers = document.get(VERSIONS);
+		final DBObject remote = vers instanceof DBObject ? (DBObject) vers
+				: new BasicDBObject();
+		final Set<String> changed = new HashSet<String>();
+		for (final String field : remote.keySet()) {
+			final String key = unescape(field);
+			final Long version = versions.get(key);
+			if (version == null
+					|| version != ((Number) remote.get(field)).longValue()) {
+				changed.add(key);
+			}
+		}
+		for (final String key : versions.keySet()) {
+			if (!remote.containsField(escape(key))) {
+				changed.add(key);
+			}
+		}
+		if (!changed.isEmpty()) {
+			synchronized (this) {
+				reloadProperties(changed);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#watch(boolean)
+	 */
+	@Override
+	protected void watch(final boolean active) {
+		if (provider == null) {
+			return;
+		}
+		if (active) {
+			provider.watch(this);
 		} else {
-			properties = Collections
-					.synchronizedMap(new HashMap<String, JsonNode>());
-			timestamp = System.nanoTime();
+			provider.unwatch(this);
 		}
 	}
 
 	/**
-	 * updating the entire properties object at the same time, with force flag
-	 * to allow overwriting of updates
-	 * from other instances of the state
-	 * 
-	 * @param force
-	 * @throws UpdateConflictException
-	 *             | will not throw anything when $force flag is true
-	 */
-	private synchronized boolean updateProperties(final boolean force)
-			throws UpdateConflictException {
-		final Long now = System.nanoTime();
-		propertiesJson = getPropertiesJSON();
+	 * Overwrite the entire properties document, including the versions.
+	 */
+	private synchronized void updateProperties() {
+		final long now = now();
 		final MongoCollection collection = provider.getInstance();
-		/* write to database */
-		final WriteResult result = (force) ? collection.update("{_id: #}",
-				getId()).with("{$set: {properties: #, timestamp: #}}",
-				propertiesJson, now) : collection.update(
-				"{_id: #, timestamp: #}", getId(), timestamp).with(
-				"{$set: {properties: #, timestamp: #}}", propertiesJson, now);
-		/* check results */
-		final Boolean updatedExisting = (Boolean) result
-				.getField("updatedExisting");
-		if (result.getN() == 0 && result.getError() == null) {
-			throw new UpdateConflictException(timestamp);
-		} else if (result.getN() != 1) {
-			throw new MongoException(result.getError() + " <--- "
-					+ propertiesJson);
-		}
+		collection.update("{_id: #}", getId()).with(
+				"{$set: {properties: #, versions: #, timestamp: #}}",
+				getPropertiesDocument(), getVersionsDocument(), now);
 		timestamp = now;
-		return updatedExisting;
+	}
+
+	private DBCollection getCollection() {
+		return provider.getInstance().getDBCollection();
+	}
+
+	private void bumpVersion(final String key) {
+		final Long version = versions.get(key);
+		versions.put(key, version == null ? 1L : version + 1);
+	}
+
+	private long now() {
+		timestamp = System.nanoTime();
+		return timestamp;
+	}
+
+	private static Object toDBValue(final JsonNode value) {
+		if (value == null) {
+			return null;
+		}
+		return JSON.parse(encode(value).toString());
+	}
+
+	private static JsonNode fromDBValue(final Object value) {
+		if (value == null) {
+			return NullNode.getInstance();
+		}
+		try {
+			return decode(JOM.getInstance().readTree(JSON.serialize(value)));
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Couldn't convert value", e);
+			return NullNode.getInstance();
+		}
+	}
+
+	/**
+	 * Encode a value for storage: nested keys are escaped like the property
+	 * keys, so MongoDB neither rejects nor interprets them (e.g. "$date"),
+	 * and numbers that BSON can't hold without loss of precision are kept as
+	 * JSON text.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the encoded value
+	 */
+	static JsonNode encode(final JsonNode value) {
+		if (value.isObject()) {
+			final ObjectNode result = JOM.createObjectNode();
+			final Iterator<Entry<String, JsonNode>> iter = value.fields();
+			while (iter.hasNext()) {
+				final Entry<String, JsonNode> entry = iter.next();
+				result.set(escape(entry.getKey()), encode(entry.getValue()));
+			}
+			return result;
+		}
+		if (value.isArray()) {
+			final ArrayNode result = JOM.createArrayNode();
+			for (final JsonNode item : value) {
+				result.add(encode(item));
+			}
+			return result;
+		}
+		if (value.isBigDecimal() || value.isBigInteger() || value.isPojo()) {
+			final ObjectNode result = JOM.createObjectNode();
+			result.put(RAW, value.toString());
+			return result;
+		}
+		return value;
+	}
+
+	/**
+	 * Decode a stored value, the reverse of {@link #encode(JsonNode)}.
+	 * 
+	 * @param value
+	 *            the stored value
+	 * @return the value
+	 */
+	static JsonNode decode(final JsonNode value) {
+		if (value.isObject()) {
+			if (value.size() == 1 && value.has(RAW)) {
+				try {
+					return JOM
+							.getInstance()
+							.reader()
+							.with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+							.readTree(value.get(RAW).asText());
+				} catch (IOException e) {
+					LOG.log(Level.WARNING, "Couldn't decode value", e);
+					return NullNode.getInstance();
+				}
+			}
+			final ObjectNode result = JOM.createObjectNode();
+			final Iterator<Entry<String, JsonNode>> iter = value.fields();
+			while (iter.hasNext()) {
+				final Entry<String, JsonNode> entry = iter.next();
+				result.set(unescape(entry.getKey()), decode(entry.getValue()));
+			}
+			return result;
+		}
+		if (value.isArray()) {
+			final ArrayNode result = JOM.createArrayNode();
+			for (final JsonNode item : value) {
+				result.add(decode(item));
+			}
+			return result;
+		}
+		return value;
+	}
+
+	/**
+	 * Escape a key to a MongoDB safe field name: no '.', nor '$'.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the field name
+	 */
+	static String escape(final String key) {
+		return key.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+	}
+
+	/**
+	 * Unescape a field name to the original key.
+	 * 
+	 * @param field
+	 *            the field name
+	 * @return the key
+	 */
+	static String unescape(final String field) {
+		return field.replace("%24", "$").replace("%2E", ".")
+				.replace("%25", "%");
 	}
 
 	@Override
@@ -13,6 +13,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jongo.Jongo;
@@ -22,6 +25,7 @@ import org.jongo.marshall.jackson.configuration.MapperModifier;
 import com.almende.eve.capabilities.AbstractCapabilityBuilder;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateService;
+import com.almende.util.threads.ThreadPool;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -82,6 +86,7 @@ public class MongoStateBuilder extends AbstractCapabilityBuilder<MongoState> {
 								getJongo(client, config.getDatabase()),
 								config.getCollection());
 						if (result != null) {
+							result.setPollInterval(config.getPollInterval());
 							instances.put(key, result);
 						}
 					} catch (final UnknownHostException e) {
@@ -182,8 +187,11 @@ public class MongoStateBuilder extends AbstractCapabilityBuilder<MongoState> {
 	public class MongoStateProvider implements StateService {
 
 		/* internal attributes */
-		private Jongo			jongo;
-		private final String	collectionName;
+		private Jongo						jongo;
+		private final String				collectionName;
+		private long						pollInterval	= 1000;
+		private final Set<MongoState>		watched			= new CopyOnWriteArraySet<MongoState>();
+		private ScheduledFuture<?>			poller			= null;
 
 		/**
 		 * Instantiates a new mongo state service.
@@ -237,6 +245,10 @@ public class MongoStateBuilder extends AbstractCapabilityBuilder<MongoState> {
 						getInstance().insert(result);
 					} else {
 						result.setService(this);
+						result.setParams(params);
+						if (result.isLegacy()) {
+							result.migrate();
+						}
 					}
 				}
 			} catch (final Exception e) {
@@ -271,6 +283,58 @@ public class MongoStateBuilder extends AbstractCapabilityBuilder<MongoState> {
 			}
 		}
 
+		/**
+		 * Sets the interval at which watched states are checked for changes
+		 * made elsewhere.
+		 *
+		 * @param pollInterval
+		 *            the new poll interval in milliseconds
+		 */
+		public void setPollInterval(final long pollInterval) {
+			this.pollInterval = pollInterval;
+		}
+
+		/**
+		 * Start checking the given state for changes made elsewhere. The
+		 * MongoDB driver in use predates change streams, so this polls the
+		 * (small) versions sub-document of the watched states.
+		 *
+		 * @param state
+		 *            the state
+		 */
+		synchronized void watch(final MongoState state) {
+			watched.add(state);
+			if (poller == null) {
+				poller = ThreadPool.getScheduledPool().scheduleWithFixedDelay(
+						new Runnable() {
+							@Override
+							public void run() {
+								for (final MongoState watchedState : watched) {
+									try {
+										watchedState.poll();
+									} catch (final Exception e) {
+										LOG.log(Level.WARNING, "poll error", e);
+									}
+								}
+							}
+						}, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Stop checking the given state for changes.
+		 *
+		 * @param state
+		 *            the state
+		 */
+		synchronized void unwatch(final MongoState state) {
+			watched.remove(state);
+			if (watched.isEmpty() && poller != null) {
+				poller.cancel(false);
+				poller = null;
+			}
+		}
+
 		@Override
 		public Set<String> getStateIds() {
 			Iterator<MongoState> res = getInstance().find()
@@ -278,4 +278,28 @@ public class MongoStateConfig extends StateConfig {
 		}
 		return mongoCredentials;
 	}
+
+	/**
+	 * Gets the interval at which states with listeners are checked for
+	 * changes made elsewhere.
+	 *
+	 * @return the poll interval in milliseconds
+	 */
+	public long getPollInterval() {
+		if (this.has("pollInterval")) {
+			return this.get("pollInterval").asLong();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the interval at which states with listeners are checked for
+	 * changes made elsewhere. (Optional, default is 1000)
+	 *
+	 * @param pollInterval
+	 *            the new poll interval in milliseconds
+	 */
+	public void setPollInterval(final long pollInterval) {
+		this.put("pollInterval", pollInterval);
+	}
 }
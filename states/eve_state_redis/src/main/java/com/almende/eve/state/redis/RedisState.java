@@ -5,15 +5,24 @@
 package com.almende.eve.state.redis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
 
 import com.almende.eve.state.AbstractState;
 import com.almende.eve.state.State;
+import com.almende.eve.state.StateUpdate;
 import com.almende.eve.state.redis.RedisStateBuilder.RedisStateProvider;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -29,6 +38,7 @@ public class RedisState extends AbstractState<JsonNode> implements State {
 														.getName());
 	private final RedisStateProvider	provider;
 	private static final String			KEYS	= "Keys";
+	private static final int			RETRIES	= 10;
 
 	private String makeKey(final String key) {
 		return getId() + "_" + key;
@@ -50,6 +60,40 @@ public class RedisState extends AbstractState<JsonNode> implements State {
 		provider = redisStateProvider;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#watch(boolean)
+	 */
+	@Override
+	protected void watch(final boolean active) {
+		if (active) {
+			provider.watch(this);
+		} else {
+			provider.unwatch(this);
+		}
+	}
+
+	/**
+	 * Handle a keyspace notification. Redis doesn't tell the previous value,
+	 * so listeners get null as old value.
+	 *
+	 * @param key
+	 *            the key
+	 * @param event
+	 *            the event, the name of the command
+	 */
+	void keyspaceEvent(final String key, final String event) {
+		if (KEYS.equals(key)) {
+			return;
+		}
+		if ("set".equals(event)) {
+			fireChange(key, null, get(key));
+		} else if ("del".equals(event) || "expired".equals(event)
+				|| "evicted".equals(event)) {
+			fireChange(key, null, null);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.state.State#remove(java.lang.String)
@@ -189,4 +233,150 @@ public class RedisState extends AbstractState<JsonNode> implements State {
 		provider.returnInstance(redis);
 		return result;
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#locGetAll(java.util.Collection)
+	 */
+	@Override
+	public Map<String, JsonNode> locGetAll(final Collection<String> keys) {
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				keys.size());
+		if (keys.isEmpty()) {
+			return result;
+		}
+		final List<String> keyList = new ArrayList<String>(keys);
+		final Jedis redis = provider.getInstance();
+		try {
+			result.putAll(read(keyList, redis.mget(makeKeys(keyList))));
+		} finally {
+			provider.returnInstance(redis);
+		}
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(final Map<String, ?> values) {
+		if (values.isEmpty()) {
+			return;
+		}
+		final Jedis redis = provider.getInstance();
+		try {
+			final Pipeline pipe = redis.pipelined();
+			for (final Entry<String, ?> entry : values.entrySet()) {
+				final String nkey = makeKey(entry.getKey());
+				pipe.set(nkey, toJsonNode(entry.getValue()).toString());
+				pipe.sadd(getId() + "_" + KEYS, nkey);
+			}
+			pipe.sync();
+		} finally {
+			provider.returnInstance(redis);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#removeAll(java.util.Collection)
+	 */
+	@Override
+	public void removeAll(final Collection<String> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		final Jedis redis = provider.getInstance();
+		try {
+			final String[] nkeys = makeKeys(keys);
+			final Pipeline pipe = redis.pipelined();
+			pipe.del(nkeys);
+			pipe.srem(getId() + "_" + KEYS, nkeys);
+			pipe.sync();
+		} finally {
+			provider.returnInstance(redis);
+		}
+	}
+
+	/**
+	 * Atomically update multiple keys, through an optimistic WATCH/MULTI/EXEC
+	 * transaction, retried if any of the keys changed concurrently.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @param update
+	 *            the update
+	 * @return true, if successful
+	 */
+	@Override
+	public boolean update(final Collection<String> keys,
+			final StateUpdate update) {
+		final List<String> keyList = new ArrayList<String>(keys);
+		final String[] nkeys = makeKeys(keyList);
+		final Jedis redis = provider.getInstance();
+		try {
+			for (int attempt = 0; attempt < RETRIES; attempt++) {
+				if (nkeys.length > 0) {
+					redis.watch(nkeys);
+				}
+				final Map<String, Object> changes = update.apply(read(keyList,
+						nkeys.length > 0 ? redis.mget(nkeys)
+								: new ArrayList<String>(0)));
+				if (changes == null) {
+					redis.unwatch();
+					return false;
+				}
+				final Transaction multi = redis.multi();
+				for (final Entry<String, Object> entry : changes.entrySet()) {
+					final String nkey = makeKey(entry.getKey());
+					if (entry.getValue() == null) {
+						multi.del(nkey);
+						multi.srem(getId() + "_" + KEYS, nkey);
+					} else {
+						multi.set(nkey, toJsonNode(entry.getValue())
+								.toString());
+						multi.sadd(getId() + "_" + KEYS, nkey);
+					}
+				}
+				final List<Object> res = multi.exec();
+				if (res != null && (changes.isEmpty() || !res.isEmpty())) {
+					return true;
+				}
+			}
+			LOG.warning("Giving up update of " + keys + " after " + RETRIES
+					+ " concurrent modifications.");
+		} finally {
+			provider.returnInstance(redis);
+		}
+		return false;
+	}
+
+	private String[] makeKeys(final Collection<String> keys) {
+		final String[] result = new String[keys.size()];
+		int i = 0;
+		for (final String key : keys) {
+			result[i++] = makeKey(key);
+		}
+		return result;
+	}
+
+	private Map<String, JsonNode> read(final List<String> keys,
+			final List<String> data) {
+		final Map<String, JsonNode> result = new HashMap<String, JsonNode>(
+				keys.size());
+		for (int i = 0; i < keys.size() && i < data.size(); i++) {
+			final String value = data.get(i);
+			if (value == null || value.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				result.put(keys.get(i), JOM.getInstance().readTree(value));
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Couldn't read:" + makeKey(keys.get(i)),
+						e);
+			}
+		}
+		return result;
+	}
 }
@@ -4,18 +4,25 @@
  */
 package com.almende.eve.state.redis;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
 
 import com.almende.eve.capabilities.AbstractCapabilityBuilder;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateService;
+import com.almende.util.threads.ThreadPool;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -66,12 +73,207 @@ public class RedisStateBuilder extends AbstractCapabilityBuilder<RedisState> {
 	class RedisStateProvider implements StateService {
 		private final JedisPool		pool;
 		private final int			id;
+		private final String		host;
+		private final boolean		keyspaceEvents;
 		private static final String	IDKEY	= "AgentIds";
+		private final Map<String, Set<RedisState>>	watched		= new ConcurrentHashMap<String, Set<RedisState>>();
+		private KeyspaceSubscriber					subscriber	= null;
+		private boolean								warned		= false;
 
 		public RedisStateProvider(final ObjectNode params) {
 			final RedisStateConfig config = RedisStateConfig.decorate(params);
-			pool = new JedisPool(new JedisPoolConfig(), config.getHost());
+			host = config.getHost();
+			pool = new JedisPool(new JedisPoolConfig(), host);
 			id = config.getDbId();
+			keyspaceEvents = config.getKeyspaceEvents();
+		}
+
+		/**
+		 * Start reporting keyspace notifications of the given state to it.
+		 * 
+		 * @param state
+		 *            the state
+		 */
+		synchronized void watch(final RedisState state) {
+			final String pattern = pattern(state.getId());
+			Set<RedisState> states = watched.get(pattern);
+			if (states == null) {
+				states = new CopyOnWriteArraySet<RedisState>();
+				watched.put(pattern, states);
+				if (subscriber != null) {
+					subscriber.awaitSubscribed();
+					try {
+						subscriber.psubscribe(pattern);
+					} catch (final RuntimeException e) {
+						failed(subscriber, e);
+					}
+				}
+				if (subscriber == null) {
+					// (Re)subscribes all watched states, after a failure too.
+					subscriber = new KeyspaceSubscriber();
+					subscriber.start(watched.keySet().toArray(
+							new String[watched.size()]));
+				}
+			}
+			states.add(state);
+		}
+
+		/**
+		 * Drop a subscriber that has stopped on an error, so the next watch
+		 * starts a new one. Only the first failure is logged as a warning.
+		 * 
+		 * @param failed
+		 *            the failed subscriber
+		 * @param cause
+		 *            the cause
+		 */
+		private synchronized void failed(final KeyspaceSubscriber failed,
+				final Exception cause) {
+			if (subscriber == failed) {
+				subscriber = null;
+			}
+			if (!warned) {
+				warned = true;
+				LOG.log(Level.WARNING, "Keyspace subscription failed, "
+						+ "states won't see changes made by others", cause);
+			} else {
+				LOG.log(Level.FINE, "Keyspace subscription failed", cause);
+			}
+		}
+
+		/**
+		 * Stop reporting keyspace notifications to the given state.
+		 * 
+		 * @param state
+		 *            the state
+		 */
+		synchronized void unwatch(final RedisState state) {
+			final String pattern = pattern(state.getId());
+			final Set<RedisState> states = watched.get(pattern);
+			if (states == null || !states.remove(state) || !states.isEmpty()) {
+				return;
+			}
+			watched.remove(pattern);
+			if (subscriber == null) {
+				return;
+			}
+			subscriber.awaitSubscribed();
+			if (watched.isEmpty()) {
+				// Ends the subscriber's thread
+				subscriber.punsubscribe();
+				subscriber = null;
+			} else {
+				subscriber.punsubscribe(pattern);
+			}
+		}
+
+		private String prefix() {
+			return "__keyspace@" + id + "__:";
+		}
+
+		private String pattern(final String stateId) {
+			return prefix() + stateId.replaceAll("([*?\\[\\]\\\\])", "\\\\$1")
+					+ "_*";
+		}
+
+		/**
+		 * Make sure the server sends keyspace notifications for string and
+		 * generic commands, keeping any other configured classes.
+		 * 
+		 * @param redis
+		 *            the redis connection
+		 */
+		private void enableKeyspaceEvents(final Jedis redis) {
+			final List<String> current = redis
+					.configGet("notify-keyspace-events");
+			String flags = current.size() > 1 ? current.get(1) : "";
+			if (flags.indexOf('K') < 0) {
+				flags += "K";
+			}
+			if (flags.indexOf('A') < 0) {
+				if (flags.indexOf('$') < 0) {
+					flags += "$";
+				}
+				if (flags.indexOf('g') < 0) {
+					flags += "g";
+				}
+			}
+			redis.configSet("notify-keyspace-events", flags);
+		}
+
+		/**
+		 * Subscriber for the keyspace notifications of the watched states,
+		 * running on its own connection and thread.
+		 */
+		private class KeyspaceSubscriber extends JedisPubSub {
+			private final CountDownLatch	subscribed	= new CountDownLatch(1);
+
+			void start(final String... patterns) {
+				ThreadPool.getFactory().newThread(new Runnable() {
+					@Override
+					public void run() {
+						final Jedis redis = new Jedis(host);
+						Exception failure = null;
+						try {
+							if (keyspaceEvents) {
+								enableKeyspaceEvents(redis);
+							}
+							redis.psubscribe(KeyspaceSubscriber.this, patterns);
+						} catch (final Exception e) {
+							failure = e;
+						} finally {
+							subscribed.countDown();
+							redis.disconnect();
+						}
+						if (failure != null) {
+							failed(KeyspaceSubscriber.this, failure);
+						}
+					}
+				}).start();
+			}
+
+			void awaitSubscribed() {
+				try {
+					subscribed.await(5, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void onPMessage(final String pattern, final String channel,
+					final String message) {
+				final Set<RedisState> states = watched.get(pattern);
+				if (states == null) {
+					return;
+				}
+				for (final RedisState state : states) {
+					final String nkey = channel.substring(prefix().length());
+					state.keyspaceEvent(nkey.substring(state.getId().length() + 1),
+							message);
+				}
+			}
+
+			@Override
+			public void onPSubscribe(final String pattern,
+					final int subscribedChannels) {
+				subscribed.countDown();
+			}
+
+			@Override
+			public void onMessage(final String channel, final String message) {}
+
+			@Override
+			public void onSubscribe(final String channel,
+					final int subscribedChannels) {}
+
+			@Override
+			public void onUnsubscribe(final String channel,
+					final int subscribedChannels) {}
+
+			@Override
+			public void onPUnsubscribe(final String pattern,
+					final int subscribedChannels) {}
 		}
 
 		@Override
@@ -87,4 +87,30 @@ public class RedisStateConfig extends StateConfig {
 	public void setDbId(final int id) {
 		this.put("dbId", id);
 	}
+
+	/**
+	 * Gets whether the server's keyspace notifications should be enabled
+	 * when a state listener is added. State listeners of Redis states depend
+	 * on these notifications.
+	 *
+	 * @return the keyspace events
+	 */
+	public boolean getKeyspaceEvents() {
+		if (this.has("keyspaceEvents")) {
+			return this.get("keyspaceEvents").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets whether the server's keyspace notifications ("notify-keyspace-events")
+	 * should be enabled when a state listener is added. (Optional, default is
+	 * false, as this is a server wide setting)
+	 *
+	 * @param keyspaceEvents
+	 *            the new keyspace events
+	 */
+	public void setKeyspaceEvents(final boolean keyspaceEvents) {
+		this.put("keyspaceEvents", keyspaceEvents);
+	}
 }
@@ -4,12 +4,28 @@
  */
 package com.almende.eve.test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import junit.framework.TestCase;
 
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
 import org.junit.Test;
 
 import com.almende.eve.agent.AgentBuilder;
@@ -19,8 +35,12 @@ import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.Transport;
 import com.almende.eve.transport.TransportBuilder;
+import com.almende.eve.transport.http.HttpChannel;
+import com.almende.eve.transport.http.HttpTransport;
 import com.almende.eve.transport.http.HttpTransportConfig;
+import com.almende.eve.transport.tokens.TokenSigner;
 import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -28,7 +48,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  * The Class TestHttp.
  */
 public class TestHttp extends TestCase {
-	private static final Logger	LOG	= Logger.getLogger(TestHttp.class.getName());
+	private static final Logger	LOG			= Logger.getLogger(TestHttp.class
+													.getName());
+	private static final int	SPDYPORT	= 8081;
 
 	/**
 	 * Test http.
@@ -43,9 +65,7 @@ public class TestHttp extends TestCase {
 		config.setId("testAgent");
 
 		config.setServletLauncher("JettyLauncher");
-		final ObjectNode jettyParms = JOM.createObjectNode();
-		jettyParms.put("port", 8080);
-		config.set("jetty", jettyParms);
+		config.set("jetty", jettyParams());
 
 		final Transport transport = new TransportBuilder().withConfig(config)
 				.withHandle(new myReceiver()).build();
@@ -70,9 +90,7 @@ public class TestHttp extends TestCase {
 				.setServletClass(com.almende.eve.transport.http.DebugServlet.class
 						.getName());
 		transportConfig.setServletLauncher("JettyLauncher");
-		final ObjectNode jettyParms = JOM.createObjectNode();
-		jettyParms.put("port", 8080);
-		transportConfig.set("jetty", jettyParms);
+		transportConfig.set("jetty", jettyParams());
 
 		final AgentConfig agentConf = AgentConfig.create("manual");
 		agentConf.addTransport(transportConfig);
@@ -88,6 +106,428 @@ public class TestHttp extends TestCase {
 		}
 	}
 
+	/**
+	 * Test signed tokens.
+	 */
+	@Test
+	public void testSignedToken() {
+		final TokenSigner signer = new TokenSigner("secret");
+		final String sender = "http://localhost:8080/agents/a";
+		final String receiver = "http://localhost:8081/agents/b";
+		final String token = signer.sign(sender, receiver);
+		// Reused for the same receiver
+		assertEquals(token, signer.sign(sender, receiver));
+		assertFalse(token.equals(signer.sign(sender, sender)));
+
+		assertTrue(signer.verify(token, sender, receiver));
+		// Second time from the cache
+		assertTrue(signer.verify(token, sender, receiver));
+		assertFalse(signer.verify(token, receiver, sender));
+		assertFalse(new TokenSigner("other").verify(token, sender, receiver));
+		assertFalse(signer.verify("0" + token.substring(token.indexOf(':')),
+				sender, receiver));
+	}
+
+	/**
+	 * Test a round trip through the asynchronous servlet path: the call is
+	 * suspended until the agent replies.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncHttp() throws Exception {
+		final String servletUrl = "http://localhost:8080/async/";
+		final HttpTransportConfig serverConfig = config(servletUrl, "server");
+		serverConfig.setAsync(true);
+		final Echo echo = new Echo();
+		echo.setTransport(new TransportBuilder().withConfig(serverConfig)
+				.withHandle(echo).build());
+
+		final Collector collector = new Collector(3);
+		final Transport client = new TransportBuilder()
+				.withConfig(config(servletUrl, "client"))
+				.withHandle(collector).build();
+		for (int i = 0; i < 3; i++) {
+			client.send(URIUtil.create(servletUrl + "server"), "Hello " + i,
+					null, null);
+		}
+		assertTrue(collector.await(10));
+		final List<String> replies = collector.getMessages();
+		Collections.sort(replies);
+		assertEquals(Arrays.asList("Hello 0", "Hello 1", "Hello 2"), replies);
+	}
+
+	/**
+	 * Test that a slow agent method doesn't hold a container thread: all calls
+	 * reach the agent at the same time, on threads of the ThreadPool, while
+	 * their requests stay suspended.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAsyncHttpSlowAgent() throws Exception {
+		final String servletUrl = "http://localhost:8080/asyncslow/";
+		final HttpTransportConfig serverConfig = config(servletUrl, "server");
+		serverConfig.setAsync(true);
+		final Slow slow = new Slow(5);
+		slow.setTransport(new TransportBuilder().withConfig(serverConfig)
+				.withHandle(slow).build());
+
+		final Collector collector = new Collector(5);
+		final Transport client = new TransportBuilder()
+				.withConfig(config(servletUrl, "client"))
+				.withHandle(collector).build();
+		for (int i = 0; i < 5; i++) {
+			client.send(URIUtil.create(servletUrl + "server"), "Hello " + i,
+					null, null);
+		}
+		assertTrue(slow.awaitEntered(10));
+		for (final String thread : slow.getThreads()) {
+			// Jetty's QueuedThreadPool names its threads qtp<hash>-<n>
+			assertFalse(thread, thread.startsWith("qtp"));
+		}
+		assertTrue(collector.getMessages().isEmpty());
+
+		slow.release();
+		assertTrue(collector.await(10));
+		assertEquals(5, collector.getMessages().size());
+	}
+
+	/**
+	 * Test round trips through the non-blocking client, including an error
+	 * response reported to the callback.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testNonBlockingHttp() throws Exception {
+		final String servletUrl = "http://localhost:8080/nonblocking/";
+		final HttpTransportConfig clientConfig = config(servletUrl, "client");
+		clientConfig.setNonBlocking(true);
+		final Collector collector = new Collector(10);
+		final Transport client = new TransportBuilder()
+				.withConfig(clientConfig).withHandle(collector).build();
+		final Echo echo = new Echo();
+		echo.setTransport(new TransportBuilder()
+				.withConfig(config(servletUrl, "server")).withHandle(echo)
+				.build());
+
+		for (int i = 0; i < 10; i++) {
+			client.send(URIUtil.create(servletUrl + "server"), "Hello " + i,
+					null, null);
+		}
+		assertTrue(collector.await(10));
+		assertEquals(10, collector.getMessages().size());
+
+		final CountDownLatch failed = new CountDownLatch(1);
+		client.send(URIUtil.create(servletUrl + "unknown"), "Hello", null,
+				new AsyncCallback<Void>() {
+					@Override
+					public void onSuccess(final Void result) {}
+
+					@Override
+					public void onFailure(final Exception exception) {
+						failed.countDown();
+					}
+				});
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test round trips through the multiplexing client: concurrent calls
+	 * share a single SPDY connection to the receiving server. Calls to the
+	 * advertised, HTTP/1.1 only, url fall back to HTTP/1.1.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMultiplexedHttp() throws Exception {
+		final String servletUrl = "http://localhost:8080/multiplexed/";
+		final HttpTransportConfig clientConfig = config(servletUrl, "client");
+		clientConfig.setMultiplexed(true);
+		final Collector collector = new Collector(20);
+		final Transport client = new TransportBuilder()
+				.withConfig(clientConfig).withHandle(collector).build();
+		final Echo echo = new Echo();
+		echo.setTransport(new TransportBuilder()
+				.withConfig(config(servletUrl, "server")).withHandle(echo)
+				.build());
+
+		// The same servlet, through the SPDY connector.
+		final URI spdyUrl = URIUtil.create("http://localhost:" + SPDYPORT
+				+ "/multiplexed/server");
+		for (int i = 0; i < 10; i++) {
+			client.send(spdyUrl, "Hello " + i, null, null);
+		}
+		final URI plainUrl = URIUtil.create(servletUrl + "server");
+		for (int i = 10; i < 20; i++) {
+			client.send(plainUrl, "Hello " + i, null, null);
+		}
+		assertTrue(collector.await(10));
+		final List<String> replies = collector.getMessages();
+		assertEquals(20, replies.size());
+		assertTrue(replies.containsAll(Arrays.asList("Hello 0", "Hello 9",
+				"Hello 10", "Hello 19")));
+	}
+
+	/**
+	 * Test a REQ/RES exchange over a streaming channel, opened by hand, with
+	 * frames split over several writes and several frames in one write. The
+	 * calls are handled concurrently, a held call doesn't block the channel.
+	 * A channel of an unverified sender is refused, a token signed for
+	 * another url of the servlet falls back to the callback handshake.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStreamingChannel() throws Exception {
+		final String servletUrl = "http://localhost:8080/streaming/";
+		final HttpTransportConfig serverConfig = config(servletUrl, "server");
+		serverConfig.setStreaming(true);
+		serverConfig.setAuthSecret("secret");
+		final Slow slow = new Slow(3);
+		slow.setTransport(new TransportBuilder().withConfig(serverConfig)
+				.withHandle(slow).build());
+		final HttpTransport peer = (HttpTransport) new TransportBuilder()
+				.withConfig(config(servletUrl, "peer"))
+				.withHandle(new myReceiver()).build();
+
+		final HttpClient http = new HttpClient();
+		http.start();
+		try {
+			assertEquals(403, http.POST(servletUrl + "server")
+					.header("X-Eve-Channel", "open")
+					.header("X-Eve-SenderUrl", servletUrl + "peer").send()
+					.getStatus());
+
+			final DeferredContentProvider content = new DeferredContentProvider();
+			final InputStreamResponseListener listener = new InputStreamResponseListener();
+			http.POST(servletUrl + "server")
+					.header("X-Eve-Channel", "open")
+					.header("X-Eve-SenderUrl", servletUrl + "peer")
+					.header("X-Eve-Token",
+							peer.getTokenstore().create().toString())
+					.header("X-Eve-Signature",
+							new TokenSigner("secret").sign(servletUrl + "peer",
+									"http://127.0.0.1:8080/streaming/server"))
+					.content(content, HttpChannel.CONTENTTYPE).send(listener);
+			assertEquals(200, listener.get(5, TimeUnit.SECONDS).getStatus());
+
+			content.offer(frames("REQ a 5\nHel"));
+			content.offer(frames("lo"));
+			content.offer(frames("REQ b 3\nOneREQ c 3\nTwo"));
+			assertTrue(slow.awaitEntered(10));
+			slow.release();
+
+			final BufferedReader in = new BufferedReader(new InputStreamReader(
+					listener.getInputStream(), "UTF-8"));
+			final Map<String, String> answers = new HashMap<String, String>();
+			while (answers.size() < 3) {
+				final String[] header = in.readLine().split(" ");
+				// The payloads are ASCII: as many chars as bytes.
+				final char[] payload = new char[Integer.parseInt(header[2])];
+				int read = 0;
+				while (read < payload.length) {
+					read += in.read(payload, read, payload.length - read);
+				}
+				if (!"PING".equals(header[0])) {
+					assertEquals("RES", header[0]);
+					answers.put(header[1], new String(payload));
+				}
+			}
+			assertEquals("Hello", answers.get("a"));
+			assertEquals("One", answers.get("b"));
+			assertEquals("Two", answers.get("c"));
+			content.close();
+		} finally {
+			http.stop();
+		}
+	}
+
+	private static ByteBuffer frames(final String data) {
+		return ByteBuffer.wrap(data.getBytes(Charset.forName("UTF-8")));
+	}
+
+	/**
+	 * The parameters of the embedded Jetty server. All tests share the same
+	 * server, so they all offer the same connectors.
+	 *
+	 * @return the jetty parameters
+	 */
+	private static ObjectNode jettyParams() {
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8080);
+		jettyParms.put("spdyPort", SPDYPORT);
+		return jettyParms;
+	}
+
+	/**
+	 * Create the config of a transport on the embedded Jetty server.
+	 *
+	 * @param servletUrl
+	 *            the servlet url
+	 * @param id
+	 *            the id
+	 * @return the http transport config
+	 */
+	private static HttpTransportConfig config(final String servletUrl,
+			final String id) {
+		final HttpTransportConfig config = HttpTransportConfig.create();
+		config.setServletUrl(servletUrl);
+		config.setId(id);
+		config.setDoShortcut(false);
+		config.setServletLauncher("JettyLauncher");
+		config.set("jetty", jettyParams());
+		return config;
+	}
+
+	/**
+	 * A receiver answering each call with the call itself.
+	 */
+	public class Echo extends myReceiver {
+		private Transport	transport	= null;
+
+		/**
+		 * Sets the transport to answer on.
+		 *
+		 * @param transport
+		 *            the new transport
+		 */
+		public void setTransport(final Transport transport) {
+			this.transport = transport;
+		}
+
+		@Override
+		public void receive(final Object msg, final URI senderUrl,
+				final String tag) {
+			try {
+				transport.send(senderUrl, (String) msg, tag, null);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't answer " + senderUrl, e);
+			}
+		}
+	}
+
+	/**
+	 * An echo receiver that holds each call until it is released.
+	 */
+	public class Slow extends Echo {
+		private final List<String>		threads		= Collections
+															.synchronizedList(new ArrayList<String>());
+		private final CountDownLatch	entered;
+		private final CountDownLatch	released	= new CountDownLatch(1);
+
+		/**
+		 * Instantiates a new slow receiver.
+		 *
+		 * @param count
+		 *            the number of calls to wait for
+		 */
+		public Slow(final int count) {
+			entered = new CountDownLatch(count);
+		}
+
+		@Override
+		public void receive(final Object msg, final URI senderUrl,
+				final String tag) {
+			threads.add(Thread.currentThread().getName());
+			entered.countDown();
+			try {
+				released.await(30, TimeUnit.SECONDS);
+			} catch (final InterruptedException e) {
+				return;
+			}
+			super.receive(msg, senderUrl, tag);
+		}
+
+		/**
+		 * Wait until the expected calls are all inside the receiver.
+		 *
+		 * @param seconds
+		 *            the maximum time to wait
+		 * @return true, if all calls arrived
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public boolean awaitEntered(final int seconds)
+				throws InterruptedException {
+			return entered.await(seconds, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Let the held calls answer.
+		 */
+		public void release() {
+			released.countDown();
+		}
+
+		/**
+		 * Gets the names of the threads the calls ran on.
+		 *
+		 * @return the thread names
+		 */
+		public List<String> getThreads() {
+			synchronized (threads) {
+				return new ArrayList<String>(threads);
+			}
+		}
+	}
+
+	/**
+	 * A receiver collecting the messages it receives.
+	 */
+	public class Collector extends myReceiver {
+		private final List<String>		messages	= Collections
+															.synchronizedList(new ArrayList<String>());
+		private final CountDownLatch	latch;
+
+		/**
+		 * Instantiates a new collector.
+		 *
+		 * @param count
+		 *            the number of messages to wait for
+		 */
+		public Collector(final int count) {
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void receive(final Object msg, final URI senderUrl,
+				final String tag) {
+			messages.add(msg.toString().trim());
+			latch.countDown();
+		}
+
+		/**
+		 * Wait for the expected messages.
+		 *
+		 * @param seconds
+		 *            the maximum time to wait
+		 * @return true, if all messages arrived
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public boolean await(final int seconds) throws InterruptedException {
+			return latch.await(seconds, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Gets the received messages, in order of arrival.
+		 *
+		 * @return the messages
+		 */
+		public List<String> getMessages() {
+			synchronized (messages) {
+				return new ArrayList<String>(messages);
+			}
+		}
+	}
+
 	/**
 	 * The Class myReceiver.
 	 */
@@ -4,6 +4,22 @@
  */
 package com.almende.eve.test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -11,7 +27,31 @@ import org.junit.Test;
 import com.almende.eve.agent.AgentBuilder;
 import com.almende.eve.agent.AgentConfig;
 import com.almende.eve.agent.SchedulingAgent;
+import com.almende.eve.capabilities.handler.Handler;
+import com.almende.eve.capabilities.handler.SimpleHandler;
+import com.almende.eve.protocol.jsonrpc.formats.Caller;
+import com.almende.eve.protocol.jsonrpc.formats.JSONMessage;
+import com.almende.eve.protocol.jsonrpc.formats.JSONRequest;
+import com.almende.eve.scheduling.PersistentScheduler;
+import com.almende.eve.scheduling.PersistentSchedulerBuilder;
+import com.almende.eve.scheduling.PersistentSchedulerConfig;
+import com.almende.eve.scheduling.Repetition;
+import com.almende.eve.scheduling.SchedulerMetrics;
+import com.almende.eve.scheduling.SimpleScheduler;
+import com.almende.eve.scheduling.SimpleSchedulerBuilder;
 import com.almende.eve.scheduling.SimpleSchedulerConfig;
+import com.almende.eve.scheduling.SyncScheduler;
+import com.almende.eve.scheduling.SyncSchedulerBuilder;
+import com.almende.eve.scheduling.SyncSchedulerConfig;
+import com.almende.eve.scheduling.clock.WheelClock;
+import com.almende.util.TypeUtil;
+import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class TestScheduling.
@@ -38,4 +78,606 @@ public class TestScheduling extends TestCase {
 		} catch (final InterruptedException e) {}
 
 	}
+
+	/**
+	 * Test the timing wheel: triggers on different levels of the wheel fire
+	 * in due order, cancelled triggers don't fire, and an earlier request
+	 * for the same id replaces the later one.
+	 *
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	@Test
+	public void testTimingWheel() throws InterruptedException {
+		final WheelClock clock = new WheelClock();
+		final List<String> fired = Collections
+				.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(4);
+		final long now = clock.now();
+		// Level 2, level 1, level 0 of the wheel.
+		clock.requestTrigger("c", now + 4200, fire(fired, "c", done));
+		clock.requestTrigger("b", now + 300, fire(fired, "b", done));
+		clock.requestTrigger("a", now + 20, fire(fired, "a", done));
+
+		clock.requestTrigger("x", now + 200, fire(fired, "x", done));
+		assertTrue(clock.cancel("x"));
+		assertFalse(clock.cancel("x"));
+
+		clock.requestTrigger("d", now + 6000, fire(fired, "late d", done));
+		clock.requestTrigger("d", now + 1000, fire(fired, "d", done));
+		assertEquals(4, clock.size());
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a", "b", "d", "c"), fired);
+		// The replaced trigger of d isn't pending anymore.
+		assertEquals(0, clock.size());
+	}
+
+	private static Runnable fire(final List<String> fired, final String name,
+			final CountDownLatch done) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				fired.add(name);
+				done.countDown();
+			}
+		};
+	}
+
+	/**
+	 * Test the journal of the PersistentScheduler: recovery from a journal
+	 * with a torn last line, compaction on opening and while running.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testJournal() throws Exception {
+		final File dir = new File(System.getProperty("java.io.tmpdir"),
+				"eve-journal-test");
+		assertTrue(dir.exists() || dir.mkdirs());
+		final File file = new File(dir, "TestJournal.journal");
+		final long now = System.currentTimeMillis();
+		final PrintWriter out = new PrintWriter(file, "UTF-8");
+		out.println(journalLine("a", now + 300));
+		out.println(journalLine("b", now + 400));
+		out.println("{\"op\":\"r\",\"id\":\"b\"}");
+		out.print("{\"op\":\"s\",\"id\":\"c\",\"du");
+		out.close();
+
+		final PersistentSchedulerConfig config = PersistentSchedulerConfig
+				.create();
+		config.setId("TestJournal");
+		config.setJournalPath(dir.getPath());
+		// Commit on scheduling, so the file can be checked without waiting
+		// for the background flush.
+		config.setJournalSync(true);
+		final Recorder recorder = new Recorder();
+		final PersistentSchedulerBuilder builder = new PersistentSchedulerBuilder();
+		builder.withConfig(config);
+		builder.withHandle(new SimpleHandler<Caller>(recorder));
+		final PersistentScheduler scheduler = builder.build();
+
+		// Recovered and compacted: only task a is left.
+		List<String> lines = readLines(file);
+		assertEquals(1, lines.size());
+		assertTrue(lines.get(0).contains("\"a\""));
+
+		// Obsolete lines outgrowing the pending tasks are compacted away.
+		for (int i = 0; i < 600; i++) {
+			scheduler.schedule("t" + i, tick("t" + i), 3600000);
+			scheduler.cancel("t" + i);
+		}
+		scheduler.schedule("d", tick("d"), 200);
+		lines = readLines(file);
+		assertTrue(lines.size() < 1000);
+
+		final List<String> tags = recorder.awaitTags(2, 5000);
+		assertEquals(2, tags.size());
+		assertTrue(tags.containsAll(Arrays.asList("a", "d")));
+		scheduler.delete();
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Test the repetition of periodic tasks: a FIXED_RATE task started in the
+	 * past skips the missed runs instead of bursting, a FIXED_DELAY task waits
+	 * for each run to finish before starting the interval.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRepetition() throws Exception {
+		final Recorder rate = new Recorder();
+		final SimpleScheduler rateScheduler = scheduler("TestFixedRate", rate);
+		final long start = rateScheduler.now() - 1050;
+		rateScheduler.scheduleInterval("rate", tick("rate"), start, 200,
+				Repetition.FIXED_RATE);
+		Thread.sleep(100);
+		// The next run on the schedule is 150ms away, nothing to catch up.
+		assertEquals(0, rate.getSent().size());
+		Thread.sleep(550);
+		rateScheduler.delete();
+		List<Long> times = rate.getTimes();
+		assertEquals(3, times.size());
+		for (int i = 1; i < times.size(); i++) {
+			assertTrue(times.get(i) - times.get(i - 1) > 150);
+		}
+
+		final Recorder delay = new Recorder();
+		delay.setDelay(300);
+		final SimpleScheduler delayScheduler = scheduler("TestFixedDelay",
+				delay);
+		delayScheduler.scheduleInterval("delay", tick("delay"),
+				delayScheduler.now(), 100, Repetition.FIXED_DELAY);
+		Thread.sleep(1000);
+		delayScheduler.delete();
+		times = delay.getTimes();
+		assertEquals(3, times.size());
+		// Each run starts an interval after the former one has finished.
+		for (int i = 1; i < times.size(); i++) {
+			assertTrue(times.get(i) - times.get(i - 1) >= 390);
+		}
+	}
+
+	/**
+	 * Test replacing a periodic task by reusing its id: the new task starts
+	 * at its own, later due time and the old cadence stops.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReplaceInterval() throws Exception {
+		final Recorder recorder = new Recorder();
+		final SimpleScheduler scheduler = scheduler("TestReplaceInterval",
+				recorder);
+		scheduler.scheduleInterval("p", tick("old"), scheduler.now(), 100,
+				Repetition.FIXED_RATE);
+		assertTrue(recorder.awaitTags(1, 5000).contains("old"));
+
+		final long replaced = scheduler.now();
+		final long start = replaced + 500;
+		scheduler.scheduleInterval("p", tick("new"), start, 60000,
+				Repetition.FIXED_RATE);
+		assertTrue(recorder.awaitTag("new", 5000));
+		scheduler.delete();
+
+		final List<String> tags = recorder.tags();
+		final List<Long> times = recorder.getTimes();
+		final int first = tags.indexOf("new");
+		assertTrue(times.get(first) >= start - 20);
+		for (int i = 0; i < tags.size(); i++) {
+			// Allow for a run of the old task that was already underway.
+			if ("old".equals(tags.get(i))) {
+				assertTrue(times.get(i) < replaced + 200);
+			}
+		}
+	}
+
+	/**
+	 * Test the offset estimate of the SyncScheduler with fake peers: a far
+	 * off peer is outvoted by the median, a large error is stepped, a small
+	 * one slewed.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSyncScheduler() throws Exception {
+		final Recorder recorder = new Recorder();
+		final URI a = URIUtil.create("local:peerA");
+		final URI b = URIUtil.create("local:peerB");
+		final URI c = URIUtil.create("local:peerC");
+		recorder.setPeerOffset(a, 1000);
+		recorder.setPeerOffset(b, 1010);
+		recorder.setPeerOffset(c, -50000);
+
+		final SyncSchedulerConfig config = SyncSchedulerConfig.create();
+		config.setId("TestSyncScheduler");
+		final SyncSchedulerBuilder builder = new SyncSchedulerBuilder();
+		builder.withConfig(config);
+		builder.withHandle(new SimpleHandler<Caller>(recorder));
+		final SyncScheduler scheduler = builder.build();
+		scheduler.setCaller(recorder);
+		scheduler.addPeer(a);
+		scheduler.addPeer(b);
+		scheduler.addPeer(c);
+
+		final long first = awaitSync(scheduler, 0);
+		ObjectNode stats = scheduler.getSyncStats();
+		final long stepped = stats.get("offset").asLong();
+		assertTrue(Math.abs(stepped - 1000) <= 20);
+		assertEquals(stepped, stats.get("target").asLong());
+
+		recorder.setPeerOffset(a, stepped + 50);
+		recorder.setPeerOffset(b, stepped + 60);
+		scheduler.sync();
+		awaitSync(scheduler, first);
+		stats = scheduler.getSyncStats();
+		// Within the step threshold: the target moves, the offset slews.
+		assertTrue(Math.abs(stats.get("target").asLong() - stepped - 50) <= 20);
+		assertTrue(Math.abs(stats.get("offset").asLong() - stepped) <= 2);
+		scheduler.delete();
+	}
+
+	private static long awaitSync(final SyncScheduler scheduler,
+			final long former) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			final long lastSync = scheduler.getSyncStats().get("lastSync")
+					.asLong();
+			if (lastSync != former) {
+				return lastSync;
+			}
+			Thread.sleep(100);
+		}
+		fail("Sync round didn't finish");
+		return former;
+	}
+
+	/**
+	 * Test the metrics counts: only cancellations that removed a pending
+	 * trigger are counted.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		final Recorder recorder = new Recorder();
+		final SimpleScheduler scheduler = scheduler("TestMetrics", recorder);
+		final SchedulerMetrics metrics = scheduler.getMetrics();
+		scheduler.schedule("a", tick("a"), 100);
+		scheduler.schedule("b", tick("b"), 150);
+		scheduler.schedule("c", tick("c"), 200);
+		assertEquals(3, metrics.getScheduled());
+
+		scheduler.cancel("b");
+		scheduler.cancel("b");
+		scheduler.cancel("unknown");
+		assertEquals(1, metrics.getCancelled());
+
+		// Triggers are counted as fired before they are sent.
+		assertEquals(Arrays.asList("a", "c"), recorder.awaitTags(2, 5000));
+		// Cancelling a trigger that already fired doesn't count either.
+		scheduler.cancel("a");
+		assertEquals(2, metrics.getFired());
+		assertEquals(1, metrics.getCancelled());
+		scheduler.delete();
+	}
+
+	/**
+	 * Test batch delivery: triggers due together go out as _triggerBatch
+	 * requests, a request with a callback splits the batch, and the due
+	 * order is kept across the split.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTriggerBatch() throws Exception {
+		final Recorder recorder = new Recorder();
+		final SimpleSchedulerConfig config = SimpleSchedulerConfig.create();
+		config.setId("TestTriggerBatch");
+		config.setBatchDelivery(true);
+		final DirectScheduler scheduler = new DirectScheduler(config,
+				new SimpleHandler<Caller>(recorder));
+		final List<String> expected = new ArrayList<String>();
+		// Holding the scheduler keeps the flush waiting until all triggers
+		// are in.
+		synchronized (scheduler) {
+			for (int i = 0; i < 20; i++) {
+				final JSONRequest request = tick("t" + i);
+				if (i == 10) {
+					request.setCallback(new AsyncCallback<JsonNode>() {
+						@Override
+						public void onSuccess(final JsonNode result) {}
+
+						@Override
+						public void onFailure(final Exception exception) {}
+					});
+				}
+				scheduler.trigger(request, "t" + i);
+				expected.add("t" + i);
+			}
+		}
+		assertEquals(expected, recorder.awaitTags(expected.size(), 5000));
+
+		final List<JSONRequest> sent = recorder.getSent();
+		assertEquals(3, sent.size());
+		assertEquals("_triggerBatch", sent.get(0).getMethod());
+		assertEquals(10, sent.get(0).getParams().get("messages").size());
+		assertEquals("t10", sent.get(1).getParams().get("tag").asText());
+		assertEquals("_triggerBatch", sent.get(2).getMethod());
+		assertEquals(9, sent.get(2).getParams().get("messages").size());
+		scheduler.clear();
+	}
+
+	/**
+	 * A scheduler that lets the test fire its triggers directly, in a known
+	 * order.
+	 */
+	private static class DirectScheduler extends SimpleScheduler {
+		DirectScheduler(final ObjectNode params, final Handler<Caller> handle) {
+			super(params, handle);
+		}
+
+		void trigger(final Object msg, final String triggerId) {
+			handleTrigger(msg, triggerId);
+		}
+	}
+
+	private static SimpleScheduler scheduler(final String id,
+			final Caller caller) {
+		final SimpleSchedulerConfig config = SimpleSchedulerConfig.create();
+		config.setId(id);
+		final SimpleSchedulerBuilder builder = new SimpleSchedulerBuilder();
+		builder.withConfig(config);
+		builder.withHandle(new SimpleHandler<Caller>(caller));
+		return builder.build();
+	}
+
+	private static String journalLine(final String id, final long due) {
+		final ObjectNode record = JOM.createObjectNode();
+		record.put("op", "s");
+		record.put("id", id);
+		record.put("due", due);
+		record.set("msg", JOM.getInstance().valueToTree(tick(id)));
+		return record.toString();
+	}
+
+	private static List<String> readLines(final File file) throws IOException {
+		return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+	}
+
+	private static JSONRequest tick(final String tag) {
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("tag", tag);
+		return new JSONRequest("tick", params);
+	}
+
+	/**
+	 * A Caller recording the requests a scheduler sends, in the order they
+	 * are sent. Requests with a callback are answered after the configured
+	 * delay, pings of a SyncScheduler with the time of the (fake) peer.
+	 */
+	public static class Recorder implements Caller {
+		private static final URI		URL		= URIUtil.create("local:recorder");
+		private final List<JSONRequest>	sent	= Collections
+														.synchronizedList(new ArrayList<JSONRequest>());
+		private final List<Long>		times	= Collections
+														.synchronizedList(new ArrayList<Long>());
+		private final Map<URI, Long>	offsets	= new ConcurrentHashMap<URI, Long>();
+		private volatile long			delay	= 0;
+
+		private void record(final Object message) {
+			synchronized (sent) {
+				times.add(System.currentTimeMillis());
+				sent.add((JSONRequest) JSONMessage.jsonConvert(message));
+				sent.notifyAll();
+			}
+		}
+
+		/**
+		 * Waits until at least the given number of tags has been sent, or
+		 * the timeout has passed.
+		 *
+		 * @param count
+		 *            the number of tags
+		 * @param timeout
+		 *            the timeout in milliseconds
+		 * @return the tags sent so far
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public List<String> awaitTags(final int count, final long timeout)
+				throws InterruptedException {
+			final long end = System.currentTimeMillis() + timeout;
+			synchronized (sent) {
+				List<String> result = tags();
+				long left = timeout;
+				while (result.size() < count && left > 0) {
+					sent.wait(left);
+					result = tags();
+					left = end - System.currentTimeMillis();
+				}
+				return result;
+			}
+		}
+
+		/**
+		 * Waits until the given tag has been sent, or the timeout has
+		 * passed.
+		 *
+		 * @param tag
+		 *            the tag
+		 * @param timeout
+		 *            the timeout in milliseconds
+		 * @return true, if the tag has been sent
+		 * @throws InterruptedException
+		 *             the interrupted exception
+		 */
+		public boolean awaitTag(final String tag, final long timeout)
+				throws InterruptedException {
+			final long end = System.currentTimeMillis() + timeout;
+			synchronized (sent) {
+				long left = timeout;
+				while (!tags().contains(tag) && left > 0) {
+					sent.wait(left);
+					left = end - System.currentTimeMillis();
+				}
+				return tags().contains(tag);
+			}
+		}
+
+		/**
+		 * Gets the tags of the sent tick requests, also of those in a
+		 * batch.
+		 *
+		 * @return the tags
+		 */
+		public List<String> tags() {
+			final List<String> result = new ArrayList<String>();
+			synchronized (sent) {
+				for (final JSONRequest request : sent) {
+					if ("_triggerBatch".equals(request.getMethod())) {
+						for (final JsonNode message : request.getParams().get(
+								"messages")) {
+							result.add(message.get("params").get("tag")
+									.asText());
+						}
+					} else {
+						result.add(request.getParams().get("tag").asText());
+					}
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Gets the requests sent so far.
+		 *
+		 * @return the sent requests
+		 */
+		public List<JSONRequest> getSent() {
+			synchronized (sent) {
+				return new ArrayList<JSONRequest>(sent);
+			}
+		}
+
+		/**
+		 * Gets the times the requests were sent.
+		 *
+		 * @return the times
+		 */
+		public List<Long> getTimes() {
+			synchronized (sent) {
+				return new ArrayList<Long>(times);
+			}
+		}
+
+		/**
+		 * Sets the time it takes to answer a request with a callback.
+		 *
+		 * @param delay
+		 *            the new delay
+		 */
+		public void setDelay(final long delay) {
+			this.delay = delay;
+		}
+
+		/**
+		 * Let this caller answer the pings to the given peer, with a time
+		 * the given offset away from the local time.
+		 *
+		 * @param peer
+		 *            the peer
+		 * @param offset
+		 *            the offset
+		 */
+		public void setPeerOffset(final URI peer, final long offset) {
+			offsets.put(peer, offset);
+		}
+
+		@Override
+		public List<URI> getSenderUrls() {
+			return Collections.singletonList(URL);
+		}
+
+		@Override
+		public URI getSenderUrlByScheme(final String scheme) {
+			return URL;
+		}
+
+		@Override
+		public void call(final URI url, final Object message)
+				throws IOException {
+			record(message);
+		}
+
+		@Override
+		public <T> void call(final URI url, final String method,
+				final ObjectNode params, final AsyncCallback<T> callback)
+				throws IOException {
+			final Long offset = offsets.get(url);
+			if ("syncScheduler.ping".equals(method) && offset != null) {
+				ThreadPool.getPool().execute(new Runnable() {
+					@SuppressWarnings("unchecked")
+					@Override
+					public void run() {
+						callback.onSuccess((T) Long.valueOf(System
+								.currentTimeMillis() + offset));
+					}
+				});
+				return;
+			}
+			record(new JSONRequest(method, params));
+			ThreadPool.getScheduledPool().schedule(new Runnable() {
+				@Override
+				public void run() {
+					callback.onSuccess(null);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public <T> void call(final URI url, final Method method,
+				final Object[] params, final AsyncCallback<T> callback)
+				throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void call(final URI url, final String method,
+				final ObjectNode params) throws IOException {
+			record(new JSONRequest(method, params));
+		}
+
+		@Override
+		public void call(final URI url, final Method method,
+				final Object[] params) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void call(final URI url, final JSONMessage request)
+				throws IOException {
+			record(request);
+		}
+
+		@Override
+		public <T> void call(final URI url, final JSONMessage request,
+				final String tag) throws IOException {
+			record(request);
+		}
+
+		@Override
+		public <T> T callSync(final URI url, final String method,
+				final ObjectNode params, final Class<T> clazz)
+				throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T> T callSync(final URI url, final String method,
+				final ObjectNode params, final TypeUtil<T> type)
+				throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T> T callSync(final URI url, final String method,
+				final ObjectNode params, final JavaType type)
+				throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T> T callSync(final URI url, final String method,
+				final ObjectNode params, final java.lang.reflect.Type type)
+				throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
 }
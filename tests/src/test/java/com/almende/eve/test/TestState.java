@@ -4,6 +4,22 @@
  */
 package com.almende.eve.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -11,17 +27,30 @@ import org.junit.Test;
 import com.almende.eve.capabilities.CapabilityBuilder;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateBuilder;
+import com.almende.eve.state.StateListener;
+import com.almende.eve.state.StateUpdate;
+import com.almende.eve.state.cache.CachedState;
+import com.almende.eve.state.cache.StateCacheConfig;
 import com.almende.eve.state.couch.CouchState;
 import com.almende.eve.state.couch.CouchStateBuilder;
 import com.almende.eve.state.couch.CouchStateConfig;
 import com.almende.eve.state.file.FileStateBuilder;
+import com.almende.eve.state.file.SmileCodec;
 import com.almende.eve.state.memory.MemoryStateConfig;
 import com.almende.eve.state.mongo.MongoState;
 import com.almende.eve.state.mongo.MongoStateBuilder;
 import com.almende.eve.state.mongo.MongoStateConfig;
+import com.almende.eve.state.offheap.OffHeapState;
+import com.almende.eve.state.offheap.OffHeapStateConfig;
 import com.almende.eve.state.redis.RedisStateConfig;
+import com.almende.util.TypeUtil;
 import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
 
 /**
  * The Class TestState.
@@ -65,6 +94,241 @@ public class TestState extends TestCase {
 		runTest(myState, myState2);
 	}
 
+	/**
+	 * Run batch test.
+	 * 
+	 * @param myState
+	 *            the my state
+	 */
+	public void runBatchTest(final State myState) {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("a", 1);
+		values.put("b", "two");
+		myState.putAll(values);
+
+		final Map<String, String> result = myState.getAll(
+				Arrays.asList("a", "b", "c"), String.class);
+		assertEquals(2, result.size());
+		assertEquals("two", result.get("b"));
+
+		assertTrue(myState.update(Arrays.asList("a"), new StateUpdate() {
+			@Override
+			public Map<String, Object> apply(final Map<String, JsonNode> current) {
+				final Map<String, Object> changes = new HashMap<String, Object>();
+				changes.put("a", current.get("a").asInt() + 1);
+				changes.put("b", null);
+				return changes;
+			}
+		}));
+		assertEquals(Integer.valueOf(2), myState.get("a", Integer.class));
+		assertFalse(myState.containsKey("b"));
+
+		myState.removeAll(Arrays.asList("a", "b"));
+		assertEquals(0, myState.getAll(Arrays.asList("a", "b")).size());
+		myState.delete();
+	}
+
+	/**
+	 * Test batch operations.
+	 */
+	@Test
+	public void testStateBatch() {
+		final MemoryStateConfig params = MemoryStateConfig.create();
+		params.setId("TestBatchAgent");
+		runBatchTest(new StateBuilder().withConfig(params).build());
+
+		final ObjectNode fileParams = JOM.createObjectNode();
+		fileParams.put("class", FileStateBuilder.class.getName());
+		fileParams.put("json", true);
+		fileParams.put("id", "TestBatchAgent");
+		runBatchTest(new StateBuilder().withConfig(fileParams).build());
+	}
+
+	/**
+	 * Test cached state.
+	 */
+	@Test
+	public void testCachedState() {
+		final MemoryStateConfig params = MemoryStateConfig.create();
+		params.setId("TestCachedAgent");
+		final StateCacheConfig cache = StateCacheConfig.create();
+		cache.setMaxEntries(10);
+		params.setCache(cache);
+
+		final State myState = new StateBuilder().withConfig(params).build();
+		final State myState2 = new StateBuilder().withConfig(params).build();
+		assertTrue(myState instanceof CachedState);
+		runTest(myState, myState2);
+
+		final State state = new StateBuilder().withConfig(params).build();
+		state.put("msg", "Hi There!");
+		assertEquals("Hi There!", state.get("msg", String.class));
+		assertEquals("Hi There!", state.get("msg", String.class));
+		assertTrue(((CachedState) state).getCacheStats().get("hits").asLong() >= 2);
+
+		// A change in the backend invalidates the cached value, also without
+		// listeners on the cached state.
+		((CachedState) state).getInner().put("msg", "Changed!");
+		assertEquals("Changed!", state.get("msg", String.class));
+		state.delete();
+	}
+
+	/**
+	 * Test a shared cache is dropped once all states using it are deleted.
+	 */
+	@Test
+	public void testSharedStateCache() {
+		final StateCacheConfig cache = StateCacheConfig.create();
+		cache.setScope("shared");
+		cache.setName("TestSharedCache");
+		final MemoryStateConfig params = MemoryStateConfig.create();
+		params.setId("TestSharedAgentA");
+		params.setCache(cache);
+		final CachedState a = (CachedState) new StateBuilder()
+				.withConfig(params).build();
+		params.setId("TestSharedAgentB");
+		final CachedState b = (CachedState) new StateBuilder()
+				.withConfig(params).build();
+		assertSame(a.getCache(), b.getCache());
+
+		a.put("msg", "A");
+		b.put("msg", "B");
+		a.delete();
+		assertEquals("B", b.get("msg", String.class));
+		b.delete();
+
+		final CachedState c = (CachedState) new StateBuilder()
+				.withConfig(params).build();
+		assertNotSame(a.getCache(), c.getCache());
+		assertEquals(0, c.getCache().size());
+		c.delete();
+	}
+
+	/**
+	 * Test a write behind cache doesn't share values with its callers, and
+	 * survives the deletion of another instance.
+	 */
+	@Test
+	public void testCachedStateWriteBehind() {
+		final MemoryStateConfig params = MemoryStateConfig.create();
+		params.setId("TestWriteBehindAgent");
+		final StateCacheConfig cache = StateCacheConfig.create();
+		cache.setWriteMode("behind");
+		cache.setWriteDelay(10);
+		params.setCache(cache);
+
+		final CachedState state = (CachedState) new StateBuilder()
+				.withConfig(params).build();
+		final CachedState other = (CachedState) new StateBuilder()
+				.withConfig(params).build();
+		final ArrayList<String> list = new ArrayList<String>();
+		list.add("a");
+		state.put("list", list);
+		list.add("b");
+		assertEquals(1, state.get("list", ArrayList.class).size());
+		state.get("list", ArrayList.class).add("c");
+		assertEquals(1, state.get("list", ArrayList.class).size());
+
+		state.flush();
+		assertEquals(1, other.getInner().get("list", ArrayList.class).size());
+
+		other.delete(true);
+		assertEquals(1, state.get("list", ArrayList.class).size());
+		assertTrue(state.getCacheStats().get("size").asInt() > 0);
+		state.delete();
+	}
+
+	/**
+	 * Test state change listeners.
+	 */
+	@Test
+	public void testStateListener() {
+		final MemoryStateConfig params = MemoryStateConfig.create();
+		params.setId("TestListenerAgent");
+		final State state = new StateBuilder().withConfig(params).build();
+
+		final List<String> changes = new ArrayList<String>();
+		final StateListener listener = new StateListener() {
+			@Override
+			public void onChange(final State source, final String key,
+					final JsonNode oldValue, final JsonNode newValue) {
+				changes.add(key + ":" + oldValue + "->" + newValue);
+			}
+		};
+		state.addListener(listener);
+		state.put("count", 1);
+		state.put("count", 1);
+		state.putIfUnchanged("count", 2, 1);
+		state.remove("count");
+		state.remove("count");
+		assertEquals(Arrays.asList("count:null->1", "count:1->2",
+				"count:2->null"), changes);
+
+		state.removeListener(listener);
+		state.put("count", 3);
+		assertEquals(3, changes.size());
+		state.delete();
+	}
+
+	/**
+	 * Test off heap state.
+	 */
+	@Test
+	public void testOffHeapState() {
+		final OffHeapStateConfig params = OffHeapStateConfig.create();
+		params.setId("TestOffHeapAgent");
+		params.setArenaSize(4096);
+
+		final State myState = new StateBuilder().withConfig(params).build();
+		final State myState2 = new StateBuilder().withConfig(params).build();
+		assertTrue(myState instanceof OffHeapState);
+		runTest(myState, myState2);
+
+		final OffHeapState state = (OffHeapState) new StateBuilder()
+				.withConfig(params).build();
+		for (int i = 0; i < 1000; i++) {
+			state.put("key" + i, i);
+		}
+		state.put("large", new String(new char[10000]).replace('\0', 'x'));
+		for (int i = 0; i < 1000; i += 2) {
+			state.remove("key" + i);
+		}
+		assertEquals(501, state.size());
+		assertEquals(Integer.valueOf(999), state.get("key999", Integer.class));
+		assertFalse(state.containsKey("key998"));
+		assertEquals(10000, state.get("large", String.class).length());
+		assertEquals(501, state.getMemoryStats().get("stateRecords").asInt());
+		state.delete();
+		assertEquals(0, state.getMemoryStats().get("stateRecords").asInt());
+	}
+
+	/**
+	 * Test decoded value cache.
+	 */
+	@Test
+	public void testDecodeCache() {
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("class", FileStateBuilder.class.getName());
+		params.put("json", true);
+		params.put("id", "TestDecodeAgent");
+		params.put("decodeCache", "copy");
+		final State state = new StateBuilder().withConfig(params).build();
+
+		final TypeUtil<ArrayList<String>> type = new TypeUtil<ArrayList<String>>() {};
+		state.put("neighbours", new ArrayList<String>(Arrays.asList("a", "b")));
+		final ArrayList<String> first = state.get("neighbours", type);
+		first.add("c");
+		final ArrayList<String> second = state.get("neighbours", type);
+		assertEquals(Arrays.asList("a", "b"), second);
+		assertNotSame(first, second);
+
+		state.put("neighbours", new ArrayList<String>(Arrays.asList("d")));
+		assertEquals(Arrays.asList("d"), state.get("neighbours", type));
+		state.remove("neighbours");
+		assertNull(state.get("neighbours", type));
+		state.delete();
+	}
+
 	/**
 	 * Test file state.
 	 */
@@ -91,6 +355,34 @@ public class TestState extends TestCase {
 
 	}
 
+	/**
+	 * Test the Smile codec of the serializable file state.
+	 */
+	@Test
+	public void testFileStateCodec() {
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("class", FileStateBuilder.class.getName());
+		params.put("json", false);
+		params.put("codec", "smile");
+		params.put("path", ".eveagents_smile");
+		params.put("id", "TestCodecAgent");
+		final State myState = new StateBuilder().withConfig(params).build();
+		final State myState2 = new StateBuilder().withConfig(params).build();
+		runTest(myState, myState2);
+
+		final State state = new StateBuilder().withConfig(params).build();
+		final HashMap<String, Long> counts = new HashMap<String, Long>();
+		counts.put("a", 1L);
+		state.put("counts", counts);
+		state.put("big", Long.MAX_VALUE);
+		state.put("list", new ArrayList<Object>(Arrays.asList(1, 2L, "3")));
+		assertEquals(counts, state.get("counts", HashMap.class));
+		assertEquals(Long.MAX_VALUE, state.get("big", Long.class).longValue());
+		assertEquals(Arrays.asList(1, 2L, "3"),
+				state.get("list", ArrayList.class));
+		state.delete();
+	}
+
 	/**
 	 * Test file state.
 	 */
@@ -129,6 +421,60 @@ public class TestState extends TestCase {
 		runTest(myState, myState2);
 	}
 
+	/**
+	 * Test field level writes, value encoding and legacy migration of the
+	 * MongoState.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMongoStateFields() throws Exception {
+		final MongoStateConfig params = MongoStateConfig.create();
+		params.setId("TestFieldAgent");
+
+		final MongoState myState = new MongoStateBuilder().withConfig(params)
+				.build();
+		final MongoState myState2 = new MongoStateBuilder().withConfig(params)
+				.build();
+		myState.put("a", 1);
+		myState2.put("b", 2);
+		assertEquals(Integer.valueOf(2), myState.get("b", Integer.class));
+		assertEquals(Integer.valueOf(1), myState2.get("a", Integer.class));
+
+		// Only the holder of the current value succeeds.
+		assertTrue(myState.putIfUnchanged("a", 3, 1));
+		assertFalse(myState2.putIfUnchanged("a", 4, 1));
+		assertTrue(myState2.putIfUnchanged("a", 4, 3));
+
+		final ObjectNode nested = JOM.createObjectNode();
+		nested.put("$date", "not a date");
+		nested.put("with.dot", true);
+		nested.put("big", new BigDecimal("3.14159265358979323846264338327950288"));
+		myState.put("nested", nested);
+		final JsonNode stored = new MongoStateBuilder().withConfig(params)
+				.build().get("nested");
+		assertEquals(nested.toString(), stored.toString());
+		myState.delete();
+
+		// A document in the old single-string layout is migrated on load.
+		final MongoClient client = new MongoClient("localhost");
+		final DBCollection collection = client.getDB(params.getDatabase())
+				.getCollection(params.getCollection());
+		collection.save(new BasicDBObject("_id", "TestLegacyAgent").append(
+				"properties", "{\"msg\":\"old\"}"));
+		params.setId("TestLegacyAgent");
+		final MongoState legacy = new MongoStateBuilder().withConfig(params)
+				.build();
+		assertEquals("old", legacy.get("msg", String.class));
+		assertTrue(collection.findOne("TestLegacyAgent").get("properties") instanceof DBObject);
+		legacy.put("msg", "new");
+		assertEquals("new", new MongoStateBuilder().withConfig(params).build()
+				.get("msg", String.class));
+		legacy.delete();
+		client.close();
+	}
+
 	/**
 	 * Test me.
 	 */
@@ -148,4 +494,166 @@ public class TestState extends TestCase {
 		myState2 = new CouchStateBuilder().withConfig(params).build();
 		runTest(myState, myState2);
 	}
+
+	/**
+	 * Test batched writes of the CouchState: concurrent writers of the same
+	 * document end up in a few bulk writes, without losing changes.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCouchStateBatch() throws Exception {
+		final CouchStateConfig params = CouchStateConfig.create();
+		params.setId("TestBatchAgent");
+		params.setUrl("http://localhost:5984");
+		params.setBatchWindow(50);
+
+		final CouchState myState = new CouchStateBuilder().withConfig(params)
+				.build();
+		final CouchState myState2 = new CouchStateBuilder().withConfig(params)
+				.build();
+		for (int i = 0; i < 20; i++) {
+			myState.put("a" + i, i);
+			myState2.put("b" + i, i);
+		}
+		Thread.sleep(1000);
+
+		final CouchState reloaded = new CouchStateBuilder().withConfig(params)
+				.build();
+		for (int i = 0; i < 20; i++) {
+			assertEquals(Integer.valueOf(i),
+					reloaded.get("a" + i, Integer.class));
+			assertEquals(Integer.valueOf(i),
+					reloaded.get("b" + i, Integer.class));
+		}
+		reloaded.delete();
+	}
+
+	/**
+	 * Test the snapshot file of MemoryStates: restore, torn record
+	 * truncation, writing changes, tombstones and compaction.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMemoryStateSnapshot() throws Exception {
+		final File file = File.createTempFile("eve-snapshot", ".bin");
+		file.deleteOnExit();
+		final DataOutputStream out = new DataOutputStream(
+				new FileOutputStream(file));
+		writeRecord(out, fullRecord("SnapAgent", "msg", "restored"));
+		writeRecord(out, fullRecord("SnapGone", "msg", "gone"));
+		final HashMap<String, Serializable> tombstone = new HashMap<String, Serializable>();
+		tombstone.put("id", "SnapGone");
+		tombstone.put("deleted", true);
+		writeRecord(out, tombstone);
+		final long valid = out.size();
+		// Torn record: announces more bytes than written
+		out.writeInt(100);
+		out.write(new byte[10]);
+		out.close();
+
+		final MemoryStateConfig params = MemoryStateConfig.create();
+		params.setId("SnapAgent");
+		params.setSnapshotPath(file.getPath());
+		params.setSnapshotInterval(50);
+		State state = new StateBuilder().withConfig(params).build();
+		assertEquals("restored", state.get("msg", String.class));
+		assertEquals(valid, file.length());
+		final MemoryStateConfig gone = MemoryStateConfig.decorate(params);
+		gone.setId("SnapGone");
+		assertNull(new StateBuilder().withConfig(gone).build()
+				.get("msg", String.class));
+
+		// Deleted and recreated within one interval
+		state.put("secret", "x");
+		Thread.sleep(200);
+		state.delete();
+		state = new StateBuilder().withConfig(params).build();
+		state.put("other", "y");
+		Thread.sleep(200);
+		Map<String, Map<String, Serializable>> restored = fold(readRecords(file));
+		assertEquals(1, restored.get("SnapAgent").size());
+		assertEquals("y", restored.get("SnapAgent").get("other"));
+
+		// Outgrow the full snapshot, the next flush compacts
+		final char[] big = new char[1100 * 1024];
+		Arrays.fill(big, 'z');
+		state.put("big", new String(big));
+		Thread.sleep(300);
+		for (final Map<String, Serializable> record : readRecords(file)) {
+			assertEquals(Boolean.TRUE, record.get("full"));
+		}
+		state.remove("big");
+		Thread.sleep(200);
+		restored = fold(readRecords(file));
+		assertEquals(1, restored.get("SnapAgent").size());
+		state.delete();
+	}
+
+	private static HashMap<String, Serializable> fullRecord(final String id,
+			final String key, final String value) {
+		final HashMap<String, Serializable> values = new HashMap<String, Serializable>();
+		values.put(key, value);
+		final HashMap<String, Serializable> record = new HashMap<String, Serializable>();
+		record.put("id", id);
+		record.put("full", true);
+		record.put("values", values);
+		return record;
+	}
+
+	private static void writeRecord(final DataOutputStream out,
+			final Map<String, Serializable> record) throws Exception {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new SmileCodec().write(record, bos);
+		out.writeInt(bos.size());
+		bos.writeTo(out);
+	}
+
+	private static List<Map<String, Serializable>> readRecords(final File file)
+			throws Exception {
+		final List<Map<String, Serializable>> result = new ArrayList<Map<String, Serializable>>();
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+				file));
+		try {
+			while (true) {
+				final byte[] frame = new byte[in.readInt()];
+				in.readFully(frame);
+				result.add(new SmileCodec().read(new ByteArrayInputStream(
+						frame)));
+			}
+		} catch (final EOFException e) {
+			// End of snapshot
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Map<String, Serializable>> fold(
+			final List<Map<String, Serializable>> records) {
+		final Map<String, Map<String, Serializable>> result = new HashMap<String, Map<String, Serializable>>();
+		for (final Map<String, Serializable> record : records) {
+			final String id = (String) record.get("id");
+			if (Boolean.TRUE.equals(record.get("deleted"))) {
+				result.remove(id);
+				continue;
+			}
+			if (!result.containsKey(id)
+					|| Boolean.TRUE.equals(record.get("full"))) {
+				result.put(id, new HashMap<String, Serializable>());
+			}
+			result.get(id).putAll(
+					(Map<String, Serializable>) record.get("values"));
+			if (record.containsKey("removed")) {
+				for (final String key : (List<String>) record.get("removed")) {
+					result.get(id).remove(key);
+				}
+			}
+		}
+		return result;
+	}
 }
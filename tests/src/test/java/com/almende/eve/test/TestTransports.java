@@ -6,6 +6,19 @@ package com.almende.eve.test;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -81,6 +94,110 @@ public class TestTransports extends TestCase {
 				"Hello World", null, null);
 	}
 
+	/**
+	 * Test sending many messages at once through the pooled ZMQ sockets, to
+	 * an authenticating receiver: each message arrives exactly once, also
+	 * those queued during the handshake.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testZmqPooled() throws Exception {
+		final int count = 500;
+		final Set<Object> received = Collections
+				.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+		final AtomicInteger duplicates = new AtomicInteger(0);
+		final CountDownLatch latch = new CountDownLatch(count);
+
+		final ZmqTransportConfig receiverConfig = ZmqTransportConfig.create();
+		receiverConfig.setAddress("zmq://tcp://127.0.0.1:5679");
+		receiverConfig.setDoAuthentication(true);
+		final Transport receiver = new TransportBuilder()
+				.withConfig(receiverConfig).withHandle(new MyReceiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						if (!received.add(msg)) {
+							duplicates.incrementAndGet();
+						}
+						latch.countDown();
+					}
+				}).build();
+		receiver.connect();
+
+		final ZmqTransportConfig senderConfig = ZmqTransportConfig.create();
+		senderConfig.setAddress("zmq://tcp://127.0.0.1:5680");
+		senderConfig.setSocketsPerPeer(4);
+		final Transport sender = new TransportBuilder()
+				.withConfig(senderConfig).withHandle(new MyReceiver()).build();
+		// Answers the handshakes of the receiver.
+		sender.connect();
+
+		for (int i = 0; i < count; i++) {
+			sender.send(URIUtil.create("zmq://tcp://127.0.0.1:5679"),
+					"Hello " + i, null, null);
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertEquals(count, received.size());
+		assertEquals(0, duplicates.get());
+		sender.disconnect();
+		receiver.disconnect();
+	}
+
+	/**
+	 * Test binary messages through the in-process ZMQ transport: the bytes
+	 * arrive unchanged, also those that aren't valid UTF-8.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testZmqInprocBinary() throws Exception {
+		final byte[] data = new byte[256];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+
+		final ZmqTransportConfig receiverConfig = ZmqTransportConfig.create();
+		receiverConfig.setAddress("zmq://tcp://127.0.0.1:5681");
+		receiverConfig.setInproc(true);
+		receiverConfig.setBinary(true);
+		final Transport receiver = new TransportBuilder()
+				.withConfig(receiverConfig).withHandle(new MyReceiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						received.add(msg);
+					}
+				}).build();
+		receiver.connect();
+
+		final ZmqTransportConfig senderConfig = ZmqTransportConfig.create();
+		senderConfig.setAddress("zmq://tcp://127.0.0.1:5682");
+		senderConfig.setInproc(true);
+		final Transport sender = new TransportBuilder()
+				.withConfig(senderConfig).withHandle(new MyReceiver()).build();
+		sender.connect();
+		// Give the listener time to bind its in-process address.
+		Thread.sleep(200);
+
+		final URI receiverUrl = URIUtil.create("zmq://tcp://127.0.0.1:5681");
+		sender.send(receiverUrl, data, null, null);
+		Object msg = received.poll(5, TimeUnit.SECONDS);
+		assertTrue(msg instanceof byte[]);
+		assertTrue(Arrays.equals(data, (byte[]) msg));
+
+		// Text is handed over as its UTF-8 bytes.
+		sender.send(receiverUrl, "Hello \u20ac", null, null);
+		msg = received.poll(5, TimeUnit.SECONDS);
+		assertTrue(msg instanceof byte[]);
+		assertEquals("Hello \u20ac", new String((byte[]) msg, "UTF-8"));
+		sender.disconnect();
+		receiver.disconnect();
+	}
+
 	/**
 	 * Test local transport.
 	 * 
@@ -166,6 +283,56 @@ public class TestTransports extends TestCase {
 		} catch (InterruptedException e) {}
 	}
 
+	/**
+	 * Test the high-throughput AMQP settings: raw messages, pooled channels,
+	 * prefetch, batched acks and publisher confirms. Runs against the broker
+	 * given by the "eve.amqp.uri" system property, e.g. an embedded broker.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAmqpRaw() throws Exception {
+		final int count = 1000;
+		final AmqpTransportConfig config = AmqpTransportConfig.create();
+		config.setId("testRaw");
+		config.setHostUri(System.getProperty("eve.amqp.uri",
+				"amqp://localhost"));
+		config.setDoShortcut(false);
+		config.setRaw(true);
+		config.setChannelPoolSize(4);
+		config.setPrefetch(200);
+		config.setAckBatch(50);
+		config.setPublisherConfirms(true);
+
+		final CountDownLatch latch = new CountDownLatch(count);
+		final Transport transport = new TransportBuilder().withConfig(config)
+				.withHandle(new MyReceiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						latch.countDown();
+					}
+				}).build();
+		transport.connect();
+
+		final AsyncCallback<Void> callback = new AsyncCallback<Void>() {
+			@Override
+			public void onSuccess(final Void result) {}
+
+			@Override
+			public void onFailure(final Exception e) {
+				LOG.log(Level.WARNING, "Failed to send amqp message", e);
+			}
+		};
+		for (int i = 0; i < count; i++) {
+			transport.send(URI.create("amqp:testRaw"), "Hello " + i, null,
+					callback);
+		}
+		assertTrue(latch.await(20, TimeUnit.SECONDS));
+		transport.disconnect();
+	}
+
 	/**
 	 * Test Websocket transport.
 	 * 
@@ -203,6 +370,135 @@ public class TestTransports extends TestCase {
 
 	}
 
+	/**
+	 * Test relaying between websocket clients, sharing a single connection.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testWsRouting() throws Exception {
+		final WebsocketTransportConfig serverConfig = WebsocketTransportConfig
+				.create();
+		serverConfig.setAddress("ws://localhost:8082/ws/routingServer");
+		serverConfig.setServer(true);
+		serverConfig.setServletLauncher("JettyLauncher");
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8082);
+		serverConfig.set("jetty", jettyParms);
+
+		new TransportBuilder().withConfig(serverConfig)
+				.withHandle(new MyReceiver()).build();
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final WebsocketTransportConfig configA = WebsocketTransportConfig
+				.create();
+		configA.setId("routeA");
+		configA.setServerUrl("ws://localhost:8082/ws/routingServer");
+		configA.setMultiplexed(true);
+		final WsClientTransport clientA = new WsClientTransportBuilder()
+				.withConfig(configA).withHandle(new MyReceiver()).build();
+
+		final WebsocketTransportConfig configB = WebsocketTransportConfig
+				.create();
+		configB.setId("routeB");
+		configB.setServerUrl("ws://localhost:8082/ws/routingServer");
+		configB.setMultiplexed(true);
+		final WsClientTransport clientB = new WsClientTransportBuilder()
+				.withConfig(configB).withHandle(new MyReceiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						super.receive(msg, senderUrl, tag);
+						if ("wsclient:routeA".equals(senderUrl
+								.toASCIIString())) {
+							latch.countDown();
+						}
+					}
+				}).build();
+		clientA.connect();
+		clientB.connect();
+
+		clientA.send(URIUtil.create("wsclient:routeB"), "Hi B!", null, null);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test binary websocket frames, handled in order of arrival, and answered
+	 * from the handler: writes on the connection's serial executor don't
+	 * block it.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testWsBinary() throws Exception {
+		final int count = 100;
+		final List<Integer> received = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> answered = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch answers = new CountDownLatch(count);
+		final AtomicReference<Transport> server = new AtomicReference<Transport>();
+
+		final WebsocketTransportConfig serverConfig = WebsocketTransportConfig
+				.create();
+		serverConfig.setAddress("ws://localhost:8082/ws/binaryServer");
+		serverConfig.setServer(true);
+		serverConfig.setServletLauncher("JettyLauncher");
+		final ObjectNode jettyParms = JOM.createObjectNode();
+		jettyParms.put("port", 8082);
+		serverConfig.set("jetty", jettyParms);
+		server.set(new TransportBuilder().withConfig(serverConfig)
+				.withHandle(new MyReceiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						final byte[] bytes = (byte[]) msg;
+						assertEquals(4, bytes.length);
+						received.add(ByteBuffer.wrap(bytes).getInt());
+						try {
+							server.get().send(senderUrl, bytes, null, null);
+						} catch (final IOException e) {
+							fail(e.getMessage());
+						}
+					}
+				}).build());
+
+		final WebsocketTransportConfig clientConfig = WebsocketTransportConfig
+				.create();
+		clientConfig.setId("binaryClient");
+		clientConfig.setServerUrl("ws://localhost:8082/ws/binaryServer");
+		final WsClientTransport client = new WsClientTransportBuilder()
+				.withConfig(clientConfig).withHandle(new MyReceiver() {
+					@Override
+					public void receive(final Object msg, final URI senderUrl,
+							final String tag) {
+						answered.add(ByteBuffer.wrap((byte[]) msg).getInt());
+						answers.countDown();
+					}
+				}).build();
+		client.connect();
+
+		final URI serverUrl = URIUtil
+				.create("ws://localhost:8082/ws/binaryServer");
+		final List<Integer> expected = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			client.send(serverUrl, ByteBuffer.allocate(4).putInt(i).array(),
+					null, null);
+			expected.add(i);
+		}
+
+		assertTrue(answers.await(10, TimeUnit.SECONDS));
+		synchronized (received) {
+			assertEquals(expected, received);
+		}
+		synchronized (answered) {
+			assertEquals(expected, answered);
+		}
+		client.disconnect();
+	}
+
 	/**
 	 * The Class myReceiver.
 	 */
@@ -0,0 +1,163 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.tokens;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Stateless alternative to the {@link TokenStore} handshake: peers share a
+ * secret, each outbound call carries an HMAC-SHA256 signature over the
+ * sender, the receiver and the current time. The receiver verifies the
+ * signature locally, without calling back to the sender. Signatures are
+ * valid for a limited time window. The sender reuses its token for the same
+ * receiver during the first half of that window, and the receiver caches
+ * verified tokens until they expire, so repeated calls skip the HMAC
+ * computation on both ends.
+ */
+public final class TokenSigner {
+	private static final Logger			LOG			= Logger.getLogger(TokenSigner.class
+														.getCanonicalName());
+	private static final String			ALGORITHM	= "HmacSHA256";
+	private static final Charset		UTF8		= Charset.forName("UTF-8");
+	private static final long			WINDOW		= 5 * 60 * 1000;
+	private static final int			CACHESIZE	= 1024;
+	private final SecretKeySpec			key;
+	private final Map<String, Long>		verified;
+	private final Map<String, String>	signed;
+
+	/**
+	 * Instantiates a new token signer.
+	 *
+	 * @param secret
+	 *            the pre-shared secret
+	 */
+	public TokenSigner(final String secret) {
+		key = new SecretKeySpec(secret.getBytes(UTF8), ALGORITHM);
+		verified = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Long> eldest) {
+				return size() > CACHESIZE;
+			}
+		};
+		signed = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, String> eldest) {
+				return size() > CACHESIZE;
+			}
+		};
+	}
+
+	/**
+	 * Sign a call from sender to receiver. A token signed less than half a
+	 * window ago is reused, so it is still valid when it arrives.
+	 *
+	 * @param sender
+	 *            the sender url
+	 * @param receiver
+	 *            the receiver url
+	 * @return the signed token, "time:signature"
+	 */
+	public String sign(final String sender, final String receiver) {
+		final long now = System.currentTimeMillis();
+		final String cacheKey = sender + "\n" + receiver;
+		synchronized (signed) {
+			final String token = signed.get(cacheKey);
+			if (token != null
+					&& now - Long.parseLong(token.substring(0,
+							token.indexOf(':'))) < WINDOW / 2) {
+				return token;
+			}
+		}
+		final String time = String.valueOf(now);
+		final String token = time + ":"
+				+ Base64.encodeBase64String(mac(time, sender, receiver));
+		synchronized (signed) {
+			signed.put(cacheKey, token);
+		}
+		return token;
+	}
+
+	/**
+	 * Verify a signed token of a call from sender to receiver.
+	 *
+	 * @param token
+	 *            the signed token
+	 * @param sender
+	 *            the sender url
+	 * @param receiver
+	 *            the receiver url
+	 * @return true, if the token is signed with the shared secret and not
+	 *         expired.
+	 */
+	public boolean verify(final String token, final String sender,
+			final String receiver) {
+		if (token == null || sender == null || receiver == null) {
+			return false;
+		}
+		final int split = token.indexOf(':');
+		if (split <= 0) {
+			return false;
+		}
+		final long time;
+		try {
+			time = Long.parseLong(token.substring(0, split));
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+		final long now = System.currentTimeMillis();
+		if (Math.abs(now - time) > WINDOW) {
+			return false;
+		}
+		final String cacheKey = token + "\n" + sender + "\n" + receiver;
+		synchronized (verified) {
+			final Long expires = verified.get(cacheKey);
+			if (expires != null && expires > now) {
+				return true;
+			}
+		}
+		final byte[] expected = mac(token.substring(0, split), sender,
+				receiver);
+		// Constant time comparison.
+		if (expected.length == 0
+				|| !MessageDigest.isEqual(expected,
+				Base64.decodeBase64(token.substring(split + 1)))) {
+			return false;
+		}
+		synchronized (verified) {
+			verified.put(cacheKey, time + WINDOW);
+		}
+		return true;
+	}
+
+	private byte[] mac(final String time, final String sender,
+			final String receiver) {
+		try {
+			final Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac.doFinal((time + "\n" + sender + "\n" + receiver)
+					.getBytes(UTF8));
+		} catch (final GeneralSecurityException e) {
+			LOG.log(Level.SEVERE, "Couldn't compute token signature", e);
+			return new byte[0];
+		}
+	}
+}
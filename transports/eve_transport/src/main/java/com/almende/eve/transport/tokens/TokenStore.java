@@ -4,7 +4,9 @@
  */
 package com.almende.eve.transport.tokens;
 
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,6 +30,7 @@ public final class TokenStore {
 	private static final int	SIZE	= 5;
 	private Map<String, String>	tokens	= new ConcurrentHashMap<String, String>(
 												5);
+	private final Queue<String>	order	= new LinkedList<String>();
 	private DateTime			last	= DateTime.now();
 
 	/**
@@ -66,19 +69,12 @@ public final class TokenStore {
 			tokens.put(now.toString(), token);
 			last = now;
 
-			if (tokens.size() > SIZE + 2) {
-				DateTime oldest = last;
-				for (final String time : tokens.keySet()) {
-					try {
-						if (DateTime.parse(time).isBefore(oldest)) {
-							oldest = DateTime.parse(time);
-						}
-					} catch (final Exception e) {
-						LOG.log(Level.WARNING, "Failed in eviction of tokens:",
-								e);
-					}
+			// Tokens are created in time order, evict the oldest.
+			synchronized (order) {
+				order.add(now.toString());
+				while (order.size() > SIZE + 2) {
+					tokens.remove(order.poll());
 				}
-				tokens.remove(oldest.toString());
 			}
 		} else {
 			result = new TokenRet(tokens.get(last.toString()), last);
@@ -7,10 +7,22 @@ package com.almende.eve.transport.amqp;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,6 +38,7 @@ import com.almende.util.callback.AsyncCallback;
 import com.almende.util.threads.ThreadPool;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Consumer;
@@ -33,15 +46,40 @@ import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 
 /**
- * The Class AmqpTransport.
+ * The Class AmqpTransport. Messages are published on a pool of channels, and
+ * consumed on a channel of their own. In raw mode the addressing goes in AMQP
+ * headers, instead of a JSON envelop around the message.
  */
 public class AmqpTransport extends AbstractTransport {
-	private static final Logger	LOG			= Logger.getLogger(AmqpTransport.class
-													.getName());
-	private ConnectionFactory	factory		= null;
-	private Connection			connection	= null;
-	private Channel				channel		= null;
-	private String				myId		= "";
+	private static final Logger						LOG				= Logger.getLogger(AmqpTransport.class
+																			.getName());
+	private static final Charset					UTF8			= Charset.forName("UTF-8");
+	private static final String						FROM			= "eve-from";
+	private static final String						TO				= "eve-to";
+	private static final String						TEXT			= "text/plain";
+	private static final String						BINARY			= "application/octet-stream";
+	// Max time between handling a message and acknowledging it.
+	private static final long						ACKINTERVAL		= 100;
+	// Max time to wait for a free channel.
+	private static final long						CHANNELTIMEOUT	= 30000;
+	private ConnectionFactory						factory			= null;
+	private Connection								connection		= null;
+	private Channel									channel			= null;
+	private volatile BlockingQueue<PooledChannel>	channels		= null;
+	private String									myId			= "";
+	private final int								poolSize;
+	private final int								prefetch;
+	private final int								ackBatch;
+	private final boolean							confirms;
+	private final boolean							raw;
+	private final Object							ackLock			= new Object();
+	// Deliveries are acknowledged (cumulatively) up to lastTag: the highest
+	// tag up to which all deliveries are handled. Handled deliveries beyond
+	// a gap wait in handled.
+	private long									lastTag			= 0;
+	private final SortedSet<Long>					handled			= new TreeSet<Long>();
+	private int										unacked			= 0;
+	private ScheduledFuture<?>						ackFlusher		= null;
 
 	/**
 	 * Instantiates a new AMQP transport.
@@ -58,6 +96,11 @@ public class AmqpTransport extends AbstractTransport {
 		super(URIUtil.create("amqp:" + config.getId()), newHandle, amqpService,
 				config);
 		myId = config.getId();
+		poolSize = Math.max(1, config.getChannelPoolSize());
+		prefetch = config.getPrefetch();
+		ackBatch = config.getAckBatch();
+		confirms = config.isPublisherConfirms();
+		raw = config.isRaw();
 		factory = new ConnectionFactory();
 		try {
 			factory.setUri(config.getHostUri());
@@ -77,13 +120,12 @@ public class AmqpTransport extends AbstractTransport {
 	public <T> void send(final URI receiverUri, final String message,
 			final String tag, final AsyncCallback<T> callback)
 			throws IOException {
-		if (channel != null && channel.isOpen()) {
-			final String to = receiverUri.getRawSchemeSpecificPart();
-			final String msg = JSONEnvelop.wrapAsString(myId, to, message);
-			LOG.warning("Sending '" + msg + "' to:" + to);
-			channel.basicPublish("", to, null, msg.getBytes());
+		final String to = receiverUri.getRawSchemeSpecificPart();
+		if (raw) {
+			publish(to, properties(to, TEXT), message.getBytes(UTF8), callback);
 		} else {
-			throw new IOException("Amqp transport not connected!");
+			final String msg = JSONEnvelop.wrapAsString(myId, to, message);
+			publish(to, null, msg.getBytes(UTF8), callback);
 		}
 	}
 
@@ -96,7 +138,140 @@ public class AmqpTransport extends AbstractTransport {
 	public <T> void send(final URI receiverUri, final byte[] message,
 			final String tag, final AsyncCallback<T> callback)
 			throws IOException {
-		send(receiverUri, Base64.encodeBase64String(message), tag, callback);
+		if (raw) {
+			final String to = receiverUri.getRawSchemeSpecificPart();
+			publish(to, properties(to, BINARY), message, callback);
+		} else {
+			send(receiverUri, Base64.encodeBase64String(message), tag,
+					callback);
+		}
+	}
+
+	private AMQP.BasicProperties properties(final String to,
+			final String contentType) {
+		final Map<String, Object> headers = new HashMap<String, Object>(2);
+		headers.put(FROM, myId);
+		headers.put(TO, to);
+		return new AMQP.BasicProperties.Builder().contentType(contentType)
+				.headers(headers).build();
+	}
+
+	private void publish(final String to, final AMQP.BasicProperties props,
+			final byte[] body, final AsyncCallback<?> callback)
+			throws IOException {
+		final BlockingQueue<PooledChannel> pool = channels;
+		if (pool == null) {
+			throw new IOException("Amqp transport not connected!");
+		}
+		final PooledChannel pooled;
+		try {
+			pooled = pool.poll(CHANNELTIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a channel", e);
+		}
+		if (pooled == null) {
+			throw new IOException("No channel available to publish on");
+		}
+		try {
+			if (!pooled.channel.isOpen()) {
+				throw new IOException("Amqp transport not connected!");
+			}
+			pooled.publish(to, props, body, callback);
+		} finally {
+			pool.offer(pooled);
+		}
+	}
+
+	private void receive(final Channel consumerChannel,
+			final Envelope envelope, final AMQP.BasicProperties properties,
+			final byte[] body) throws IOException {
+		final long deliveryTag = envelope.getDeliveryTag();
+		boolean dispatched = false;
+		try {
+			final Map<String, Object> headers = properties == null ? null
+					: properties.getHeaders();
+			if (headers != null && headers.containsKey(FROM)) {
+				// Header values arrive as LongStrings.
+				if (myId.equals(String.valueOf(headers.get(TO)))) {
+					final Object message = BINARY.equals(properties
+							.getContentType()) ? body : new String(body, UTF8);
+					deliver(message, String.valueOf(headers.get(FROM)),
+							consumerChannel, deliveryTag);
+					dispatched = true;
+				}
+			} else {
+				final JSONEnvelop.Envelop res = JSONEnvelop.unwrap(new String(
+						body, UTF8));
+				if (myId.equals(res.getTo())) {
+					deliver(res.getMessage(), res.getFrom(), consumerChannel,
+							deliveryTag);
+					dispatched = true;
+				}
+			}
+		} finally {
+			// Dispatched deliveries are acknowledged once handled.
+			if (!dispatched) {
+				acknowledge(consumerChannel, deliveryTag);
+			}
+		}
+	}
+
+	private void deliver(final Object message, final String from,
+			final Channel consumerChannel, final long deliveryTag) {
+		ThreadPool.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					getHandle().get().receive(message,
+							URIUtil.create("amqp:" + from), null);
+				} finally {
+					acknowledge(consumerChannel, deliveryTag);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Mark the delivery as handled. Deliveries are handled concurrently, so
+	 * the cumulative acknowledgement only moves up to the first delivery
+	 * that is still being handled.
+	 */
+	private void acknowledge(final Channel consumerChannel,
+			final long deliveryTag) {
+		if (ackBatch <= 0) {
+			return;
+		}
+		synchronized (ackLock) {
+			if (consumerChannel != channel) {
+				// The channel is gone, the broker redelivers its messages.
+				return;
+			}
+			handled.add(deliveryTag);
+			while (!handled.isEmpty() && handled.first() == lastTag + 1) {
+				handled.remove(handled.first());
+				lastTag++;
+				unacked++;
+			}
+			if (unacked >= ackBatch) {
+				flushAcks();
+			}
+		}
+	}
+
+	private void flushAcks() {
+		synchronized (ackLock) {
+			if (unacked == 0 || channel == null) {
+				return;
+			}
+			try {
+				// Acknowledges all messages up to and including lastTag.
+				channel.basicAck(lastTag, true);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Failed to acknowledge messages", e);
+			}
+			unacked = 0;
+		}
 	}
 
 	/*
@@ -106,30 +281,44 @@ public class AmqpTransport extends AbstractTransport {
 	@Override
 	public void connect() throws IOException {
 		connection = factory.newConnection();
-		channel = connection.createChannel();
-		channel.queueDeclare(myId, true, true, true, null);
+		final BlockingQueue<PooledChannel> pool = new ArrayBlockingQueue<PooledChannel>(
+				poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			pool.add(new PooledChannel(connection.createChannel(), confirms));
+		}
+		final Channel consumerChannel = connection.createChannel();
+		consumerChannel.queueDeclare(myId, true, true, true, null);
+		if (prefetch > 0) {
+			consumerChannel.basicQos(prefetch);
+		}
+		synchronized (ackLock) {
+			channel = consumerChannel;
+			// Delivery tags start at 1 on each channel.
+			lastTag = 0;
+			handled.clear();
+			unacked = 0;
+		}
+		if (ackBatch > 1) {
+			ackFlusher = ThreadPool.getScheduledPool().scheduleWithFixedDelay(
+					new Runnable() {
+						@Override
+						public void run() {
+							flushAcks();
+						}
+					}, ACKINTERVAL, ACKINTERVAL, TimeUnit.MILLISECONDS);
+		}
+		channels = pool;
 
-		Consumer consumer = new DefaultConsumer(channel) {
+		Consumer consumer = new DefaultConsumer(consumerChannel) {
 			@Override
 			public void handleDelivery(final String consumerTag,
 					final Envelope envelope,
 					final AMQP.BasicProperties properties, final byte[] body)
 					throws IOException {
-				final String message = new String(body, "UTF-8");
-				final JSONEnvelop.Envelop res = JSONEnvelop.unwrap(message);
-				if (myId.equals(res.getTo())) {
-					ThreadPool.getPool().execute(new Runnable() {
-						@Override
-						public void run() {
-							getHandle().get().receive(res.getMessage(),
-									URIUtil.create("amqp:" + res.getFrom()),
-									null);
-						}
-					});
-				}
+				receive(getChannel(), envelope, properties, body);
 			}
 		};
-		channel.basicConsume(myId, true, consumer);
+		consumerChannel.basicConsume(myId, ackBatch <= 0, consumer);
 	}
 
 	/*
@@ -138,9 +327,28 @@ public class AmqpTransport extends AbstractTransport {
 	 */
 	@Override
 	public void disconnect() {
+		if (ackFlusher != null) {
+			ackFlusher.cancel(false);
+			ackFlusher = null;
+		}
+		flushAcks();
+		final BlockingQueue<PooledChannel> pool = channels;
+		channels = null;
 		try {
-			channel.close();
-			channel = null;
+			if (pool != null) {
+				final List<PooledChannel> pooled = new ArrayList<PooledChannel>(
+						poolSize);
+				pool.drainTo(pooled);
+				for (final PooledChannel publisher : pooled) {
+					publisher.close();
+				}
+			}
+			synchronized (ackLock) {
+				if (channel != null) {
+					channel.close();
+					channel = null;
+				}
+			}
 
 			connection.close();
 			connection = null;
@@ -158,4 +366,82 @@ public class AmqpTransport extends AbstractTransport {
 		return Arrays.asList("amqp");
 	}
 
+	/**
+	 * A publishing channel. Channels don't support concurrent publishing,
+	 * a channel is used by one thread at a time. With publisher confirms, the
+	 * callbacks of the unconfirmed messages are kept by sequence number, so
+	 * a rejected message can be reported.
+	 */
+	private static final class PooledChannel {
+		private final Channel										channel;
+		private final boolean										confirms;
+		private final ConcurrentNavigableMap<Long, AsyncCallback<?>>	unconfirmed	= new ConcurrentSkipListMap<Long, AsyncCallback<?>>();
+
+		private PooledChannel(final Channel channel, final boolean confirms)
+				throws IOException {
+			this.channel = channel;
+			this.confirms = confirms;
+			if (confirms) {
+				channel.confirmSelect();
+				channel.addConfirmListener(new ConfirmListener() {
+					@Override
+					public void handleAck(final long deliveryTag,
+							final boolean multiple) {
+						confirmed(deliveryTag, multiple, null);
+					}
+
+					@Override
+					public void handleNack(final long deliveryTag,
+							final boolean multiple) {
+						LOG.warning("Broker rejected message(s) up to:"
+								+ deliveryTag);
+						confirmed(deliveryTag, multiple, new IOException(
+								"Message rejected by broker"));
+					}
+				});
+			}
+		}
+
+		private void publish(final String to,
+				final AMQP.BasicProperties props, final byte[] body,
+				final AsyncCallback<?> callback) throws IOException {
+			final long seqNo = channel.getNextPublishSeqNo();
+			final boolean track = confirms && callback != null;
+			if (track) {
+				unconfirmed.put(seqNo, callback);
+			}
+			boolean published = false;
+			try {
+				channel.basicPublish("", to, props, body);
+				published = true;
+			} finally {
+				// The caller gets the failure, close() mustn't report it
+				// again.
+				if (track && !published) {
+					unconfirmed.remove(seqNo);
+				}
+			}
+		}
+
+		private void confirmed(final long deliveryTag, final boolean multiple,
+				final Exception failure) {
+			final Map<Long, AsyncCallback<?>> done = multiple ? unconfirmed
+					.headMap(deliveryTag, true) : unconfirmed.subMap(
+					deliveryTag, true, deliveryTag, true);
+			if (failure != null) {
+				for (final AsyncCallback<?> callback : done.values()) {
+					callback.onFailure(failure);
+				}
+			}
+			done.clear();
+		}
+
+		private void close() throws IOException {
+			confirmed(Long.MAX_VALUE, true, new IOException(
+					"Channel closed before the broker confirmed the message"));
+			if (channel.isOpen()) {
+				channel.close();
+			}
+		}
+	}
 }
@@ -108,4 +108,126 @@ public class AmqpTransportConfig extends TransportConfig {
 	public void setHostUri(final String uri) {
 		this.put("hostUri", uri);
 	}
+
+	/**
+	 * Gets the number of channels messages are published on.
+	 * (default: 4)
+	 *
+	 * @return the channel pool size
+	 */
+	public int getChannelPoolSize() {
+		if (this.has("channelPoolSize")) {
+			return this.get("channelPoolSize").asInt();
+		}
+		return 4;
+	}
+
+	/**
+	 * Sets the number of channels messages are published on. A channel
+	 * publishes one message at a time, more channels let more threads send
+	 * in parallel.
+	 *
+	 * @param channelPoolSize
+	 *            the new channel pool size
+	 */
+	public void setChannelPoolSize(final int channelPoolSize) {
+		this.put("channelPoolSize", channelPoolSize);
+	}
+
+	/**
+	 * Gets the consumer prefetch. (default: 0, unlimited)
+	 *
+	 * @return the prefetch
+	 */
+	public int getPrefetch() {
+		if (this.has("prefetch")) {
+			return this.get("prefetch").asInt();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the consumer prefetch: the max number of unacknowledged messages
+	 * the broker sends this transport. Only applies with acknowledgements,
+	 * see {@link #setAckBatch(int)}.
+	 *
+	 * @param prefetch
+	 *            the new prefetch
+	 */
+	public void setPrefetch(final int prefetch) {
+		this.put("prefetch", prefetch);
+	}
+
+	/**
+	 * Gets the acknowledgement batch size. (default: 0, no acknowledgements)
+	 *
+	 * @return the ack batch
+	 */
+	public int getAckBatch() {
+		if (this.has("ackBatch")) {
+			return this.get("ackBatch").asInt();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the acknowledgement batch size: received messages are
+	 * acknowledged together, once per this many messages (and at least
+	 * every 100ms). 0 lets the broker consider messages acknowledged on
+	 * delivery.
+	 *
+	 * @param ackBatch
+	 *            the new ack batch
+	 */
+	public void setAckBatch(final int ackBatch) {
+		this.put("ackBatch", ackBatch);
+	}
+
+	/**
+	 * Are publisher confirms enabled? (default: false)
+	 *
+	 * @return true, if enabled
+	 */
+	public boolean isPublisherConfirms() {
+		if (this.has("publisherConfirms")) {
+			return this.get("publisherConfirms").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Enables publisher confirms: the broker confirms each published message,
+	 * messages it rejects are reported to the callback of the send.
+	 *
+	 * @param publisherConfirms
+	 *            the new publisher confirms
+	 */
+	public void setPublisherConfirms(final boolean publisherConfirms) {
+		this.put("publisherConfirms", publisherConfirms);
+	}
+
+	/**
+	 * Is raw mode enabled? (default: false)
+	 *
+	 * @return true, if raw
+	 */
+	public boolean isRaw() {
+		if (this.has("raw")) {
+			return this.get("raw").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Enables raw mode: messages are published as is, with the sender and
+	 * receiver in AMQP headers, instead of wrapped in a JSON envelop. Binary
+	 * messages aren't base64 encoded. Receivers handle both formats,
+	 * regardless of this setting.
+	 *
+	 * @param raw
+	 *            the new raw
+	 */
+	public void setRaw(final boolean raw) {
+		this.put("raw", raw);
+	}
 }
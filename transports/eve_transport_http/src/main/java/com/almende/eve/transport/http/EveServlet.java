@@ -7,9 +7,13 @@ package com.almende.eve.transport.http;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -20,10 +24,13 @@ import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 
+import com.almende.eve.transport.tokens.TokenSigner;
 import com.almende.util.ApacheHttpClient;
 import com.almende.util.StringUtil;
 import com.almende.util.URIUtil;
+import com.almende.util.callback.AsyncCallback;
 import com.almende.util.jackson.JOM;
+import com.almende.util.threads.ThreadPool;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -34,6 +41,8 @@ public class EveServlet extends HttpServlet {
 
 	private static final Logger	LOG					= Logger.getLogger(EveServlet.class
 															.getSimpleName());
+	// Backstop only, the transport fails calls after 30 seconds.
+	private static final long	ASYNC_TIMEOUT		= 60000;
 	protected URI				myUrl				= null;
 
 	/**
@@ -141,6 +150,23 @@ public class EveServlet extends HttpServlet {
 			return Handshake.NAK;
 		}
 
+		final TokenSigner signer = HttpService.getSigner(myUrl);
+		final String signature = req.getHeader("X-Eve-Signature");
+		if (signer != null && signature != null) {
+			// Signed token: verify locally, no callback to the sender.
+			final String receiverUrl = myUrl.toASCIIString()
+					+ getId(req.getRequestURI());
+			if (signer.verify(signature, req.getHeader("X-Eve-SenderUrl"),
+					receiverUrl)) {
+				return Handshake.OK;
+			}
+			// E.g. signed for another url of this servlet (proxy, alias),
+			// fall back to the callback to the sender.
+			LOG.fine("Couldn't verify token signature from:"
+					+ req.getHeader("X-Eve-SenderUrl")
+					+ ", falling back to handshake.");
+		}
+
 		try {
 			final String senderUrl = req.getHeader("X-Eve-SenderUrl");
 			if (senderUrl != null && !senderUrl.isEmpty()) {
@@ -250,8 +276,7 @@ public class EveServlet extends HttpServlet {
 			return;
 		}
 
-		// retrieve the url and the request body
-		final String body = StringUtil.streamToString(req.getInputStream());
+		// retrieve the url
 		final String url = req.getRequestURI();
 		final String id = getId(url);
 		if (id == null || id.isEmpty() || id.equals(myUrl.toASCIIString())) {
@@ -272,14 +297,34 @@ public class EveServlet extends HttpServlet {
 			LOG.log(Level.WARNING, "Couldn't parse senderUrl:" + sender, e);
 		}
 		final HttpTransport transport = HttpService.get(myUrl, id);
+		if (req.getHeader("X-Eve-Channel") != null) {
+			if (transport == null || senderUrl == null
+					|| !req.isAsyncSupported() || !HttpService.isAsync(myUrl)) {
+				resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED,
+						"Streaming channels not available");
+				resp.flushBuffer();
+			} else if (doHandShake(req) != Handshake.OK) {
+				// Calls to the sender go over its channel from now on, so the
+				// sender has to prove its url, also without authentication.
+				resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+						"Streaming channels require a verified sender");
+				resp.flushBuffer();
+			} else {
+				openChannel(req, resp, transport, senderUrl);
+			}
+			return;
+		}
+		// retrieve the request body
+		final String body = StringUtil.streamToString(req.getInputStream());
+		if (transport != null && req.isAsyncSupported()
+				&& HttpService.isAsync(myUrl)) {
+			receiveAsync(req, resp, transport, body, senderUrl);
+			return;
+		}
 		if (transport != null) {
 			try {
 				final String response = transport.receive(body, senderUrl);
-				// TODO: It doesn't need to be json, should we handle mime-types
-				// better?
-				resp.addHeader("Content-Type", "application/json");
-				resp.getWriter().println(response);
-				resp.getWriter().close();
+				writeResponse(resp, response);
 			} catch (final IOException e) {
 				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 						"Receiver raised exception:" + e.getMessage());
@@ -291,6 +336,163 @@ public class EveServlet extends HttpServlet {
 		resp.flushBuffer();
 	}
 
+	/**
+	 * Suspend the request and hand the call to the agent on the ThreadPool,
+	 * the request is completed from the reply path of the agent, so no
+	 * container thread runs or waits for the agent.
+	 * 
+	 * @param req
+	 *            the req
+	 * @param resp
+	 *            the resp
+	 * @param transport
+	 *            the transport
+	 * @param body
+	 *            the body
+	 * @param senderUrl
+	 *            the sender url
+	 */
+	protected void receiveAsync(final HttpServletRequest req,
+			final HttpServletResponse resp, final HttpTransport transport,
+			final String body, final URI senderUrl) {
+		final AsyncContext async = req.startAsync();
+		async.setTimeout(ASYNC_TIMEOUT);
+		// The reply, the transport's timeout and the container's timeout race,
+		// only the first may write the response.
+		final AtomicBoolean done = new AtomicBoolean(false);
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(final AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+							"Receiver didn't respond in time");
+					async.complete();
+				}
+			}
+
+			@Override
+			public void onError(final AsyncEvent event) throws IOException {
+				// The container waits for complete(), also after an error.
+				if (done.compareAndSet(false, true)) {
+					async.complete();
+				}
+			}
+
+			@Override
+			public void onComplete(final AsyncEvent event) throws IOException {}
+
+			@Override
+			public void onStartAsync(final AsyncEvent event) throws IOException {}
+		});
+		final AsyncCallback<String> reply = new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String response) {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					writeResponse(resp, response);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't write response", e);
+				} finally {
+					async.complete();
+				}
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				if (!done.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					resp.sendError(
+							HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+							"Receiver raised exception:"
+									+ exception.getMessage());
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Couldn't write error", e);
+				} finally {
+					async.complete();
+				}
+			}
+		};
+		ThreadPool.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					transport.receive(body, senderUrl, reply);
+				} catch (final RuntimeException e) {
+					reply.onFailure(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Accept a streaming channel: the request stays open, its body carries
+	 * the calls of the peer, the response body the answers and the calls to
+	 * the peer.
+	 * 
+	 * @param req
+	 *            the req
+	 * @param resp
+	 *            the resp
+	 * @param transport
+	 *            the transport
+	 * @param senderUrl
+	 *            the sender url
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected void openChannel(final HttpServletRequest req,
+			final HttpServletResponse resp, final HttpTransport transport,
+			final URI senderUrl) throws IOException {
+		final AsyncContext async = req.startAsync();
+		// The channel lives until either side closes it.
+		async.setTimeout(0);
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType(HttpChannel.CONTENTTYPE);
+		resp.flushBuffer();
+
+		final HttpServerChannel channel = new HttpServerChannel(transport,
+				senderUrl, async);
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(final AsyncEvent event) throws IOException {
+				channel.close();
+			}
+
+			@Override
+			public void onError(final AsyncEvent event) throws IOException {
+				channel.close();
+			}
+
+			@Override
+			public void onComplete(final AsyncEvent event) throws IOException {
+				channel.close();
+			}
+
+			@Override
+			public void onStartAsync(final AsyncEvent event) throws IOException {}
+		});
+		transport.addChannel(channel);
+		try {
+			channel.start();
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't read channel of " + senderUrl, e);
+			channel.close();
+		}
+	}
+
+	private void writeResponse(final HttpServletResponse resp,
+			final String response) throws IOException {
+		// TODO: It doesn't need to be json, should we handle mime-types
+		// better?
+		resp.addHeader("Content-Type", "application/json");
+		resp.getWriter().println(response);
+		resp.getWriter().close();
+	}
+
 	@Override
 	protected void doGet(final HttpServletRequest req,
 			final HttpServletResponse resp) throws ServletException,
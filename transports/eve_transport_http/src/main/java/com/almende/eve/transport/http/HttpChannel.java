@@ -0,0 +1,343 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.util.callback.AsyncCallback;
+import com.almende.util.threads.ThreadPool;
+import com.almende.util.uuid.UUID;
+
+/**
+ * A long-lived, bidirectional stream between two HTTP agents, carrying
+ * framed messages instead of a POST per message. Both ends send calls (REQ)
+ * and answer the calls of the other end (RES, or ERR on failure), just like
+ * the body and the response of a POST. Each frame is a header line
+ * "TYPE tag length\n", followed by length bytes of UTF-8 payload.
+ */
+public abstract class HttpChannel {
+	private static final Logger		LOG			= Logger.getLogger(HttpChannel.class
+														.getName());
+	/** The content type of a channel stream. */
+	public static final String		CONTENTTYPE	= "application/x-eve-frames";
+	private static final Charset	UTF8		= Charset.forName("UTF-8");
+	private static final int		MAXFRAME	= 64 * 1024 * 1024;
+	private static final String		REQ			= "REQ";
+	private static final String		RES			= "RES";
+	private static final String		ERR			= "ERR";
+	protected static final String	PING		= "PING";
+	private final HttpTransport		transport;
+	private final URI				peer;
+	private volatile boolean		closed		= false;
+	// The tags of the calls sent over this channel, still waiting for their
+	// answer.
+	private final Set<String>		pending		= Collections
+														.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// The frame being read: its header line, or its header and payload.
+	private final ByteArrayOutputStream	line	= new ByteArrayOutputStream(
+														64);
+	private String[]				header		= null;
+	private byte[]					payload		= null;
+	private int						received	= 0;
+
+	/**
+	 * Instantiates a new http channel.
+	 *
+	 * @param transport
+	 *            the local transport
+	 * @param peer
+	 *            the url of the remote agent
+	 */
+	protected HttpChannel(final HttpTransport transport, final URI peer) {
+		this.transport = transport;
+		this.peer = peer;
+	}
+
+	/**
+	 * Write a complete frame to the stream.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected abstract void write(final byte[] frame) throws IOException;
+
+	/**
+	 * Release the underlying stream.
+	 */
+	protected abstract void release();
+
+	/**
+	 * Gets the url of the remote agent.
+	 *
+	 * @return the peer
+	 */
+	public URI getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Checks if this channel is closed.
+	 *
+	 * @return true, if closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Send a call to the peer. The answer is delivered to the transport's
+	 * receiver, just like the response of a POST.
+	 *
+	 * @param <T>
+	 *            the generic type
+	 * @param message
+	 *            the message
+	 * @param exceptionCallback
+	 *            the exception callback
+	 * @throws IOException
+	 *             Signals that the channel is unusable, the message isn't
+	 *             sent.
+	 */
+	public <T> void send(final String message,
+			final AsyncCallback<T> exceptionCallback) throws IOException {
+		if (closed) {
+			throw new IOException("Channel closed");
+		}
+		final String tag = new UUID().toString();
+		pending.add(tag);
+		transport.getChannelCallbacks().put(tag, "channel call",
+				new AsyncCallback<String>() {
+					@Override
+					public void onSuccess(final String result) {
+						transport.deliver(result, peer);
+					}
+
+					@Override
+					public void onFailure(final Exception exception) {
+						if (exceptionCallback != null) {
+							exceptionCallback.onFailure(exception);
+						}
+					}
+				});
+		try {
+			writeFrame(REQ, tag, message);
+		} catch (final IOException e) {
+			// The caller falls back to POST for this message.
+			pending.remove(tag);
+			transport.getChannelCallbacks().get(tag);
+			close();
+			throw e;
+		}
+		if (closed && pending.remove(tag)) {
+			// Closed while sending, missed by close().
+			fail(tag);
+		}
+	}
+
+	/**
+	 * Read and handle frames, until the stream ends.
+	 *
+	 * @param in
+	 *            the input stream
+	 */
+	protected void run(final InputStream in) {
+		final byte[] buffer = new byte[8192];
+		try {
+			int count = 0;
+			while (!closed && (count = in.read(buffer)) >= 0) {
+				read(buffer, 0, count);
+			}
+			if (count < 0) {
+				LOG.fine("Channel with " + peer + " ended");
+			}
+		} catch (final Exception e) {
+			if (!closed) {
+				LOG.log(Level.FINE, "Channel with " + peer + " failed", e);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Handle the next bytes of the stream, of which the frames may be split
+	 * up in any way.
+	 *
+	 * @param data
+	 *            the data
+	 * @param offset
+	 *            the offset of the bytes in data
+	 * @param length
+	 *            the number of bytes
+	 * @throws IOException
+	 *             Signals that the stream isn't a valid frame stream.
+	 */
+	protected void read(final byte[] data, final int offset, final int length)
+			throws IOException {
+		final int end = offset + length;
+		int pos = offset;
+		while (pos < end) {
+			if (payload == null) {
+				final byte b = data[pos++];
+				if (b != '\n') {
+					if (line.size() > 256) {
+						throw new IOException("Invalid frame header");
+					}
+					line.write(b);
+					continue;
+				}
+				header = new String(line.toByteArray(), UTF8).split(" ");
+				line.reset();
+				if (header.length != 3) {
+					throw new IOException("Invalid frame header");
+				}
+				final int size;
+				try {
+					size = Integer.parseInt(header[2]);
+				} catch (final NumberFormatException e) {
+					throw new IOException("Invalid frame length", e);
+				}
+				if (size < 0 || size > MAXFRAME) {
+					throw new IOException("Invalid frame length:" + size);
+				}
+				payload = new byte[size];
+				received = 0;
+			}
+			final int count = Math.min(end - pos, payload.length - received);
+			System.arraycopy(data, pos, payload, received, count);
+			pos += count;
+			received += count;
+			if (received == payload.length) {
+				final String body = new String(payload, UTF8);
+				payload = null;
+				handle(header[0], header[1], body);
+			}
+		}
+	}
+
+	private void handle(final String type, final String tag,
+			final String payload) {
+		if (REQ.equals(type)) {
+			// Off the reader: the call may be slow, or wait for an answer
+			// that arrives over this same channel.
+			ThreadPool.getPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					receive(tag, payload);
+				}
+			});
+		} else if (RES.equals(type)) {
+			pending.remove(tag);
+			final AsyncCallback<String> callback = transport
+					.getChannelCallbacks().get(tag);
+			if (callback != null) {
+				callback.onSuccess(payload);
+			}
+		} else if (ERR.equals(type)) {
+			pending.remove(tag);
+			final AsyncCallback<String> callback = transport
+					.getChannelCallbacks().get(tag);
+			if (callback != null) {
+				callback.onFailure(new Exception(payload));
+			}
+		}
+		// PING frames only keep the connection active.
+	}
+
+	private void receive(final String tag, final String payload) {
+		try {
+			transport.receive(payload, peer, new AsyncCallback<String>() {
+				@Override
+				public void onSuccess(final String result) {
+					answer(RES, tag, result);
+				}
+
+				@Override
+				public void onFailure(final Exception exception) {
+					answer(ERR, tag, "Receiver raised exception:"
+							+ exception.getMessage());
+				}
+			});
+		} catch (final RuntimeException e) {
+			answer(ERR, tag, "Receiver raised exception:" + e.getMessage());
+		}
+	}
+
+	private void answer(final String type, final String tag,
+			final String payload) {
+		try {
+			writeFrame(type, tag, payload);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't answer call of " + peer, e);
+			close();
+		}
+	}
+
+	/**
+	 * Write a frame.
+	 *
+	 * @param type
+	 *            the type
+	 * @param tag
+	 *            the tag
+	 * @param payload
+	 *            the payload
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected void writeFrame(final String type, final String tag,
+			final String payload) throws IOException {
+		final byte[] body = payload == null ? new byte[0] : payload
+				.getBytes(UTF8);
+		final byte[] header = (type + " " + tag + " " + body.length + "\n")
+				.getBytes(UTF8);
+		final byte[] frame = new byte[header.length + body.length];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		System.arraycopy(body, 0, frame, header.length, body.length);
+		write(frame);
+	}
+
+	private void fail(final String tag) {
+		final AsyncCallback<String> callback = transport.getChannelCallbacks()
+				.get(tag);
+		if (callback != null) {
+			callback.onFailure(new IOException("Channel with " + peer
+					+ " closed"));
+		}
+	}
+
+	/**
+	 * Close this channel, the transport falls back to POST for this peer.
+	 * The calls still waiting for an answer fail right away, instead of
+	 * waiting for their timeout.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		transport.removeChannel(this);
+		release();
+		final List<String> tags = new ArrayList<String>(pending);
+		for (final String tag : tags) {
+			if (pending.remove(tag)) {
+				fail(tag);
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.DeferredContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * The calling end of a {@link HttpChannel}: a single POST, of which the
+ * request body carries the frames to the peer and the response body the
+ * frames from the peer.
+ */
+final class HttpClientChannel extends HttpChannel {
+	private static final Logger				LOG				= Logger.getLogger(HttpClientChannel.class
+																	.getName());
+	// Keeps the connection active, below Jetty's default idle timeout.
+	private static final long				PINGINTERVAL	= 10000;
+	private final DeferredContentProvider	content;
+	private ScheduledFuture<?>				ping			= null;
+
+	private HttpClientChannel(final HttpTransport transport, final URI peer,
+			final DeferredContentProvider content) {
+		super(transport, peer);
+		this.content = content;
+	}
+
+	/**
+	 * Open a channel to the given peer, blocks until the peer accepted or
+	 * refused it, after which it reads the stream until it ends.
+	 *
+	 * @param transport
+	 *            the local transport
+	 * @param peer
+	 *            the url of the remote agent
+	 * @param client
+	 *            the client
+	 * @param headers
+	 *            the (authentication) headers of the call
+	 * @param timeout
+	 *            the max time to wait for the peer to accept, in milliseconds
+	 * @return false, if the peer refused or couldn't be reached.
+	 */
+	static boolean open(final HttpTransport transport, final URI peer,
+			final HttpClient client, final Map<String, String> headers,
+			final long timeout) {
+		final DeferredContentProvider content = new DeferredContentProvider();
+		final InputStreamResponseListener listener = new InputStreamResponseListener();
+		final Request request = client.POST(peer)
+				.header("X-Eve-Channel", "open")
+				.content(content, CONTENTTYPE).idleTimeout(0, TimeUnit.SECONDS);
+		for (final Map.Entry<String, String> header : headers.entrySet()) {
+			request.header(header.getKey(), header.getValue());
+		}
+		request.send(listener);
+		final HttpClientChannel channel = new HttpClientChannel(transport,
+				peer, content);
+		try {
+			final Response response = listener.get(timeout,
+					TimeUnit.MILLISECONDS);
+			if (response.getStatus() != HttpServletResponse.SC_OK) {
+				LOG.fine("Peer " + peer + " refused channel:"
+						+ response.getStatus());
+				request.abort(new IOException("Channel refused"));
+				return false;
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.FINE, "Couldn't open channel to " + peer, e);
+			request.abort(e);
+			return false;
+		}
+		channel.ping = ThreadPool.getScheduledPool().scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							channel.writeFrame(PING, "0", null);
+						} catch (final IOException e) {
+							channel.close();
+						}
+					}
+				}, PINGINTERVAL, PINGINTERVAL, TimeUnit.MILLISECONDS);
+		transport.addChannel(channel);
+		channel.run(listener.getInputStream());
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.http.HttpChannel#write(byte[])
+	 */
+	@Override
+	protected void write(final byte[] frame) throws IOException {
+		if (isClosed() || !content.offer(ByteBuffer.wrap(frame))) {
+			throw new IOException("Channel closed");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.http.HttpChannel#release()
+	 */
+	@Override
+	protected void release() {
+		if (ping != null) {
+			ping.cancel(false);
+		}
+		content.close();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * The accepting end of a {@link HttpChannel}: a suspended request, of which
+ * the request body carries the frames from the peer and the response body
+ * the frames to the peer.
+ */
+final class HttpServerChannel extends HttpChannel {
+	private static final Logger	LOG	= Logger.getLogger(HttpServerChannel.class
+											.getName());
+	private final AsyncContext	async;
+	private final OutputStream	out;
+
+	/**
+	 * Instantiates a new http server channel.
+	 *
+	 * @param transport
+	 *            the local transport
+	 * @param peer
+	 *            the url of the remote agent
+	 * @param async
+	 *            the async context of the suspended request
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	HttpServerChannel(final HttpTransport transport, final URI peer,
+			final AsyncContext async) throws IOException {
+		super(transport, peer);
+		this.async = async;
+		this.out = async.getResponse().getOutputStream();
+	}
+
+	/**
+	 * Start reading the frames of the peer, until the stream ends. The
+	 * frames are read as they arrive (non-blocking), so open channels don't
+	 * hold a thread each.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void start() throws IOException {
+		final ServletInputStream in = async.getRequest().getInputStream();
+		in.setReadListener(new ReadListener() {
+			private final byte[]	buffer	= new byte[8192];
+
+			@Override
+			public void onDataAvailable() throws IOException {
+				while (!isClosed() && in.isReady()) {
+					final int count = in.read(buffer);
+					if (count < 0) {
+						return;
+					}
+					read(buffer, 0, count);
+				}
+			}
+
+			@Override
+			public void onAllDataRead() throws IOException {
+				LOG.fine("Channel with " + getPeer() + " ended");
+				close();
+			}
+
+			@Override
+			public void onError(final Throwable t) {
+				if (!isClosed()) {
+					LOG.log(Level.FINE, "Channel with " + getPeer()
+							+ " failed", t);
+				}
+				close();
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.http.HttpChannel#write(byte[])
+	 */
+	@Override
+	protected void write(final byte[] frame) throws IOException {
+		synchronized (out) {
+			out.write(frame);
+			out.flush();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.almende.eve.transport.http.HttpChannel#release()
+	 */
+	@Override
+	protected void release() {
+		try {
+			async.complete();
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.FINE, "Channel request already completed", e);
+		}
+	}
+}
@@ -4,6 +4,7 @@
  */
 package com.almende.eve.transport.http;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
@@ -13,12 +14,19 @@ import java.util.logging.Logger;
 
 import javax.servlet.Servlet;
 
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
 import com.almende.eve.capabilities.Capability;
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.Transport;
 import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.tokens.TokenSigner;
+import com.almende.util.ApacheAsyncHttpClient;
 import com.almende.util.ClassUtil;
+import com.almende.util.MultiplexedHttpClient;
 import com.almende.util.URIUtil;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -31,6 +39,10 @@ public class HttpService implements TransportService {
 	private URI								myUrl		= null;
 	private final Map<URI, HttpTransport>	transports	= new HashMap<URI, HttpTransport>();
 	private HttpTransportConfig				myParams	= null;
+	private CloseableHttpAsyncClient		asyncClient	= null;
+	private HttpClient						muxClient	= null;
+	private HttpClient						chanClient	= null;
+	private TokenSigner						signer		= null;
 
 	/**
 	 * Instantiates a new http service.
@@ -43,6 +55,9 @@ public class HttpService implements TransportService {
 	public HttpService(final URI servletUrl, final ObjectNode params) {
 		myUrl = servletUrl;
 		myParams = HttpTransportConfig.decorate(params);
+		if (myParams.getAuthSecret() != null) {
+			signer = new TokenSigner(myParams.getAuthSecret());
+		}
 
 		String servletLauncher = myParams.getServletLauncher();
 		if (servletLauncher != null) {
@@ -196,6 +211,133 @@ public class HttpService implements TransportService {
 		return myParams.getDoAuthentication();
 	}
 
+	/**
+	 * Gets the client for the streaming channels of this service: the
+	 * multiplexing client if configured, otherwise a plain HTTP/1.1 client,
+	 * started on first use.
+	 * 
+	 * @return the client, or null if this service doesn't use streaming
+	 *         channels.
+	 */
+	public synchronized HttpClient getChannelClient() {
+		if (!myParams.isStreaming()) {
+			return null;
+		}
+		final HttpClient client = getMultiplexedClient();
+		if (client != null) {
+			return client;
+		}
+		if (chanClient == null) {
+			try {
+				// Allow self-signed SSL certificates:
+				final HttpClient plain = new HttpClient(new SslContextFactory(
+						true));
+				plain.setConnectTimeout(myParams.getConnectTimeout());
+				plain.setFollowRedirects(false);
+				plain.start();
+				chanClient = plain;
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING,
+						"Couldn't start channel client, falling back to POST.",
+						e);
+				myParams.setStreaming(false);
+			}
+		}
+		return chanClient;
+	}
+
+	/**
+	 * Gets the params of this service.
+	 * 
+	 * @return the params
+	 */
+	HttpTransportConfig getParams() {
+		return myParams;
+	}
+
+	/**
+	 * Gets the signer for signed tokens of the given servlet.
+	 * 
+	 * @param servletUrl
+	 *            the servlet url
+	 * @return the signer, null if no secret is configured.
+	 */
+	public static TokenSigner getSigner(final URI servletUrl) {
+		final HttpService service = HttpTransportBuilder.getServices().get(
+				servletUrl);
+		if (service != null) {
+			return service.signer;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the signer for signed tokens of this service.
+	 * 
+	 * @return the signer, null if no secret is configured.
+	 */
+	public TokenSigner getSigner() {
+		return signer;
+	}
+
+	/**
+	 * Should the Servlet handle calls asynchronously?
+	 * 
+	 * @param servletUrl
+	 *            the servlet url
+	 * @return true, if calls may be handled asynchronously.
+	 */
+	public static boolean isAsync(final URI servletUrl) {
+		final HttpService service = HttpTransportBuilder.getServices().get(
+				servletUrl);
+		if (service != null) {
+			return service.myParams.isAsync();
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the non-blocking client of this service, shared by all its
+	 * transports. The client is started on first use.
+	 * 
+	 * @return the client, or null if this service is configured to use the
+	 *         blocking client.
+	 */
+	public synchronized CloseableHttpAsyncClient getAsyncClient() {
+		if (asyncClient == null && myParams.isNonBlocking()) {
+			try {
+				asyncClient = ApacheAsyncHttpClient.create(myParams);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING,
+						"Couldn't start non-blocking client, falling back to blocking client.",
+						e);
+				myParams.setNonBlocking(false);
+			}
+		}
+		return asyncClient;
+	}
+
+	/**
+	 * Gets the multiplexing client of this service, shared by all its
+	 * transports. The client is started on first use.
+	 * 
+	 * @return the client, or null if this service isn't configured to use
+	 *         the multiplexing client.
+	 */
+	public synchronized HttpClient getMultiplexedClient() {
+		if (muxClient == null && myParams.isMultiplexed()) {
+			try {
+				muxClient = MultiplexedHttpClient.create(myParams);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING,
+						"Couldn't start multiplexing client, falling back to HTTP/1.1 client.",
+						e);
+				myParams.setMultiplexed(false);
+			}
+		}
+		return muxClient;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see
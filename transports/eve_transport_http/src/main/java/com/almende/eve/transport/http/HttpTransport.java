@@ -7,9 +7,16 @@ package com.almende.eve.transport.http;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,13 +27,21 @@ import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
 
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.AbstractTransport;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.tokens.TokenSigner;
 import com.almende.eve.transport.tokens.TokenStore;
 import com.almende.util.ApacheHttpClient;
 import com.almende.util.callback.AsyncCallback;
@@ -45,7 +60,18 @@ public class HttpTransport extends AbstractTransport {
 	private static final Executor				RUNNER		= Executors
 																	.newCachedThreadPool(ThreadPool
 																			.getFactory());
+	private static final int					MAXRESPONSESIZE	= 64 * 1024 * 1024;
+	// Time to wait before retrying to open a refused channel, or SPDY to a
+	// host that only speaks HTTP/1.1.
+	private static final long					CHANNELRETRY	= 60000;
 	private final AsyncCallbackStore<String>	callbacks;
+	private final AsyncCallbackStore<String>	channelCallbacks;
+	private final ConcurrentMap<URI, HttpChannel>	channels	= new ConcurrentHashMap<URI, HttpChannel>();
+	private final ConcurrentMap<URI, Long>		channelAttempts	= new ConcurrentHashMap<URI, Long>();
+	// The hosts that answered over SPDY, and those that didn't, since when.
+	private final Set<String>					muxHosts		= Collections
+																		.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, Long>	plainHosts		= new ConcurrentHashMap<String, Long>();
 	private final TokenStore					tokenstore	= new TokenStore();
 	private final List<String>					protocols	= Arrays.asList(
 																	"http",
@@ -68,6 +94,8 @@ public class HttpTransport extends AbstractTransport {
 			final TransportService service, final ObjectNode params) {
 		super(address, handle, service, params);
 		callbacks = new AsyncCallbackStore<String>("HttpTags_" + address);
+		channelCallbacks = new AsyncCallbackStore<String>("HttpChannelTags_"
+				+ address);
 	}
 
 	/*
@@ -100,6 +128,127 @@ public class HttpTransport extends AbstractTransport {
 		}
 		final String senderUrl = super.getAddress().toASCIIString();
 		final Handler<Receiver> handle = super.getHandle();
+		final HttpService service = getService() instanceof HttpService ? (HttpService) getService()
+				: null;
+		final HttpChannel channel = getChannel(service, receiverUri, senderUrl);
+		if (channel != null) {
+			try {
+				channel.send(message, exceptionCallback);
+				return;
+			} catch (final IOException e) {
+				LOG.log(Level.FINE, "Channel to " + receiverUri
+						+ " failed, falling back to POST.", e);
+			}
+		}
+		final HttpClient muxClient = service != null ? service
+				.getMultiplexedClient() : null;
+		if (muxClient != null && !isPlainHost(receiverUri)) {
+			// Multiplexed: all concurrent calls to the receiving host share a
+			// single connection.
+			final String host = getHost(receiverUri);
+			final Request request = muxClient.POST(receiverUri).content(
+					new StringContentProvider(message, "UTF-8"),
+					"application/json");
+			for (final Map.Entry<String, String> header : createHeaders(
+					receiverUri, senderUrl).entrySet()) {
+				request.header(header.getKey(), header.getValue());
+			}
+			request.send(new BufferingResponseListener(MAXRESPONSESIZE) {
+						@Override
+						public void onComplete(final Result result) {
+							if (result.isFailed()) {
+								if (!muxHosts.contains(host)
+										&& !(result.getFailure() instanceof TimeoutException)) {
+									// Never answered over SPDY, so the call
+									// didn't reach the receiver: this host
+									// only speaks HTTP/1.1.
+									LOG.log(Level.FINE, "No SPDY at " + host
+											+ ", falling back to HTTP/1.1.",
+											result.getFailure());
+									plainHosts.put(host,
+											System.currentTimeMillis());
+									post(service, receiverUri, message,
+											senderUrl, exceptionCallback);
+									return;
+								}
+								LOG.log(Level.WARNING,
+										"HTTP roundtrip resulted in exception!",
+										result.getFailure());
+								if (exceptionCallback != null) {
+									exceptionCallback.onFailure(new Exception(
+											"HTTP roundtrip resulted in exception!"));
+								}
+								return;
+							}
+							muxHosts.add(host);
+							handleResponse(result.getResponse().getStatus(),
+									result.getResponse().getReason(),
+									getContentAsString("UTF-8"), receiverUri,
+									handle, exceptionCallback);
+						}
+					});
+			return;
+		}
+		post(service, receiverUri, message, senderUrl, exceptionCallback);
+	}
+
+	/**
+	 * Send a call as a plain HTTP/1.1 POST: through the non-blocking client
+	 * if configured, otherwise through the blocking client.
+	 *
+	 * @param service
+	 *            the service
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param message
+	 *            the message
+	 * @param senderUrl
+	 *            the sender url
+	 * @param exceptionCallback
+	 *            the exception callback
+	 */
+	private <T> void post(final HttpService service, final URI receiverUri,
+			final String message, final String senderUrl,
+			final AsyncCallback<T> exceptionCallback) {
+		final Handler<Receiver> handle = super.getHandle();
+		final CloseableHttpAsyncClient client = service != null ? service
+				.getAsyncClient() : null;
+		if (client != null) {
+			// Non-blocking: the I/O reactor calls back once the response is
+			// complete, no thread waits for it.
+			final HttpPost httpPost = createPost(receiverUri, message,
+					senderUrl);
+			client.execute(httpPost, new FutureCallback<HttpResponse>() {
+				@Override
+				public void completed(final HttpResponse webResp) {
+					try {
+						handleResponse(webResp, receiverUri, handle,
+								exceptionCallback);
+					} catch (final Exception e) {
+						failed(e);
+					}
+				}
+
+				@Override
+				public void failed(final Exception e) {
+					LOG.log(Level.WARNING,
+							"HTTP roundtrip resulted in exception!", e);
+					if (exceptionCallback != null) {
+						exceptionCallback.onFailure(new Exception(
+								"HTTP roundtrip resulted in exception!"));
+					}
+				}
+
+				@Override
+				public void cancelled() {
+					if (exceptionCallback != null) {
+						exceptionCallback.onFailure(new Exception(
+								"HTTP roundtrip cancelled!"));
+					}
+				}
+			});
+			return;
+		}
 		// Use fresh Executor instead of the RunQueue, as this thread will sleep
 		// most of its run.
 		RUNNER.execute(new Runnable() {
@@ -107,43 +256,11 @@ public class HttpTransport extends AbstractTransport {
 			public void run() {
 				HttpPost httpPost = null;
 				try {
-					httpPost = new HttpPost(receiverUri);
-					// invoke via Apache HttpClient request:
-					httpPost.setEntity(new StringEntity(message, "UTF-8"));
-					httpPost.setProtocolVersion(HttpVersion.HTTP_1_1);
-
-					// // Add token for HTTP handshake
-					httpPost.addHeader("X-Eve-Token", tokenstore.create()
-							.toString());
-					httpPost.addHeader("X-Eve-SenderUrl", senderUrl);
+					httpPost = createPost(receiverUri, message, senderUrl);
 					final HttpResponse webResp = ApacheHttpClient.get()
 							.execute(httpPost, HttpClientContext.create());
-					final HttpEntity entity = webResp.getEntity();
-					final String result = EntityUtils.toString(entity, "UTF-8");
-					EntityUtils.consumeQuietly(entity);
-					if (webResp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-						LOG.warning("Received HTTP Error Status:"
-								+ webResp.getStatusLine().getStatusCode() + ":"
-								+ webResp.getStatusLine().getReasonPhrase());
-						LOG.warning(result);
-						// TODO: should we send back a JSONRPCException? (Which
-						// is not a known type at this point!)
-						if (exceptionCallback != null) {
-							exceptionCallback.onFailure(new Exception(
-									"Received HTTP Error Status:"
-											+ webResp.getStatusLine()
-													.getStatusCode()
-											+ ":"
-											+ webResp.getStatusLine()
-													.getReasonPhrase()));
-						}
-					} else {
-						ThreadPool.getPool().execute(new Runnable() {
-							public void run() {
-								handle.get().receive(result, receiverUri, null);
-							}
-						});
-					}
+					handleResponse(webResp, receiverUri, handle,
+							exceptionCallback);
 				} catch (final Exception e) {
 					LOG.log(Level.WARNING,
 							"HTTP roundtrip resulted in exception!", e);
@@ -161,6 +278,192 @@ public class HttpTransport extends AbstractTransport {
 		});
 	}
 
+	private static String getHost(final URI receiverUri) {
+		return receiverUri.getScheme() + "://" + receiverUri.getRawAuthority();
+	}
+
+	/**
+	 * Checks if the host of the given url is known not to speak SPDY. Such
+	 * hosts are retried over SPDY after a while.
+	 *
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @return true, if calls to this host should use HTTP/1.1
+	 */
+	private boolean isPlainHost(final URI receiverUri) {
+		final String host = getHost(receiverUri);
+		final Long since = plainHosts.get(host);
+		if (since == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() - since < CHANNELRETRY) {
+			return true;
+		}
+		plainHosts.remove(host, since);
+		return false;
+	}
+
+	private HttpPost createPost(final URI receiverUri, final String message,
+			final String senderUrl) {
+		final HttpPost httpPost = new HttpPost(receiverUri);
+		// invoke via Apache HttpClient request:
+		httpPost.setEntity(new StringEntity(message, "UTF-8"));
+		httpPost.setProtocolVersion(HttpVersion.HTTP_1_1);
+
+		for (final Map.Entry<String, String> header : createHeaders(
+				receiverUri, senderUrl).entrySet()) {
+			httpPost.addHeader(header.getKey(), header.getValue());
+		}
+		return httpPost;
+	}
+
+	private Map<String, String> createHeaders(final URI receiverUri,
+			final String senderUrl) {
+		final Map<String, String> headers = new LinkedHashMap<String, String>(
+				3);
+		// // Add token for HTTP handshake
+		headers.put("X-Eve-Token", tokenstore.create().toString());
+		headers.put("X-Eve-SenderUrl", senderUrl);
+		if (getService() instanceof HttpService) {
+			final TokenSigner signer = ((HttpService) getService())
+					.getSigner();
+			if (signer != null) {
+				headers.put("X-Eve-Signature",
+						signer.sign(senderUrl, receiverUri.toASCIIString()));
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Gets the open streaming channel to the given peer. If there is none,
+	 * but this transport uses streaming channels, one is opened in the
+	 * background, for later calls.
+	 *
+	 * @param service
+	 *            the service
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @param senderUrl
+	 *            the sender url
+	 * @return the channel, or null if no channel is open (yet).
+	 */
+	private HttpChannel getChannel(final HttpService service,
+			final URI receiverUri, final String senderUrl) {
+		final HttpChannel channel = channels.get(receiverUri);
+		if (channel != null && !channel.isClosed()) {
+			return channel;
+		}
+		final HttpClient client = service != null ? service
+				.getChannelClient() : null;
+		if (client == null) {
+			return null;
+		}
+		// Only one attempt at a time, retry refused channels after a while.
+		final long now = System.currentTimeMillis();
+		final Long last = channelAttempts.get(receiverUri);
+		if (last == null ? channelAttempts.putIfAbsent(receiverUri, now) != null
+				: now - last < CHANNELRETRY
+						|| !channelAttempts.replace(receiverUri, last, now)) {
+			return null;
+		}
+		final Map<String, String> headers = createHeaders(receiverUri,
+				senderUrl);
+		final long timeout = service.getParams().getConnectTimeout();
+		RUNNER.execute(new Runnable() {
+			@Override
+			public void run() {
+				HttpClientChannel.open(HttpTransport.this, receiverUri,
+						client, headers, timeout);
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Register an open streaming channel, calls to its peer are sent over
+	 * it from now on. Only for channels to a verified peer: the channel
+	 * replaces any earlier channel to that peer.
+	 *
+	 * @param channel
+	 *            the channel
+	 */
+	void addChannel(final HttpChannel channel) {
+		final HttpChannel old = channels.put(channel.getPeer(), channel);
+		if (old != null && old != channel) {
+			old.close();
+		}
+	}
+
+	/**
+	 * Unregister a closed streaming channel.
+	 *
+	 * @param channel
+	 *            the channel
+	 */
+	void removeChannel(final HttpChannel channel) {
+		channels.remove(channel.getPeer(), channel);
+	}
+
+	/**
+	 * Gets the callbacks of the calls sent over streaming channels.
+	 *
+	 * @return the channel callbacks
+	 */
+	AsyncCallbackStore<String> getChannelCallbacks() {
+		return channelCallbacks;
+	}
+
+	/**
+	 * Deliver an answer of the given peer to the receiver.
+	 *
+	 * @param result
+	 *            the result
+	 * @param peer
+	 *            the peer
+	 */
+	void deliver(final String result, final URI peer) {
+		final Handler<Receiver> handle = super.getHandle();
+		ThreadPool.getPool().execute(new Runnable() {
+			public void run() {
+				handle.get().receive(result, peer, null);
+			}
+		});
+	}
+
+	private <T> void handleResponse(final HttpResponse webResp,
+			final URI receiverUri, final Handler<Receiver> handle,
+			final AsyncCallback<T> exceptionCallback) throws IOException {
+		final HttpEntity entity = webResp.getEntity();
+		final String result = EntityUtils.toString(entity, "UTF-8");
+		EntityUtils.consumeQuietly(entity);
+		handleResponse(webResp.getStatusLine().getStatusCode(), webResp
+				.getStatusLine().getReasonPhrase(), result, receiverUri,
+				handle, exceptionCallback);
+	}
+
+	private <T> void handleResponse(final int status, final String reason,
+			final String result, final URI receiverUri,
+			final Handler<Receiver> handle,
+			final AsyncCallback<T> exceptionCallback) {
+		if (status != HttpStatus.SC_OK) {
+			LOG.warning("Received HTTP Error Status:" + status + ":" + reason);
+			LOG.warning(result);
+			// TODO: should we send back a JSONRPCException? (Which
+			// is not a known type at this point!)
+			if (exceptionCallback != null) {
+				exceptionCallback.onFailure(new Exception(
+						"Received HTTP Error Status:" + status + ":" + reason));
+			}
+		} else {
+			ThreadPool.getPool().execute(new Runnable() {
+				public void run() {
+					handle.get().receive(result, receiverUri, null);
+				}
+			});
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#send(java.net.URI, byte[],
@@ -186,11 +489,8 @@ public class HttpTransport extends AbstractTransport {
 	 */
 	public String receive(final String body, final URI senderUrl)
 			throws IOException {
-		final String tag = new UUID().toString();
 		final SyncCallback<String> callback = new SyncCallback<String>() {};
-		callbacks.put(tag, "inbound http call", callback);
-
-		super.getHandle().get().receive(body, senderUrl, tag);
+		receive(body, senderUrl, callback);
 		try {
 			return callback.get();
 		} catch (final Exception e) {
@@ -199,6 +499,25 @@ public class HttpTransport extends AbstractTransport {
 		}
 	}
 
+	/**
+	 * Receive, without waiting for the response: the callback is called from
+	 * the reply path of the agent, or with a timeout.
+	 * 
+	 * @param body
+	 *            the body
+	 * @param senderUrl
+	 *            the sender url
+	 * @param callback
+	 *            the callback for the response string
+	 */
+	public void receive(final String body, final URI senderUrl,
+			final AsyncCallback<String> callback) {
+		final String tag = new UUID().toString();
+		callbacks.put(tag, "inbound http call", callback);
+
+		super.getHandle().get().receive(body, senderUrl, tag);
+	}
+
 	/**
 	 * Gets the tokenstore of this transport
 	 * 
@@ -224,7 +543,10 @@ public class HttpTransport extends AbstractTransport {
 	 */
 	@Override
 	public void disconnect() {
-		// Nothing todo at this point, maybe disable receival through the
+		for (final HttpChannel channel : channels.values()) {
+			channel.close();
+		}
+		// Nothing more todo at this point, maybe disable receival through the
 		// handler?
 	}
 
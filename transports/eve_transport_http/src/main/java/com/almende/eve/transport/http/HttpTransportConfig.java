@@ -132,6 +132,249 @@ public class HttpTransportConfig extends TransportConfig {
 		return EveServlet.class.getName();
 	}
 
+	/**
+	 * Sets whether inbound calls are handled asynchronously (Servlet 3.x
+	 * AsyncContext), which frees the container thread while the agent is
+	 * working on the call.
+	 *
+	 * @param async
+	 *            the new async
+	 */
+	public void setAsync(final boolean async) {
+		this.put("async", async);
+	}
+
+	/**
+	 * Checks if inbound calls are handled asynchronously, when supported by
+	 * the servlet container. (default: true)
+	 *
+	 * @return true, if async
+	 */
+	public boolean isAsync() {
+		if (this.has("async")) {
+			return this.get("async").asBoolean();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets whether outbound calls are sent through the non-blocking (NIO)
+	 * client, instead of through a blocking client with a thread per call.
+	 *
+	 * @param nonBlocking
+	 *            the new non blocking
+	 */
+	public void setNonBlocking(final boolean nonBlocking) {
+		this.put("nonBlocking", nonBlocking);
+	}
+
+	/**
+	 * Checks if outbound calls are sent through the non-blocking client.
+	 * (default: false)
+	 *
+	 * @return true, if non blocking
+	 */
+	public boolean isNonBlocking() {
+		if (this.has("nonBlocking")) {
+			return this.get("nonBlocking").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets whether outbound calls are sent through the multiplexing (SPDY)
+	 * client: all concurrent calls to the same host share a single
+	 * connection. The receiving side must offer a SPDY connector, see the
+	 * "spdyPort" option of the JettyLauncher; calls to hosts without SPDY
+	 * fall back to the HTTP/1.1 clients. The connect and socket timeouts
+	 * below also apply to this client.
+	 *
+	 * @param multiplexed
+	 *            the new multiplexed
+	 */
+	public void setMultiplexed(final boolean multiplexed) {
+		this.put("multiplexed", multiplexed);
+	}
+
+	/**
+	 * Checks if outbound calls are sent through the multiplexing client.
+	 * (default: false)
+	 *
+	 * @return true, if multiplexed
+	 */
+	public boolean isMultiplexed() {
+		if (this.has("multiplexed")) {
+			return this.get("multiplexed").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets whether calls to other HTTP agents are sent over a long-lived
+	 * streaming channel per peer, instead of a POST per call. While the
+	 * channel isn't (yet) available, calls are sent as POST.
+	 *
+	 * @param streaming
+	 *            the new streaming
+	 */
+	public void setStreaming(final boolean streaming) {
+		this.put("streaming", streaming);
+	}
+
+	/**
+	 * Checks if calls are sent over streaming channels. (default: false)
+	 *
+	 * @return true, if streaming
+	 */
+	public boolean isStreaming() {
+		if (this.has("streaming")) {
+			return this.get("streaming").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the number of I/O threads of the non-blocking client.
+	 *
+	 * @param ioThreads
+	 *            the new io threads
+	 */
+	public void setIoThreads(final int ioThreads) {
+		this.put("ioThreads", ioThreads);
+	}
+
+	/**
+	 * Gets the number of I/O threads of the non-blocking client. (default:
+	 * number of cores)
+	 *
+	 * @return the io threads
+	 */
+	public int getIoThreads() {
+		if (this.has("ioThreads")) {
+			return this.get("ioThreads").asInt();
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Sets the max number of open connections of the non-blocking client.
+	 *
+	 * @param maxConnections
+	 *            the new max connections
+	 */
+	public void setMaxConnections(final int maxConnections) {
+		this.put("maxConnections", maxConnections);
+	}
+
+	/**
+	 * Gets the max number of open connections of the non-blocking client.
+	 * (default: 1000)
+	 *
+	 * @return the max connections
+	 */
+	public int getMaxConnections() {
+		if (this.has("maxConnections")) {
+			return this.get("maxConnections").asInt();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the max number of open connections per host of the non-blocking
+	 * client.
+	 *
+	 * @param maxConnectionsPerHost
+	 *            the new max connections per host
+	 */
+	public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+		this.put("maxConnectionsPerHost", maxConnectionsPerHost);
+	}
+
+	/**
+	 * Gets the max number of open connections per host of the non-blocking
+	 * client. (default: 1000)
+	 *
+	 * @return the max connections per host
+	 */
+	public int getMaxConnectionsPerHost() {
+		if (this.has("maxConnectionsPerHost")) {
+			return this.get("maxConnectionsPerHost").asInt();
+		}
+		return 1000;
+	}
+
+	/**
+	 * Sets the connect timeout of the non-blocking client, in milliseconds.
+	 *
+	 * @param connectTimeout
+	 *            the new connect timeout
+	 */
+	public void setConnectTimeout(final int connectTimeout) {
+		this.put("connectTimeout", connectTimeout);
+	}
+
+	/**
+	 * Gets the connect timeout of the non-blocking client, in milliseconds.
+	 * (default: 20000)
+	 *
+	 * @return the connect timeout
+	 */
+	public int getConnectTimeout() {
+		if (this.has("connectTimeout")) {
+			return this.get("connectTimeout").asInt();
+		}
+		return 20000;
+	}
+
+	/**
+	 * Sets the socket (read) timeout of the non-blocking client, in
+	 * milliseconds.
+	 *
+	 * @param socketTimeout
+	 *            the new socket timeout
+	 */
+	public void setSocketTimeout(final int socketTimeout) {
+		this.put("socketTimeout", socketTimeout);
+	}
+
+	/**
+	 * Gets the socket (read) timeout of the non-blocking client, in
+	 * milliseconds. (default: 60000)
+	 *
+	 * @return the socket timeout
+	 */
+	public int getSocketTimeout() {
+		if (this.has("socketTimeout")) {
+			return this.get("socketTimeout").asInt();
+		}
+		return 60000;
+	}
+
+	/**
+	 * Sets the pre-shared secret for signed tokens. With a secret, outbound
+	 * calls are signed (HMAC-SHA256) and, if authentication is on, inbound
+	 * calls carrying a signature are verified locally, instead of through a
+	 * handshake callback to the sender. All peers need the same secret.
+	 *
+	 * @param secret
+	 *            the new auth secret
+	 */
+	public void setAuthSecret(final String secret) {
+		this.put("authSecret", secret);
+	}
+
+	/**
+	 * Gets the pre-shared secret for signed tokens.
+	 *
+	 * @return the auth secret, null if not set.
+	 */
+	public String getAuthSecret() {
+		if (this.has("authSecret")) {
+			return this.get("authSecret").asText();
+		}
+		return null;
+	}
+
 	/**
 	 * Gets the do authentication. (Overriden to change the default to false)
 	 * 
@@ -0,0 +1,118 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import com.almende.eve.transport.http.HttpTransportConfig;
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * The non-blocking counterpart of {@link ApacheHttpClient}: a small, fixed
+ * set of I/O threads multiplexes all outbound connections, so no thread is
+ * held while waiting for a response.
+ */
+public final class ApacheAsyncHttpClient {
+	private static final Logger	LOG	= Logger.getLogger(ApacheAsyncHttpClient.class
+											.getCanonicalName());
+
+	private ApacheAsyncHttpClient() {}
+
+	/**
+	 * Create and start a new non-blocking client, with the pool size,
+	 * connection limits and timeouts of the given config.
+	 *
+	 * @param config
+	 *            the config
+	 * @return the started client
+	 * @throws IOReactorException
+	 *             if the I/O reactor couldn't be started.
+	 */
+	public static CloseableHttpAsyncClient create(
+			final HttpTransportConfig config) throws IOReactorException {
+		final RegistryBuilder<SchemeIOSessionStrategy> registry = RegistryBuilder
+				.<SchemeIOSessionStrategy> create().register("http",
+						NoopIOSessionStrategy.INSTANCE);
+
+		// Allow self-signed SSL certificates:
+		try {
+			final SSLContext sslContext = new SSLContextBuilder()
+					.loadTrustMaterial(null, new TrustStrategy() {
+
+						@Override
+						public boolean isTrusted(
+								java.security.cert.X509Certificate[] arg0,
+								String arg1)
+								throws java.security.cert.CertificateException {
+							return true;
+						}
+					}).build();
+			registry.register("https", new SSLIOSessionStrategy(sslContext,
+					SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER));
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't init SSL strategy", e);
+		}
+		final Registry<SchemeIOSessionStrategy> strategies = registry.build();
+
+		final IOReactorConfig ioConfig = IOReactorConfig.custom()
+				.setIoThreadCount(config.getIoThreads())
+				.setConnectTimeout(config.getConnectTimeout())
+				.setSoTimeout(config.getSocketTimeout()).setTcpNoDelay(true)
+				.build();
+		final PoolingNHttpClientConnectionManager connection = new PoolingNHttpClientConnectionManager(
+				new DefaultConnectingIOReactor(ioConfig), strategies);
+		connection.setDefaultMaxPerRoute(config.getMaxConnectionsPerHost());
+		connection.setMaxTotal(config.getMaxConnections());
+
+		final RequestConfig globalConfig = RequestConfig.custom()
+				.setCookieSpec(CookieSpecs.BROWSER_COMPATIBILITY)
+				.setConnectTimeout(config.getConnectTimeout())
+				.setSocketTimeout(config.getSocketTimeout()).build();
+
+		final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+				.setConnectionManager(connection)
+				.setDefaultCookieStore(new BasicCookieStore())
+				.setDefaultRequestConfig(globalConfig).build();
+		client.start();
+
+		// Clear out stale connections, until the client is closed.
+		final ScheduledFuture<?>[] eviction = new ScheduledFuture<?>[1];
+		eviction[0] = ThreadPool.getScheduledPool().scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						if (!client.isRunning()) {
+							eviction[0].cancel(false);
+							return;
+						}
+						connection.closeExpiredConnections();
+						connection.closeIdleConnections(30, TimeUnit.SECONDS);
+					}
+				}, 5, 5, TimeUnit.SECONDS);
+		return client;
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.spdy.api.SPDY;
+import org.eclipse.jetty.spdy.client.SPDYClient;
+import org.eclipse.jetty.spdy.client.http.HttpClientTransportOverSPDY;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import com.almende.eve.transport.http.HttpTransportConfig;
+
+/**
+ * An outbound client that multiplexes all concurrent calls to a host over a
+ * single SPDY/3 connection, instead of opening a connection per call like
+ * {@link ApacheHttpClient}. Plain SPDY is used for http URLs, the counterpart
+ * of the SPDY connector of the JettyLauncher.
+ */
+public final class MultiplexedHttpClient {
+
+	private MultiplexedHttpClient() {}
+
+	/**
+	 * Create and start a new multiplexing client, with the timeouts of the
+	 * given config.
+	 *
+	 * @param config
+	 *            the config
+	 * @return the started client
+	 * @throws Exception
+	 *             if the client couldn't be started.
+	 */
+	public static HttpClient create(final HttpTransportConfig config)
+			throws Exception {
+		final SPDYClient.Factory factory = new SPDYClient.Factory();
+		factory.start();
+		final SPDYClient spdyClient = factory.newSPDYClient(SPDY.V3);
+		spdyClient.setIdleTimeout(config.getSocketTimeout());
+
+		// Allow self-signed SSL certificates:
+		final SslContextFactory sslContextFactory = new SslContextFactory(true);
+		final HttpClient client = new HttpClient(
+				new HttpClientTransportOverSPDY(spdyClient), sslContextFactory);
+		client.setConnectTimeout(config.getConnectTimeout());
+		client.setIdleTimeout(config.getSocketTimeout());
+		client.setMaxRequestsQueuedPerDestination(Integer.MAX_VALUE);
+		client.setFollowRedirects(false);
+		client.start();
+		return client;
+	}
+}
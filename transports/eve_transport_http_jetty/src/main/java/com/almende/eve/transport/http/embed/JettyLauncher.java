@@ -16,9 +16,13 @@ import javax.websocket.DeploymentException;
 import javax.websocket.server.ServerContainer;
 import javax.websocket.server.ServerEndpointConfig;
 
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.spdy.api.SPDY;
+import org.eclipse.jetty.spdy.server.http.HTTPSPDYServerConnectionFactory;
 import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
 
 import com.almende.eve.transport.http.ServletLauncher;
@@ -51,6 +55,15 @@ public class JettyLauncher implements ServletLauncher {
 			port = params.get("port").asInt();
 		}
 		server = new Server(port);
+		if (params != null && params.has("spdyPort")) {
+			// Plain SPDY/3 (no NPN), for the multiplexing client of the
+			// HttpTransport: concurrent calls share a single connection.
+			final ServerConnector spdy = new ServerConnector(server,
+					new HTTPSPDYServerConnectionFactory(SPDY.V3,
+							new HttpConfiguration()));
+			spdy.setPort(params.get("spdyPort").asInt());
+			server.addConnector(spdy);
+		}
 		context = new ServletContextHandler(ServletContextHandler.SESSIONS
 				| ServletContextHandler.NO_SECURITY);
 
@@ -98,6 +111,8 @@ public class JettyLauncher implements ServletLauncher {
 		}
 		LOG.info("Registering servlet:" + servletPath.getPath());
 		ServletHolder sh = new ServletHolder(servlet);
+		// Allows the EveServlet to suspend requests while the agent works.
+		sh.setAsyncSupported(true);
 
 		if (config.has("initParams")) {
 			ArrayNode params = (ArrayNode) config.get("initParams");
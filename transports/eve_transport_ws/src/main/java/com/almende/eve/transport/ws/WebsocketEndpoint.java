@@ -8,6 +8,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -21,6 +22,8 @@ import javax.websocket.MessageHandler;
 import javax.websocket.RemoteEndpoint;
 import javax.websocket.Session;
 
+import com.almende.util.threads.SerialExecutor;
+
 /**
  * The Class WebsocketEndpoint.
  */
@@ -43,10 +46,14 @@ public class WebsocketEndpoint extends Endpoint {
 		
 		Map<String, List<String>> queryparms = session.getRequestParameterMap();
 		String remoteId = null;
+		boolean routing = false;
 		for (final Entry<String, List<String>> param : queryparms.entrySet()) {
 			if (param.getKey().equals("id")) {
 				remoteId = param.getValue().get(0);
 			}
+			if (param.getKey().equals("routing")) {
+				routing = Boolean.parseBoolean(param.getValue().get(0));
+			}
 		}
 		if (remoteId != null) {
 			session.getUserProperties().put("remoteId", remoteId);
@@ -57,33 +64,53 @@ public class WebsocketEndpoint extends Endpoint {
 			LOG.log(Level.WARNING, "Failed to switch on Batching", e1);
 		}
 		
-		transport.registerRemote(remoteId, remote);
+		transport.registerRemote(remoteId, remote, routing);
 		transport.setConnected(true);
 		
 		final String id = remoteId;
+		final boolean route = routing;
+		// Messages of a connection are handled in order, on the ThreadPool.
+		final SerialExecutor executor = new SerialExecutor();
 		session.addMessageHandler(new MessageHandler.Whole<String>() {
 			@Override
 			public void onMessage(final String text) {
-				
-				new Thread(new Runnable() {
-					
-					@Override
-					public void run() {
-						try {
-							if (!transport.isConnected()){
-								LOG.warning("Strange, received message from unconnected source? Reopening!");
-								transport.registerRemote(id, remote);
-								transport.setConnected(true);
-							}
-							transport.receive(text, id);
-						} catch (final IOException e) {
-							LOG.log(Level.WARNING, "Failed to receive message",
-									e);
-						}
+				dispatch(executor, remote, id, route, text);
+			}
+		});
+		session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+			@Override
+			public void onMessage(final ByteBuffer buffer) {
+				final byte[] bytes;
+				if (buffer.hasArray() && buffer.arrayOffset() == 0
+						&& buffer.position() == 0
+						&& buffer.remaining() == buffer.array().length) {
+					bytes = buffer.array();
+				} else {
+					bytes = new byte[buffer.remaining()];
+					buffer.get(bytes);
+				}
+				dispatch(executor, remote, id, route, bytes);
+			}
+		});
+	}
+	
+	private void dispatch(final SerialExecutor executor,
+			final RemoteEndpoint.Async remote, final String id,
+			final boolean routing, final Object body) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!transport.isConnected()) {
+						LOG.warning("Strange, received message from unconnected source? Reopening!");
+						transport.registerRemote(id, remote, routing);
+						transport.setConnected(true);
 					}
-				}).start();
+					transport.receive(body, id);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Failed to receive message", e);
+				}
 			}
-			
 		});
 	}
 	
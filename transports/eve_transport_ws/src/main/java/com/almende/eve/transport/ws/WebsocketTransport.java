@@ -6,6 +6,12 @@ package com.almende.eve.transport.ws;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.websocket.CloseReason;
@@ -17,15 +23,20 @@ import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.AbstractTransport;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
+import com.almende.util.threads.ThreadPool;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class WebsocketTransport.
  */
 public abstract class WebsocketTransport extends AbstractTransport {
-	private static final Logger	LOG			= Logger.getLogger(WebsocketTransport.class
-													.getName());
-	private boolean				connected	= false;
+	private static final Logger	LOG				= Logger.getLogger(WebsocketTransport.class
+														.getName());
+	private boolean				connected		= false;
+	private long				flushInterval	= 0;
+	// Remotes with a flush scheduled.
+	private final Set<Async>	pendingFlush	= Collections
+														.newSetFromMap(new ConcurrentHashMap<Async, Boolean>());
 	
 	/**
 	 * Instantiates a new websocket transport.
@@ -43,23 +54,122 @@ public abstract class WebsocketTransport extends AbstractTransport {
 			final Handler<Receiver> handle, final TransportService service,
 			final ObjectNode params) {
 		super(address, handle, service, params);
+		flushInterval = WebsocketTransportConfig.decorate(params)
+				.getFlushInterval();
 	}
 	
-	protected abstract void registerRemote(String key, Async remote);
+	/**
+	 * Register the remote of a new connection.
+	 *
+	 * @param key
+	 *            the id of the connecting agent
+	 * @param remote
+	 *            the remote
+	 * @param routing
+	 *            does the other end understand {@link WsEnvelope}s?
+	 */
+	protected abstract void registerRemote(String key, Async remote,
+			boolean routing);
 	
 	/**
 	 * Receive.
 	 * 
 	 * @param body
-	 *            the body
+	 *            the body, a String for text frames, a byte[] for binary
+	 *            frames
 	 * @param id
 	 *            the id
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
-	public abstract void receive(final String body, final String id)
+	public abstract void receive(final Object body, final String id)
 			throws IOException;
 	
+	/**
+	 * Hand a received message to this transport's agent. Called on the
+	 * connection's serial executor, so the agent gets the messages of a
+	 * connection in order.
+	 * 
+	 * @param body
+	 *            the body
+	 * @param senderUrl
+	 *            the sender url
+	 */
+	protected void deliver(final Object body, final URI senderUrl) {
+		getHandle().get().receive(body, senderUrl, null);
+	}
+	
+	/**
+	 * Sets the flush interval, see
+	 * {@link WebsocketTransportConfig#setFlushInterval(long)}.
+	 * 
+	 * @param flushInterval
+	 *            the new flush interval
+	 */
+	protected void setFlushInterval(final long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	/**
+	 * Write a text frame to the remote, and flush it according to the flush
+	 * policy.
+	 * 
+	 * @param remote
+	 *            the remote
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected void write(final Async remote, final String message)
+			throws IOException {
+		remote.sendText(message);
+		flush(remote);
+	}
+	
+	/**
+	 * Write a binary frame to the remote, and flush it according to the
+	 * flush policy.
+	 * 
+	 * @param remote
+	 *            the remote
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	protected void write(final Async remote, final byte[] message)
+			throws IOException {
+		remote.sendBinary(ByteBuffer.wrap(message));
+		flush(remote);
+	}
+	
+	private void flush(final Async remote) {
+		// Coalesce: the first write after a flush schedules the next one. The
+		// flush blocks until the peer takes the frames, so it never runs on
+		// the writing thread: that may be a connection's serial executor,
+		// which has to keep reading for the peer to make progress.
+		if (pendingFlush.add(remote)) {
+			final Runnable flush = new Runnable() {
+				@Override
+				public void run() {
+					pendingFlush.remove(remote);
+					try {
+						remote.flushBatch();
+					} catch (final Exception e) {
+						LOG.log(Level.WARNING, "Failed to flush messages", e);
+					}
+				}
+			};
+			if (flushInterval <= 0) {
+				ThreadPool.getPool().execute(flush);
+			} else {
+				ThreadPool.getScheduledPool().schedule(flush, flushInterval,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
 	/**
 	 * On close.
 	 * 
@@ -142,6 +142,54 @@ public class WebsocketTransportConfig extends TransportConfig {
 		return null;
 	}
 
+	/**
+	 * Sets the flush policy of outbound messages: 0 flushes every message
+	 * right away, a positive interval lets the messages written within that
+	 * many milliseconds go out in a single flush.
+	 * 
+	 * @param flushInterval
+	 *            the new flush interval, in milliseconds
+	 */
+	public void setFlushInterval(final long flushInterval) {
+		this.put("flushInterval", flushInterval);
+	}
+
+	/**
+	 * Gets the flush interval of outbound messages, in milliseconds.
+	 * (default: 0, flush every message)
+	 * 
+	 * @return the flush interval
+	 */
+	public long getFlushInterval() {
+		if (this.has("flushInterval")) {
+			return this.get("flushInterval").asLong();
+		}
+		return 0;
+	}
+
+	/**
+	 * Should this client share a single connection with the other
+	 * multiplexed clients to the same server? (client)
+	 *
+	 * @param multiplexed
+	 *            the new multiplexed
+	 */
+	public void setMultiplexed(final boolean multiplexed) {
+		this.put("multiplexed", multiplexed);
+	}
+
+	/**
+	 * Does this client share its connection? (client, default: false)
+	 *
+	 * @return true, if multiplexed
+	 */
+	public boolean isMultiplexed() {
+		if (this.has("multiplexed")) {
+			return this.get("multiplexed").asBoolean();
+		}
+		return false;
+	}
+
 	/**
 	 * Sets the server url. (client)
 	 * 
@@ -0,0 +1,294 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.ws;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.DeploymentException;
+import javax.websocket.RemoteEndpoint.Async;
+import javax.websocket.Session;
+
+import org.glassfish.tyrus.client.ClientManager;
+
+import com.almende.util.URIUtil;
+
+/**
+ * The websocket connection of one or more client agents to a server. The
+ * first agent (the primary) opens the connection under its own id, the
+ * other agents register on it and send and receive their messages in
+ * {@link WsEnvelope}s.
+ */
+final class WsClientConnection {
+	private static final Logger							LOG			= Logger.getLogger(WsClientConnection.class
+																			.getName());
+	// The multiplexed connections, per server url.
+	private static final Map<URI, WsClientConnection>	SHARED		= new ConcurrentHashMap<URI, WsClientConnection>();
+	private static ClientManager						client		= null;
+	private final URI									serverUrl;
+	private final WsClientTransport						primary;
+	private final boolean								shared;
+	private final Map<URI, WsClientTransport>			members		= new ConcurrentHashMap<URI, WsClientTransport>();
+	private Session										session		= null;
+	private volatile Async								remote		= null;
+	private boolean										shouldClose	= false;
+
+	private WsClientConnection(final URI serverUrl,
+			final WsClientTransport primary, final boolean shared) {
+		this.serverUrl = serverUrl;
+		this.primary = primary;
+		this.shared = shared;
+	}
+
+	/**
+	 * Get a connection to the server for the given transport.
+	 *
+	 * @param transport
+	 *            the transport
+	 * @param serverUrl
+	 *            the server url
+	 * @param multiplexed
+	 *            should the transport share the connection with the other
+	 *            multiplexed transports to this server?
+	 * @return the connection
+	 */
+	static WsClientConnection get(final WsClientTransport transport,
+			final URI serverUrl, final boolean multiplexed) {
+		WsClientConnection connection;
+		if (!multiplexed) {
+			connection = new WsClientConnection(serverUrl, transport, false);
+		} else {
+			synchronized (SHARED) {
+				connection = SHARED.get(serverUrl);
+				if (connection == null) {
+					connection = new WsClientConnection(serverUrl, transport,
+							true);
+					SHARED.put(serverUrl, connection);
+				}
+			}
+		}
+		connection.join(transport);
+		return connection;
+	}
+
+	private void join(final WsClientTransport transport) {
+		members.put(transport.getAddress(), transport);
+		final Async current = remote;
+		if (transport != primary && current != null) {
+			register(transport, current);
+		}
+	}
+
+	/**
+	 * Remove the transport from this connection. If it was the primary, the
+	 * connection is closed and the remaining transports move to a new one.
+	 *
+	 * @param transport
+	 *            the transport
+	 */
+	void leave(final WsClientTransport transport) {
+		members.remove(transport.getAddress());
+		if (transport != primary && !members.isEmpty()) {
+			return;
+		}
+		if (shared) {
+			synchronized (SHARED) {
+				if (SHARED.get(serverUrl) == this) {
+					SHARED.remove(serverUrl);
+				}
+			}
+		}
+		close();
+		for (final WsClientTransport member : members.values()) {
+			member.reattach();
+		}
+		members.clear();
+	}
+
+	/**
+	 * Checks if messages of this transport to this receiver can go without
+	 * envelope.
+	 *
+	 * @param transport
+	 *            the transport
+	 * @param receiverUri
+	 *            the receiver uri
+	 * @return true, if direct
+	 */
+	boolean isDirect(final WsClientTransport transport, final URI receiverUri) {
+		return transport == primary && serverUrl.equals(receiverUri);
+	}
+
+	/**
+	 * Gets the remote, connects if needed.
+	 *
+	 * @return the remote
+	 * @throws IOException
+	 *             Signals that the connection couldn't be made.
+	 */
+	Async getRemote() throws IOException {
+		Async current = remote;
+		if (current == null) {
+			connect();
+			current = remote;
+		}
+		if (current == null) {
+			throw new IOException("Not connected?");
+		}
+		return current;
+	}
+
+	/**
+	 * Sets the remote of the new websocket session, (re-)registers the other
+	 * agents on it.
+	 *
+	 * @param remote
+	 *            the remote
+	 */
+	void setRemote(final Async remote) {
+		this.remote = remote;
+		for (final WsClientTransport member : members.values()) {
+			if (member != primary) {
+				register(member, remote);
+			}
+		}
+	}
+
+	/**
+	 * Forget the current remote, e.g. after it failed.
+	 */
+	void resetRemote() {
+		remote = null;
+	}
+
+	private void register(final WsClientTransport member, final Async remote) {
+		try {
+			member.write(remote, WsEnvelope.register(member.getAddress()));
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Failed to register " + member.getAddress()
+					+ " on connection", e);
+		}
+	}
+
+	/**
+	 * Hand a received frame to the agent it is addressed to.
+	 *
+	 * @param body
+	 *            the frame
+	 */
+	void receive(final Object body) {
+		final WsEnvelope envelope = WsEnvelope.parse(body);
+		if (envelope == null) {
+			primary.deliver(body, serverUrl);
+			return;
+		}
+		final WsClientTransport member = envelope.isRegistration() ? null
+				: members.get(envelope.getTo());
+		if (member == null) {
+			LOG.warning("Dropped message to unknown agent:" + envelope.getTo());
+			return;
+		}
+		member.deliver(envelope.getBody(), envelope.getFrom());
+	}
+
+	/**
+	 * Connect to the server, unless already connected.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	synchronized void connect() throws IOException {
+		if (session != null) {
+			return;
+		}
+		synchronized (SHARED) {
+			if (client == null) {
+				client = ClientManager.createClient();
+				client.setDefaultMaxSessionIdleTimeout(-1);
+			}
+		}
+		try {
+			final ClientEndpointConfig cec = ClientEndpointConfig.Builder
+					.create().build();
+			cec.getUserProperties().put("address", primary.getAddress());
+			session = client.connectToServer(WebsocketEndpoint.class, cec,
+					URIUtil.parse(serverUrl + "?id=" + primary.getId()
+							+ "&routing=true"));
+		} catch (final DeploymentException e) {
+			LOG.log(Level.WARNING, "Can't connect to server", e);
+		} catch (final URISyntaxException e) {
+			LOG.log(Level.WARNING, "Can't parse server address", e);
+		}
+	}
+
+	/**
+	 * Handle the end of a websocket session: reconnects, unless the
+	 * connection is being closed.
+	 *
+	 * @param closed
+	 *            the closed session
+	 * @return true, if reconnected
+	 */
+	boolean onClose(final Session closed) {
+		synchronized (this) {
+			if (shouldClose || closed != session) {
+				return false;
+			}
+			session = null;
+			remote = null;
+		}
+		try {
+			connect();
+			return true;
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Failed to reconnect", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Close the connection for this transport. A shared connection stays
+	 * open as long as other agents use it.
+	 *
+	 * @param transport
+	 *            the transport
+	 */
+	void disconnect(final WsClientTransport transport) {
+		final List<WsClientTransport> others = new ArrayList<WsClientTransport>(
+				members.values());
+		others.remove(transport);
+		if (others.isEmpty()) {
+			close();
+		}
+	}
+
+	private void close() {
+		final Session current;
+		synchronized (this) {
+			current = session;
+			shouldClose = true;
+		}
+		try {
+			if (current != null) {
+				current.close();
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Failed to normally close session", e);
+		}
+		synchronized (this) {
+			shouldClose = false;
+			session = null;
+			remote = null;
+		}
+	}
+}
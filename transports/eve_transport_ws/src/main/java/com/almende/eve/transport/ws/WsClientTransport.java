@@ -7,20 +7,15 @@ package com.almende.eve.transport.ws;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
-import javax.websocket.DeploymentException;
 import javax.websocket.RemoteEndpoint.Async;
 import javax.websocket.Session;
 
-import org.glassfish.tyrus.client.ClientManager;
-
 import com.almende.eve.capabilities.handler.Handler;
 import com.almende.eve.transport.Receiver;
 import com.almende.eve.transport.TransportService;
@@ -29,17 +24,17 @@ import com.almende.util.callback.AsyncCallback;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * The Class WebsocketTransport.
+ * The Class WebsocketTransport. Besides the server agent, a client can reach
+ * the other clients of the server, through the server. Multiplexed clients
+ * to the same server share a single connection.
  */
 public class WsClientTransport extends WebsocketTransport {
 	private static final Logger	LOG			= Logger.getLogger(WsClientTransport.class
 													.getName());
-	private Async				remote		= null;
 	private URI					serverUrl	= null;
 	private String				myId		= null;
-	private ClientManager		client		= null;
-	private Session				session		= null;
-	private Boolean				shouldClose	= false;
+	private boolean				multiplexed	= false;
+	private WsClientConnection	connection	= null;
 
 	/**
 	 * Instantiates a new websocket transport.
@@ -70,17 +65,39 @@ public class WsClientTransport extends WebsocketTransport {
 			LOG.warning("'serverUrl' parameter is required!");
 		}
 		myId = config.getId();
+		multiplexed = config.isMultiplexed();
+		if (serverUrl != null) {
+			connection = WsClientConnection.get(this, serverUrl, multiplexed);
+		}
 	}
 
 	/**
-	 * Sets the remote.
-	 * 
-	 * @param remote
-	 *            the new remote
+	 * Gets the id.
+	 *
+	 * @return the id
+	 */
+	public String getId() {
+		return myId;
+	}
+
+	/**
+	 * Move this transport to a new connection, after the primary agent left
+	 * the shared one.
+	 */
+	void reattach() {
+		connection = WsClientConnection.get(this, serverUrl, multiplexed);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.transport.ws.WebsocketTransport#registerRemote(java.lang
+	 * .String, javax.websocket.RemoteEndpoint.Async, boolean)
 	 */
 	@Override
-	protected void registerRemote(final String key, final Async remote) {
-		this.remote = remote;
+	protected void registerRemote(final String key, final Async remote,
+			final boolean routing) {
+		connection.setRemote(remote);
 	}
 
 	/*
@@ -90,8 +107,16 @@ public class WsClientTransport extends WebsocketTransport {
 	 * java.net.URI)
 	 */
 	@Override
-	public void receive(final String body, final String id) throws IOException {
-		super.getHandle().get().receive(body, serverUrl, null);
+	public void receive(final Object body, final String id) throws IOException {
+		connection.receive(body);
+	}
+
+	private WsClientConnection getConnection() throws IOException {
+		final WsClientConnection current = connection;
+		if (current == null) {
+			throw new IOException("'serverUrl' parameter is required!");
+		}
+		return current;
 	}
 
 	/**
@@ -126,29 +151,21 @@ public class WsClientTransport extends WebsocketTransport {
 	@Override
 	public <T> void send(final URI receiverUri, final String message,
 			final String tag, final AsyncCallback<T> callback) throws IOException {
-		if (!receiverUri.equals(serverUrl)) {
-			throw new IOException(
-					"Currently it's only possible to send to the server agent directly, not other agents:"
-							+ receiverUri.toASCIIString()
-							+ " serverUrl:"
-							+ serverUrl.toASCIIString());
-		}
-		if (remote == null || !isConnected()) {
-			connect();
-		}
-		if (remote != null) {
-			try {
-				remote.sendText(message);
-				remote.flushBatch();
-			} catch (RuntimeException rte) {
-				if (rte.getMessage().equals("Socket is not connected.")) {
-					remote = null;
-					// retry!
-					send(receiverUri, message, tag, callback);
-				}
+		final WsClientConnection current = getConnection();
+		final Async remote = current.getRemote();
+		try {
+			if (current.isDirect(this, receiverUri)) {
+				write(remote, message);
+			} else {
+				write(remote,
+						WsEnvelope.wrap(getAddress(), receiverUri, message));
+			}
+		} catch (RuntimeException rte) {
+			if (rte.getMessage().equals("Socket is not connected.")) {
+				current.resetRemote();
+				// retry!
+				send(receiverUri, message, tag, callback);
 			}
-		} else {
-			throw new IOException("Not connected?");
 		}
 	}
 
@@ -160,40 +177,33 @@ public class WsClientTransport extends WebsocketTransport {
 	@Override
 	public <T> void send(final URI receiverUri, final byte[] message,
 			final String tag, final AsyncCallback<T> callback) throws IOException {
-		if (!receiverUri.equals(serverUrl)) {
-			throw new IOException(
-					"Currently it's only possible to send to the server agent directly, not other agents:"
-							+ receiverUri.toASCIIString());
-		}
-		if (remote == null || !isConnected()) {
-			connect();
-		}
-		if (remote != null) {
-			try {
-				remote.sendBinary(ByteBuffer.wrap(message));
-				remote.flushBatch();
-			} catch (RuntimeException rte) {
-				if (rte.getMessage().equals("Socket is not connected.")) {
-					remote = null;
-					// retry!
-					send(receiverUri, message, tag, callback);
-				}
+		final WsClientConnection current = getConnection();
+		final Async remote = current.getRemote();
+		try {
+			if (current.isDirect(this, receiverUri)) {
+				write(remote, message);
+			} else {
+				write(remote,
+						WsEnvelope.wrap(getAddress(), receiverUri, message));
+			}
+		} catch (RuntimeException rte) {
+			if (rte.getMessage().equals("Socket is not connected.")) {
+				current.resetRemote();
+				// retry!
+				send(receiverUri, message, tag, callback);
 			}
-		} else {
-			throw new IOException("Not connected?");
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * com.almende.eve.transport.ws.WebsocketTransport#onClose(javax.websocket
+	 * .Session, javax.websocket.CloseReason)
+	 */
 	@Override
 	public void onClose(final Session session, final CloseReason closeReason) {
-		if (!shouldClose) {
-			try {
-				connect();
-			} catch (IOException e) {
-				LOG.log(Level.WARNING, "Failed to reconnect", e);
-				super.onClose(session, closeReason);
-			}
-		} else {
+		if (connection == null || !connection.onClose(session)) {
 			super.onClose(session, closeReason);
 		}
 	}
@@ -204,26 +214,7 @@ public class WsClientTransport extends WebsocketTransport {
 	 */
 	@Override
 	public void connect() throws IOException {
-		if (session != null) {
-			return;
-		}
-		if (client == null) {
-			client = ClientManager.createClient();
-			client.setDefaultMaxSessionIdleTimeout(-1);
-		}
-		try {
-			final ClientEndpointConfig cec = ClientEndpointConfig.Builder
-					.create().build();
-			cec.getUserProperties().put("address", getAddress());
-			session = client.connectToServer(WebsocketEndpoint.class, cec,
-					URIUtil.parse(serverUrl + "?id=" + myId));
-
-		} catch (final DeploymentException e) {
-			LOG.log(Level.WARNING, "Can't connect to server", e);
-		} catch (final URISyntaxException e) {
-			LOG.log(Level.WARNING, "Can't parse server address", e);
-		}
-
+		getConnection().connect();
 	}
 
 	/*
@@ -232,16 +223,9 @@ public class WsClientTransport extends WebsocketTransport {
 	 */
 	@Override
 	public void disconnect() {
-		try {
-			shouldClose = true;
-
-			session.close();
-
-			shouldClose = false;
-		} catch (IOException e) {
-			LOG.log(Level.WARNING, "Failed to normally close session", e);
+		if (connection != null) {
+			connection.disconnect(this);
 		}
-		session = null;
 	}
 
 	/**
@@ -267,6 +251,15 @@ public class WsClientTransport extends WebsocketTransport {
 			LOG.warning("'serverUrl' parameter is required!");
 		}
 		myId = config.getId();
+		multiplexed = config.isMultiplexed();
+		setFlushInterval(config.getFlushInterval());
+		if (connection != null) {
+			connection.leave(this);
+			connection = null;
+		}
+		if (serverUrl != null) {
+			connection = WsClientConnection.get(this, serverUrl, multiplexed);
+		}
 		connect();
 	}
 
@@ -276,7 +269,8 @@ public class WsClientTransport extends WebsocketTransport {
 	 */
 	@Override
 	public List<String> getProtocols() {
-		return Arrays.asList("wss", "ws");
+		// wsclient addresses are reached through the server.
+		return Arrays.asList("wss", "ws", "wsclient");
 	}
 
 }
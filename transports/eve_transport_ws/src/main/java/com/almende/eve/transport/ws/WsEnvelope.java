@@ -0,0 +1,178 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.ws;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * The addressing of a message that doesn't go straight from the connected
+ * client to the server agent: a header line "@eve from to\n", followed by the
+ * original text or binary payload. Lets the server relay messages between its
+ * clients, and lets several client agents share a single connection. A
+ * header with "-" as the receiver only registers the sender on the
+ * connection.
+ */
+final class WsEnvelope {
+	private static final Logger		LOG			= Logger.getLogger(WsEnvelope.class
+														.getName());
+	private static final Charset	UTF8		= Charset.forName("UTF-8");
+	private static final String		PREFIX		= "@eve ";
+	private static final byte[]		PREFIXBYTES	= PREFIX.getBytes(UTF8);
+	private static final String		REGISTER	= "-";
+	private static final int		MAXHEADER	= 1024;
+	private final URI				from;
+	private final URI				to;
+	private final Object			body;
+
+	private WsEnvelope(final URI from, final URI to, final Object body) {
+		this.from = from;
+		this.to = to;
+		this.body = body;
+	}
+
+	/**
+	 * Gets the sender.
+	 *
+	 * @return the sender
+	 */
+	URI getFrom() {
+		return from;
+	}
+
+	/**
+	 * Gets the receiver.
+	 *
+	 * @return the receiver, or null for a registration
+	 */
+	URI getTo() {
+		return to;
+	}
+
+	/**
+	 * Gets the payload.
+	 *
+	 * @return the payload, a String or a byte[], like the frame itself
+	 */
+	Object getBody() {
+		return body;
+	}
+
+	/**
+	 * Checks if this envelope only registers the sender.
+	 *
+	 * @return true, if this is a registration
+	 */
+	boolean isRegistration() {
+		return to == null;
+	}
+
+	/**
+	 * Wrap a text message.
+	 *
+	 * @param from
+	 *            the sender
+	 * @param to
+	 *            the receiver
+	 * @param message
+	 *            the message
+	 * @return the text frame
+	 */
+	static String wrap(final URI from, final URI to, final String message) {
+		return header(from, to) + message;
+	}
+
+	/**
+	 * Wrap a binary message.
+	 *
+	 * @param from
+	 *            the sender
+	 * @param to
+	 *            the receiver
+	 * @param message
+	 *            the message
+	 * @return the binary frame
+	 */
+	static byte[] wrap(final URI from, final URI to, final byte[] message) {
+		final byte[] header = header(from, to).getBytes(UTF8);
+		final byte[] frame = new byte[header.length + message.length];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		System.arraycopy(message, 0, frame, header.length, message.length);
+		return frame;
+	}
+
+	/**
+	 * Create the registration of an agent on a shared connection.
+	 *
+	 * @param from
+	 *            the agent's address
+	 * @return the text frame
+	 */
+	static String register(final URI from) {
+		return header(from, null);
+	}
+
+	private static String header(final URI from, final URI to) {
+		return PREFIX + from.toASCIIString() + " "
+				+ (to == null ? REGISTER : to.toASCIIString()) + "\n";
+	}
+
+	/**
+	 * Parse the envelope of a received frame.
+	 *
+	 * @param frame
+	 *            the frame, a String or a byte[]
+	 * @return the envelope, or null if the frame is a plain message
+	 */
+	static WsEnvelope parse(final Object frame) {
+		if (frame instanceof String) {
+			final String text = (String) frame;
+			if (!text.startsWith(PREFIX)) {
+				return null;
+			}
+			final int end = text.indexOf('\n');
+			if (end < 0) {
+				return null;
+			}
+			return create(text.substring(PREFIX.length(), end),
+					text.substring(end + 1));
+		}
+		if (frame instanceof byte[]) {
+			final byte[] bytes = (byte[]) frame;
+			if (bytes.length < PREFIXBYTES.length
+					|| !Arrays.equals(PREFIXBYTES,
+							Arrays.copyOf(bytes, PREFIXBYTES.length))) {
+				return null;
+			}
+			final int limit = Math.min(bytes.length, MAXHEADER);
+			for (int i = PREFIXBYTES.length; i < limit; i++) {
+				if (bytes[i] == '\n') {
+					return create(new String(bytes, PREFIXBYTES.length, i
+							- PREFIXBYTES.length, UTF8), Arrays.copyOfRange(
+							bytes, i + 1, bytes.length));
+				}
+			}
+		}
+		return null;
+	}
+
+	private static WsEnvelope create(final String header, final Object body) {
+		final String[] parts = header.split(" ");
+		if (parts.length != 2) {
+			LOG.warning("Invalid envelope header:" + header);
+			return null;
+		}
+		try {
+			final URI to = REGISTER.equals(parts[1]) ? null : URI
+					.create(parts[1]);
+			return new WsEnvelope(URI.create(parts[0]), to, body);
+		} catch (final IllegalArgumentException e) {
+			LOG.warning("Invalid envelope address:" + header);
+			return null;
+		}
+	}
+}
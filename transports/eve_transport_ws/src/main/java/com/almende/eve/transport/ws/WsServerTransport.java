@@ -6,12 +6,13 @@ package com.almende.eve.transport.ws;
 
 import java.io.IOException;
 import java.net.URI;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
 
 import javax.websocket.CloseReason;
 import javax.websocket.RemoteEndpoint.Async;
@@ -25,10 +26,15 @@ import com.almende.util.callback.AsyncCallback;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * The Class WebsocketTransport.
+ * The Class WebsocketTransport. Besides its own messages, the server relays
+ * the enveloped messages between its clients (see {@link WsEnvelope}), so
+ * client agents can reach each other, and several client agents can share a
+ * single connection.
  */
 public class WsServerTransport extends WebsocketTransport {
-	private final Map<URI, Async>	remotes	= new HashMap<URI, Async>();
+	private static final Logger					LOG		= Logger.getLogger(WsServerTransport.class
+																.getName());
+	private final ConcurrentMap<URI, Remote>	remotes	= new ConcurrentHashMap<URI, Remote>();
 	
 	/**
 	 * Instantiates a new websocket transport.
@@ -61,7 +67,19 @@ public class WsServerTransport extends WebsocketTransport {
 			final String remoteId = (String) session.getUserProperties().get(
 					"remoteId");
 			final URI key = URIUtil.create("wsclient:" + remoteId);
-			remotes.remove(key);
+			final Async closing = session.getAsyncRemote();
+			final Remote connection = remotes.get(key);
+			// After a quick reconnect the key already belongs to the new
+			// session, only drop the entries of the closing one.
+			if (connection != null && connection.remote == closing) {
+				remotes.remove(key, connection);
+			}
+			// Also drop the agents that shared this connection.
+			for (final Map.Entry<URI, Remote> entry : remotes.entrySet()) {
+				if (entry.getValue().remote == closing) {
+					remotes.remove(entry.getKey(), entry.getValue());
+				}
+			}
 		}
 	}
 	
@@ -74,18 +92,49 @@ public class WsServerTransport extends WebsocketTransport {
 		return remotes.keySet();
 	}
 	
-	/**
-	 * Register remote.
+	/*
+	 * (non-Javadoc)
 	 * 
-	 * @param key
-	 *            the key
-	 * @param remote
-	 *            the remote
+	 * @see
+	 * com.almende.eve.transport.ws.WebsocketTransport#registerRemote(java.lang
+	 * .String, javax.websocket.RemoteEndpoint.Async, boolean)
 	 */
 	@Override
-	protected void registerRemote(final String id, final Async remote) {
+	protected void registerRemote(final String id, final Async remote,
+			final boolean routing) {
 		final URI key = URI.create("wsclient:" + id);
-		remotes.put(key, remote);
+		remotes.put(key, new Remote(remote, routing));
+	}
+	
+	/**
+	 * Bind the sender of an envelope to the connection it came in on. Only
+	 * client addresses ("wsclient:") can be claimed, never this transport's
+	 * own address or an address of another transport, nor an address that
+	 * is already bound to another connection.
+	 * 
+	 * @param sender
+	 *            the sender
+	 * @param connection
+	 *            the connection
+	 * @return true, if the sender is bound to this connection
+	 */
+	private boolean bind(final URI sender, final Remote connection) {
+		if (sender == null || !"wsclient".equals(sender.getScheme())
+				|| sender.equals(getAddress())) {
+			return false;
+		}
+		final Remote routed = new Remote(connection.remote, true);
+		final Remote current = remotes.putIfAbsent(sender, routed);
+		if (current == null) {
+			return true;
+		}
+		if (current.remote != connection.remote) {
+			return false;
+		}
+		if (!current.routing) {
+			remotes.replace(sender, current, routed);
+		}
+		return true;
 	}
 	
 	/*
@@ -96,9 +145,39 @@ public class WsServerTransport extends WebsocketTransport {
 	 * java.net.URI)
 	 */
 	@Override
-	public void receive(final String body, final String id) throws IOException {
+	public void receive(final Object body, final String id) throws IOException {
 		final URI senderUrl = URI.create("wsclient:" + id);
-		super.getHandle().get().receive(body, senderUrl, null);
+		final WsEnvelope envelope = WsEnvelope.parse(body);
+		if (envelope == null) {
+			deliver(body, senderUrl);
+			return;
+		}
+		final Remote connection = remotes.get(senderUrl);
+		if (connection == null || !bind(envelope.getFrom(), connection)) {
+			LOG.warning("Dropped message of " + envelope.getFrom()
+					+ ", address can't be used by this connection.");
+			return;
+		}
+		if (envelope.isRegistration()) {
+			return;
+		}
+		if (envelope.getTo().equals(getAddress())) {
+			deliver(envelope.getBody(), envelope.getFrom());
+			return;
+		}
+		final Remote target = remotes.get(envelope.getTo());
+		if (target == null || !target.routing) {
+			LOG.warning("Can't relay message of " + envelope.getFrom()
+					+ ", remote: " + envelope.getTo()
+					+ " is currently not connected.");
+			return;
+		}
+		// Relayed as is, the receiving end needs the envelope's addressing.
+		if (body instanceof String) {
+			write(target.remote, (String) body);
+		} else {
+			write(target.remote, (byte[]) body);
+		}
 	}
 	
 	/*
@@ -110,10 +189,10 @@ public class WsServerTransport extends WebsocketTransport {
 	@Override
 	public <T> void send(final URI receiverUri, final String message,
 			final String tag, final AsyncCallback<T> calback) throws IOException {
-		if (remotes.containsKey(receiverUri)) {
-			final Async remote = remotes.get(receiverUri);
-			remote.sendText(message);
-			remote.flushBatch();
+		final Remote remote = remotes.get(receiverUri);
+		if (remote != null) {
+			write(remote.remote, remote.routing ? WsEnvelope.wrap(
+					getAddress(), receiverUri, message) : message);
 		} else {
 			throw new IOException("Remote: " + receiverUri.toASCIIString()
 					+ " is currently not connected. (" + getAddress() + " / "
@@ -130,10 +209,10 @@ public class WsServerTransport extends WebsocketTransport {
 	@Override
 	public <T> void send(final URI receiverUri, final byte[] message,
 			final String tag, final AsyncCallback<T> calback) throws IOException {
-		if (remotes.containsKey(receiverUri)) {
-			final Async remote = remotes.get(receiverUri);
-			remote.sendBinary(ByteBuffer.wrap(message));
-			remote.flushBatch();
+		final Remote remote = remotes.get(receiverUri);
+		if (remote != null) {
+			write(remote.remote, remote.routing ? WsEnvelope.wrap(
+					getAddress(), receiverUri, message) : message);
 		} else {
 			throw new IOException("Remote: " + receiverUri.toASCIIString()
 					+ " is currently not connected.");
@@ -150,4 +229,14 @@ public class WsServerTransport extends WebsocketTransport {
 		return Arrays.asList("wsclient");
 	}
 	
+	private static final class Remote {
+		private final Async		remote;
+		// Does this end understand envelopes?
+		private final boolean	routing;
+		
+		private Remote(final Async remote, final boolean routing) {
+			this.remote = remote;
+			this.routing = routing;
+		}
+	}
 }
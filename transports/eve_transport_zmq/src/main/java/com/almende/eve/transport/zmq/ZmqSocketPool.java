@@ -0,0 +1,147 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport.zmq;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.zeromq.ZMQ.Socket;
+
+import com.almende.util.threads.ThreadPool;
+
+/**
+ * A pool of connected PUSH sockets per peer address, so sending doesn't
+ * create, connect and close a socket per message. ZMQ sockets aren't thread
+ * safe: a borrowed socket is used by a single thread, until it is released.
+ * The pool keeps at most a given number of idle sockets per peer, sockets
+ * that have been idle for too long are closed.
+ */
+final class ZmqSocketPool {
+	private static final Logger		LOG		= Logger.getLogger(ZmqSocketPool.class
+													.getName());
+	private final Map<String, Peer>	peers	= new ConcurrentHashMap<String, Peer>();
+	private final int				maxPerPeer;
+	private final long				idleTimeout;
+
+	/**
+	 * Instantiates a new socket pool.
+	 *
+	 * @param maxPerPeer
+	 *            the max number of idle sockets per peer
+	 * @param idleTimeout
+	 *            the time after which idle sockets are closed, in
+	 *            milliseconds
+	 */
+	ZmqSocketPool(final int maxPerPeer, final long idleTimeout) {
+		this.maxPerPeer = maxPerPeer;
+		this.idleTimeout = idleTimeout;
+		final long period = Math.max(1000, idleTimeout / 2);
+		ThreadPool.getScheduledPool().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evict();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrow a socket connected to the given address.
+	 *
+	 * @param addr
+	 *            the zmq address
+	 * @return the socket
+	 */
+	Socket borrow(final String addr) {
+		final Peer peer = peers.get(addr);
+		if (peer != null) {
+			final PooledSocket pooled = peer.idle.poll();
+			if (pooled != null) {
+				peer.count.decrementAndGet();
+				return pooled.socket;
+			}
+		}
+		final Socket socket = ZMQ.getSocket(org.zeromq.ZMQ.PUSH);
+		socket.setLinger(-1);
+		socket.connect(addr);
+		return socket;
+	}
+
+	/**
+	 * Return a socket to the pool, after use.
+	 *
+	 * @param addr
+	 *            the zmq address
+	 * @param socket
+	 *            the socket
+	 */
+	void release(final String addr, final Socket socket) {
+		Peer peer = peers.get(addr);
+		if (peer == null) {
+			synchronized (peers) {
+				peer = peers.get(addr);
+				if (peer == null) {
+					peer = new Peer();
+					peers.put(addr, peer);
+				}
+			}
+		}
+		if (peer.count.incrementAndGet() > maxPerPeer) {
+			peer.count.decrementAndGet();
+			socket.close();
+			return;
+		}
+		peer.idle.offer(new PooledSocket(socket));
+	}
+
+	/**
+	 * Close a socket that failed, instead of returning it to the pool.
+	 *
+	 * @param socket
+	 *            the socket
+	 */
+	void invalidate(final Socket socket) {
+		try {
+			socket.close();
+		} catch (final Exception e) {
+			LOG.log(Level.FINE, "Couldn't close failed socket", e);
+		}
+	}
+
+	private void evict() {
+		final long limit = System.currentTimeMillis() - idleTimeout;
+		for (final Peer peer : peers.values()) {
+			final Iterator<PooledSocket> iter = peer.idle.iterator();
+			while (iter.hasNext()) {
+				final PooledSocket pooled = iter.next();
+				// Only the thread that removes the socket may close it.
+				if (pooled.lastUsed < limit && peer.idle.remove(pooled)) {
+					peer.count.decrementAndGet();
+					pooled.socket.close();
+				}
+			}
+		}
+	}
+
+	private static final class Peer {
+		private final Queue<PooledSocket>	idle	= new ConcurrentLinkedQueue<PooledSocket>();
+		private final AtomicInteger			count	= new AtomicInteger(0);
+	}
+
+	private static final class PooledSocket {
+		private final Socket	socket;
+		private final long		lastUsed	= System.currentTimeMillis();
+
+		private PooledSocket(final Socket socket) {
+			this.socket = socket;
+		}
+	}
+}
@@ -8,9 +8,15 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,7 +32,6 @@ import com.almende.util.ObjectCache;
 import com.almende.util.URIUtil;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.callback.AsyncCallbackStore;
-import com.almende.util.callback.SyncCallback;
 import com.almende.util.jackson.JOM;
 import com.almende.util.threads.ThreadPool;
 
@@ -40,10 +45,20 @@ public class ZmqTransport extends AbstractTransport {
 	private Thread									listeningThread;
 	private boolean									doesAuthentication	= false;
 	private boolean									doDisconnect		= false;
+	private final boolean							binary;
+	private final boolean							inproc;
+	private static final Charset					UTF8				= Charset
+																				.forName("UTF-8");
+	// Addresses of the listeners in this JVM that are also bound in-process.
+	private static final Set<String>				INPROC				= Collections
+																				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	private static final AsyncCallbackStore<String>	CALLBACKS			= new AsyncCallbackStore<String>(
 																				"ZMQ");
 	private final TokenStore						tokenstore			= new TokenStore();
 	private final List<String>						protocols			= Arrays.asList("zmq");
+	private static ZmqSocketPool					fallbackPool		= null;
+	// Messages waiting for the handshake of their sender.
+	private final Map<String, List<Object>>			unverified			= new HashMap<String, List<Object>>();
 
 	/**
 	 * Instantiates a new zmq transport.
@@ -60,6 +75,8 @@ public class ZmqTransport extends AbstractTransport {
 		super(config.getAddress(), handle, service, config);
 		zmqUrl = super.getAddress().toString().replaceFirst("^zmq:/?/?", "");
 		doesAuthentication = config.getDoAuthentication();
+		binary = config.isBinary();
+		inproc = config.isInproc();
 	}
 
 	/**
@@ -92,29 +109,45 @@ public class ZmqTransport extends AbstractTransport {
 			 */
 			@Override
 			public void run() {
-				final String addr = receiverUrl.toString().replaceFirst(
-						"zmq:/?/?", "");
-				final Socket socket = ZMQ.getSocket(org.zeromq.ZMQ.PUSH);
+				String addr = receiverUrl.toString().replaceFirst("zmq:/?/?",
+						"");
+				if (INPROC.contains(addr)) {
+					addr = toInproc(addr);
+				}
+				final ZmqSocketPool pool = getPool();
+				final Socket socket = pool.borrow(addr);
 				try {
-					socket.connect(addr);
 					socket.send(zmqType, org.zeromq.ZMQ.SNDMORE);
-					socket.send(senderUrl, org.zeromq.ZMQ.SNDMORE);
-					socket.send(token, org.zeromq.ZMQ.SNDMORE);
+					socket.send(senderUrl.getBytes(UTF8), org.zeromq.ZMQ.SNDMORE);
+					socket.send(token == null ? new byte[0] : token
+							.getBytes(UTF8), org.zeromq.ZMQ.SNDMORE);
 					socket.send(message, 0);
-
+					pool.release(addr, socket);
 				} catch (final Exception e) {
+					pool.invalidate(socket);
 					LOG.log(Level.WARNING, "Failed to send JSON through ZMQ", e);
-					callback.onFailure(new IOException(
-							"Failed to send JSON through ZMQ, e: "
-									+ e.getMessage()));
+					if (callback != null) {
+						callback.onFailure(new IOException(
+								"Failed to send JSON through ZMQ, e: "
+										+ e.getMessage()));
+					}
 				}
-				socket.setTCPKeepAlive(-1);
-				socket.setLinger(-1);
-				socket.close();
 			}
 		});
 	}
 
+	private ZmqSocketPool getPool() {
+		if (getService() instanceof ZmqTransportBuilder.ZmqService) {
+			return ((ZmqTransportBuilder.ZmqService) getService()).getPool();
+		}
+		synchronized (ZmqTransport.class) {
+			if (fallbackPool == null) {
+				fallbackPool = new ZmqSocketPool(4, 60000);
+			}
+			return fallbackPool;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.almende.eve.transport.Transport#send(java.net.URI,
@@ -125,7 +158,7 @@ public class ZmqTransport extends AbstractTransport {
 			final String tag, final AsyncCallback<T> callback)
 			throws IOException {
 		sendAsync(ZMQ.NORMAL, tokenstore.create().toString(), receiverUri,
-				message.getBytes(), tag, callback);
+				message.getBytes(UTF8), tag, callback);
 	}
 
 	/*
@@ -179,14 +212,14 @@ public class ZmqTransport extends AbstractTransport {
 	 *            the socket
 	 * @return the request
 	 */
-	private ByteBuffer[] getRequest(final Socket socket) {
+	private byte[][] getRequest(final Socket socket) {
 		final byte[] res = socket.recv();
-		final ByteBuffer[] result = new ByteBuffer[4];
+		final byte[][] result = new byte[4][];
 		if (res != null) {
-			result[0] = ByteBuffer.wrap(res);
-			result[1] = ByteBuffer.wrap(socket.recv());
-			result[2] = ByteBuffer.wrap(socket.recv());
-			result[3] = ByteBuffer.wrap(socket.recv());
+			result[0] = res;
+			result[1] = socket.recv();
+			result[2] = socket.recv();
+			result[3] = socket.recv();
 		}
 		return result;
 
@@ -203,15 +236,22 @@ public class ZmqTransport extends AbstractTransport {
 			public void run() {
 				final Socket socket = ZMQ.getSocket(org.zeromq.ZMQ.PULL);
 				socket.bind(zmqUrl);
+				if (inproc) {
+					socket.bind(toInproc(zmqUrl));
+					INPROC.add(zmqUrl);
+				}
 				while (true) {
 					try {
-						final ByteBuffer[] msg = getRequest(socket);
+						final byte[][] msg = getRequest(socket);
 
 						if (msg[0] != null) {
 							handleMsg(msg);
 							continue;
 						}
 						if (doDisconnect) {
+							if (inproc) {
+								INPROC.remove(zmqUrl);
+							}
 							socket.disconnect(zmqUrl);
 							doDisconnect = false;
 							return;
@@ -244,7 +284,7 @@ public class ZmqTransport extends AbstractTransport {
 	 *             Signals that an I/O exception has occurred.
 	 * @throws URISyntaxException
 	 */
-	private void handleMsg(final ByteBuffer[] msg)
+	private void handleMsg(final byte[][] msg)
 			throws ClassNotFoundException, InstantiationException,
 			IllegalAccessException, InvocationTargetException,
 			NoSuchMethodException, IOException, URISyntaxException {
@@ -254,47 +294,34 @@ public class ZmqTransport extends AbstractTransport {
 		// ZMQ.HANDSHAKE|senderUrl|tokenJson|timestamp
 		// ZMQ.HANDSHAKE_RESPONSE|senderUrl|tokenJson|null
 
-		final URI senderUrl = URIUtil.parse(new String(msg[1].array()));
-		final TokenRet token = JOM.getInstance().readValue(msg[2].array(),
+		final URI senderUrl = URIUtil.parse(new String(msg[1], UTF8));
+		final TokenRet token = JOM.getInstance().readValue(msg[2],
 				TokenRet.class);
-		final String body = new String(msg[3].array());
 		final String key = senderUrl + ":" + token.getToken();
 
-		if (Arrays.equals(msg[0].array(), ZMQ.HANDSHAKE)) {
+		if (Arrays.equals(msg[0], ZMQ.HANDSHAKE)) {
 			// Reply token corresponding to timestamp.
-			final String res = tokenstore.get(body);
-			sendAsync(ZMQ.HANDSHAKE_RESPONSE, res, senderUrl, res.getBytes(),
-					null, null);
+			final String res = tokenstore.get(new String(msg[3], UTF8));
+			sendAsync(ZMQ.HANDSHAKE_RESPONSE, res, senderUrl,
+					res.getBytes(UTF8), null, null);
 			return;
-		} else if (Arrays.equals(msg[0].array(), ZMQ.HANDSHAKE_RESPONSE)) {
+		} else if (Arrays.equals(msg[0], ZMQ.HANDSHAKE_RESPONSE)) {
 			// post response to callback for handling by other thread
 			final AsyncCallback<String> callback = CALLBACKS.get(key);
 			if (callback != null) {
-				callback.onSuccess(body);
+				callback.onSuccess(new String(msg[3], UTF8));
 			} else {
 				LOG.warning("Received ZMQ.HANDSHAKE_RESPONSE for unknown handshake..."
 						+ senderUrl + " : " + token);
 			}
 			return;
-		} else {
-			final ObjectCache sessionCache = ObjectCache.get("ZMQSessions");
-			if (!sessionCache.containsKey(key) && doesAuthentication) {
-				final SyncCallback<String> callback = new SyncCallback<String>() {};
-				CALLBACKS.put(key, "", callback);
-				sendAsync(ZMQ.HANDSHAKE, token.toString(), senderUrl, token
-						.getTime().getBytes(), null, null);
-
-				String retToken = null;
-				try {
-					retToken = callback.get();
-				} catch (final Exception e) {}
-				if (token.getToken().equals(retToken)) {
-					sessionCache.put(key, true);
-				} else {
-					LOG.warning("Failed to complete handshake!");
-					return;
-				}
-			}
+		}
+		// The bytes as received, or decoded once.
+		final Object body = binary ? msg[3] : new String(msg[3], UTF8);
+		final ObjectCache sessionCache = ObjectCache.get("ZMQSessions");
+		if (!sessionCache.containsKey(key) && doesAuthentication
+				&& !verify(key, token, senderUrl, body)) {
+			return;
 		}
 
 		if (body != null) {
@@ -302,4 +329,74 @@ public class ZmqTransport extends AbstractTransport {
 		}
 	}
 
+	/**
+	 * Queue the message until its sender has answered the handshake, without
+	 * blocking the listener: only the first message of an unknown sender
+	 * starts a handshake, later ones join the queue.
+	 * The session is only marked as verified after its queue is delivered,
+	 * both while holding the queues, so later messages can neither start a
+	 * second handshake nor overtake the queued ones.
+	 *
+	 * @param key
+	 *            the session key
+	 * @param token
+	 *            the token of the message
+	 * @param senderUrl
+	 *            the sender url
+	 * @param body
+	 *            the body
+	 * @return true, if the session got verified in the meantime: the message
+	 *         isn't queued and should be delivered right away.
+	 */
+	private boolean verify(final String key, final TokenRet token,
+			final URI senderUrl, final Object body) {
+		synchronized (unverified) {
+			if (ObjectCache.get("ZMQSessions").containsKey(key)) {
+				return true;
+			}
+			final List<Object> queue = unverified.get(key);
+			if (queue != null) {
+				queue.add(body);
+				return false;
+			}
+			final List<Object> newQueue = new ArrayList<Object>(1);
+			newQueue.add(body);
+			unverified.put(key, newQueue);
+		}
+		CALLBACKS.put(key, "ZMQ handshake", new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String retToken) {
+				synchronized (unverified) {
+					final List<Object> queue = unverified.remove(key);
+					if (!token.getToken().equals(retToken)) {
+						LOG.warning("Failed to complete handshake!");
+						return;
+					}
+					if (queue != null) {
+						for (final Object msg : queue) {
+							getHandle().get().receive(msg, senderUrl, null);
+						}
+					}
+					ObjectCache.get("ZMQSessions").put(key, true);
+				}
+			}
+
+			@Override
+			public void onFailure(final Exception exception) {
+				synchronized (unverified) {
+					unverified.remove(key);
+				}
+				LOG.log(Level.WARNING, "Failed to complete handshake!",
+						exception);
+			}
+		});
+		sendAsync(ZMQ.HANDSHAKE, token.toString(), senderUrl, token.getTime()
+				.getBytes(UTF8), null, null);
+		return false;
+	}
+
+	private static String toInproc(final String addr) {
+		return "inproc://" + addr;
+	}
+
 }
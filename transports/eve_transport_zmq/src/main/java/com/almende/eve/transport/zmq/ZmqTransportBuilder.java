@@ -27,15 +27,37 @@ public class ZmqTransportBuilder extends
 	@Override
 	public ZmqTransport build() {
 		if (singleton == null) {
-			singleton = new ZmqService();
-			singleton.doesShortcut = ZmqTransportConfig.decorate(getParams())
-					.getDoShortcut();
+			final ZmqTransportConfig config = ZmqTransportConfig
+					.decorate(getParams());
+			singleton = new ZmqService(new ZmqSocketPool(
+					config.getSocketsPerPeer(), config.getSocketIdleTimeout()));
+			singleton.doesShortcut = config.getDoShortcut();
 		}
 		return singleton.get(getParams(), getHandle());
 	}
 
 	class ZmqService implements TransportService {
-		private boolean	doesShortcut	= true;
+		private boolean				doesShortcut	= true;
+		private final ZmqSocketPool	pool;
+
+		/**
+		 * Instantiates a new zmq service.
+		 *
+		 * @param pool
+		 *            the socket pool, shared by all transports
+		 */
+		ZmqService(final ZmqSocketPool pool) {
+			this.pool = pool;
+		}
+
+		/**
+		 * Gets the pool of outbound sockets.
+		 *
+		 * @return the pool
+		 */
+		ZmqSocketPool getPool() {
+			return pool;
+		}
 
 		/**
 		 * Gets the ZMQ transport.
@@ -79,6 +79,101 @@ public class ZmqTransportConfig extends TransportConfig {
 		this.put("address", address);
 	}
 
+	/**
+	 * Sets the max number of idle, connected sockets kept per peer.
+	 * 
+	 * @param socketsPerPeer
+	 *            the new sockets per peer
+	 */
+	public void setSocketsPerPeer(final int socketsPerPeer) {
+		this.put("socketsPerPeer", socketsPerPeer);
+	}
+
+	/**
+	 * Gets the max number of idle, connected sockets kept per peer.
+	 * (default: 4)
+	 * 
+	 * @return the sockets per peer
+	 */
+	public int getSocketsPerPeer() {
+		if (this.has("socketsPerPeer")) {
+			return this.get("socketsPerPeer").asInt();
+		}
+		return 4;
+	}
+
+	/**
+	 * Sets the time after which idle sockets are closed, in milliseconds.
+	 * 
+	 * @param socketIdleTimeout
+	 *            the new socket idle timeout
+	 */
+	public void setSocketIdleTimeout(final long socketIdleTimeout) {
+		this.put("socketIdleTimeout", socketIdleTimeout);
+	}
+
+	/**
+	 * Gets the time after which idle sockets are closed, in milliseconds.
+	 * (default: 60000)
+	 * 
+	 * @return the socket idle timeout
+	 */
+	public long getSocketIdleTimeout() {
+		if (this.has("socketIdleTimeout")) {
+			return this.get("socketIdleTimeout").asLong();
+		}
+		return 60000;
+	}
+
+	/**
+	 * Sets whether message bodies are handed to the receiver as the received
+	 * bytes, instead of being decoded to a string first.
+	 * 
+	 * @param binary
+	 *            the new binary
+	 */
+	public void setBinary(final boolean binary) {
+		this.put("binary", binary);
+	}
+
+	/**
+	 * Checks if message bodies are handed to the receiver as bytes.
+	 * (default: false)
+	 * 
+	 * @return true, if binary
+	 */
+	public boolean isBinary() {
+		if (this.has("binary")) {
+			return this.get("binary").asBoolean();
+		}
+		return false;
+	}
+
+	/**
+	 * Sets whether agents in the same JVM reach this transport through
+	 * ZeroMQ's in-process (shared memory) transport, instead of through its
+	 * network address. The network address stays bound for remote peers.
+	 * 
+	 * @param inproc
+	 *            the new inproc
+	 */
+	public void setInproc(final boolean inproc) {
+		this.put("inproc", inproc);
+	}
+
+	/**
+	 * Checks if agents in the same JVM use the in-process transport.
+	 * (default: false)
+	 * 
+	 * @return true, if inproc
+	 */
+	public boolean isInproc() {
+		if (this.has("inproc")) {
+			return this.get("inproc").asBoolean();
+		}
+		return false;
+	}
+
 	/**
 	 * Sets the id.
 	 * 